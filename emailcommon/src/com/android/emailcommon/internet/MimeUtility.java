@@ -35,17 +35,28 @@ import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MimeUtility {
 
     public static final String MIME_TYPE_RFC822 = "message/rfc822";
+    /** Chars decoded at a time by {@link #appendTextFromPart} */
+    private static final int TEXT_BUFFER_SIZE = 4 * 1024;
+    private static final String MIME_TYPE_ANY = "*/*";
+    /**
+     * The compiled patterns for the other specifications given to {@link #mimeTypeMatches}.
+     * Those are constants, so there are only a few.  Guarded by itself.
+     */
+    private static final HashMap<String, Pattern> sMimeTypePatterns =
+            new HashMap<String, Pattern>();
     private final static Pattern PATTERN_CR_OR_LF = Pattern.compile("\r|\n");
 
     /**
@@ -258,19 +269,34 @@ public class MimeUtility {
      * or an error during conversion.
      */
     public static String getTextFromPart(Part part) {
+        StringBuilder sb = new StringBuilder();
+        if (appendTextFromPart(part, sb)) {
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the Part's body, converts it from its charset, and appends it to a StringBuilder.
+     * The body is decoded a buffer at a time straight into the builder, so it's never held as
+     * bytes as well as chars, and several parts can be collected with one final copy.
+     *
+     * @param part The part containing a body
+     * @param sb The builder to append the text to
+     * @return true if the part is text, and was converted; false if there was no text or an
+     * error during conversion, in which case the builder is left as it was.
+     */
+    public static boolean appendTextFromPart(Part part, StringBuilder sb) {
+        final int start = sb.length();
+        InputStream in = null;
         try {
             if (part != null && part.getBody() != null) {
-                InputStream in = part.getBody().getInputStream();
                 String mimeType = part.getMimeType();
                 if (mimeType != null && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
                     /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
+                     * The body's stream removes any transfer encoding.
                      */
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    IOUtils.copy(in, out);
-                    in.close();
-                    in = null;      // we want all of our memory back, and close might not release
+                    in = part.getBody().getInputStream();
 
                     /*
                      * We've got a text part, so let's see if it needs to be processed further.
@@ -289,11 +315,17 @@ public class MimeUtility {
                         charset = "ASCII";
                     }
                     /*
-                     * Convert and return as new String
+                     * Convert into the builder, sized up front if the stream knows how many
+                     * bytes it has (each decodes to at most one char)
                      */
-                    String result = out.toString(charset);
-                    out.close();
-                    return result;
+                    Reader reader = new InputStreamReader(in, charset);
+                    sb.ensureCapacity(start + in.available());
+                    char[] buffer = new char[TEXT_BUFFER_SIZE];
+                    int count;
+                    while ((count = reader.read(buffer)) != -1) {
+                        sb.append(buffer, 0, count);
+                    }
+                    return true;
                 }
             }
 
@@ -301,18 +333,28 @@ public class MimeUtility {
         catch (OutOfMemoryError oom) {
             /*
              * If we are not able to process the body there's nothing we can do about it. Return
-             * null and let the upper layers handle the missing content.
+             * false and let the upper layers handle the missing content.
              */
+            sb.setLength(start);
             Log.e(Logging.LOG_TAG, "Unable to getTextFromPart " + oom.toString());
         }
         catch (Exception e) {
             /*
              * If we are not able to process the body there's nothing we can do about it. Return
-             * null and let the upper layers handle the missing content.
+             * false and let the upper layers handle the missing content.
              */
+            sb.setLength(start);
             Log.e(Logging.LOG_TAG, "Unable to getTextFromPart " + e.toString());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do; we have the text
+                }
+            }
         }
-        return null;
+        return false;
     }
 
     /**
@@ -324,8 +366,27 @@ public class MimeUtility {
      * @return true if the mimeType matches
      */
     public static boolean mimeTypeMatches(String mimeType, String matchAgainst) {
-        Pattern p = Pattern.compile(matchAgainst.replaceAll("\\*", "\\.\\*"),
-                Pattern.CASE_INSENSITIVE);
+        // The common forms are matched directly: "type/subtype", "type/*" and "*/*"
+        final int wildcard = matchAgainst.indexOf('*');
+        if (wildcard < 0) {
+            return mimeType.equalsIgnoreCase(matchAgainst);
+        }
+        final int length = matchAgainst.length();
+        if (wildcard == length - 1 && length > 1 && matchAgainst.charAt(length - 2) == '/') {
+            return mimeType.regionMatches(true, 0, matchAgainst, 0, length - 1);
+        }
+        if (MIME_TYPE_ANY.equals(matchAgainst)) {
+            return mimeType.indexOf('/') >= 0;
+        }
+        Pattern p;
+        synchronized (sMimeTypePatterns) {
+            p = sMimeTypePatterns.get(matchAgainst);
+            if (p == null) {
+                p = Pattern.compile(matchAgainst.replaceAll("\\*", "\\.\\*"),
+                        Pattern.CASE_INSENSITIVE);
+                sMimeTypePatterns.put(matchAgainst, p);
+            }
+        }
         return p.matcher(mimeType).matches();
     }
 
@@ -405,6 +466,49 @@ public class MimeUtility {
      */
     public static void collectParts(Part part, ArrayList<Part> viewables,
             ArrayList<Part> attachments) throws MessagingException {
+        collectParts(part, null, viewables, attachments);
+    }
+
+    /**
+     * As {@link #collectParts(Part, ArrayList, ArrayList)}.  Each part's headers are parsed
+     * once at most: a multipart gets the MIME types of all its parts at once, checks them for
+     * HTML and hands each one down with its part.
+     *
+     * @param mimeType The MIME type of the part, or null if it hasn't been parsed yet
+     */
+    private static void collectParts(Part part, String mimeType, ArrayList<Part> viewables,
+            ArrayList<Part> attachments) throws MessagingException {
+        Body body = part.getBody();
+        if (body instanceof Multipart) {
+            // If the part is Multipart but not alternative it's either mixed or
+            // something we don't know about, which means we treat it as mixed
+            // per the spec. We just process its pieces recursively.
+            MimeMultipart mp = (MimeMultipart)body;
+            int count = mp.getCount();
+            String[] mimeTypes = new String[count];
+            boolean alternative = mp.getSubTypeForTest().equals("alternative");
+            boolean foundHtml = false;
+            for (int i = 0; i < count; i++) {
+                mimeTypes[i] = mp.getBodyPart(i).getMimeType();
+                if (alternative && "text/html".equals(mimeTypes[i])) {
+                    foundHtml = true;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                // If there's html, don't bother loading text
+                if (foundHtml && "text/plain".equals(mimeTypes[i])) {
+                    continue;
+                }
+                collectParts(mp.getBodyPart(i), mimeTypes[i], viewables, attachments);
+            }
+            return;
+        } else if (body instanceof Message) {
+            // If the part is an embedded message we just continue to process
+            // it, pulling any viewables or attachments into the running list.
+            collectParts((Message)body, null, viewables, attachments);
+            return;
+        }
+
         String disposition = part.getDisposition();
         String dispositionType = null;
         String dispositionFilename = null;
@@ -434,43 +538,17 @@ public class MimeUtility {
         // One or the other
         boolean attachmentOrInline = attachment || inline;
 
-        if (part.getBody() instanceof Multipart) {
-            // If the part is Multipart but not alternative it's either mixed or
-            // something we don't know about, which means we treat it as mixed
-            // per the spec. We just process its pieces recursively.
-            MimeMultipart mp = (MimeMultipart)part.getBody();
-            boolean foundHtml = false;
-            if (mp.getSubTypeForTest().equals("alternative")) {
-                for (int i = 0; i < mp.getCount(); i++) {
-                    if (mp.getBodyPart(i).isMimeType("text/html")) {
-                        foundHtml = true;
-                        break;
-                    }
-                }
-            }
-            for (int i = 0; i < mp.getCount(); i++) {
-                // See if we have text and html
-                BodyPart bp = mp.getBodyPart(i);
-                // If there's html, don't bother loading text
-                if (foundHtml && bp.isMimeType("text/plain")) {
-                    continue;
-                }
-                collectParts(bp, viewables, attachments);
-            }
-        } else if (part.getBody() instanceof Message) {
-            // If the part is an embedded message we just continue to process
-            // it, pulling any viewables or attachments into the running list.
-            Message message = (Message)part.getBody();
-            collectParts(message, viewables, attachments);
-        } else if ((!attachmentOrInline) && ("text/html".equalsIgnoreCase(part.getMimeType()))) {
-            // If the part is HTML and we got this far, it's a viewable part of a mixed
-            viewables.add(part);
-        } else if ((!attachmentOrInline) && ("text/plain".equalsIgnoreCase(part.getMimeType()))) {
-            // If the part is text and we got this far, it's a viewable part of a mixed
-            viewables.add(part);
-        } else if (attachmentOrInline) {
+        if (attachmentOrInline) {
             // Finally, if it's an attachment or an inline we will include it as an attachment.
             attachments.add(part);
+            return;
+        }
+        if (mimeType == null) {
+            mimeType = part.getMimeType();
+        }
+        if ("text/html".equalsIgnoreCase(mimeType) || "text/plain".equalsIgnoreCase(mimeType)) {
+            // If the part is HTML or text and we got this far, it's a viewable part of a mixed
+            viewables.add(part);
         }
     }
 }
@@ -35,6 +35,7 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,6 +53,21 @@ import java.util.regex.Pattern;
  */
 public class Rfc822Output {
 
+    /**
+     * Flag for {@link #writeTo}: the transport carries 8bit data (RFC 6152), so text parts that
+     * are safe to send as they are needn't be base64 encoded.
+     */
+    public static final int ALLOW_8BIT = 1 << 0;
+    /**
+     * Flag for {@link #writeTo}: the transport carries binary data (RFC 3030), so attachments
+     * needn't be base64 encoded.  The message is written with CRLF line endings throughout, and
+     * must be sent as is, without any further conversion.
+     */
+    public static final int ALLOW_BINARY = 1 << 1;
+
+    // RFC 5322 limit on the length of a line, excluding its CRLF
+    private static final int MAX_LINE_LENGTH = 998;
+
     private static final Pattern PATTERN_START_OF_LINE = Pattern.compile("(?m)^");
     private static final Pattern PATTERN_ENDLINE_CRLF = Pattern.compile("\r\n");
 
@@ -182,6 +198,23 @@ public class Rfc822Output {
      */
     public static void writeTo(Context context, long messageId, OutputStream out,
             boolean useSmartReply, boolean sendBcc) throws IOException, MessagingException {
+        writeTo(context, messageId, out, useSmartReply, sendBcc, 0);
+    }
+
+    /**
+     * Write the entire message to an output stream, using the transfer encodings allowed by
+     * the transport.
+     *
+     * @param encodingFlags {@link #ALLOW_8BIT} and/or {@link #ALLOW_BINARY}, or 0 to write a
+     * message that's safe to send over any transport
+     * @see #writeTo(Context, long, OutputStream, boolean, boolean)
+     */
+    public static void writeTo(Context context, long messageId, OutputStream out,
+            boolean useSmartReply, boolean sendBcc, int encodingFlags)
+            throws IOException, MessagingException {
+        boolean allowBinary = (encodingFlags & ALLOW_BINARY) != 0;
+        // Binary transports carry 8bit data too
+        boolean allow8bit = allowBinary || (encodingFlags & ALLOW_8BIT) != 0;
         Message message = Message.restoreMessageWithId(context, messageId);
         if (message == null) {
             // throw something?
@@ -228,7 +261,7 @@ public class Rfc822Output {
 
             // Simplified case for no multipart - just emit text and be done.
             if (!multipart) {
-                writeTextWithHeaders(writer, stream, bodyText);
+                writeTextWithHeaders(writer, stream, bodyText, allow8bit);
             } else {
                 // continue with multipart headers, then into multipart body
                 multipartBoundary = getNextBoundary();
@@ -252,7 +285,7 @@ public class Rfc822Output {
                 // first multipart element is the body
                 if (bodyText[INDEX_BODY_TEXT] != null) {
                     writeBoundary(writer, multipartBoundary, false);
-                    writeTextWithHeaders(writer, stream, bodyText);
+                    writeTextWithHeaders(writer, stream, bodyText, allow8bit);
                 }
 
                 // Write out the attachments until we run out
@@ -261,7 +294,7 @@ public class Rfc822Output {
                     Attachment attachment =
                         Attachment.getContent(attachmentsCursor, Attachment.class);
                     attachment.mAccountKey = message.mAccountKey;
-                    writeOneAttachment(context, writer, stream, attachment);
+                    writeOneAttachment(context, writer, stream, attachment, allowBinary);
                     writer.write("\r\n");
                 } while (attachmentsCursor.moveToNext());
 
@@ -278,29 +311,32 @@ public class Rfc822Output {
 
     /**
      * Write a single attachment and its payload
+     *
+     * @param binary whether the payload can be written as is, rather than base64 encoded
      */
     private static void writeOneAttachment(Context context, Writer writer, OutputStream out,
-            Attachment attachment) throws IOException, MessagingException {
+            Attachment attachment, boolean binary) throws IOException, MessagingException {
         // Caused by the file maybe not named by the English alphabet,
         // so accroding to RFC822, need encoded it.
         writeHeader(writer, "Content-Type",
                 attachment.mMimeType
-                + ";\n name=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\"");
-        writeHeader(writer, "Content-Transfer-Encoding", "base64");
+                + ";\r\n name=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\"");
+        writeHeader(writer, "Content-Transfer-Encoding", binary ? "binary" : "base64");
         // Most attachments (real files) will send Content-Disposition.  The suppression option
         // is used when sending calendar invites.
         if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
             writeHeader(writer, "Content-Disposition",
                     "attachment;"
-                    + "\n filename=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\";"
-                    + "\n size=" + Long.toString(attachment.mSize));
+                    + "\r\n filename=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0)
+                    + "\";"
+                    + "\r\n size=" + Long.toString(attachment.mSize));
         }
         if (attachment.mContentId != null) {
             writeHeader(writer, "Content-ID", attachment.mContentId);
         }
         writer.append("\r\n");
 
-        // Set up input stream and write it out via base64
+        // Set up input stream and write it out, via base64 unless binary
         InputStream inStream = null;
         try {
             // Use content, if provided; otherwise, use the contentUri
@@ -313,11 +349,15 @@ public class Rfc822Output {
             }
             // switch to output stream for base64 text output
             writer.flush();
-            Base64OutputStream base64Out = new Base64OutputStream(
-                out, Base64.CRLF | Base64.NO_CLOSE);
-            // copy base64 data and close up
-            IOUtils.copy(inStream, base64Out);
-            base64Out.close();
+            if (binary) {
+                IOUtils.copy(inStream, out);
+            } else {
+                Base64OutputStream base64Out = new Base64OutputStream(
+                    out, Base64.CRLF | Base64.NO_CLOSE);
+                // copy base64 data and close up
+                IOUtils.copy(inStream, base64Out);
+                base64Out.close();
+            }
 
             // The old Base64OutputStream wrote an extra CRLF after
             // the output.  It's not required by the base-64 spec; not
@@ -407,16 +447,17 @@ public class Rfc822Output {
      * or HTML), the text is written directly. Otherwise, the plain text and HTML bodies
      * are both written with the appropriate headers.
      *
-     * Note this always uses base64, even when not required.  Slightly less efficient for
-     * US-ASCII text, but handles all formats even when non-ascii chars are involved.  A small
-     * optimization might be to prescan the string for safety and send raw if possible.
+     * Unless the transport allows 8bit data, this always uses base64, even when not required.
+     * Slightly less efficient for US-ASCII text, but handles all formats even when non-ascii
+     * chars are involved.
      *
      * @param writer the output writer
      * @param out the output stream inside the writer (used for byte[] access)
      * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param allow8bit whether text that's safe to send as is may be written without encoding
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
-            throws IOException {
+    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText,
+            boolean allow8bit) throws IOException {
         String text = bodyText[INDEX_BODY_TEXT];
         String html = bodyText[INDEX_BODY_HTML];
 
@@ -439,23 +480,13 @@ public class Rfc822Output {
             }
 
             // first multipart element is the body
-            writeHeader(writer, "Content-Type", "text/plain; charset=utf-8");
-            writeHeader(writer, "Content-Transfer-Encoding", "base64");
-            writer.write("\r\n");
-            byte[] textBytes = text.getBytes("UTF-8");
-            writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            writeTextPart(writer, out, "text/plain; charset=utf-8", text, allow8bit);
 
             if (multipart) {
                 // next multipart section
                 writeBoundary(writer, multipartBoundary, false);
 
-                writeHeader(writer, "Content-Type", "text/html; charset=utf-8");
-                writeHeader(writer, "Content-Transfer-Encoding", "base64");
-                writer.write("\r\n");
-                byte[] htmlBytes = html.getBytes("UTF-8");
-                writer.flush();
-                out.write(Base64.encode(htmlBytes, Base64.CRLF));
+                writeTextPart(writer, out, "text/html; charset=utf-8", html, allow8bit);
 
                 // end of multipart section
                 writeBoundary(writer, multipartBoundary, true);
@@ -463,6 +494,69 @@ public class Rfc822Output {
         }
     }
 
+    /**
+     * Write a single text part, with its headers
+     *
+     * @param allow8bit whether the text may be written without encoding, if it's safe to do so
+     */
+    private static void writeTextPart(Writer writer, OutputStream out, String contentType,
+            String text, boolean allow8bit) throws IOException {
+        byte[] textBytes = text.getBytes("UTF-8");
+        byte[] lines = allow8bit ? get8bitLines(textBytes) : null;
+        writeHeader(writer, "Content-Type", contentType);
+        if (lines != null) {
+            writeHeader(writer, "Content-Transfer-Encoding", is7bit(textBytes) ? "7bit" : "8bit");
+            writer.write("\r\n");
+            writer.flush();
+            out.write(lines);
+        } else {
+            writeHeader(writer, "Content-Transfer-Encoding", "base64");
+            writer.write("\r\n");
+            writer.flush();
+            out.write(Base64.encode(textBytes, Base64.CRLF));
+        }
+    }
+
+    /**
+     * Returns the given UTF-8 text as CRLF terminated lines, or null if it can't be sent
+     * without encoding: i.e. it holds a NUL or a CR that doesn't end a line, or one of its lines
+     * is longer than allowed.
+     */
+    /*package*/ static byte[] get8bitLines(byte[] text) {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream(text.length + text.length / 32 + 2);
+        int lineLength = 0;
+        for (int i = 0; i < text.length; i++) {
+            byte b = text[i];
+            if (b == '\r') {
+                if (i + 1 == text.length || text[i + 1] != '\n') {
+                    return null;
+                }
+                // The CRLF is written along with its LF
+                continue;
+            } else if (b == '\n') {
+                lines.write('\r');
+                lineLength = -1;
+            } else if (b == 0 || lineLength == MAX_LINE_LENGTH) {
+                return null;
+            }
+            lines.write(b);
+            lineLength++;
+        }
+        // End the last line; it's followed by a boundary, or the end of the message
+        lines.write('\r');
+        lines.write('\n');
+        return lines.toByteArray();
+    }
+
+    private static boolean is7bit(byte[] text) {
+        for (byte b : text) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns a unique boundary string.
      */
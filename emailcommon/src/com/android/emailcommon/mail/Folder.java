@@ -19,6 +19,11 @@ package com.android.emailcommon.mail;
 import com.android.emailcommon.service.SearchParams;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 
 public abstract class Folder {
     public enum OpenMode {
@@ -141,6 +146,30 @@ public abstract class Folder {
         throw new MessagingException("Not implemented");
     }
 
+    /**
+     * Returns an opaque token describing the current modification state of the open folder, or
+     * null if the folder can't report incremental changes.  A token saved after a successful
+     * sync can later be passed to {@link #getMessagesChangedSince(String, List)}.
+     * Note: Not typically implemented in remote stores, so not abstract.
+     */
+    public String getSyncState() {
+        return null;
+    }
+
+    /**
+     * Return the messages whose flags changed since the state described by {@code syncState},
+     * with their flags loaded.  UIDs of messages known to have been removed since then may be
+     * added to {@code vanishedUids}.
+     * Note: Not typically implemented in remote stores, so not abstract.
+     *
+     * @return the changed messages, or null if an incremental update isn't possible and the
+     * caller must refresh the flags of every message.
+     */
+    public Message[] getMessagesChangedSince(String syncState, List<String> vanishedUids)
+            throws MessagingException {
+        return null;
+    }
+
     public abstract void appendMessages(Message[] messages) throws MessagingException;
 
     /**
@@ -152,11 +181,64 @@ public abstract class Folder {
     public abstract void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException;
 
+    /**
+     * Applies several independent flag changes.  Stores that can send several commands without
+     * waiting for each reply override this; the default applies each change in turn.
+     */
+    public void setFlags(List<FlagChange> changes) throws MessagingException {
+        for (FlagChange change : changes) {
+            setFlags(change.mMessages, change.mFlags, change.mValue);
+        }
+    }
+
+    /**
+     * Marks the given messages deleted and expunges the folder.  Stores that can send several
+     * commands without waiting for each reply override this.
+     */
+    public void deleteMessages(Message[] messages) throws MessagingException {
+        setFlags(messages, new Flag[] { Flag.DELETED }, true);
+        expunge();
+    }
+
+    /**
+     * Returns the messages, among those with the given UIDs, that still exist in the folder.
+     * The default looks up each UID with {@link #getMessage(String)}; stores that can check a
+     * whole set of UIDs in one request override this.
+     * Note: Not typically implemented in remote stores, so not abstract.
+     */
+    public Message[] getExistingMessages(String[] uids) throws MessagingException {
+        ArrayList<Message> messages = new ArrayList<Message>(uids.length);
+        for (String uid : uids) {
+            Message message = getMessage(uid);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages.toArray(Message.EMPTY_ARRAY);
+    }
+
     public abstract Message[] expunge() throws MessagingException;
 
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Fetches {@code length} bytes of the content of a part, starting at {@code offset}, and
+     * writes them to {@code out}.  The content is as stored on the server, i.e. still in its
+     * content transfer encoding, so that the ranges can be concatenated.
+     * Note: Not typically implemented in remote stores, so not abstract.
+     *
+     * @param message the message holding the part
+     * @param partId the server's id for the part
+     * @return the number of bytes written, which is less than {@code length} only at the end of
+     * the part, or -1 if the folder can't fetch a range of a part.
+     * @throws MessagingException if the range wasn't returned, e.g. the message is gone
+     */
+    public int fetchPartRange(Message message, String partId, long offset, int length,
+            OutputStream out) throws MessagingException, IOException {
+        return -1;
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
@@ -182,6 +264,21 @@ public abstract class Folder {
      */
     public abstract Message createMessage(String uid) throws MessagingException;
 
+    /**
+     * One flag change to be applied with {@link Folder#setFlags(List)}.
+     */
+    public static class FlagChange {
+        public final Message[] mMessages;
+        public final Flag[] mFlags;
+        public final boolean mValue;
+
+        public FlagChange(Message[] messages, Flag[] flags, boolean value) {
+            mMessages = messages;
+            mFlags = flags;
+            mValue = value;
+        }
+    }
+
     /**
      * Callback interface by which a folder can report UID changes caused by certain operations.
      */
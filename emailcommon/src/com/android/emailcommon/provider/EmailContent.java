@@ -83,6 +83,19 @@ public abstract class EmailContent {
     public static final Uri MAILBOX_MOST_RECENT_MESSAGE_URI =
             Uri.parse("content://" + EmailContent.AUTHORITY + "/mailboxMostRecentMessage");
 
+    /**
+     * Summary of the unread messages that arrived in a mailbox since the user last looked at it,
+     * in a single row; no row if the mailbox doesn't exist.  Append the mailbox id.
+     */
+    public static final Uri MAILBOX_UNSEEN_MESSAGES_URI =
+            Uri.parse("content://" + EmailContent.AUTHORITY + "/mailboxUnseenMessages");
+    public static final int UNSEEN_MESSAGES_COUNT_COLUMN = 0;
+    public static final int UNSEEN_MESSAGES_NEWEST_ID_COLUMN = 1;
+    public static final int UNSEEN_MESSAGES_UNREAD_COUNT_COLUMN = 2;
+    public static final int UNSEEN_MESSAGES_LAST_SEEN_ID_COLUMN = 3;
+    public static final int UNSEEN_MESSAGES_NOTIFIED_ID_COLUMN = 4;
+    public static final int UNSEEN_MESSAGES_NOTIFIED_COUNT_COLUMN = 5;
+
     public static final String PROVIDER_PERMISSION = "com.android.email.permission.ACCESS_PROVIDER";
 
     // All classes share this
@@ -548,6 +561,17 @@ public abstract class EmailContent {
         public static final Uri NOTIFIER_URI =
             Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
 
+        /**
+         * Local full text search over message subjects, senders and bodies.  The search terms
+         * (FTS query syntax, e.g. "lunch OR dinner") go in the {@link #SEARCH_QUERY_PARAMETER}
+         * parameter; the selection, if any, applies to the Message table.  Results are ranked
+         * best match first and carry a {@link #SEARCH_SNIPPET} column along with the projection.
+         */
+        public static final Uri SEARCH_CONTENT_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/messageSearch");
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+        public static final String SEARCH_SNIPPET = "searchSnippet";
+
         public static final String KEY_TIMESTAMP_DESC = MessageColumns.TIMESTAMP + " desc";
 
         public static final int CONTENT_ID_COLUMN = 0;
@@ -646,6 +670,21 @@ public abstract class EmailContent {
             +     Message.FLAG_LOADED_PARTIAL + "," + Message.FLAG_LOADED_COMPLETE + ","
             +     Message.FLAG_LOADED_SYNC_SIZE_COMPLETE + ")";
 
+        /**
+         * {@link #FLAG_LOADED_SELECTION}, for the selections that should be read from the
+         * (mailboxKey, timestamp, flagLoaded) index.  Nearly all messages are loaded, but
+         * without statistics SQLite can't tell, and would rather read the flagLoaded index and
+         * sort the lot; the unary + keeps it from using that index.
+         */
+        private static final String FLAG_LOADED_UNINDEXED_SELECTION =
+            "+" + FLAG_LOADED_SELECTION;
+
+        private static final String[] SUM_OF_FAVORITE_COUNT_PROJECTION = new String[] {
+            "sum(" + Mailbox.TYPE_COUNT_FAVORITE_COUNT + ")"
+        };
+        private static final String NOT_TRASH_TYPE_SELECTION =
+            MailboxColumns.TYPE + "!=" + Mailbox.TYPE_TRASH;
+
         public static final String ALL_FAVORITE_SELECTION =
             MessageColumns.FLAG_FAVORITE + "=1 AND "
             + MessageColumns.MAILBOX_KEY + " NOT IN ("
@@ -660,7 +699,7 @@ public abstract class EmailContent {
             +     "SELECT " + MailboxColumns.ID + " FROM " + Mailbox.TABLE_NAME
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_INBOX
             +     ")"
-            + " AND " + FLAG_LOADED_SELECTION;
+            + " AND " + FLAG_LOADED_UNINDEXED_SELECTION;
 
         /** Selection to retrieve all messages in "drafts" for any account */
         public static final String ALL_DRAFT_SELECTION =
@@ -668,7 +707,7 @@ public abstract class EmailContent {
             +     "SELECT " + MailboxColumns.ID + " FROM " + Mailbox.TABLE_NAME
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_DRAFTS
             +     ")"
-            + " AND " + FLAG_LOADED_SELECTION;
+            + " AND " + FLAG_LOADED_UNINDEXED_SELECTION;
 
         /** Selection to retrieve all messages in "outbox" for any account */
         public static final String ALL_OUTBOX_SELECTION =
@@ -679,7 +718,7 @@ public abstract class EmailContent {
 
         /** Selection to retrieve unread messages in "inbox" for any account */
         public static final String ALL_UNREAD_SELECTION =
-            MessageColumns.FLAG_READ + "=0 AND " + ALL_INBOX_SELECTION;
+            "+" + MessageColumns.FLAG_READ + "=0 AND " + ALL_INBOX_SELECTION;
 
         /** Selection to retrieve unread messages in "inbox" for one account */
         public static final String PER_ACCOUNT_UNREAD_SELECTION =
@@ -1019,7 +1058,8 @@ public abstract class EmailContent {
          * @return number of favorite (starred) messages throughout all accounts.
          */
         public static int getFavoriteMessageCount(Context context) {
-            return count(context, Message.CONTENT_URI, ALL_FAVORITE_SELECTION, null);
+            return Utility.getFirstRowInt(context, Mailbox.TYPE_COUNT_URI,
+                    SUM_OF_FAVORITE_COUNT_PROJECTION, NOT_TRASH_TYPE_SELECTION, null, null, 0, 0);
         }
 
         /**
@@ -39,6 +39,16 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         Uri.parse(EmailContent.CONTENT_URI + "/mailboxIdAddToField");
     public static final Uri FROM_ACCOUNT_AND_TYPE_URI =
         Uri.parse(EmailContent.CONTENT_URI + "/mailboxIdFromAccountAndType");
+    /**
+     * The message counts of all the mailboxes of each type, one row per type (query only).
+     * They're kept up to date by triggers, so the combined views don't have to add them up.
+     * The columns are {@link MailboxColumns#TYPE}, {@link MailboxColumns#MESSAGE_COUNT},
+     * {@link MailboxColumns#UNREAD_COUNT} and {@link #TYPE_COUNT_FAVORITE_COUNT}.
+     */
+    public static final Uri TYPE_COUNT_URI =
+        Uri.parse(EmailContent.CONTENT_URI + "/mailboxTypeCount");
+    /** The number of loaded favorite messages, as in {@link Message#ALL_FAVORITE_SELECTION} */
+    public static final String TYPE_COUNT_FAVORITE_COUNT = "favoriteCount";
 
     public String mDisplayName;
     public String mServerId;
@@ -419,14 +429,14 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
     }
 
     public static int getUnreadCountByMailboxType(Context context, int type) {
-        return Utility.getFirstRowInt(context, Mailbox.CONTENT_URI,
+        return Utility.getFirstRowInt(context, Mailbox.TYPE_COUNT_URI,
                 MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION,
                 MAILBOX_TYPE_SELECTION,
                 new String[] { String.valueOf(type) }, null, UNREAD_COUNT_COUNT_COLUMN, 0);
     }
 
     public static int getMessageCountByMailboxType(Context context, int type) {
-        return Utility.getFirstRowInt(context, Mailbox.CONTENT_URI,
+        return Utility.getFirstRowInt(context, Mailbox.TYPE_COUNT_URI,
                 MAILBOX_SUM_OF_MESSAGE_COUNT_PROJECTION,
                 MAILBOX_TYPE_SELECTION,
                 new String[] { String.valueOf(type) }, null, MESSAGE_COUNT_COUNT_COLUMN, 0);
@@ -164,6 +164,15 @@ public class AttachmentUtilities {
         return new File(getAttachmentDirectory(context, accountId), Long.toString(attachmentId));
     }
 
+    /**
+     * Return the filename for the part of an attachment downloaded so far, still in its content
+     * transfer encoding.  It's kept next to the attachment's file until the download completes.
+     */
+    public static File getPartialAttachmentFilename(Context context, long accountId,
+            long attachmentId) {
+        return new File(getAttachmentDirectory(context, accountId), attachmentId + ".partial");
+    }
+
     /**
      * Return the directory for a given attachment.  This should be used by any code that is
      * going to *write* attachments.
@@ -317,6 +326,7 @@ public class AttachmentUtilities {
                 // it just returns false, which we ignore, and proceed to the next file.
                 // This entire loop is best-effort only.
                 attachmentFile.delete();
+                getPartialAttachmentFilename(context, accountId, attachmentId).delete();
             }
         } finally {
             c.close();
@@ -22,8 +22,6 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.EmailContent;
 
-import android.text.TextUtils;
-
 import java.util.ArrayList;
 
 public class ConversionUtilities {
@@ -35,23 +33,19 @@ public class ConversionUtilities {
     public static final String BODY_QUOTED_PART_INTRO = "quoted-intro";
 
     /**
-     * Helper function to append text to a StringBuffer, creating it if necessary.
-     * Optimization:  The majority of the time we are *not* appending - we should have a path
-     * that deals with single strings.
+     * Helper function to append the text of a part to a StringBuilder, after a newline if the
+     * builder isn't empty.  The text is decoded straight into the builder, so that all the parts
+     * of a field make one String with a single final copy.  If the part can't be decoded (e.g. it
+     * runs out of memory), the builder is left as it was.
      */
-    private static StringBuffer appendTextPart(StringBuffer sb, String newText) {
-        if (newText == null) {
-            return sb;
+    private static void appendTextPart(StringBuilder sb, Part part) {
+        final int start = sb.length();
+        if (start > 0) {
+            sb.append('\n');
         }
-        else if (sb == null) {
-            sb = new StringBuffer(newText);
-        } else {
-            if (sb.length() > 0) {
-                sb.append('\n');
-            }
-            sb.append(newText);
+        if (!MimeUtility.appendTextFromPart(part, sb)) {
+            sb.setLength(start);
         }
-        return sb;
     }
 
     /**
@@ -63,14 +57,13 @@ public class ConversionUtilities {
 
         body.mMessageKey = localMessage.mId;
 
-        StringBuffer sbHtml = null;
-        StringBuffer sbText = null;
-        StringBuffer sbHtmlReply = null;
-        StringBuffer sbTextReply = null;
-        StringBuffer sbIntroText = null;
+        StringBuilder sbHtml = new StringBuilder();
+        StringBuilder sbText = new StringBuilder();
+        StringBuilder sbHtmlReply = new StringBuilder();
+        StringBuilder sbTextReply = new StringBuilder();
+        StringBuilder sbIntroText = new StringBuilder();
 
         for (Part viewable : viewables) {
-            String text = MimeUtility.getTextFromPart(viewable);
             String[] replyTags = viewable.getHeader(MimeHeader.HEADER_ANDROID_BODY_QUOTED_PART);
             String replyTag = null;
             if (replyTags != null && replyTags.length > 0) {
@@ -86,9 +79,9 @@ public class ConversionUtilities {
 
                 if (isQuotedReply || isQuotedForward) {
                     if (isHtml) {
-                        sbHtmlReply = appendTextPart(sbHtmlReply, text);
+                        appendTextPart(sbHtmlReply, viewable);
                     } else {
-                        sbTextReply = appendTextPart(sbTextReply, text);
+                        appendTextPart(sbTextReply, viewable);
                     }
                     // Set message flags as well
                     localMessage.mFlags &= ~EmailContent.Message.FLAG_TYPE_MASK;
@@ -98,39 +91,39 @@ public class ConversionUtilities {
                     continue;
                 }
                 if (isQuotedIntro) {
-                    sbIntroText = appendTextPart(sbIntroText, text);
+                    appendTextPart(sbIntroText, viewable);
                     continue;
                 }
             }
 
             // Most of the time, just process regular body parts
             if (isHtml) {
-                sbHtml = appendTextPart(sbHtml, text);
+                appendTextPart(sbHtml, viewable);
             } else {
-                sbText = appendTextPart(sbText, text);
+                appendTextPart(sbText, viewable);
             }
         }
 
-        // write the combined data to the body part
-        if (!TextUtils.isEmpty(sbText)) {
+        // write the combined data to the body part; the snippet only looks at the start of it
+        if (sbText.length() != 0) {
             String text = sbText.toString();
             body.mTextContent = text;
             localMessage.mSnippet = TextUtilities.makeSnippetFromPlainText(text);
         }
-        if (!TextUtils.isEmpty(sbHtml)) {
+        if (sbHtml.length() != 0) {
             String text = sbHtml.toString();
             body.mHtmlContent = text;
             if (localMessage.mSnippet == null) {
                 localMessage.mSnippet = TextUtilities.makeSnippetFromHtmlText(text);
             }
         }
-        if (sbHtmlReply != null && sbHtmlReply.length() != 0) {
+        if (sbHtmlReply.length() != 0) {
             body.mHtmlReply = sbHtmlReply.toString();
         }
-        if (sbTextReply != null && sbTextReply.length() != 0) {
+        if (sbTextReply.length() != 0) {
             body.mTextReply = sbTextReply.toString();
         }
-        if (sbIntroText != null && sbIntroText.length() != 0) {
+        if (sbIntroText.length() != 0) {
             body.mIntroText = sbIntroText.toString();
         }
         return true;
@@ -162,6 +162,11 @@ public abstract class EmailAsyncTask<Params, Progress, Result> {
         mInnerTask.cancel(mayInterruptIfRunning);
     }
 
+    /** @see AsyncTask#isCancelled */
+    public final boolean isCancelled() {
+        return mCancelled;
+    }
+
     /** @see AsyncTask#onCancelled */
     protected void onCancelled(Result result) {
     }
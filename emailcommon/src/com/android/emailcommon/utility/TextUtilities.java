@@ -362,12 +362,21 @@ public class TextUtilities {
     }
 
     public static String makeSnippetFromText(String text, boolean stripHtml) {
+        return makeSnippetFromText(text, stripHtml, MAX_SNIPPET_LENGTH);
+    }
+
+    /**
+     * As {@link #makeSnippetFromText(String, boolean)}, but with a caller-supplied limit; used to
+     * strip whole message bodies for the search index.
+     */
+    public static String makeSnippetFromText(String text, boolean stripHtml, int maxLength) {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
 
         final int length = text.length();
         // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
-        char[] buffer = new char[MAX_SNIPPET_LENGTH];
+        char[] buffer = new char[Math.min(length, maxLength)];
+        maxLength = buffer.length;
         // skipCount is an array of a single int; that int is set inside stripHtmlEntity and is
         // used to determine how many characters can be "skipped" due to the transformation of the
         // entity to a single character.  When Java allows multiple return values, we can make this
@@ -380,7 +389,7 @@ public class TextUtilities {
         boolean inTag = false;
 
         // Walk through the text until we're done with the input OR we've got a large enough snippet
-        for (int i = 0; i < length && bufferCount < MAX_SNIPPET_LENGTH; i++) {
+        for (int i = 0; i < length && bufferCount < maxLength; i++) {
             char c = text.charAt(i);
             if (stripHtml && !inTag && (c == '<')) {
                 // Find tags to strip; they will begin with <! or !- or </ or <letter
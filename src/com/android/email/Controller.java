@@ -482,6 +482,21 @@ public class Controller {
     }
 
 
+    /**
+     * Loads a message the user is likely to open next, if it can be done without delaying any
+     * other command; see {@link MessagingController#prefetchMessageForView}.  Messages of
+     * service-based accounts aren't prefetched.  Unlike {@link #loadMessageForView}, the message
+     * isn't marked as loading.
+     *
+     * This is a blocking call; it must not be called from the UI thread.
+     */
+    public void prefetchMessageForView(long accountId, long mailboxId, long messageId,
+            int flag) {
+        if (isMessagingController(accountId)) {
+            mLegacyController.prefetchMessageForView(accountId, mailboxId, messageId, flag);
+        }
+    }
+
     /**
      * Saves the message to a mailbox of given type.
      * This is a synchronous operation taking place in the same thread as the caller.
@@ -315,36 +315,44 @@ public class LegacyConversions {
     public static void saveAttachmentBody(Context context, Part part, Attachment localAttachment,
             long accountId) throws MessagingException, IOException {
         if (part.getBody() != null) {
-            long attachmentId = localAttachment.mId;
+            saveAttachmentBody(context, part.getBody().getInputStream(), localAttachment,
+                    accountId);
+        }
+    }
 
-            InputStream in = part.getBody().getInputStream();
+    /**
+     * Save the (decoded) content of a single attachment, to a file in the attachments directory.
+     * The stream is closed.
+     */
+    public static void saveAttachmentBody(Context context, InputStream in,
+            Attachment localAttachment, long accountId) throws IOException {
+        long attachmentId = localAttachment.mId;
 
-            File saveIn = AttachmentUtilities.getAttachmentDirectory(context, accountId);
-            if (!saveIn.exists()) {
-                saveIn.mkdirs();
-            }
-            File saveAs = AttachmentUtilities.getAttachmentFilename(context, accountId,
-                    attachmentId);
-            saveAs.createNewFile();
-            FileOutputStream out = new FileOutputStream(saveAs);
-            long copySize = IOUtils.copy(in, out);
-            in.close();
-            out.close();
-
-            // update the attachment with the extra information we now know
-            String contentUriString = AttachmentUtilities.getAttachmentUri(
-                    accountId, attachmentId).toString();
-
-            localAttachment.mSize = copySize;
-            localAttachment.mContentUri = contentUriString;
-
-            // update the attachment in the database as well
-            ContentValues cv = new ContentValues();
-            cv.put(AttachmentColumns.SIZE, copySize);
-            cv.put(AttachmentColumns.CONTENT_URI, contentUriString);
-            Uri uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId);
-            context.getContentResolver().update(uri, cv, null, null);
+        File saveIn = AttachmentUtilities.getAttachmentDirectory(context, accountId);
+        if (!saveIn.exists()) {
+            saveIn.mkdirs();
         }
+        File saveAs = AttachmentUtilities.getAttachmentFilename(context, accountId,
+                attachmentId);
+        saveAs.createNewFile();
+        FileOutputStream out = new FileOutputStream(saveAs);
+        long copySize = IOUtils.copy(in, out);
+        in.close();
+        out.close();
+
+        // update the attachment with the extra information we now know
+        String contentUriString = AttachmentUtilities.getAttachmentUri(
+                accountId, attachmentId).toString();
+
+        localAttachment.mSize = copySize;
+        localAttachment.mContentUri = contentUriString;
+
+        // update the attachment in the database as well
+        ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.SIZE, copySize);
+        cv.put(AttachmentColumns.CONTENT_URI, contentUriString);
+        Uri uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId);
+        context.getContentResolver().update(uri, cv, null, null);
     }
 
     /**
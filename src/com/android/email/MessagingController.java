@@ -16,14 +16,17 @@
 
 package com.android.email;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
@@ -40,6 +43,7 @@ import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.Folder.FlagChange;
 import com.android.emailcommon.mail.Folder.FolderType;
 import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.MessageUpdateCallbacks;
@@ -59,21 +63,27 @@ import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.emailcommon.utility.Utility;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.LinkedList;
 
 /**
- * Starts a long running (application) Thread that will run through commands
+ * Starts a small pool of long running (application) Threads that will run through commands
  * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
+ * prioritize these commands; commands for different mailboxes or accounts may run at the same
+ * time, see {@link CommandQueue} for the rules. Each method that will submit a command requires a
  * MessagingListener instance to be provided. It is expected that that listener
  * has also been added as a registered listener using addListener(). When a
  * command is to be executed, if the listener that was provided with the command
@@ -104,6 +114,21 @@ public class MessagingController implements Runnable {
      */
     private static final int MAX_SMALL_MESSAGE_SIZE = (25 * 1024);
 
+    /**
+     * Max number of operations applied in one {@link ContentResolver#applyBatch} call while
+     * saving sync results.  Each batch is one transaction holding the database lock, so don't
+     * make it too large.
+     */
+    private static final int MAX_OPERATIONS_PER_BATCH = 500;
+
+    /**
+     * Attachments larger than this are fetched in chunks of this size, and a failed download
+     * resumes after the last complete chunk.  Each chunk costs a round trip, so don't make it
+     * too small; on a slow link, a chunk should still complete before the connection drops.
+     */
+    @VisibleForTesting
+    static final int ATTACHMENT_CHUNK_SIZE = (256 * 1024);
+
     private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
     private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
     private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
@@ -126,21 +151,34 @@ public class MessagingController implements Runnable {
         PRUNE_ATTACHMENT_CV.putNull(AttachmentColumns.CONTENT_URI);
     }
 
+    /** Number of threads running commands. */
+    private static final int WORKER_THREAD_COUNT = 3;
+
+    /**
+     * Max number of commands running for one account at a time.  Each of them may use its own
+     * connection to the server, so keep it low; servers often limit connections per user.
+     */
+    private static final int MAX_COMMANDS_PER_ACCOUNT = 2;
+
     private static MessagingController sInstance = null;
-    private final BlockingQueue<Command> mCommands = new LinkedBlockingQueue<Command>();
-    private final Thread mThread;
+    private final CommandQueue mCommands = new CommandQueue(MAX_COMMANDS_PER_ACCOUNT);
+
+    /**
+     * Locks to keep pending actions of an account from being upsynced by two threads at once,
+     * keyed by account ID.  See {@link #processPendingActionsSynchronous}.
+     */
+    private final HashMap<Long, Object> mPendingActionsLocks = new HashMap<Long, Object>();
 
     /**
      * All access to mListeners *must* be synchronized
      */
     private final GroupMessagingListener mListeners = new GroupMessagingListener();
-    private boolean mBusy;
     private final Context mContext;
     private final Controller mController;
 
     /**
      * Simple cache for last search result mailbox by account and serverId, since the most common
-     * case will be repeated use of the same mailbox
+     * case will be repeated use of the same mailbox.  Guarded by {@code this}.
      */
     private long mLastSearchAccountKey = Account.NO_ACCOUNT;
     private String mLastSearchServerId = null;
@@ -149,8 +187,9 @@ public class MessagingController implements Runnable {
     protected MessagingController(Context _context, Controller _controller) {
         mContext = _context.getApplicationContext();
         mController = _controller;
-        mThread = new Thread(this);
-        mThread.start();
+        for (int i = 0; i < WORKER_THREAD_COUNT; i++) {
+            new Thread(this, "MessagingController-" + i).start();
+        }
     }
 
     /**
@@ -172,11 +211,13 @@ public class MessagingController implements Runnable {
         sInstance = mockController;
     }
 
-    // TODO: seems that this reading of mBusy isn't thread-safe
     public boolean isBusy() {
-        return mBusy;
+        return mCommands.isBusy();
     }
 
+    /**
+     * Worker thread body.  All the worker threads run it.
+     */
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         // TODO: add an end test to this infinite loop
@@ -187,26 +228,28 @@ public class MessagingController implements Runnable {
             } catch (InterruptedException e) {
                 continue; //re-test the condition on the eclosing while
             }
-            if (command.listener == null || isActiveListener(command.listener)) {
-                mBusy = true;
-                command.runnable.run();
-                mListeners.controllerCommandCompleted(mCommands.size() > 0);
+            try {
+                if (command.listener == null || isActiveListener(command.listener)) {
+                    command.runnable.run();
+                    mListeners.controllerCommandCompleted(mCommands.hasPendingCommands());
+                }
+            } finally {
+                mCommands.finish(command);
             }
-            mBusy = false;
         }
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        try {
-            Command command = new Command();
-            command.listener = listener;
-            command.runnable = runnable;
-            command.description = description;
-            mCommands.add(command);
-        }
-        catch (IllegalStateException ie) {
-            throw new Error(ie);
-        }
+    /**
+     * Queue a command.
+     *
+     * @param accountId the account the command works on, or {@link Account#NO_ACCOUNT} if it's
+     *     unknown, in which case the command won't overlap with any other command.
+     * @param mailboxId the mailbox the command works on, or {@link Mailbox#NO_MAILBOX} if it
+     *     works on the whole account.
+     */
+    private void put(String description, MessagingListener listener, long accountId,
+            long mailboxId, Runnable runnable) {
+        mCommands.add(new Command(description, listener, accountId, mailboxId, runnable));
     }
 
     public void addListener(MessagingListener listener) {
@@ -253,7 +296,7 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.listFoldersStarted(accountId);
-        put("listFolders", listener, new Runnable() {
+        put("listFolders", listener, accountId, Mailbox.NO_MAILBOX, new Runnable() {
             // TODO For now, mailbox addition occurs in the server-dependent store implementation,
             // but, mailbox removal occurs here. Instead, each store should be responsible for
             // content synchronization (addition AND removal) since each store will likely need
@@ -336,7 +379,7 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
-        put("synchronizeMailbox", listener, new Runnable() {
+        put("synchronizeMailbox", listener, account.mId, folder.mId, new Runnable() {
             public void run() {
                 synchronizeMailboxSynchronous(account, folder);
             }
@@ -883,10 +926,21 @@ public class MessagingController implements Runnable {
         }
 
         // 9. Refresh the flags for any messages in the local store that we didn't just download.
-        // Fetch FLAGS
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        remoteFolder.fetch(remoteMessages, fp, null);
+        // If the server can tell us which messages changed since our last sync (e.g. IMAP
+        // CONDSTORE), only look at those; otherwise fetch FLAGS for the whole window.
+        final String remoteSyncState = remoteFolder.getSyncState();
+        final ArrayList<String> vanishedUids = new ArrayList<String>();
+        Message[] flagMessages = null;
+        if (remoteSyncState != null && mailbox.mSyncKey != null) {
+            flagMessages = remoteFolder.getMessagesChangedSince(mailbox.mSyncKey, vanishedUids);
+        }
+        if (flagMessages == null) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            remoteFolder.fetch(remoteMessages, fp, null);
+            flagMessages = remoteMessages;
+            vanishedUids.clear();
+        }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
         boolean remoteSupportsAnswered = false;
@@ -901,9 +955,13 @@ public class MessagingController implements Runnable {
                 remoteSupportsAnswered = true;
             }
         }
+        // Flag updates and deletions below are collected here and applied in batches, so that
+        // they share one transaction and one round of change notifications.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+
         // Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
+            for (Message remoteMessage : flagMessages) {
                 LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
                 if (localMessageInfo == null) {
                     continue;
@@ -921,16 +979,16 @@ public class MessagingController implements Runnable {
                 if (newSeen || newFlagged || newAnswered) {
                     Uri uri = ContentUris.withAppendedId(
                             EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
                     if (remoteAnswered) {
                         localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
                     } else {
                         localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
                     }
-                    updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
+                    ops.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(MessageColumns.FLAG_READ, remoteSeen)
+                            .withValue(MessageColumns.FLAG_FAVORITE, remoteFlagged)
+                            .withValue(MessageColumns.FLAGS, localFlags)
+                            .build());
                 }
             }
         }
@@ -938,8 +996,12 @@ public class MessagingController implements Runnable {
         // 10. Remove any messages that are in the local store but no longer on the remote store.
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
+        localUidsToDelete.addAll(vanishedUids);
         for (String uidToDelete : localUidsToDelete) {
             LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
+            if (infoToDelete == null) {
+                continue;
+            }
 
             // Delete associated data (attachment files)
             // Attachment & Body records are auto-deleted when we delete the Message record
@@ -949,26 +1011,58 @@ public class MessagingController implements Runnable {
             // Delete the message itself
             Uri uriToDelete = ContentUris.withAppendedId(
                     EmailContent.Message.CONTENT_URI, infoToDelete.mId);
-            resolver.delete(uriToDelete, null, null);
+            ops.add(ContentProviderOperation.newDelete(uriToDelete).build());
 
             // Delete extra rows (e.g. synced or deleted)
             Uri syncRowToDelete = ContentUris.withAppendedId(
                     EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(syncRowToDelete, null, null);
-            Uri deletERowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(deletERowToDelete, null, null);
+            ops.add(ContentProviderOperation.newDelete(syncRowToDelete).build());
+            Uri deletedRowToDelete = ContentUris.withAppendedId(
+                    EmailContent.Message.DELETED_CONTENT_URI, infoToDelete.mId);
+            ops.add(ContentProviderOperation.newDelete(deletedRowToDelete).build());
         }
+        applyBatch(resolver, ops);
 
         // Fetch BODY
         loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, mailbox);
 
+        // 11. Remember the remote state so the next sync only needs to look at what changed
+        if (!TextUtils.equals(remoteSyncState, mailbox.mSyncKey)) {
+            ContentValues cv = new ContentValues();
+            cv.put(MailboxColumns.SYNC_KEY, remoteSyncState);
+            resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId), cv,
+                    null, null);
+            mailbox.mSyncKey = remoteSyncState;
+        }
+
         // 14. Clean up and report results
         remoteFolder.close(false);
 
         return new SyncResults(remoteMessageCount, unseenMessages);
     }
 
+    /**
+     * Apply {@code ops} to EmailProvider, at most {@link #MAX_OPERATIONS_PER_BATCH} operations
+     * per transaction, and clear it.
+     */
+    private static void applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> ops) throws MessagingException {
+        try {
+            final int size = ops.size();
+            for (int start = 0; start < size; start += MAX_OPERATIONS_PER_BATCH) {
+                final int end = Math.min(size, start + MAX_OPERATIONS_PER_BATCH);
+                resolver.applyBatch(EmailContent.AUTHORITY,
+                        new ArrayList<ContentProviderOperation>(ops.subList(start, end)));
+            }
+        } catch (RemoteException e) {
+            throw new MessagingException("Unable to save sync results", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Unable to save sync results", e);
+        } finally {
+            ops.clear();
+        }
+    }
+
     /**
      * Copy one downloaded message (which may have partially-loaded sections)
      * into a newly created EmailProvider Message, given the account and mailbox
@@ -1069,7 +1163,7 @@ public class MessagingController implements Runnable {
     }
 
     public void processPendingActions(final long accountId) {
-        put("processPendingActions", null, new Runnable() {
+        put("processPendingActions", null, accountId, Mailbox.NO_MAILBOX, new Runnable() {
             public void run() {
                 try {
                     Account account = Account.restoreAccountWithId(mContext, accountId);
@@ -1112,14 +1206,28 @@ public class MessagingController implements Runnable {
         ContentResolver resolver = mContext.getContentResolver();
         String[] accountIdArgs = new String[] { Long.toString(account.mId) };
 
-        // Handle deletes first, it's always better to get rid of things first
-        processPendingDeletesSynchronous(account, resolver, accountIdArgs);
+        // Syncs of different mailboxes of the account may call this at the same time.
+        synchronized (getPendingActionsLock(account.mId)) {
+            // Handle deletes first, it's always better to get rid of things first
+            processPendingDeletesSynchronous(account, resolver, accountIdArgs);
+
+            // Handle uploads (currently, only to sent messages)
+            processPendingUploadsSynchronous(account, resolver, accountIdArgs);
 
-        // Handle uploads (currently, only to sent messages)
-        processPendingUploadsSynchronous(account, resolver, accountIdArgs);
+            // Now handle updates / upsyncs
+            processPendingUpdatesSynchronous(account, resolver, accountIdArgs);
+        }
+    }
 
-        // Now handle updates / upsyncs
-        processPendingUpdatesSynchronous(account, resolver, accountIdArgs);
+    private Object getPendingActionsLock(long accountId) {
+        synchronized (mPendingActionsLocks) {
+            Object lock = mPendingActionsLocks.get(accountId);
+            if (lock == null) {
+                lock = new Object();
+                mPendingActionsLocks.put(accountId, lock);
+            }
+            return lock;
+        }
     }
 
     /**
@@ -1134,9 +1242,11 @@ public class MessagingController implements Runnable {
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
             long accountKey = message.mAccountKey;
             String protocolSearchInfo = message.mProtocolSearchInfo;
-            if (accountKey == mLastSearchAccountKey &&
-                    protocolSearchInfo.equals(mLastSearchServerId)) {
-                return mLastSearchRemoteMailbox;
+            synchronized (this) {
+                if (accountKey == mLastSearchAccountKey &&
+                        protocolSearchInfo.equals(mLastSearchServerId)) {
+                    return mLastSearchRemoteMailbox;
+                }
             }
             Cursor c =  mContext.getContentResolver().query(Mailbox.CONTENT_URI,
                     Mailbox.CONTENT_PROJECTION, Mailbox.PATH_AND_ACCOUNT_SELECTION,
@@ -1146,9 +1256,11 @@ public class MessagingController implements Runnable {
                 if (c.moveToNext()) {
                     Mailbox mailbox = new Mailbox();
                     mailbox.restore(c);
-                    mLastSearchAccountKey = accountKey;
-                    mLastSearchServerId = protocolSearchInfo;
-                    mLastSearchRemoteMailbox = mailbox;
+                    synchronized (this) {
+                        mLastSearchAccountKey = accountKey;
+                        mLastSearchServerId = protocolSearchInfo;
+                        mLastSearchRemoteMailbox = mailbox;
+                    }
                     return mailbox;
                 } else {
                     return null;
@@ -1179,6 +1291,8 @@ public class MessagingController implements Runnable {
         try {
             // Defer setting up the store until we know we need to access it
             Store remoteStore = null;
+            // Deletions from the same trash folder are sent to the server together
+            PendingBatch batch = null;
             // loop through messages marked as deleted
             while (deletes.moveToNext()) {
                 boolean deleteFromTrash = false;
@@ -1202,8 +1316,17 @@ public class MessagingController implements Runnable {
 
                     // Dispatch here for specific change types
                     if (deleteFromTrash) {
-                        // Move message to trash
-                        processPendingDeleteFromTrash(remoteStore, account, mailbox, oldMessage);
+                        // Queue the message for deletion from the trash
+                        if (batch != null && !batch.isFor(mailbox, null)) {
+                            processPendingDeleteFromTrash(remoteStore, batch, resolver);
+                            batch = null;
+                        }
+                        if (batch == null) {
+                            batch = new PendingBatch(mailbox, null,
+                                    EmailContent.Message.DELETED_CONTENT_URI);
+                        }
+                        batch.add(oldMessage, oldMessage);
+                        continue;
                     }
                 }
 
@@ -1212,6 +1335,9 @@ public class MessagingController implements Runnable {
                         oldMessage.mId);
                 resolver.delete(uri, null, null);
             }
+            if (batch != null) {
+                processPendingDeleteFromTrash(remoteStore, batch, resolver);
+            }
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
             // no point in continuing through the rest of the pending updates.
@@ -1351,6 +1477,9 @@ public class MessagingController implements Runnable {
             Store remoteStore = null;
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
+            // Flag changes and moves to trash are sent to the server one mailbox at a time
+            PendingBatch flagBatch = null;
+            PendingBatch trashBatch = null;
             // loop through messages marked as needing updates
             while (updates.moveToNext()) {
                 boolean changeMoveToTrash = false;
@@ -1392,11 +1521,50 @@ public class MessagingController implements Runnable {
                 // Dispatch here for specific change types
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(remoteStore, account, mailbox, oldMessage,
-                            newMessage);
-                } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
+                    Mailbox oldMailbox = getRemoteMailboxForMessage(oldMessage);
+                    if (oldMailbox != null && shouldMoveToTrashRemotely(account, oldMailbox,
+                            oldMessage, newMessage)) {
+                        if (trashBatch != null && !trashBatch.isFor(oldMailbox, mailbox)) {
+                            processPendingMoveToTrash(remoteStore, trashBatch, resolver);
+                            trashBatch = null;
+                        }
+                        if (trashBatch == null) {
+                            trashBatch = new PendingBatch(oldMailbox, mailbox,
+                                    EmailContent.Message.UPDATED_CONTENT_URI);
+                        }
+                        trashBatch.add(oldMessage, newMessage);
+                        continue;
+                    }
+                } else if (changeMailbox) {
                     processPendingDataChange(remoteStore, mailbox, changeRead, changeFlagged,
                             changeMailbox, changeAnswered, oldMessage, newMessage);
+                } else if (changeRead || changeFlagged || changeAnswered) {
+                    Mailbox remoteMailbox = getRemoteMailboxForMessage(oldMessage);
+                    if (remoteMailbox != null && !isLocalOnly(newMessage)) {
+                        if (flagBatch != null && !flagBatch.isFor(remoteMailbox, null)) {
+                            processPendingFlagChanges(remoteStore, flagBatch, resolver);
+                            flagBatch = null;
+                        }
+                        if (flagBatch == null) {
+                            flagBatch = new PendingBatch(remoteMailbox, null,
+                                    EmailContent.Message.UPDATED_CONTENT_URI);
+                        }
+                        flagBatch.add(oldMessage, newMessage);
+                        if (changeRead) {
+                            flagBatch.addFlagChange(Flag.SEEN, newMessage.mFlagRead,
+                                    newMessage.mServerId);
+                        }
+                        if (changeFlagged) {
+                            flagBatch.addFlagChange(Flag.FLAGGED, newMessage.mFlagFavorite,
+                                    newMessage.mServerId);
+                        }
+                        if (changeAnswered) {
+                            flagBatch.addFlagChange(Flag.ANSWERED,
+                                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0,
+                                    newMessage.mServerId);
+                        }
+                        continue;
+                    }
                 }
 
                 // Finally, delete the update
@@ -1404,6 +1572,12 @@ public class MessagingController implements Runnable {
                         oldMessage.mId);
                 resolver.delete(uri, null, null);
             }
+            if (flagBatch != null) {
+                processPendingFlagChanges(remoteStore, flagBatch, resolver);
+            }
+            if (trashBatch != null) {
+                processPendingMoveToTrash(remoteStore, trashBatch, resolver);
+            }
 
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
@@ -1490,8 +1664,7 @@ public class MessagingController implements Runnable {
         mailbox = getRemoteMailboxForMessage(oldMessage);
 
         // 0. No remote update if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
+        if (isLocalOnly(newMessage) || (mailbox == null)) {
             return;
         }
 
@@ -1565,37 +1738,167 @@ public class MessagingController implements Runnable {
     }
 
     /**
-     * Process a pending trash message command.
+     * @return whether the message only exists locally, and so needs no remote update
+     */
+    private static boolean isLocalOnly(EmailContent.Message message) {
+        return message.mServerId == null || message.mServerId.equals("")
+                || message.mServerId.startsWith(LOCAL_SERVERID_PREFIX);
+    }
+
+    /**
+     * Pending flag changes, moves to trash or deletes from trash for the messages of one remote
+     * mailbox.  They are collected while scanning the pending actions and then sent to the
+     * server together, which saves several round trips per message.  The shadow table rows are
+     * only deleted once the whole batch has been processed.
+     */
+    private static class PendingBatch {
+        final Mailbox mMailbox;
+        final Mailbox mTargetMailbox;
+        final Uri mShadowUri;
+        final ArrayList<Long> mMessageIds = new ArrayList<Long>();
+        final HashMap<String, EmailContent.Message> mMessages =
+                new HashMap<String, EmailContent.Message>();
+        final HashMap<Flag, ArrayList<String>> mFlagsToSet =
+                new HashMap<Flag, ArrayList<String>>();
+        final HashMap<Flag, ArrayList<String>> mFlagsToClear =
+                new HashMap<Flag, ArrayList<String>>();
+
+        /**
+         * @param mailbox the remote mailbox the messages are in
+         * @param targetMailbox the mailbox the messages are moving to, if any
+         * @param shadowUri the shadow table holding the pending actions
+         */
+        PendingBatch(Mailbox mailbox, Mailbox targetMailbox, Uri shadowUri) {
+            mMailbox = mailbox;
+            mTargetMailbox = targetMailbox;
+            mShadowUri = shadowUri;
+        }
+
+        boolean isFor(Mailbox mailbox, Mailbox targetMailbox) {
+            if (mailbox.mId != mMailbox.mId) {
+                return false;
+            }
+            if (targetMailbox == null || mTargetMailbox == null) {
+                return targetMailbox == mTargetMailbox;
+            }
+            return targetMailbox.mId == mTargetMailbox.mId;
+        }
+
+        void add(EmailContent.Message oldMessage, EmailContent.Message newMessage) {
+            mMessageIds.add(oldMessage.mId);
+            mMessages.put(oldMessage.mServerId, newMessage);
+        }
+
+        void addFlagChange(Flag flag, boolean value, String serverId) {
+            HashMap<Flag, ArrayList<String>> map = value ? mFlagsToSet : mFlagsToClear;
+            ArrayList<String> serverIds = map.get(flag);
+            if (serverIds == null) {
+                serverIds = new ArrayList<String>();
+                map.put(flag, serverIds);
+            }
+            serverIds.add(serverId);
+        }
+
+        String[] getServerIds() {
+            return mMessages.keySet().toArray(new String[mMessages.size()]);
+        }
+
+        /**
+         * Deletes the shadow table rows of all of the messages in the batch.
+         */
+        void deleteShadowRows(ContentResolver resolver) {
+            for (long id : mMessageIds) {
+                resolver.delete(ContentUris.withAppendedId(mShadowUri, id), null, null);
+            }
+        }
+    }
+
+    /**
+     * Adds a {@link FlagChange} for those of {@code serverIds} that exist in {@code remoteMessages}
+     */
+    private static void addFlagChanges(ArrayList<FlagChange> changes,
+            HashMap<String, Message> remoteMessages, HashMap<Flag, ArrayList<String>> serverIdMap,
+            boolean value) {
+        for (Flag flag : serverIdMap.keySet()) {
+            ArrayList<Message> messages = new ArrayList<Message>();
+            for (String serverId : serverIdMap.get(flag)) {
+                Message message = remoteMessages.get(serverId);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            if (!messages.isEmpty()) {
+                changes.add(new FlagChange(messages.toArray(Message.EMPTY_ARRAY),
+                        new Flag[] { flag }, value));
+            }
+        }
+    }
+
+    /**
+     * Upsync a batch of changes to read, flagged, or answered, all in the same remote mailbox.
+     *
+     * @param remoteStore the remote store for this mailbox
+     * @param batch the pending changes
+     * @param resolver the resolver used to remove the processed updates
+     */
+    private void processPendingFlagChanges(Store remoteStore, PendingBatch batch,
+            ContentResolver resolver) throws MessagingException {
+        final Mailbox mailbox = batch.mMailbox;
+
+        // 1. No remote update for DRAFTS or OUTBOX
+        if (mailbox.mType != Mailbox.TYPE_DRAFTS && mailbox.mType != Mailbox.TYPE_OUTBOX) {
+            // 2. Open the remote store & folder
+            Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+            if (remoteFolder.exists()) {
+                remoteFolder.open(OpenMode.READ_WRITE);
+                if (remoteFolder.getMode() == OpenMode.READ_WRITE) {
+                    // 3. Find the remote messages that still exist
+                    HashMap<String, Message> remoteMessages = new HashMap<String, Message>();
+                    for (Message message :
+                            remoteFolder.getExistingMessages(batch.getServerIds())) {
+                        remoteMessages.put(message.getUid(), message);
+                    }
+                    if (Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, "Flag updates for " + remoteMessages.size()
+                                + " msgs in mailbox id=" + mailbox.mId);
+                    }
+
+                    // 4. Finally, apply the changes to the messages
+                    ArrayList<FlagChange> changes = new ArrayList<FlagChange>();
+                    addFlagChanges(changes, remoteMessages, batch.mFlagsToSet, true);
+                    addFlagChanges(changes, remoteMessages, batch.mFlagsToClear, false);
+                    remoteFolder.setFlags(changes);
+                }
+                remoteFolder.close(false);
+            }
+        }
+        batch.deleteShadowRows(resolver);
+    }
+
+    /**
+     * Checks whether a message moved to the trash needs to be moved on the server as well, and
+     * handles the cases that don't need the server.
      *
-     * @param remoteStore the remote store we're working in
      * @param account The account in which we are working
-     * @param newMailbox The local trash mailbox
+     * @param oldMailbox The remote mailbox the message was moved from
      * @param oldMessage The message copy that was saved in the updates shadow table
      * @param newMessage The message that was moved to the mailbox
+     * @return true if the message needs to be moved on the server
      */
-    private void processPendingMoveToTrash(Store remoteStore,
-            Account account, Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+    private boolean shouldMoveToTrashRemotely(Account account, Mailbox oldMailbox,
+            EmailContent.Message oldMessage, EmailContent.Message newMessage) {
 
         // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
+        if (isLocalOnly(newMessage)) {
+            return false;
         }
 
-        // 1. Escape early if we can't find the local mailbox
-        // TODO smaller projection here
-        Mailbox oldMailbox = getRemoteMailboxForMessage(oldMessage);
-        if (oldMailbox == null) {
-            // can't find old mailbox, it may have been deleted.  just return.
-            return;
-        }
-        // 2. We don't support delete-from-trash here
+        // 1. We don't support delete-from-trash here
         if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
-            return;
+            return false;
         }
 
-        // 3. If DELETE_POLICY_NEVER, simply write back the deleted sentinel and return
+        // 2. If DELETE_POLICY_NEVER, simply write back the deleted sentinel and return
         //
         // This sentinel takes the place of the server-side message, and locally "deletes" it
         // by inhibiting future sync or display of the message.  It will eventually go out of
@@ -1610,13 +1913,29 @@ public class MessagingController implements Runnable {
             sentinel.mServerId = oldMessage.mServerId;
             sentinel.save(mContext);
 
-            return;
+            return false;
         }
+        return true;
+    }
 
-        // The rest of this method handles server-side deletion
+    /**
+     * Process a batch of pending trash message commands, all moving messages from the same
+     * remote mailbox into the same trash mailbox.
+     *
+     * @param remoteStore the remote store we're working in
+     * @param batch the pending moves; the target mailbox is the local trash mailbox
+     * @param resolver the resolver used to remove the processed updates
+     */
+    private void processPendingMoveToTrash(Store remoteStore, final PendingBatch batch,
+            ContentResolver resolver) throws MessagingException {
+        moveToTrashRemotely(remoteStore, batch);
+        batch.deleteShadowRows(resolver);
+    }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
+    private void moveToTrashRemotely(Store remoteStore, final PendingBatch batch)
+            throws MessagingException {
+        // 1.  Find the remote mailbox (that we deleted from), and open it
+        Folder remoteFolder = remoteStore.getFolder(batch.mMailbox.mServerId);
         if (!remoteFolder.exists()) {
             return;
         }
@@ -1627,15 +1946,15 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
+        // 2. Find the remote original messages
+        Message[] remoteMessages = remoteFolder.getExistingMessages(batch.getServerIds());
+        if (remoteMessages.length == 0) {
             remoteFolder.close(false);
             return;
         }
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
+        // 3. Find the remote trash folder, and create it if not found
+        Folder remoteTrashFolder = remoteStore.getFolder(batch.mTargetMailbox.mServerId);
         if (!remoteTrashFolder.exists()) {
             /*
              * If the remote trash folder doesn't exist we try to create it.
@@ -1643,7 +1962,7 @@ public class MessagingController implements Runnable {
             remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
         }
 
-        // 7.  Try to copy the message into the remote trash folder
+        // 4.  Try to copy the messages into the remote trash folder
         // Note, this entire section will be skipped for POP3 because there's no remote trash
         if (remoteTrashFolder.exists()) {
             /*
@@ -1656,11 +1975,15 @@ public class MessagingController implements Runnable {
                 return;
             }
 
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
+            remoteFolder.copyMessages(remoteMessages, remoteTrashFolder,
                     new Folder.MessageUpdateCallbacks() {
                 public void onMessageUidChange(Message message, String newUid) {
                     // update the UID in the local trash folder, because some stores will
                     // have to change it when copying to remoteTrashFolder
+                    EmailContent.Message newMessage = batch.mMessages.get(message.getUid());
+                    if (newMessage == null) {
+                        return;
+                    }
                     ContentValues cv = new ContentValues();
                     cv.put(EmailContent.Message.SERVER_ID, newUid);
                     mContext.getContentResolver().update(newMessage.getUri(), cv, null, null);
@@ -1672,58 +1995,48 @@ public class MessagingController implements Runnable {
                  * attempt to delete the local copy as well.
                  */
                 public void onMessageNotFound(Message message) {
-                    mContext.getContentResolver().delete(newMessage.getUri(), null, null);
+                    EmailContent.Message newMessage = batch.mMessages.get(message.getUid());
+                    if (newMessage != null) {
+                        mContext.getContentResolver().delete(newMessage.getUri(), null, null);
+                    }
                 }
             });
             remoteTrashFolder.close(false);
         }
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
+        // 5. Delete the messages from the remote source folder
+        remoteFolder.deleteMessages(remoteMessages);
         remoteFolder.close(false);
     }
 
     /**
-     * Process a pending trash message command.
+     * Process a batch of pending delete-from-trash commands.
      *
      * @param remoteStore the remote store we're working in
-     * @param account The account in which we are working
-     * @param oldMailbox The local trash mailbox
-     * @param oldMessage The message that was deleted from the trash
+     * @param batch the pending deletes; the mailbox is the local trash mailbox
+     * @param resolver the resolver used to remove the processed deletes
      */
-    private void processPendingDeleteFromTrash(Store remoteStore,
-            Account account, Mailbox oldMailbox, EmailContent.Message oldMessage)
-            throws MessagingException {
+    private void processPendingDeleteFromTrash(Store remoteStore, PendingBatch batch,
+            ContentResolver resolver) throws MessagingException {
+        final Mailbox oldMailbox = batch.mMailbox;
 
-        // 1. We only support delete-from-trash here
-        if (oldMailbox.mType != Mailbox.TYPE_TRASH) {
-            return;
-        }
-
-        // 2.  Find the remote trash folder (that we are deleting from), and open it
+        // 1.  Find the remote trash folder (that we are deleting from), and open it
         Folder remoteTrashFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            return;
-        }
-
-        remoteTrashFolder.open(OpenMode.READ_WRITE);
-        if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteTrashFolder.close(false);
-            return;
-        }
-
-        // 3. Find the remote original message
-        Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
+        if (remoteTrashFolder.exists()) {
+            remoteTrashFolder.open(OpenMode.READ_WRITE);
+            if (remoteTrashFolder.getMode() == OpenMode.READ_WRITE) {
+                // 2. Find the remote original messages
+                Message[] remoteMessages =
+                        remoteTrashFolder.getExistingMessages(batch.getServerIds());
+
+                // 3. Delete the messages from the remote trash folder
+                if (remoteMessages.length > 0) {
+                    remoteTrashFolder.deleteMessages(remoteMessages);
+                }
+            }
             remoteTrashFolder.close(false);
-            return;
         }
-
-        // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
-        remoteTrashFolder.close(false);
+        batch.deleteShadowRows(resolver);
     }
 
     /**
@@ -1861,13 +2174,24 @@ public class MessagingController implements Runnable {
     /**
      * Finish loading a message that have been partially downloaded.
      *
+     * This is a blocking call; it must not be called from the UI thread.
+     *
      * @param messageId the message to load
      * @param listener the callback by which results will be reported
      */
     public void loadMessageForView(final long messageId, final int flag,
             MessagingListener listener) {
         mListeners.loadMessageForViewStarted(messageId);
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        // Look up the message's account and mailbox, so that the command only waits for the
+        // commands of its own account
+        final EmailContent.Message queuedMessage =
+                EmailContent.Message.restoreMessageWithId(mContext, messageId);
+        if (queuedMessage == null) {
+            mListeners.loadMessageForViewFailed(messageId, "Unknown message");
+            return;
+        }
+        put("loadMessageForViewRemote", listener, queuedMessage.mAccountKey,
+                queuedMessage.mMailboxKey, new Runnable() {
             public void run() {
                 try {
                     // 1. Resample the message, in case it disappeared or synced while
@@ -1892,66 +2216,9 @@ public class MessagingController implements Runnable {
                         return;
                     }
                     TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
-
                     Store remoteStore = Store.getInstance(account, mContext);
-                    String remoteServerId = mailbox.mServerId;
-                    // If this is a search result, use the protocolSearchInfo field to get the
-                    // correct remote location
-                    if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
-                        remoteServerId = message.mProtocolSearchInfo;
-                    }
-                    Folder remoteFolder = remoteStore.getFolder(remoteServerId);
-                    remoteFolder.open(OpenMode.READ_WRITE);
-
-                    // 3. Set up to download the entire message or partial message
-                    // Try to sync the entire mail. Ask the server to provide the message structure,
-                    // but not all the attachments.
-                    Message remoteMessage = remoteFolder.getMessage(message.mServerId);
-                    int newFlag = flag;
-
-                    if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
-                        FetchProfile fp = new FetchProfile();
-                        fp.add(FetchProfile.Item.STRUCTURE);
-                        remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-                        if (remoteMessage.getBody() == null) {
-                            // POP doesn't support STRUCTURE mode,
-                            // so if go there, it must be a pop account,
-                            // we'll just do a entire download for view message.
-                            // set the flag value for pop account.
-                            newFlag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                            fp.clear();
-                            fp.add(FetchProfile.Item.BODY);
-                            remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-                        } else {
-                            // We have a structure to deal with,
-                            // from which we can pull down the parts we want to actually store.
-                            // Build a list of parts we are interested in.
-                            // Text parts will be downloaded right now,
-                            // and the attachments will be not to download.
-                            ArrayList<Part> viewables = new ArrayList<Part>();
-                            ArrayList<Part> attachments = new ArrayList<Part>();
-                            MimeUtility.collectParts(remoteMessage, viewables, attachments);
-
-                            if (EmailContent.Message.FLAG_LOADED_SYNC_SIZE_COMPLETE == flag) {
-                                remoteMessage.setNeedSyncSize(account.getSyncSize());
-                            } else {
-                                remoteMessage.setNeedSyncSize(Utility.ENTIRE_MAIL);
-                            }
-                            for (Part part : viewables) {
-                                fp.clear();
-                                fp.add(part);
-                                remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-                            }
-                        }
-                    } else {
-                        newFlag = EmailContent.Message.FLAG_LOADED_COMPLETE; // reset the flag.
-                        FetchProfile fp = new FetchProfile();
-                        fp.add(FetchProfile.Item.BODY);
-                        remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
-                    }
-
-                    // 4. Write to provider
-                    copyOneMessageToProvider(remoteMessage, account, mailbox, newFlag);
+                    Folder remoteFolder = openRemoteFolderForView(remoteStore, message, mailbox);
+                    fetchMessageForView(remoteFolder, message, account, mailbox, flag);
 
                     // 5. Notify UI
                     mListeners.loadMessageForViewFinished(messageId);
@@ -1966,6 +2233,133 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Opens the remote folder holding a message.  Step 2 of {@link #loadMessageForView}.
+     */
+    private static Folder openRemoteFolderForView(Store remoteStore,
+            EmailContent.Message message, Mailbox mailbox) throws MessagingException {
+        String remoteServerId = mailbox.mServerId;
+        // If this is a search result, use the protocolSearchInfo field to get the
+        // correct remote location
+        if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
+            remoteServerId = message.mProtocolSearchInfo;
+        }
+        Folder remoteFolder = remoteStore.getFolder(remoteServerId);
+        remoteFolder.open(OpenMode.READ_WRITE);
+        return remoteFolder;
+    }
+
+    /**
+     * Fetches a message's text parts for the message view, and writes them to the provider.
+     * Steps 3 and 4 of {@link #loadMessageForView}.
+     *
+     * @param remoteFolder the open folder holding the message
+     * @param flag the message's new load state; see {@link #loadMessageForView}
+     */
+    private void fetchMessageForView(Folder remoteFolder, EmailContent.Message message,
+            Account account, Mailbox mailbox, int flag) throws MessagingException {
+        // 3. Set up to download the entire message or partial message
+        // Try to sync the entire mail. Ask the server to provide the message structure,
+        // but not all the attachments.
+        Message remoteMessage = remoteFolder.getMessage(message.mServerId);
+        int newFlag = flag;
+
+        if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.STRUCTURE);
+            remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+            if (remoteMessage.getBody() == null) {
+                // POP doesn't support STRUCTURE mode,
+                // so if go there, it must be a pop account,
+                // we'll just do a entire download for view message.
+                // set the flag value for pop account.
+                newFlag = EmailContent.Message.FLAG_LOADED_COMPLETE;
+                fp.clear();
+                fp.add(FetchProfile.Item.BODY);
+                remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+            } else {
+                // We have a structure to deal with,
+                // from which we can pull down the parts we want to actually store.
+                // Build a list of parts we are interested in.
+                // Text parts will be downloaded right now,
+                // and the attachments will be not to download.
+                ArrayList<Part> viewables = new ArrayList<Part>();
+                ArrayList<Part> attachments = new ArrayList<Part>();
+                MimeUtility.collectParts(remoteMessage, viewables, attachments);
+
+                if (EmailContent.Message.FLAG_LOADED_SYNC_SIZE_COMPLETE == flag) {
+                    remoteMessage.setNeedSyncSize(account.getSyncSize());
+                } else {
+                    remoteMessage.setNeedSyncSize(Utility.ENTIRE_MAIL);
+                }
+                for (Part part : viewables) {
+                    fp.clear();
+                    fp.add(part);
+                    remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+                }
+            }
+        } else {
+            newFlag = EmailContent.Message.FLAG_LOADED_COMPLETE; // reset the flag.
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.BODY);
+            remoteFolder.fetch(new Message[] { remoteMessage }, fp, null);
+        }
+
+        // 4. Write to provider
+        copyOneMessageToProvider(remoteMessage, account, mailbox, newFlag);
+    }
+
+    /**
+     * Loads a message the user is likely to open next, like {@link #loadMessageForView}, but only
+     * if it can be done without keeping other commands waiting: when no other command is queued,
+     * and there's an idle connection to the server.  Otherwise the message is left as it is, to
+     * be loaded when it's opened.  Listeners are told only once the message is loaded.
+     *
+     * @param flag the message's new load state; see {@link #loadMessageForView}
+     */
+    public void prefetchMessageForView(final long accountId, final long mailboxId,
+            final long messageId, final int flag) {
+        put("prefetchMessageForView", null, accountId, mailboxId, new Runnable() {
+            public void run() {
+                if (mCommands.hasPendingCommands()) {
+                    return;
+                }
+                try {
+                    // The message may have been loaded while this command was in queue
+                    EmailContent.Message message =
+                        EmailContent.Message.restoreMessageWithId(mContext, messageId);
+                    if (message == null || message.mFlagLoaded == flag
+                            || message.mFlagLoaded == EmailContent.Message.FLAG_LOADED_COMPLETE) {
+                        return;
+                    }
+                    Account account = Account.restoreAccountWithId(mContext, message.mAccountKey);
+                    Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, message.mMailboxKey);
+                    if (account == null || mailbox == null) {
+                        return;
+                    }
+                    Store remoteStore = Store.getInstance(account, mContext);
+                    if (!remoteStore.hasIdleConnection()) {
+                        return;
+                    }
+                    TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+                    Folder remoteFolder = openRemoteFolderForView(remoteStore, message, mailbox);
+                    try {
+                        fetchMessageForView(remoteFolder, message, account, mailbox, flag);
+                    } finally {
+                        // Give the connection back, for the next message
+                        remoteFolder.close(false);
+                    }
+                    mListeners.loadMessageForViewFinished(messageId);
+                } catch (MessagingException me) {
+                    // It will be loaded when it's opened
+                    if (Logging.LOGD) Log.v(Logging.LOG_TAG, "prefetchMessageForView", me);
+                } catch (RuntimeException rte) {
+                    if (Logging.LOGD) Log.v(Logging.LOG_TAG, "prefetchMessageForView", rte);
+                }
+            }
+        });
+    }
+
     /**
      * Attempts to load the attachment specified by id from the given account and message.
      */
@@ -1973,7 +2367,7 @@ public class MessagingController implements Runnable {
             final long attachmentId, MessagingListener listener, final boolean background) {
         mListeners.loadAttachmentStarted(accountId, messageId, attachmentId, true);
 
-        put("loadAttachment", listener, new Runnable() {
+        put("loadAttachment", listener, accountId, mailboxId, new Runnable() {
             public void run() {
                 try {
                     //1. Check if the attachment is already here and return early in that case
@@ -2033,22 +2427,27 @@ public class MessagingController implements Runnable {
                     storeMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "multipart/mixed");
                     storeMessage.setBody(multipart);
 
-                    // 4. Now ask for the attachment to be fetched
-                    FetchProfile fp = new FetchProfile();
-                    fp.add(storePart);
-                    remoteFolder.fetch(new Message[] { storeMessage }, fp,
-                            mController.new MessageRetrievalListenerBridge(
-                                    messageId, attachmentId));
-
-                    // If we failed to load the attachment, throw an Exception here, so that
-                    // AttachmentDownloadService knows that we failed
-                    if (storePart.getBody() == null) {
-                        throw new MessagingException("Attachment not loaded.");
-                    }
+                    // 4. Now ask for the attachment to be fetched; large attachments are
+                    // fetched in chunks, if the store can, and saved as they're completed
+                    MessageRetrievalListener bridge =
+                            mController.new MessageRetrievalListenerBridge(messageId, attachmentId);
+                    if (attachment.mLocation == null || attachment.mSize <= ATTACHMENT_CHUNK_SIZE
+                            || !loadAttachmentInChunks(mContext, remoteFolder, storeMessage,
+                                    attachment, accountId, bridge)) {
+                        FetchProfile fp = new FetchProfile();
+                        fp.add(storePart);
+                        remoteFolder.fetch(new Message[] { storeMessage }, fp, bridge);
 
-                    // 5. Save the downloaded file and update the attachment as necessary
-                    LegacyConversions.saveAttachmentBody(mContext, storePart, attachment,
-                            accountId);
+                        // If we failed to load the attachment, throw an Exception here, so that
+                        // AttachmentDownloadService knows that we failed
+                        if (storePart.getBody() == null) {
+                            throw new MessagingException("Attachment not loaded.");
+                        }
+
+                        // 5. Save the downloaded file and update the attachment as necessary
+                        LegacyConversions.saveAttachmentBody(mContext, storePart, attachment,
+                                accountId);
+                    }
 
                     // 6. Report success
                     mListeners.loadAttachmentFinished(accountId, messageId, attachmentId);
@@ -2063,6 +2462,78 @@ public class MessagingController implements Runnable {
             }});
     }
 
+    /**
+     * Fetch an attachment in chunks, appending each to a partial file.  Once a chunk is safely
+     * on disk, its end is recorded in the attachment's UI_DOWNLOADED_SIZE, so that a failed
+     * download (or one interrupted by the process being killed) resumes from there instead of
+     * from the start.  When the last chunk has arrived, the attachment is decoded into its file.
+     *
+     * @return false if the folder can't fetch a range of a part, in which case nothing was done
+     */
+    @VisibleForTesting
+    /* package */ static boolean loadAttachmentInChunks(Context context, Folder remoteFolder,
+            Message storeMessage, Attachment attachment, long accountId,
+            MessageRetrievalListener listener) throws MessagingException, IOException {
+        File partial = AttachmentUtilities.getPartialAttachmentFilename(context, accountId,
+                attachment.mId);
+        File saveIn = partial.getParentFile();
+        if (!saveIn.exists()) {
+            saveIn.mkdirs();
+        }
+        // Only trust what's both in the file and recorded as complete; anything past that is
+        // the remains of an interrupted chunk
+        long offset = Math.min(attachment.mUiDownloadedSize, partial.length());
+        if (partial.length() > offset) {
+            RandomAccessFile file = new RandomAccessFile(partial, "rw");
+            try {
+                file.setLength(offset);
+            } finally {
+                file.close();
+            }
+        }
+
+        Uri uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment.mId);
+        ContentValues cv = new ContentValues();
+        FileOutputStream out = new FileOutputStream(partial, true);
+        try {
+            int count;
+            do {
+                count = remoteFolder.fetchPartRange(storeMessage, attachment.mLocation, offset,
+                        ATTACHMENT_CHUNK_SIZE, out);
+                if (count < 0) {
+                    partial.delete();
+                    return false;
+                }
+                // Make sure that the chunk is on disk before we record it
+                out.getFD().sync();
+                offset += count;
+                cv.put(AttachmentColumns.UI_DOWNLOADED_SIZE, offset);
+                context.getContentResolver().update(uri, cv, null, null);
+                if (attachment.mSize > 0) {
+                    listener.loadAttachmentProgress(
+                            (int) Math.min(100, offset * 100 / attachment.mSize));
+                }
+            } while (count == ATTACHMENT_CHUNK_SIZE);
+        } finally {
+            out.close();
+        }
+
+        // The attachment is complete; decode it into its own file
+        InputStream in = MimeUtility.getInputStreamForContentTransferEncoding(
+                new FileInputStream(partial), "base64");
+        try {
+            LegacyConversions.saveAttachmentBody(context, in, attachment, accountId);
+        } catch (IOException ioe) {
+            // Don't resume from what can't be decoded
+            cv.put(AttachmentColumns.UI_DOWNLOADED_SIZE, 0);
+            context.getContentResolver().update(uri, cv, null, null);
+            throw new MessagingException("Attachment not loaded.", ioe);
+        } finally {
+            partial.delete();
+        }
+        return true;
+    }
+
     /**
      * Attempt to send any messages that are sitting in the Outbox.
      * @param account
@@ -2070,7 +2541,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account, final long sentFolderId,
             MessagingListener listener) {
-        put("sendPendingMessages", listener, new Runnable() {
+        put("sendPendingMessages", listener, account.mId, Mailbox.NO_MAILBOX, new Runnable() {
             public void run() {
                 sendPendingMessagesSynchronous(account, sentFolderId);
             }
@@ -2095,6 +2566,7 @@ public class MessagingController implements Runnable {
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 EmailContent.Message.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId) },
                 null);
+        Sender sender = null;
         try {
             // 2.  exit early
             if (c.getCount() <= 0) {
@@ -2103,7 +2575,8 @@ public class MessagingController implements Runnable {
             // 3. do one-time setup of the Sender & other stuff
             mListeners.sendPendingMessagesStarted(account.mId, -1);
 
-            Sender sender = Sender.getInstance(mContext, account);
+            // The sender keeps its session open from one message to the next; it's closed below
+            sender = Sender.getInstance(mContext, account);
             Store remoteStore = Store.getInstance(account, mContext);
             boolean requireMoveMessageToSentFolder = remoteStore.requireCopyMessageToSentFolder();
             ContentValues moveToSentValues = null;
@@ -2198,6 +2671,9 @@ public class MessagingController implements Runnable {
             // Show send failed notification for this account
             nc.showMessageSendFailedNotification(account, -1, me);
         } finally {
+            if (sender != null) {
+                sender.close();
+            }
             c.close();
         }
     }
@@ -2220,7 +2696,7 @@ public class MessagingController implements Runnable {
         listFolders(accountId, null);
 
         // Put this on the queue as well so it follows listFolders
-        put("checkMail", listener, new Runnable() {
+        put("checkMail", listener, accountId, Mailbox.NO_MAILBOX, new Runnable() {
             public void run() {
                 // send any pending outbound messages.  note, there is a slight race condition
                 // here if we somehow don't have a sent folder, but this should never happen
@@ -2249,12 +2725,43 @@ public class MessagingController implements Runnable {
         });
     }
 
-    private static class Command {
-        public Runnable runnable;
+    @VisibleForTesting
+    static class Command {
+        public final Runnable runnable;
+
+        public final MessagingListener listener;
+
+        public final String description;
+
+        /** Account the command works on, or {@link Account#NO_ACCOUNT} if unknown. */
+        public final long accountId;
+
+        /** Mailbox the command works on, or {@link Mailbox#NO_MAILBOX} for the whole account. */
+        public final long mailboxId;
 
-        public MessagingListener listener;
+        public Command(String description, MessagingListener listener, long accountId,
+                long mailboxId, Runnable runnable) {
+            this.description = description;
+            this.listener = listener;
+            this.accountId = accountId;
+            this.mailboxId = mailboxId;
+            this.runnable = runnable;
+        }
 
-        public String description;
+        /**
+         * @return true if this command and {@code other} must not run at the same time, and
+         * must run in the order they were queued.
+         */
+        public boolean conflictsWith(Command other) {
+            if (accountId == Account.NO_ACCOUNT || other.accountId == Account.NO_ACCOUNT) {
+                return true;
+            }
+            if (accountId != other.accountId) {
+                return false;
+            }
+            return mailboxId == Mailbox.NO_MAILBOX || other.mailboxId == Mailbox.NO_MAILBOX
+                    || mailboxId == other.mailboxId;
+        }
 
         @Override
         public String toString() {
@@ -2262,6 +2769,117 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Queue of {@link Command}s shared by the worker threads.
+     *
+     * <p>A command may start only when it doesn't conflict (see {@link Command#conflictsWith})
+     * with any running command, nor with any command queued before it.  So commands for the
+     * same mailbox, and account-wide commands, still run one at a time in the order they were
+     * queued, as they did when there was only one thread.  Also, no more than
+     * {@code maxPerAccount} commands run for an account at a time.
+     *
+     * <p>If more than one command may start, the one whose account has the fewest running
+     * commands wins, and then the oldest one.  So a long sync of one account doesn't keep the
+     * other accounts waiting.
+     */
+    @VisibleForTesting
+    static class CommandQueue {
+        private final int mMaxPerAccount;
+        private final LinkedList<Command> mPending = new LinkedList<Command>();
+        private final ArrayList<Command> mRunning = new ArrayList<Command>();
+
+        public CommandQueue(int maxPerAccount) {
+            mMaxPerAccount = maxPerAccount;
+        }
+
+        public synchronized void add(Command command) {
+            mPending.add(command);
+            notifyAll();
+        }
+
+        /**
+         * Wait until a command may start, and return it.  The caller must call {@link #finish}
+         * when the command is done.
+         */
+        public synchronized Command take() throws InterruptedException {
+            for (;;) {
+                final Command command = poll();
+                if (command != null) {
+                    return command;
+                }
+                wait();
+            }
+        }
+
+        /**
+         * Same as {@link #take}, but returns null instead of waiting.
+         */
+        public synchronized Command poll() {
+            Command next = null;
+            int nextRunningCount = Integer.MAX_VALUE;
+            for (int i = 0; i < mPending.size(); i++) {
+                final Command command = mPending.get(i);
+                if (!canStart(command, i)) {
+                    continue;
+                }
+                final int runningCount = getRunningCount(command.accountId);
+                if (runningCount < nextRunningCount) {
+                    next = command;
+                    nextRunningCount = runningCount;
+                }
+            }
+            if (next != null) {
+                mPending.remove(next);
+                mRunning.add(next);
+            }
+            return next;
+        }
+
+        public synchronized void finish(Command command) {
+            mRunning.remove(command);
+            notifyAll();
+        }
+
+        public synchronized boolean isBusy() {
+            return !mRunning.isEmpty();
+        }
+
+        public synchronized boolean hasPendingCommands() {
+            return !mPending.isEmpty();
+        }
+
+        /**
+         * @return true if the command at {@code index} in {@link #mPending} may start now.
+         */
+        private boolean canStart(Command command, int index) {
+            if (command.accountId != Account.NO_ACCOUNT
+                    && getRunningCount(command.accountId) >= mMaxPerAccount) {
+                return false;
+            }
+            for (Command running : mRunning) {
+                if (command.conflictsWith(running)) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < index; i++) {
+                if (command.conflictsWith(mPending.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int getRunningCount(long accountId) {
+            int count = 0;
+            for (Command running : mRunning) {
+                if (running.accountId == accountId) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
     /** Results of the latest synchronization. */
     private static class SyncResults {
         /** The total # of messages in the folder */
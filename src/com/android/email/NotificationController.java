@@ -56,12 +56,10 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.AccountColumns;
 import com.android.emailcommon.provider.EmailContent.Attachment;
-import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.utility.IntentUtilities;
-import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.HashMap;
@@ -101,7 +99,8 @@ public class NotificationController {
     // for now since the assumption is that we only ever look for changes in an account's
     // INBOX. We should adjust our logic to use the mailbox ID instead.
     /** Maps account id to the message data */
-    private final HashMap<Long, ContentObserver> mNotificationMap;
+    @VisibleForTesting
+    final HashMap<Long, ContentObserver> mNotificationMap;
     private ContentObserver mAccountObserver;
     /**
      * Suspend notifications for this account. If {@link Account#NO_ACCOUNT}, no
@@ -124,6 +123,12 @@ public class NotificationController {
      */
     private static final long MIN_SOUND_INTERVAL_MS = 15 * 1000; // 15 seconds
 
+    /**
+     * Delay before updating the new message notification after a message changes.  Changes
+     * within this time (e.g. the rest of a sync) are folded into the same update.
+     */
+    private static final long NEW_MESSAGE_UPDATE_DELAY_MS = 1000; // 1 second
+
     // After 5s, we will try to register again. And set the max retry times is 5.
     private static final long RETRY_INTERVAL_MS = 5000;
     private static final int RETRY_MAX_TIMES = 5;
@@ -156,6 +161,16 @@ public class NotificationController {
         return sInstance;
     }
 
+    /**
+     * Inject a mock controller.  Used only for testing.  Affects future calls to getInstance().
+     *
+     * Tests that use this method MUST clean it up by calling this method again with null.
+     */
+    @VisibleForTesting
+    static synchronized void injectMockControllerForTest(NotificationController mockController) {
+        sInstance = mockController;
+    }
+
     /**
      * Return whether or not a notification, based on the passed-in id, needs to be "ongoing"
      * @param notificationId the notification id to check
@@ -991,21 +1006,36 @@ public class NotificationController {
 
     /**
      * Observer invoked whenever a message we're notifying the user about changes.
+     *
+     * A sync changes messages many times in a row, so the changes are coalesced: the first one
+     * schedules an update of the notification, and the following ones ride along with it.
      */
-    private static class MessageContentObserver extends ContentObserver {
+    @VisibleForTesting
+    static class MessageContentObserver extends ContentObserver {
         /** A selection to get messages the user hasn't seen before */
         private final static String MESSAGE_SELECTION =
                 MessageColumns.MAILBOX_KEY + "=? AND "
                 + MessageColumns.ID + ">? AND "
                 + MessageColumns.FLAG_READ + "=0 AND "
                 + Message.FLAG_LOADED_SELECTION;
+        private final Handler mHandler;
         private final Context mContext;
         private final long mMailboxId;
         private final long mAccountId;
+        /** Whether an update is already scheduled; only used on the handler's thread */
+        private boolean mUpdatePending;
+        private final Runnable mUpdateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mUpdatePending = false;
+                updateNotification();
+            }
+        };
 
         public MessageContentObserver(
                 Handler handler, Context context, long mailboxId, long accountId) {
             super(handler);
+            mHandler = handler;
             mContext = context;
             mMailboxId = mailboxId;
             mAccountId = accountId;
@@ -1013,70 +1043,82 @@ public class NotificationController {
 
         @Override
         public void onChange(boolean selfChange) {
+            if (!mUpdatePending) {
+                mUpdatePending = true;
+                mHandler.postDelayed(mUpdateRunnable, NEW_MESSAGE_UPDATE_DELAY_MS);
+            }
+        }
+
+        private void updateNotification() {
             if (mAccountId == sInstance.mSuspendAccountId
                     || sInstance.mSuspendAccountId == Account.ACCOUNT_ID_COMBINED_VIEW) {
                 return;
             }
 
             ContentObserver observer = sInstance.mNotificationMap.get(mAccountId);
-            if (observer == null) {
+            if (observer != this) {
                 // Notification for a mailbox that we aren't observing; account is probably
                 // being deleted.
                 Log.w(Logging.LOG_TAG, "Received notification when observer data was null");
                 return;
             }
-            Account account = Account.restoreAccountWithId(mContext, mAccountId);
-            if (account == null) {
-                Log.w(Logging.LOG_TAG, "Couldn't find account for changed message notification");
-                return;
-            }
-            long oldMessageId = account.mNotifiedMessageId;
-            int oldMessageCount = account.mNotifiedMessageCount;
 
+            // Get the new messages, the unread count and what we last notified in one query
             ContentResolver resolver = mContext.getContentResolver();
-            Long lastSeenMessageId = Utility.getFirstRowLong(
-                    mContext, ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
-                    new String[] { MailboxColumns.LAST_SEEN_MESSAGE_KEY },
-                    null, null, null, 0);
-            if (lastSeenMessageId == null) {
-                // Mailbox got nuked. Could be that the account is in the process of being deleted
-                Log.w(Logging.LOG_TAG, "Couldn't find mailbox for changed message notification");
-                return;
-            }
-
-            Cursor c = resolver.query(
-                    Message.CONTENT_URI, EmailContent.ID_PROJECTION,
-                    MESSAGE_SELECTION,
-                    new String[] { Long.toString(mMailboxId), Long.toString(lastSeenMessageId) },
-                    MessageColumns.ID + " DESC");
+            Cursor c = resolver.query(ContentUris.withAppendedId(
+                    EmailContent.MAILBOX_UNSEEN_MESSAGES_URI, mMailboxId), null, null, null, null);
             if (c == null) {
                 // Couldn't find message info - things may be getting deleted in bulk.
-                Log.w(Logging.LOG_TAG, "#onChange(); NULL response for message id query");
+                Log.w(Logging.LOG_TAG, "#onChange(); NULL response for unseen message query");
                 return;
             }
+            int newMessageCount;
+            long newMessageId;
+            int unreadCount;
+            long lastSeenMessageId;
+            long oldMessageId;
+            int oldMessageCount;
             try {
-                int newMessageCount = c.getCount();
-                long newMessageId = 0L;
-                if (c.moveToNext()) {
-                    newMessageId = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
+                if (!c.moveToFirst()) {
+                    // Mailbox got nuked. Could be that the account is in the process of being
+                    // deleted
+                    Log.w(Logging.LOG_TAG,
+                            "Couldn't find mailbox for changed message notification");
+                    return;
                 }
+                newMessageCount = c.getInt(EmailContent.UNSEEN_MESSAGES_COUNT_COLUMN);
+                newMessageId = c.getLong(EmailContent.UNSEEN_MESSAGES_NEWEST_ID_COLUMN);
+                unreadCount = c.getInt(EmailContent.UNSEEN_MESSAGES_UNREAD_COUNT_COLUMN);
+                lastSeenMessageId = c.getLong(EmailContent.UNSEEN_MESSAGES_LAST_SEEN_ID_COLUMN);
+                oldMessageId = c.getLong(EmailContent.UNSEEN_MESSAGES_NOTIFIED_ID_COLUMN);
+                oldMessageCount = c.getInt(EmailContent.UNSEEN_MESSAGES_NOTIFIED_COUNT_COLUMN);
+            } finally {
+                c.close();
+            }
 
-                if (newMessageCount == 0) {
-                    // No messages to notify for; clear the notification
-                    int notificationId = sInstance.getNewMessageNotificationId(mAccountId);
-                    sInstance.mNotificationManager.cancel(notificationId);
-                } else if (newMessageCount != oldMessageCount
-                        || (newMessageId != 0 && newMessageId != oldMessageId)) {
-                    // Either the count or last message has changed; update the notification
-                    Integer unreadCount = Utility.getFirstRowInt(
-                            mContext, ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
-                            new String[] { MailboxColumns.UNREAD_COUNT },
-                            null, null, null, 0);
-                    if (unreadCount == null) {
-                        Log.w(Logging.LOG_TAG, "Couldn't find unread count for mailbox");
+            if (newMessageCount == 0) {
+                // No messages to notify for; clear the notification
+                int notificationId = sInstance.getNewMessageNotificationId(mAccountId);
+                sInstance.mNotificationManager.cancel(notificationId);
+            } else if (newMessageCount != oldMessageCount
+                    || (newMessageId != 0 && newMessageId != oldMessageId)) {
+                // Either the count or last message has changed; update the notification.  Only
+                // now do we need the messages themselves, for the digest
+                c = resolver.query(
+                        Message.CONTENT_URI, EmailContent.ID_PROJECTION,
+                        MESSAGE_SELECTION,
+                        new String[] { Long.toString(mMailboxId),
+                                Long.toString(lastSeenMessageId) },
+                        MessageColumns.ID + " DESC");
+                if (c == null) {
+                    Log.w(Logging.LOG_TAG, "#onChange(); NULL response for message id query");
+                    return;
+                }
+                try {
+                    if (!c.moveToFirst()) {
+                        // The messages went away since we counted them; we'll hear about it
                         return;
                     }
-
                     Notification n = sInstance.createNewMessageNotification(
                             mAccountId, mMailboxId, c, newMessageId,
                             newMessageCount, unreadCount);
@@ -1085,15 +1127,17 @@ public class NotificationController {
                         sInstance.mNotificationManager.notify(
                                 sInstance.getNewMessageNotificationId(mAccountId), n);
                     }
+                } finally {
+                    c.close();
                 }
-                // Save away the new values
+            }
+            // Save away the new values, if they changed
+            if (newMessageId != oldMessageId || newMessageCount != oldMessageCount) {
                 ContentValues cv = new ContentValues();
                 cv.put(AccountColumns.NOTIFIED_MESSAGE_ID, newMessageId);
                 cv.put(AccountColumns.NOTIFIED_MESSAGE_COUNT, newMessageCount);
                 resolver.update(ContentUris.withAppendedId(Account.CONTENT_URI, mAccountId), cv,
                         null, null);
-            } finally {
-                c.close();
             }
         }
     }
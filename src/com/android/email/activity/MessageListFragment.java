@@ -49,6 +49,8 @@ import android.view.View.DragShadowBuilder;
 import android.view.View.OnDragListener;
 import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.ListView;
@@ -119,6 +121,16 @@ public class MessageListFragment extends ListFragment
     private MessagesAdapter mListAdapter;
     private boolean mIsFirstLoad;
 
+    /**
+     * How close to the end of the loaded messages the list has to be scrolled for more to be
+     * loaded.
+     */
+    private static final int LIST_EXTEND_THRESHOLD = 20;
+    /** Whether all the messages of the list are loaded */
+    private boolean mIsListComplete = true;
+    /** Whether more messages have been asked for, and haven't been loaded yet */
+    private boolean mIsListExtending;
+
     /** ID of the message to hightlight. */
     private long mSelectedMessageId = -1;
 
@@ -416,6 +428,24 @@ public class MessageListFragment extends ListFragment
         lv.setOnTouchListener(this);
         lv.setItemsCanFocus(false);
         lv.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
+        lv.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (!mIsListComplete && !mIsListExtending
+                        && firstVisibleItem + visibleItemCount
+                                >= totalItemCount - LIST_EXTEND_THRESHOLD) {
+                    // Load more messages before the user gets to the end of the list
+                    mIsListExtending = true;
+                    MessagesAdapter.extendLoaderWindow(
+                            getLoaderManager().<Cursor>getLoader(LOADER_ID_MESSAGES_LOADER));
+                }
+            }
+        });
 
         mListFooterView = getActivity().getLayoutInflater().inflate(
                 R.layout.message_list_item_footer, lv, false);
@@ -1102,6 +1132,9 @@ public class MessageListFragment extends ListFragment
 
     private int determineFooterMode() {
         int result = LIST_FOOTER_MODE_NONE;
+        if (!mIsListComplete) {
+            return result; // Not at the end of the local messages yet
+        }
         if ((mMailbox == null)
                 || (mMailbox.mType == Mailbox.TYPE_OUTBOX)
                 || (mMailbox.mType == Mailbox.TYPE_DRAFTS)) {
@@ -1322,6 +1355,8 @@ public class MessageListFragment extends ListFragment
             mIsEasAccount = cursor.mIsEasAccount;
             mIsRefreshable = cursor.mIsRefreshable;
             mCountTotalAccounts = cursor.mCountTotalAccounts;
+            mIsListComplete = cursor.mIsComplete;
+            mIsListExtending = false;
 
             // If this is a search result, open the first message unless we are
             // restoring the message position from saved state, in which case,
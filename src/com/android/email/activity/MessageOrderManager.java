@@ -286,6 +286,35 @@ public class MessageOrderManager {
         return (mCursor != null) && !mCursor.isFirst();
     }
 
+    /**
+     * @return the ids of the messages the user is likely to open after the current one: up to
+     * {@code count} older messages, nearest first, followed by the newer message, if there is
+     * one.  Empty if the current message isn't known yet.
+     */
+    public long[] getNeighborMessageIds(int count) {
+        if (mCursor == null || mCurrentMessageId == -1 || mCursor.isAfterLast()
+                || mCursor.isBeforeFirst()) {
+            return new long[0];
+        }
+        final int position = mCursor.getPosition();
+        final int older = Math.max(0, Math.min(count, mCursor.getCount() - position - 1));
+        final boolean hasNewer = position > 0;
+        final long[] ids = new long[older + (hasNewer ? 1 : 0)];
+        try {
+            for (int i = 0; i < older; i++) {
+                mCursor.moveToPosition(position + i + 1);
+                ids[i] = mCursor.getLong(EmailContent.ID_PROJECTION_COLUMN);
+            }
+            if (hasNewer) {
+                mCursor.moveToPosition(position - 1);
+                ids[older] = mCursor.getLong(EmailContent.ID_PROJECTION_COLUMN);
+            }
+        } finally {
+            mCursor.moveToPosition(position);
+        }
+        return ids;
+    }
+
     /**
      * Move to the older message.
      *
@@ -355,7 +384,8 @@ public class MessageOrderManager {
                 EmailContent.ID_PROJECTION,
                 Message.buildMessageListSelection(
                         mContext, mListContext.mAccountId, mListContext.getMailboxId()),
-                null, EmailContent.MessageColumns.TIMESTAMP + " DESC");
+                null, EmailContent.MessageColumns.TIMESTAMP + " DESC, "
+                        + EmailContent.RECORD_ID + " DESC"); // Same order as the message list
         return cursor;
     }
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.activity;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import com.android.email.Controller;
+import com.android.email.Email;
+import com.android.email.EmailConnectivityManager;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashSet;
+
+/**
+ * Gets the messages next to the one being shown ready, so that moving to them is instant: the
+ * ones that aren't loaded yet are fetched, when the controller has an idle connection to spare,
+ * and the loaded ones are rendered into {@link com.android.email.provider.RenderedBodyCache}.
+ *
+ * How many messages are fetched depends on the network and the battery; see
+ * {@link #getFetchLimit}.  Rendering costs no network, so it's always done.
+ *
+ * All public methods must be called on the UI thread.
+ */
+public class MessagePrefetcher {
+    /** Max number of older messages to get ready, and to fetch on Wi-Fi */
+    static final int MAX_PREFETCH_COUNT = 3;
+
+    /** Max number of messages ahead to fetch on other networks */
+    @VisibleForTesting
+    static final int MAX_PREFETCH_COUNT_METERED = 1;
+
+    /** Below this battery level, nothing is fetched unless the device is charging */
+    @VisibleForTesting
+    static final int MIN_BATTERY_PERCENT = 20;
+
+    private final Context mContext;
+    private final Controller mController;
+    private final EmailAsyncTask.Tracker mTaskTracker = new EmailAsyncTask.Tracker();
+
+    /**
+     * Messages already handed to the controller.  Each message is asked for once at most, not
+     * each time the list changes.  Guarded by itself.
+     */
+    private final HashSet<Long> mRequestedIds = new HashSet<Long>();
+
+    public MessagePrefetcher(Context context) {
+        mContext = context.getApplicationContext();
+        mController = Controller.getInstance(mContext);
+    }
+
+    /**
+     * Gets the given messages ready, in order, instead of any previously given ones.
+     *
+     * @param messageIds the messages the user is likely to open next, most likely first; see
+     *     {@link MessageOrderManager#getNeighborMessageIds}
+     */
+    public void prefetch(long[] messageIds) {
+        if (messageIds.length > 0) {
+            new PrefetchTask(messageIds).cancelPreviousAndExecuteParallel();
+        }
+    }
+
+    /**
+     * Stops getting messages ready.  Messages already handed to the controller are still
+     * fetched, if it gets to them.
+     */
+    public void close() {
+        mTaskTracker.cancellAllInterrupt();
+    }
+
+    /**
+     * @return the number of messages that may be fetched ahead, given the network and the
+     *     battery
+     */
+    @VisibleForTesting
+    int getFetchLimit() {
+        final int networkType = EmailConnectivityManager.getActiveNetworkType(mContext);
+        if (networkType == EmailConnectivityManager.NO_ACTIVE_NETWORK) {
+            return 0;
+        }
+        // Sticky broadcast; no receiver needed
+        return getFetchLimit(networkType, mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+    }
+
+    /**
+     * @param networkType the active network's type, or
+     *     {@link EmailConnectivityManager#NO_ACTIVE_NETWORK}
+     * @param battery the last {@link Intent#ACTION_BATTERY_CHANGED} broadcast, or null if unknown
+     * @return the number of messages that may be fetched ahead
+     */
+    @VisibleForTesting
+    static int getFetchLimit(int networkType, Intent battery) {
+        if (networkType == EmailConnectivityManager.NO_ACTIVE_NETWORK) {
+            return 0;
+        }
+        if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0 && level * 100 / scale < MIN_BATTERY_PERCENT) {
+                return 0;
+            }
+        }
+        return (networkType == ConnectivityManager.TYPE_WIFI)
+                ? MAX_PREFETCH_COUNT : MAX_PREFETCH_COUNT_METERED;
+    }
+
+    /**
+     * Gets the given messages ready, in order: the loaded ones are rendered, and the first
+     * {@code fetchLimit} of the others are handed to the controller, unless they were already.
+     *
+     * @param task stops the work when it's cancelled; may be null
+     */
+    @VisibleForTesting
+    void getMessagesReady(long[] messageIds, int fetchLimit, EmailAsyncTask<?, ?, ?> task) {
+        for (int i = 0; i < messageIds.length && (task == null || !task.isCancelled()); i++) {
+            final Message message = Message.restoreMessageWithId(mContext, messageIds[i]);
+            if (message == null) {
+                continue;
+            }
+            final int loadFlag =
+                    MessageViewFragmentBase.getLoadFlagForView(mContext, message, false);
+            if (loadFlag == MessageViewFragmentBase.NO_LOAD_NEEDED) {
+                MessageViewFragmentBase.loadRenderedBody(mContext, message.mId,
+                        message.mAccountKey, message.mMailboxKey);
+            } else if (fetchLimit > 0) {
+                // Once it's fetched, the list changes and we get here again to render it
+                fetchLimit--;
+                if (markRequested(message.mId)) {
+                    if (Logging.DEBUG_LIFECYCLE && Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, "Prefetching message " + message.mId);
+                    }
+                    mController.prefetchMessageForView(message.mAccountKey,
+                            message.mMailboxKey, message.mId, loadFlag);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the message hasn't been handed to the controller already
+     */
+    private boolean markRequested(long messageId) {
+        synchronized (mRequestedIds) {
+            return mRequestedIds.add(messageId);
+        }
+    }
+
+    private class PrefetchTask extends EmailAsyncTask<Void, Void, Void> {
+        private final long[] mMessageIds;
+
+        PrefetchTask(long[] messageIds) {
+            super(mTaskTracker);
+            mMessageIds = messageIds;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            getMessagesReady(mMessageIds, getFetchLimit(), this);
+            return null;
+        }
+    }
+}
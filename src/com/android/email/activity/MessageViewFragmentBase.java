@@ -69,6 +69,8 @@ import com.android.email.Preferences;
 import com.android.email.R;
 import com.android.email.Throttle;
 import com.android.email.mail.internet.EmailHtmlUtil;
+import com.android.email.provider.RenderedBodyCache;
+import com.android.email.provider.RenderedBodyCache.RenderedBody;
 import com.android.email.service.AttachmentDownloadService;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.Address;
@@ -106,6 +108,10 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     private static final String BUNDLE_KEY_CURRENT_TAB = "MessageViewFragmentBase.currentTab";
     private static final String BUNDLE_KEY_PICTURE_LOADED = "MessageViewFragmentBase.pictureLoaded";
     private static final int PHOTO_LOADER_ID = 1;
+
+    /** Returned by {@link #getLoadFlagForView} for a message that's loaded enough to be shown */
+    /* package */ static final int NO_LOAD_NEEDED = -1;
+
     protected Context mContext;
 
     // Regex that matches start of img tag. '<(?i)img\s+'.
@@ -1206,30 +1212,27 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     /**
      * Async task for loading a single message body outside of the UI thread
      */
-    private class LoadBodyTask extends EmailAsyncTask<Void, Void, String[]> {
+    private class LoadBodyTask extends EmailAsyncTask<Void, Void, RenderedBody> {
 
         private final long mId;
+        private final long mMailboxId;
         private boolean mErrorLoadingMessageBody;
         private final boolean mAutoShowPictures;
 
         /**
          * Special constructor to cache some local info
          */
-        public LoadBodyTask(long messageId, boolean autoShowPictures) {
+        public LoadBodyTask(Message message, boolean autoShowPictures) {
             super(mTaskTracker);
-            mId = messageId;
+            mId = message.mId;
+            mMailboxId = message.mMailboxKey;
             mAutoShowPictures = autoShowPictures;
         }
 
         @Override
-        protected String[] doInBackground(Void... params) {
+        protected RenderedBody doInBackground(Void... params) {
             try {
-                String text = null;
-                String html = Body.restoreBodyHtmlWithMessageId(mContext, mId);
-                if (html == null) {
-                    text = Body.restoreBodyTextWithMessageId(mContext, mId);
-                }
-                return new String[] { text, html };
+                return loadRenderedBody(mContext, mId, mAccountId, mMailboxId);
             } catch (RuntimeException re) {
                 // This catches SQLiteException as well as other RTE's we've seen from the
                 // database calls, such as IllegalStateException
@@ -1240,15 +1243,15 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         }
 
         @Override
-        protected void onSuccess(String[] results) {
-            if (results == null) {
+        protected void onSuccess(RenderedBody result) {
+            if (result == null) {
                 if (mErrorLoadingMessageBody) {
                     Utility.showToast(getActivity(), R.string.error_loading_message_body);
                 }
                 resetView();
                 return;
             }
-            reloadUiFromBody(results[0], results[1], mAutoShowPictures);    // text, html
+            reloadUiFromBody(result, mAutoShowPictures);
             onPostLoadBody();
         }
     }
@@ -1611,6 +1614,38 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         return null;
     }
 
+    /**
+     * Tells how much of a message must be fetched before it's shown.
+     *
+     * @param fetchEntireMailFromUser whether the user asked for the entire message
+     * @return the load state to fetch the message up to, i.e. {@link Message#FLAG_LOADED_COMPLETE}
+     * or {@link Message#FLAG_LOADED_SYNC_SIZE_COMPLETE}, or {@link #NO_LOAD_NEEDED} if it can be
+     * shown as it is
+     */
+    /* package */ static int getLoadFlagForView(Context context, Message message,
+            boolean fetchEntireMailFromUser) {
+        boolean needFetchEntireMail = false;
+        if (!SystemProperties.getBoolean("persist.env.email.syncsize", true)
+                || fetchEntireMailFromUser
+                || Utility.getAccountSyncSize(context, message.mAccountKey)
+                        == Utility.ENTIRE_MAIL) {
+            needFetchEntireMail = true;
+        }
+        boolean needFetchPartialMail = false;
+        if (SystemProperties.getBoolean("persist.env.email.syncsize", true)
+                && !fetchEntireMailFromUser
+                && message.mFlagLoaded != Message.FLAG_LOADED_COMPLETE
+                && message.mFlagLoaded != Message.FLAG_LOADED_SYNC_SIZE_COMPLETE) {
+            needFetchPartialMail = true;
+        }
+        if (needFetchEntireMail && message.mFlagLoaded != Message.FLAG_LOADED_COMPLETE) {
+            return Message.FLAG_LOADED_COMPLETE;
+        } else if (needFetchPartialMail) {
+            return Message.FLAG_LOADED_SYNC_SIZE_COMPLETE;
+        }
+        return NO_LOAD_NEEDED;
+    }
+
     /**
      * Reload the UI from a provider cursor.  {@link LoadMessageTask#onSuccess} calls it.
      *
@@ -1634,26 +1669,10 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         // 2. If != LOADED, ask controller to load it
         // 3. Controller callback (after loaded) should trigger LoadBodyTask & LoadAttachmentsTask
         // 4. Else start the loader tasks right away (message already loaded)
-        boolean needFetchEntireMail = false;
-        if (!SystemProperties.getBoolean("persist.env.email.syncsize", true)
-                || fetchEntireMailFromUser
-                || Utility.getAccountSyncSize(mContext, mAccountId) == Utility.ENTIRE_MAIL) {
-            needFetchEntireMail = true;
-        }
-        boolean needFetchPartialMail = false;
-        if (SystemProperties.getBoolean("persist.env.email.syncsize", true)
-                && !fetchEntireMailFromUser
-                && message.mFlagLoaded != Message.FLAG_LOADED_COMPLETE
-                && message.mFlagLoaded != Message.FLAG_LOADED_SYNC_SIZE_COMPLETE) {
-            needFetchPartialMail = true;
-        }
-        if (okToFetch && needFetchEntireMail
-                && message.mFlagLoaded != Message.FLAG_LOADED_COMPLETE) {
-            mControllerCallback.getWrappee().setWaitForLoadMessageId(message.mId);
-            mController.loadMessageForView(message.mId, Message.FLAG_LOADED_COMPLETE);
-        } else if (okToFetch && needFetchPartialMail) {
+        final int loadFlag = getLoadFlagForView(mContext, message, fetchEntireMailFromUser);
+        if (okToFetch && loadFlag != NO_LOAD_NEEDED) {
             mControllerCallback.getWrappee().setWaitForLoadMessageId(message.mId);
-            mController.loadMessageForView(message.mId, Message.FLAG_LOADED_SYNC_SIZE_COMPLETE);
+            mController.loadMessageForView(message.mId, loadFlag);
         } else {
             Address[] fromList = Address.unpack(mMessage.mFrom);
             boolean autoShowImages = false;
@@ -1666,7 +1685,7 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
             }
             mControllerCallback.getWrappee().setWaitForLoadMessageId(Message.NO_MESSAGE);
             // Ask for body
-            new LoadBodyTask(message.mId, autoShowImages).executeParallel();
+            new LoadBodyTask(message, autoShowImages).executeParallel();
         }
     }
 
@@ -1733,70 +1752,112 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     }
 
     /**
-     * Reload the body from the provider cursor.  This must only be called from the UI thread.
-     *
-     * @param bodyText text part
-     * @param bodyHtml html part
+     * Gets the body of a message as it's displayed, from {@link RenderedBodyCache} if it's there,
+     * or else by reading and rendering it.  This must not be called from the UI thread.
      *
-     * TODO deal with html vs text and many other issues <- WHAT DOES IT MEAN??
+     * @return the rendered body; never null
      */
-    private void reloadUiFromBody(String bodyText, String bodyHtml, boolean autoShowPictures) {
+    /* package */ static RenderedBody loadRenderedBody(Context context, long messageId,
+            long accountId, long mailboxId) {
+        RenderedBody rendered = RenderedBodyCache.get(messageId);
+        if (rendered != null) {
+            return rendered;
+        }
+        // Read the whole Body row at once; sent messages need its intro and reply parts too
+        final int token = RenderedBodyCache.getToken();
+        Body body = Body.restoreBodyWithMessageId(context, messageId);
+        String bodyText = null;
+        String bodyHtml = null;
+        if (body != null) {
+            bodyHtml = body.mHtmlContent;
+            if (bodyHtml == null) {
+                bodyText = body.mTextContent;
+            }
+        }
+
         String text = null;
-        mHtmlTextRaw = null;
+        String htmlTextRaw = null;
         boolean hasImages = false;
 
         if (bodyHtml == null) {
             text = convertTextToHtml(bodyText);
         } else {
             text = bodyHtml;
-            mHtmlTextRaw = bodyHtml;
+            htmlTextRaw = bodyHtml;
             hasImages = IMG_TAG_START_REGEX.matcher(text).find();
         }
 
         // Caused by we want to make least effect on the message view, we will only show the
         // original mail in the Sent and Outbox for IMAP and POP3 account. And if the account
         // id is 0, it means this mail is the local message. Needn't show the original mail.
-        if (mAccountId > 0
-                && SystemProperties.getBoolean("persist.env.email.showmail", false)) {
-            Account account = Account.restoreAccountWithId(mContext, mAccountId);
-            HostAuth hostAuth = HostAuth.restoreHostAuthWithId(mContext, account.mHostAuthKeyRecv);
-            Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMessage.mMailboxKey);
-
-            boolean needAppendForAccountType = HostAuth.SCHEME_IMAP.equals(hostAuth.mProtocol)
-                    || HostAuth.SCHEME_POP3.equals(hostAuth.mProtocol);
-            boolean needAppendForMailbox = mailbox.mType == Mailbox.TYPE_OUTBOX
-                    || mailbox.mType == Mailbox.TYPE_SENT;
-
-            if (needAppendForMailbox && needAppendForAccountType) {
-                // Get the intro text from the database, and convert the text to html.
-                String introText = Body.restoreIntroTextWithMessageId(mContext, mMessage.mId);
-                if (!TextUtils.isEmpty(introText)) {
-                    introText = convertTextToHtml(introText);
-                } else {
-                    introText = "";
-                }
-
-                // Get the intro reply html from the database, and convert the text to html.
-                String replyhtml = Body.restoreReplyHtmlWithMessageId(mContext, mMessage.mId);
-                if (!TextUtils.isEmpty(replyhtml)) {
-                    hasImages = hasImages || IMG_TAG_START_REGEX.matcher(replyhtml).find();
-                } else {
-                    replyhtml = "";
-                }
+        if (body != null && accountId > 0
+                && SystemProperties.getBoolean("persist.env.email.showmail", false)
+                && needAppendOriginalMail(context, accountId, mailboxId)) {
+            // Convert the intro text to html.
+            String introText = body.mIntroText;
+            if (!TextUtils.isEmpty(introText)) {
+                introText = convertTextToHtml(introText);
+            } else {
+                introText = "";
+            }
 
-                // Get the reply text from the database, and convert the text to html.
-                String replyText = Body.restoreReplyTextWithMessageId(mContext, mMessage.mId);
-                if (!TextUtils.isEmpty(replyText)) {
-                    replyText = convertTextToHtml(replyText);
-                } else {
-                    replyText = "";
-                }
+            // The intro reply html.
+            String replyhtml = body.mHtmlReply;
+            if (!TextUtils.isEmpty(replyhtml)) {
+                hasImages = hasImages || IMG_TAG_START_REGEX.matcher(replyhtml).find();
+            } else {
+                replyhtml = "";
+            }
 
-                // Append the intro text, reply html and reply text to content.
-                text = text + introText + replyhtml + replyText;
-                mHtmlTextRaw = text;
+            // Convert the reply text to html.
+            String replyText = body.mTextReply;
+            if (!TextUtils.isEmpty(replyText)) {
+                replyText = convertTextToHtml(replyText);
+            } else {
+                replyText = "";
             }
+
+            // Append the intro text, reply html and reply text to content.
+            text = text + introText + replyhtml + replyText;
+            htmlTextRaw = text;
+        }
+
+        rendered = new RenderedBody(text, htmlTextRaw, hasImages);
+        RenderedBodyCache.put(messageId, token, rendered);
+        return rendered;
+    }
+
+    /**
+     * @return whether the original mail is shown below a message in the given mailbox, i.e. if
+     * it's the Sent or Outbox mailbox of an IMAP or POP3 account
+     */
+    private static boolean needAppendOriginalMail(Context context, long accountId,
+            long mailboxId) {
+        Account account = Account.restoreAccountWithId(context, accountId);
+        Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
+        if (account == null || mailbox == null) {
+            return false;
+        }
+        HostAuth hostAuth = HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv);
+        if (hostAuth == null) {
+            return false;
         }
+        boolean needAppendForAccountType = HostAuth.SCHEME_IMAP.equals(hostAuth.mProtocol)
+                || HostAuth.SCHEME_POP3.equals(hostAuth.mProtocol);
+        boolean needAppendForMailbox = mailbox.mType == Mailbox.TYPE_OUTBOX
+                || mailbox.mType == Mailbox.TYPE_SENT;
+        return needAppendForMailbox && needAppendForAccountType;
+    }
+
+    /**
+     * Reload the body.  This must only be called from the UI thread.
+     *
+     * @param body the body, as rendered by {@link #loadRenderedBody}
+     */
+    private void reloadUiFromBody(RenderedBody body, boolean autoShowPictures) {
+        String text = body.mHtml;
+        mHtmlTextRaw = body.mHtmlRaw;
+        boolean hasImages = body.mHasImages;
 
         // TODO this is not really accurate.
         // - Images aren't the only network resources.  (e.g. CSS)
@@ -1826,7 +1887,7 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
      * Convert the plain text to HTML
      * @param text plain text part
      */
-    private String convertTextToHtml(String text) {
+    private static String convertTextToHtml(String text) {
         String result = null;
 
         StringBuffer sb = new StringBuffer("<html><body>");
@@ -18,8 +18,10 @@ package com.android.email.activity;
 
 import android.content.Context;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -35,6 +37,7 @@ import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.Mailbox;
@@ -72,6 +75,12 @@ import java.util.Set;
     public static final int COLUMN_FLAGS = 9;
     public static final int COLUMN_SNIPPET = 10;
 
+    /**
+     * Number of messages the list loads at first, and adds each time it's scrolled near the end
+     * of what's loaded.
+     */
+    /* package */ static final int WINDOW_SIZE = 100;
+
     private final ResourceHelper mResourceHelper;
 
     /** If true, show color chips. */
@@ -118,10 +127,15 @@ import java.util.Set;
         public final boolean mIsRefreshable;
         /** the number of accounts currently configured. */
         public final int mCountTotalAccounts;
+        /**
+         * {@code true} if all of the list's messages are loaded; if not, more can be loaded with
+         * {@link MessagesAdapter#extendLoaderWindow}.
+         */
+        public final boolean mIsComplete;
 
         private MessagesCursor(Cursor cursor,
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
-                boolean isRefreshable, int countTotalAccounts) {
+                boolean isRefreshable, int countTotalAccounts, boolean isComplete) {
             super(cursor);
             mIsFound = found;
             mAccount = account;
@@ -129,6 +143,7 @@ import java.util.Set;
             mIsEasAccount = isEasAccount;
             mIsRefreshable = isRefreshable;
             mCountTotalAccounts = countTotalAccounts;
+            mIsComplete = isComplete;
         }
     }
 
@@ -307,58 +322,290 @@ import java.util.Set;
         }
         return listContext.isSearch()
                 ? new SearchCursorLoader(context, listContext)
-                : new MessagesCursorLoader(context, listContext);
+                : new MessagesCursorLoader(context, listContext, true);
+    }
+
+    /**
+     * Has a loader created by {@link #createLoader} load {@link #WINDOW_SIZE} more messages, if
+     * it doesn't have them all yet.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public static void extendLoaderWindow(Loader<Cursor> loader) {
+        if (loader instanceof MessagesCursorLoader) {
+            ((MessagesCursorLoader) loader).extendWindow();
+        }
     }
 
+    /**
+     * Loads a window of the list: the newest {@link #WINDOW_SIZE} messages at first, and
+     * {@link #WINDOW_SIZE} more each time {@link #extendWindow} is called, so that opening a
+     * large mailbox doesn't load all of it.  The window ends at a given message, as
+     * (timestamp, id), rather than after a number of rows, so that reloads caused by changes
+     * load as much as is on display, and new messages don't push the older ones out.
+     *
+     * The context of the list (account, etc.) is kept between loads, until an account changes.
+     */
     private static class MessagesCursorLoader extends ThrottlingCursorLoader {
+        /** The list's order; the id breaks ties, so that (timestamp, id) identifies a message */
+        private static final String ORDER_BY = MessageColumns.TIMESTAMP + " DESC, "
+                + EmailContent.RECORD_ID + " DESC";
+        /**
+         * Messages up to the end of the window.  The first term lets the index on timestamp
+         * bound the search, which the OR alone doesn't.
+         */
+        private static final String WINDOW_SELECTION = " AND " + MessageColumns.TIMESTAMP
+                + ">=? AND (" + MessageColumns.TIMESTAMP + ">? OR (" + MessageColumns.TIMESTAMP
+                + "=? AND " + EmailContent.RECORD_ID + ">=?))";
+        /** Messages past the end of the window */
+        private static final String PAST_WINDOW_SELECTION = " AND " + MessageColumns.TIMESTAMP
+                + "<=? AND (" + MessageColumns.TIMESTAMP + "<? OR (" + MessageColumns.TIMESTAMP
+                + "=? AND " + EmailContent.RECORD_ID + "<?))";
+        /** Messages no older than the bound from {@link #findWindowBound} */
+        private static final String WINDOW_BOUND_SELECTION = " AND " + MessageColumns.TIMESTAMP
+                + ">=";
+        private static final String[] WINDOW_END_PROJECTION = new String[] {
+            MessageColumns.TIMESTAMP, EmailContent.RECORD_ID
+        };
+
         protected final Context mContext;
         private final long mAccountId;
         private final long mMailboxId;
+        private final boolean mWindowed;
+        private String mListSelection;
+
+        // The window, as of the last load.  If it's not complete, it ends at the message
+        // (mWindowEndTimestamp, mWindowEndId)
+        private boolean mWindowLoaded;
+        private boolean mWindowComplete;
+        private long mWindowEndTimestamp;
+        private long mWindowEndId;
+        private volatile boolean mExtendWindow;
+
+        // The context of the list, as of the last load
+        private volatile boolean mExtrasValid;
+        private Account mAccount;
+        private boolean mIsEasAccount;
+        private boolean mIsRefreshable;
+        private int mCountAccounts;
+        private final ContentObserver mAccountObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mExtrasValid = false;
+            }
+        };
 
-        public MessagesCursorLoader(Context context, MessageListContext listContext) {
+        /**
+         * @param windowed if false, the whole list is always loaded
+         */
+        public MessagesCursorLoader(Context context, MessageListContext listContext,
+                boolean windowed) {
             // Initialize with no where clause.  We'll set it later.
             super(context, EmailContent.Message.CONTENT_URI,
-                    MESSAGE_PROJECTION, null, null,
-                    EmailContent.MessageColumns.TIMESTAMP + " DESC");
+                    MESSAGE_PROJECTION, null, null, ORDER_BY);
             mContext = context;
             mAccountId = listContext.mAccountId;
             mMailboxId = listContext.getMailboxId();
+            mWindowed = windowed;
+            mWindowComplete = !windowed;
+            context.getContentResolver().registerContentObserver(
+                    Account.NOTIFIER_URI, true, mAccountObserver);
+        }
+
+        /**
+         * Loads {@link #WINDOW_SIZE} more messages, unless they're all loaded already.
+         */
+        public void extendWindow() {
+            if (mWindowed) {
+                mExtendWindow = true;
+                forceLoad();
+            }
         }
 
         @Override
         public Cursor loadInBackground() {
-            // Build the where cause (which can't be done on the UI thread.)
-            setSelection(Message.buildMessageListSelection(mContext, mAccountId, mMailboxId));
+            // Build the where cause (which can't be done on the UI thread.)  It doesn't change.
+            if (mListSelection == null) {
+                mListSelection = Message.buildMessageListSelection(mContext, mAccountId,
+                        mMailboxId);
+            }
+            String selection = mListSelection;
+            String[] selectionArgs = null;
+            if (!mWindowComplete) {
+                if (!mWindowLoaded || mExtendWindow) {
+                    mExtendWindow = false;
+                    findWindowEnd();
+                    mWindowLoaded = true;
+                }
+                if (!mWindowComplete) {
+                    selection += WINDOW_SELECTION;
+                    selectionArgs = getWindowEndArgs();
+                }
+            }
+            setSelection(selection);
+            setSelectionArgs(selectionArgs);
             // Then do a query to get the cursor
             return loadExtras(super.loadInBackground());
         }
 
+        /**
+         * Moves the end of the window {@link #WINDOW_SIZE} messages further, or marks the window
+         * complete if there aren't that many messages left.
+         */
+        private void findWindowEnd() {
+            String selection = mListSelection;
+            String[] selectionArgs = null;
+            if (mWindowLoaded) {
+                selection += PAST_WINDOW_SELECTION;
+                selectionArgs = getWindowEndArgs();
+            }
+            final Long bound = findWindowBound();
+            if (bound != null) {
+                selection += WINDOW_BOUND_SELECTION + bound;
+            }
+            // For a single mailbox, the (mailboxKey, timestamp, flagLoaded) index covers this
+            // query, so "LIMIT offset,count" steps over the index up to the new end without
+            // reading the messages.  The combined views of several mailboxes use the index too,
+            // but sort all the messages of those mailboxes first; findWindowBound() keeps that
+            // to about a window per mailbox.  Views that select on other columns (unread,
+            // starred) read each message they step over.  The message after the end tells
+            // whether there's anything left past it.
+            Uri uri = Message.CONTENT_URI.buildUpon().appendQueryParameter(
+                    EmailContent.PARAMETER_LIMIT, (WINDOW_SIZE - 1) + ",2").build();
+            Cursor c = mContext.getContentResolver().query(uri, WINDOW_END_PROJECTION,
+                    selection, selectionArgs, ORDER_BY);
+            if (c == null) {
+                return;
+            }
+            try {
+                if (c.getCount() == 2 && c.moveToFirst()) {
+                    mWindowEndTimestamp = c.getLong(0);
+                    mWindowEndId = c.getLong(1);
+                } else {
+                    mWindowComplete = true;
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        private String[] getWindowEndArgs() {
+            String timestamp = Long.toString(mWindowEndTimestamp);
+            return new String[] { timestamp, timestamp, timestamp, Long.toString(mWindowEndId) };
+        }
+
+        /**
+         * For a combined view made of all the mailboxes of one type, finds how old the messages
+         * {@link #findWindowEnd} looks for can be at most, so that it doesn't have to sort all the
+         * messages of all the mailboxes.
+         *
+         * Each mailbox's message {@link #WINDOW_SIZE} + 1 past the end of the window is no newer
+         * than the view's, so the newest of those bounds the new end, and the message after it.
+         * Each one is read from the (mailboxKey, timestamp, flagLoaded) index alone, and then the
+         * search only sorts about a window's worth of messages per mailbox.
+         *
+         * @return the bound, or null if there's none: the view isn't one of those, or none of its
+         *     mailboxes has that many messages left
+         */
+        private Long findWindowBound() {
+            final int type;
+            String messageSelection = MessageColumns.MAILBOX_KEY + "=" + Mailbox.TABLE_NAME + "."
+                    + EmailContent.RECORD_ID;
+            if (mMailboxId == Mailbox.QUERY_ALL_INBOXES) {
+                type = Mailbox.TYPE_INBOX;
+                messageSelection += " AND " + Message.FLAG_LOADED_SELECTION;
+            } else if (mMailboxId == Mailbox.QUERY_ALL_UNREAD) {
+                type = Mailbox.TYPE_INBOX;
+                messageSelection += " AND " + MessageColumns.FLAG_READ + "=0 AND "
+                        + Message.FLAG_LOADED_SELECTION;
+            } else if (mMailboxId == Mailbox.QUERY_ALL_DRAFTS) {
+                type = Mailbox.TYPE_DRAFTS;
+                messageSelection += " AND " + Message.FLAG_LOADED_SELECTION;
+            } else if (mMailboxId == Mailbox.QUERY_ALL_OUTBOX) {
+                // No flagLoaded test for outboxes
+                type = Mailbox.TYPE_OUTBOX;
+            } else {
+                return null;
+            }
+            if (mWindowLoaded) {
+                messageSelection += " AND " + MessageColumns.TIMESTAMP + "<="
+                        + mWindowEndTimestamp + " AND (" + MessageColumns.TIMESTAMP + "<"
+                        + mWindowEndTimestamp + " OR (" + MessageColumns.TIMESTAMP + "="
+                        + mWindowEndTimestamp + " AND " + EmailContent.RECORD_ID + "<"
+                        + mWindowEndId + "))";
+            }
+            final String[] projection = new String[] {
+                "max((SELECT " + MessageColumns.TIMESTAMP + " FROM " + Message.TABLE_NAME
+                        + " WHERE " + messageSelection + " ORDER BY " + MessageColumns.TIMESTAMP
+                        + " DESC LIMIT 1 OFFSET " + WINDOW_SIZE + "))"
+            };
+            Cursor c = mContext.getContentResolver().query(Mailbox.CONTENT_URI, projection,
+                    MailboxColumns.TYPE + "=?", new String[] { Integer.toString(type) }, null);
+            if (c == null) {
+                return null;
+            }
+            try {
+                if (c.moveToFirst() && !c.isNull(0)) {
+                    return c.getLong(0);
+                }
+                return null;
+            } finally {
+                c.close();
+            }
+        }
+
         private Cursor loadExtras(Cursor baseCursor) {
             boolean found = false;
-            Account account = null;
             Mailbox mailbox = null;
-            boolean isEasAccount = false;
-            boolean isRefreshable = false;
 
             if (mMailboxId < 0) {
                 // Magic mailbox.
                 found = true;
+                if (!mExtrasValid) {
+                    loadAccountExtras(null);
+                }
             } else {
+                // Mailboxes by id come from the provider's cache
                 mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
                 if (mailbox != null) {
-                    account = Account.restoreAccountWithId(mContext, mailbox.mAccountKey);
-                    if (account != null) {
+                    if (!mExtrasValid || mAccount == null
+                            || mAccount.mId != mailbox.mAccountKey) {
+                        loadAccountExtras(mailbox);
+                    }
+                    if (mAccount != null) {
                         found = true;
-                        isEasAccount = account.isEasAccount(mContext) ;
-                        isRefreshable = Mailbox.isRefreshable(mContext, mMailboxId);
                     } else { // Account removed?
                         mailbox = null;
                     }
                 }
             }
-            final int countAccounts = EmailContent.count(mContext, Account.CONTENT_URI);
-            return wrapCursor(baseCursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countAccounts);
+            return wrapCursor(baseCursor, found, mAccount, mailbox, mIsEasAccount,
+                    mIsRefreshable, mCountAccounts, mWindowComplete);
+        }
+
+        /**
+         * Loads the context of the list that only changes with the accounts.
+         */
+        private void loadAccountExtras(Mailbox mailbox) {
+            // Set first, so that a change while we're loading is seen by the next load
+            mExtrasValid = true;
+            mAccount = null;
+            mIsEasAccount = false;
+            mIsRefreshable = false;
+            if (mailbox != null) {
+                mAccount = Account.restoreAccountWithId(mContext, mailbox.mAccountKey);
+                if (mAccount != null) {
+                    mIsEasAccount = mAccount.isEasAccount(mContext);
+                    mIsRefreshable = Mailbox.isRefreshable(mContext, mMailboxId);
+                }
+            }
+            mCountAccounts = EmailContent.count(mContext, Account.CONTENT_URI);
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+            mContext.getContentResolver().unregisterContentObserver(mAccountObserver);
         }
 
         /**
@@ -369,9 +616,9 @@ import java.util.Set;
          */
         protected Cursor wrapCursor(Cursor cursor,
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
-                boolean isRefreshable, int countTotalAccounts) {
+                boolean isRefreshable, int countTotalAccounts, boolean isComplete) {
             return new MessagesCursor(cursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countTotalAccounts);
+                    isRefreshable, countTotalAccounts, isComplete);
         }
     }
 
@@ -383,7 +630,7 @@ import java.util.Set;
                 boolean isRefreshable, int countTotalAccounts,
                 Mailbox searchedMailbox, int resultsCount) {
             super(cursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countTotalAccounts);
+                    isRefreshable, countTotalAccounts, true);
             mSearchedMailbox = searchedMailbox;
             mResultsCount = resultsCount;
         }
@@ -410,7 +657,8 @@ import java.util.Set;
         private Mailbox mSearchedMailbox = null;
 
         public SearchCursorLoader(Context context, MessageListContext listContext) {
-            super(context, listContext);
+            // The results are counted against what's loaded, so load them all
+            super(context, listContext, false);
             Preconditions.checkArgument(listContext.isSearch());
             mListContext = listContext;
         }
@@ -444,7 +692,7 @@ import java.util.Set;
         @Override
         protected Cursor wrapCursor(Cursor cursor,
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
-                boolean isRefreshable, int countTotalAccounts) {
+                boolean isRefreshable, int countTotalAccounts, boolean isComplete) {
             return new SearchResultsCursor(cursor, found, account, mailbox, isEasAccount,
                     isRefreshable, countTotalAccounts, mSearchedMailbox, mResultsCount);
         }
@@ -66,6 +66,7 @@ abstract class UIControllerBase implements MailboxListFragment.Callback,
     private MessageOrderManager mOrderManager;
     private final MessageOrderManagerCallback mMessageOrderManagerCallback =
             new MessageOrderManagerCallback();
+    private MessagePrefetcher mPrefetcher;
 
     final EmailAsyncTask.Tracker mTaskTracker = new EmailAsyncTask.Tracker();
 
@@ -1015,12 +1016,30 @@ abstract class UIControllerBase implements MailboxListFragment.Callback,
             mOrderManager.close();
             mOrderManager = null;
         }
+        if (mPrefetcher != null) {
+            mPrefetcher.close();
+        }
+    }
+
+    /**
+     * Gets the messages next to the current one ready, so that moving to them is instant.
+     */
+    private void prefetchNeighborMessages() {
+        if (mOrderManager == null) {
+            return;
+        }
+        if (mPrefetcher == null) {
+            mPrefetcher = new MessagePrefetcher(mActivity);
+        }
+        mPrefetcher.prefetch(
+                mOrderManager.getNeighborMessageIds(MessagePrefetcher.MAX_PREFETCH_COUNT));
     }
 
     private class MessageOrderManagerCallback implements MessageOrderManager.Callback {
         @Override
         public void onMessagesChanged() {
             updateNavigationArrows();
+            prefetchNeighborMessages();
         }
 
         @Override
@@ -154,6 +154,15 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * @return true if the store has a connection to the server that isn't in use, i.e. it can
+     * run a command now without logging in again.  Used to decide whether speculative work,
+     * like prefetching messages, is worth doing.
+     */
+    public boolean hasIdleConnection() {
+        return false;
+    }
+
     public Folder getFolder(String name) throws MessagingException {
         return null;
     }
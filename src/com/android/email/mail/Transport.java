@@ -149,6 +149,13 @@ public interface Transport extends Cloneable {
      */
     void writeLine(String s, String sensitiveReplacement) throws IOException;
 
+    /**
+     * Write a single line to the server, like {@link #writeLine(String, String)}, but if
+     * {@code flush} is false, leave it buffered to go out with the next line that's flushed.
+     * Several commands (e.g. pipelined ones) can be sent this way in a single write.
+     */
+    void writeLine(String s, String sensitiveReplacement, boolean flush) throws IOException;
+
     /**
      * Reads a single line from the server.  Any delimiter characters will not be included in the
      * result.  May generate a log entry, if enabled.
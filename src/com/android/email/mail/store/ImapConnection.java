@@ -57,6 +57,10 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** CONDSTORE capability per RFC 4551 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 4;
+    /** QRESYNC capability per RFC 5162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 5;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
@@ -138,6 +142,9 @@ class ImapConnection {
             // LOGIN
             doLogin();
 
+            // ENABLE QRESYNC (only valid in the Authenticated state, before any SELECT)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
 
@@ -180,7 +187,7 @@ class ImapConnection {
     /**
      * Returns whether or not the specified capability is supported by the server.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
@@ -202,6 +209,13 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            mCapabilities |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            // QRESYNC implies CONDSTORE (RFC 5162, section 3)
+            mCapabilities |= CAPABILITY_QRESYNC | CAPABILITY_CONDSTORE;
+        }
     }
 
     /**
@@ -342,6 +356,56 @@ class ImapConnection {
         return getCommandResponses();
     }
 
+    /**
+     * Send several simple commands to the server without waiting for the responses in between,
+     * then read all of the responses.  This saves a network round trip per command; it must
+     * only be used for commands whose outcome doesn't depend on each other (RFC 3501 5.5).
+     *
+     * Untagged responses are attributed to the oldest command that hasn't completed yet.
+     * Unlike {@link #executeSimpleCommand}, a command that fails does not throw; all of the
+     * responses are drained first so the connection remains usable, and the caller can check
+     * the tagged (last) response of each command.
+     *
+     * @param commands the commands to send to the server
+     * @return the responses to each command, in the order the commands were given.  The last
+     * response of each list is the tagged completion response of that command.
+     * @throws IOException
+     * @throws MessagingException
+     */
+    List<List<ImapResponse>> executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        final int count = commands.size();
+        final ArrayList<String> tags = new ArrayList<String>(count);
+        final List<List<ImapResponse>> results = new ArrayList<List<ImapResponse>>(count);
+        for (String command : commands) {
+            tags.add(sendCommand(command, false));
+            results.add(new ArrayList<ImapResponse>());
+        }
+        int pending = 0;
+        while (pending < count) {
+            final ImapResponse response = mParser.readResponse();
+            if (!response.isTagged()) {
+                results.get(pending).add(response);
+                continue;
+            }
+            final int index = tags.indexOf(response.getTag());
+            if (index < 0) {
+                throw new MessagingException("Unexpected tag in response: " + response);
+            }
+            results.get(index).add(response);
+            // Servers complete commands in order, but be lenient if one is finished early
+            while (pending < count && isCompleted(results.get(pending))) {
+                pending++;
+            }
+        }
+        return results;
+    }
+
+    private static boolean isCompleted(List<ImapResponse> responses) {
+        final int size = responses.size();
+        return size > 0 && responses.get(size - 1).isTagged();
+    }
+
     /**
      * Query server for capabilities.
      */
@@ -402,6 +466,39 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Enables the QRESYNC extension per RFC 5162 / RFC 5161. If the server does not support
+     * QRESYNC, this will perform no operation. If the server refuses to enable it, we forget
+     * about the capability and fall back to plain CONDSTORE.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability) throws MessagingException {
+        if (!hasQresyncCapability) return;
+
+        boolean enabled = false;
+        try {
+            for (ImapResponse response : executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.QRESYNC)) {
+                if (response.isDataResponse(0, ImapConstants.ENABLED)) {
+                    for (int i = 1; i < response.size(); i++) {
+                        if (response.getStringOrEmpty(i).is(ImapConstants.QRESYNC)) {
+                            enabled = true;
+                        }
+                    }
+                }
+            }
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+        }
+        if (!enabled) {
+            mCapabilities &= ~CAPABILITY_QRESYNC;
+        }
+    }
+
     /**
      * Gets the user's Personal Namespace from the IMAP server per RFC 2342. If the user
      * explicitly sets a namespace (using setup UI) or if the server does not support the
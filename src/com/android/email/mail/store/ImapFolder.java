@@ -19,7 +19,6 @@ package com.android.email.mail.store;
 import android.content.Context;
 import android.os.SystemProperties;
 import android.text.TextUtils;
-import android.util.Base64DataException;
 import android.util.Log;
 
 import com.android.email.Email;
@@ -30,17 +29,16 @@ import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapStringBody;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.CountingOutputStream;
 import com.android.email.mail.transport.EOLConvertingOutputStream;
 import com.android.emailcommon.Logging;
-import com.android.emailcommon.internet.BinaryTempFileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.mail.AuthenticationFailedException;
-import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
@@ -52,11 +50,14 @@ import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 import java.util.HashMap;
@@ -66,7 +67,6 @@ import java.util.List;
 class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
-    private static final int COPY_BUFFER_SIZE = 16*1024;
 
     private final ImapStore mStore;
     private final String mName;
@@ -78,6 +78,10 @@ class ImapFolder extends Folder {
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
+    /** UIDVALIDITY reported by the last SELECT, or null if unknown */
+    private String mUidValidity;
+    /** HIGHESTMODSEQ reported by the last SELECT, or null if the mailbox has no mod-sequences */
+    private String mHighestModSeq;
 
     /*package*/ ImapFolder(ImapStore store, String name) {
         mStore = store;
@@ -591,98 +595,137 @@ class ImapFolder extends Folder {
             }
         }
 
+        // Large UID sets are split, so that the command line stays short and the results of the
+        // first chunk are reported before the following ones are requested.
+        final String fetchItems =
+                Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+        try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages)) {
+                mConnection.sendCommand(String.format(Locale.US,
+                        ImapConstants.UID_FETCH + " %s (%s)", uidSet, fetchItems), false);
+                ImapResponse response;
+                do {
+                    response = null;
+                    try {
+                        response = mConnection.readResponse();
+
+                        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                            continue; // Ignore
+                        }
+                        final ImapList fetchList = response.getListOrEmpty(2);
+                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                .getString();
+                        if (TextUtils.isEmpty(uid)) continue;
+
+                        ImapMessage message = (ImapMessage) messageMap.get(uid);
+                        if (message == null) continue;
+
+                        if (fp.contains(FetchProfile.Item.FLAGS)) {
+                            parseFlags(fetchList, message);
+                        }
+                        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                            final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.INTERNALDATE).getDateOrNull();
+                            final int size = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.RFC822_SIZE).getNumberOrZero();
+                            final String header = fetchList.getKeyedStringOrEmpty(
+                                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+                            message.setInternalDate(internalDate);
+                            message.setSize(size);
+                            message.parse(Utility.streamFromAsciiString(header));
+                        }
+                        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                            ImapList bs = fetchList.getKeyedListOrEmpty(
+                                    ImapConstants.BODYSTRUCTURE);
+                            if (!bs.isEmpty()) {
+                                try {
+                                    parseBodyStructure(bs, message, ImapConstants.TEXT);
+                                } catch (MessagingException e) {
+                                    if (Logging.LOGD) {
+                                        Log.v(Logging.LOG_TAG, "Error handling message", e);
+                                    }
+                                    message.setBody(null);
+                                }
+                            }
+                        }
+                        if (fp.contains(FetchProfile.Item.BODY)
+                                || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                            // Body is keyed by "BODY[]...".
+                            // Previously used "BODY[..." but this can be confused with
+                            // "BODY[HEADER..."
+                            // TODO Should we accept "RFC822" as well??
+                            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                            InputStream bodyStream = body.getAsStream();
+                            message.parse(bodyStream);
+                        }
+                        if (fetchPart != null && fetchPart.getSize() > 0) {
+                            ImapString bodyString =
+                                    fetchList.getKeyedStringOrEmpty("BODY[", true);
+                            String contentTransferEncoding = fetchPart.getHeader(
+                                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+
+                            // The body shares the literal's temp file (if any), and decodes it
+                            // as it's read
+                            fetchPart.setBody(new ImapStringBody(bodyString,
+                                    contentTransferEncoding, fetchPart.getSize(), listener));
+                        }
+
+                        if (listener != null) {
+                            listener.messageRetrieved(message);
+                        }
+                    } finally {
+                        destroyResponses();
+                    }
+                } while (!response.isTagged());
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Fetches a range of a part with UID FETCH (BODY.PEEK[ID]<offset.length>).  Fails if the
+     * server doesn't return the range (e.g. the message has been deleted); a range past the end
+     * of the part is returned as an empty string.
+     */
+    @Override
+    public int fetchPartRange(Message message, String partId, long offset, int length,
+            OutputStream out) throws MessagingException {
+        checkOpen();
+        final String uid = message.getUid();
+        int count = -1;
         try {
             mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
+                    ImapConstants.UID_FETCH + " %s (%s %s[%s]<%d.%d>)", uid, ImapConstants.UID,
+                    ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partId, offset, length), false);
             ImapResponse response;
-            int messageNumber = 0;
             do {
                 response = null;
                 try {
                     response = mConnection.readResponse();
-
+                    if (response.isTagged() && !response.isOk()) {
+                        throw new ImapException(response.toString(),
+                                response.getAlertTextOrEmpty().getString());
+                    }
                     if (!response.isDataResponse(1, ImapConstants.FETCH)) {
                         continue; // Ignore
                     }
                     final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    Log.v(Logging.LOG_TAG, "Error handling message", e);
-                                }
-                                message.setBody(null);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
+                    if (!uid.equals(fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString())) {
+                        continue;
                     }
-                    if (fetchPart != null && fetchPart.getSize() > 0) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentType = fetchPart.getContentType();
-                        String contentTransferEncoding = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                        // TODO Don't create 2 temp files.
-                        // decodeBody creates BinaryTempFileBody, but we could avoid this
-                        // if we implement ImapStringBody.
-                        // (We'll need to share a temp file.  Protect it with a ref-count.)
-                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                fetchPart.getSize(), listener));
+                    // Skip unsolicited FETCH responses for the message, e.g. FLAGS updates
+                    if (!fetchList.containsKey("BODY[", true)) {
+                        continue;
                     }
-
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+                    final ImapString body = fetchList.getKeyedStringOrEmpty("BODY[", true);
+                    if (body == ImapString.EMPTY) {
+                        // NIL, rather than a string, possibly empty
+                        throw new MessagingException("No data for part " + partId + " of " + uid);
                     }
+                    count = IOUtils.copy(body.getAsStream(), out);
                 } finally {
                     destroyResponses();
                 }
@@ -690,36 +733,116 @@ class ImapFolder extends Folder {
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
+        if (count < 0) {
+            throw new MessagingException("Part " + partId + " of " + uid + " not returned");
+        }
+        return count;
+    }
+
+    /**
+     * Copies the FLAGS item of a FETCH response into the given message.
+     */
+    private static void parseFlags(ImapList fetchList, ImapMessage message)
+            throws MessagingException {
+        final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
     }
 
     /**
-     * Removes any content transfer encoding from the stream and returns a Body.
-     * This code is taken/condensed from MimeUtility.decodeBody
+     * Returns "UIDVALIDITY:HIGHESTMODSEQ" for the selected mailbox, or null if the server
+     * doesn't support CONDSTORE (or doesn't keep mod-sequences for this mailbox).
      */
-    private Body decodeBody(InputStream in, String contentTransferEncoding, int size,
-            MessageRetrievalListener listener) throws IOException {
-        // Get a properly wrapped input stream
-        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
-        BinaryTempFileBody tempBody = new BinaryTempFileBody();
-        OutputStream out = tempBody.getOutputStream();
+    @Override
+    public String getSyncState() {
+        if (mUidValidity == null || mHighestModSeq == null) {
+            return null;
+        }
+        return mUidValidity + ":" + mHighestModSeq;
+    }
+
+    /**
+     * Fetches the flags of all messages whose mod-sequence is higher than the one recorded in
+     * {@code syncState}, using UID FETCH ... (CHANGEDSINCE n) per RFC 4551.  If QRESYNC has
+     * been enabled, the UIDs of messages expunged since then (RFC 5162 VANISHED) are added to
+     * {@code vanishedUids}.
+     *
+     * @return the changed messages, with flags loaded, or null if {@code syncState} can't be
+     * used (e.g. UIDVALIDITY changed, or its mod-sequence is past the server's, as after the
+     * server was restored from a backup) and the caller must fall back to a full flag refresh.
+     */
+    @Override
+    public Message[] getMessagesChangedSince(String syncState, List<String> vanishedUids)
+            throws MessagingException {
+        checkOpen();
+        if (syncState == null || getSyncState() == null) {
+            return null;
+        }
+        final int split = syncState.indexOf(':');
+        if (split <= 0 || !syncState.substring(0, split).equals(mUidValidity)) {
+            return null;
+        }
+        final String modSeq = syncState.substring(split + 1);
         try {
-            byte[] buffer = new byte[COPY_BUFFER_SIZE];
-            int n = 0;
-            int count = 0;
-            while (-1 != (n = in.read(buffer))) {
-                out.write(buffer, 0, n);
-                count += n;
-                if (listener != null) {
-                    listener.loadAttachmentProgress(count * 100 / size);
-                }
+            final long stored = Long.parseLong(modSeq);
+            final long highest = Long.parseLong(mHighestModSeq);
+            if (stored == highest) {
+                // Nothing has changed since the last sync
+                return Message.EMPTY_ARRAY;
+            } else if (stored > highest) {
+                return null;
             }
-        } catch (Base64DataException bde) {
-            String warning = "\n\n" + Email.getMessageDecodeErrorString();
-            out.write(warning.getBytes());
-        } finally {
-            out.close();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final boolean qresync = mConnection.isCapable(ImapConnection.CAPABILITY_QRESYNC);
+        final ArrayList<Message> messages = new ArrayList<Message>();
+        try {
+            // e.g. UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 12345 VANISHED)
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " 1:* (" + ImapConstants.UID + " "
+                    + ImapConstants.FLAGS + ") (" + ImapConstants.CHANGEDSINCE + " %s%s)",
+                    modSeq, qresync ? " " + ImapConstants.VANISHED : ""), false);
+            ImapResponse response;
+            do {
+                response = mConnection.readResponse();
+                try {
+                    if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                        final ImapList fetchList = response.getListOrEmpty(2);
+                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                .getString();
+                        if (TextUtils.isEmpty(uid)) continue;
+                        final ImapMessage message = new ImapMessage(uid, this);
+                        parseFlags(fetchList, message);
+                        messages.add(message);
+                    } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                        // S: * VANISHED (EARLIER) 300:310,405,411
+                        final int index = response.getElementOrNone(1).isList() ? 2 : 1;
+                        final String uidSet = response.getStringOrEmpty(index).getString();
+                        vanishedUids.addAll(
+                                Arrays.asList(ImapUtility.getImapSequenceValues(uidSet)));
+                    } else if (response.isTagged() && !response.isOk()) {
+                        // Server refused the modifier; caller falls back to a full refresh
+                        return null;
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
         }
-        return tempBody;
+        return messages.toArray(Message.EMPTY_ARRAY);
     }
 
     @Override
@@ -1048,7 +1171,113 @@ class ImapFolder extends Folder {
     public void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException {
         checkOpen();
+        try {
+            mConnection.executeSimpleCommand(
+                    buildStoreCommand(ImapStore.joinMessageUids(messages), flags, value));
+
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Sends all of the STORE commands at once, then waits for the replies.
+     */
+    @Override
+    public void setFlags(List<FlagChange> changes) throws MessagingException {
+        checkOpen();
+        final ArrayList<String> commands = new ArrayList<String>(changes.size());
+        for (FlagChange change : changes) {
+            for (String uidSet : ImapStore.getMessageUidSets(change.mMessages)) {
+                commands.add(buildStoreCommand(uidSet, change.mFlags, change.mValue));
+            }
+        }
+        executePipelined(commands, false);
+    }
+
+    /**
+     * Sets \Deleted on the messages and expunges them.  EXPUNGE removes every message marked
+     * \Deleted, not just these, so it's only sent once all of the STOREs have succeeded.  If the
+     * server supports UIDPLUS, UID EXPUNGE removes only the given messages, so it's sent right
+     * behind the STOREs instead.
+     */
+    @Override
+    public void deleteMessages(Message[] messages) throws MessagingException {
+        checkOpen();
+        if (messages.length == 0) {
+            return;
+        }
+        final List<String> uidSets = ImapStore.getMessageUidSets(messages);
+        final ArrayList<String> commands = new ArrayList<String>(uidSets.size() * 2);
+        for (String uidSet : uidSets) {
+            commands.add(buildStoreCommand(uidSet, new Flag[] { Flag.DELETED }, true));
+        }
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_UIDPLUS)) {
+            for (String uidSet : uidSets) {
+                commands.add(ImapConstants.UID_EXPUNGE + " " + uidSet);
+            }
+            executePipelined(commands, true);
+        } else {
+            executePipelined(commands, true);
+            executePipelined(Collections.singletonList(ImapConstants.EXPUNGE), true);
+        }
+    }
+
+    /**
+     * Looks up the UIDs with UID SEARCH, using as few commands as the UID sets allow.
+     */
+    @Override
+    public Message[] getExistingMessages(String[] uids) throws MessagingException {
+        if (uids.length == 0) {
+            return Message.EMPTY_ARRAY;
+        }
+        final ArrayList<String> existing = new ArrayList<String>(uids.length);
+        final List<String> uidSets =
+                ImapUtility.getImapSequenceSets(uids, ImapStore.MAX_UID_SET_LENGTH);
+        for (String uidSet : uidSets) {
+            existing.addAll(Arrays.asList(searchForUids(ImapConstants.UID + " " + uidSet)));
+        }
+        return getMessagesInternal(existing.toArray(Utility.EMPTY_STRINGS), null);
+    }
 
+    /**
+     * Runs the given commands through {@link ImapConnection#executePipelinedCommands} and
+     * fails if any of them wasn't successful.  The responses are destroyed before this returns,
+     * so any untagged responses the folder should know about (e.g. EXISTS) are handled here.
+     *
+     * @param handleUntagged whether to pass the untagged responses to
+     *     {@link #handleUntaggedResponses}
+     */
+    private void executePipelined(List<String> commands, boolean handleUntagged)
+            throws MessagingException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        try {
+            final List<List<ImapResponse>> results =
+                    mConnection.executePipelinedCommands(commands);
+            if (handleUntagged) {
+                for (List<ImapResponse> responses : results) {
+                    handleUntaggedResponses(responses);
+                }
+            }
+            for (List<ImapResponse> responses : results) {
+                final ImapResponse tagged = responses.get(responses.size() - 1);
+                if (!tagged.isOk()) {
+                    throw new ImapException(tagged.toString(),
+                            tagged.getAlertTextOrEmpty().getString());
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    private static String buildStoreCommand(String uidSet, Flag[] flags, boolean value) {
         String allFlags = "";
         if (flags.length > 0) {
             StringBuilder flagList = new StringBuilder();
@@ -1066,18 +1295,11 @@ class ImapFolder extends Folder {
             }
             allFlags = flagList.substring(1);
         }
-        try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
-        }
+        return String.format(Locale.US,
+                ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
+                uidSet,
+                value ? "+" : "-",
+                allFlags);
     }
 
     /**
@@ -1104,12 +1326,17 @@ class ImapFolder extends Folder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
+        // Ask for HIGHESTMODSEQ if the server can keep mod-sequences (RFC 4551)
+        final boolean condstore = mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE);
         final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"%s",
+                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
+                        condstore ? " (" + ImapConstants.CONDSTORE + ")" : ""));
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = null;
+        mHighestModSeq = null;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -1120,6 +1347,12 @@ class ImapFolder extends Folder {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ) && condstore) {
+                    mHighestModSeq = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = null;
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
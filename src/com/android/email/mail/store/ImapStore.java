@@ -32,6 +32,7 @@ import com.android.email.mail.Transport;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeMessage;
@@ -83,6 +84,12 @@ public class ImapStore extends Store {
     private static final Charset MODIFIED_UTF_7_CHARSET =
             new CharsetProvider().charsetForName("X-RFC-3501");
 
+    /**
+     * Max length of a UID set sent in a single command.  RFC 2683 suggests clients limit
+     * command lines to 1000 octets; this leaves room for the rest of the command.
+     */
+    @VisibleForTesting static final int MAX_UID_SET_LENGTH = 900;
+
     @VisibleForTesting static String sImapId = null;
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
@@ -523,6 +530,11 @@ public class ImapStore extends Store {
         return connection;
     }
 
+    @Override
+    public boolean hasIdleConnection() {
+        return !mConnectionPool.isEmpty();
+    }
+
     /**
      * Save a {@link ImapConnection} in the pool for reuse. Any responses associated with the
      * connection are destroyed before adding the connection to the pool.
@@ -583,6 +595,18 @@ public class ImapStore extends Store {
         return sb.toString();
     }
 
+    /**
+     * Returns UIDs of Messages as IMAP sequence sets, with runs of UIDs collapsed into ranges.
+     * Large sets are split so that no set is longer than {@link #MAX_UID_SET_LENGTH}.
+     */
+    static List<String> getMessageUidSets(Message[] messages) {
+        final String[] uids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = messages[i].getUid();
+        }
+        return ImapUtility.getImapSequenceSets(uids, MAX_UID_SET_LENGTH);
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, ImapFolder folder) {
             mUid = uid;
@@ -47,9 +47,11 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 
 public class Pop3Store extends Store {
     // All flags defining debug or development code settings must be FALSE
@@ -60,6 +62,12 @@ public class Pop3Store extends Store {
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
+    /**
+     * The most RETR/TOP commands sent ahead of their responses, when the server supports
+     * PIPELINING.  The commands are small enough that writing them can't block, even when the
+     * server is busy writing the responses to the earlier ones.
+     */
+    private static final int PIPELINE_DEPTH = 16;
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
 
 //    /**
@@ -144,7 +152,7 @@ public class Pop3Store extends Store {
     }
 
     @Override
-    public Folder getFolder(String name) {
+    public synchronized Folder getFolder(String name) {
         Folder folder = mFolders.get(name);
         if (folder == null) {
             folder = new Pop3Folder(name);
@@ -216,6 +224,10 @@ public class Pop3Store extends Store {
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
+        /** Whether the last session ended cleanly, so that its index may be reused */
+        private boolean mIndexKept;
+        /** Whether a message was deleted in this session, which renumbers those after it */
+        private boolean mMessagesDeleted;
 
         public Pop3Folder(String name) {
             if (name.equalsIgnoreCase(POP3_MAILBOX_NAME)) {
@@ -327,9 +339,59 @@ public class Pop3Store extends Store {
                 }
                 throw new MessagingException("POP3 STAT", statException);
             }
-            mUidToMsgMap.clear();
-            mMsgNumToMsgMap.clear();
-            mUidToMsgNumMap.clear();
+
+            // Unless the maildrop has changed, the uids of the last session are still valid
+            boolean keepIndex = mIndexKept;
+            mIndexKept = false;
+            mMessagesDeleted = false;
+            try {
+                keepIndex = keepIndex && isIndexUnchanged();
+            } catch (IOException ioe) {
+                mTransport.close();
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, ioe.toString());
+                }
+                throw new MessagingException("POP3 UIDL", ioe);
+            }
+            if (keepIndex) {
+                // Start from fresh messages, rather than from those of the last session
+                mUidToMsgMap.clear();
+                for (Map.Entry<Integer, Pop3Message> entry : mMsgNumToMsgMap.entrySet()) {
+                    Pop3Message message = new Pop3Message(entry.getValue().getUid(), this);
+                    entry.setValue(message);
+                    mUidToMsgMap.put(message.getUid(), message);
+                }
+            } else {
+                mUidToMsgMap.clear();
+                mMsgNumToMsgMap.clear();
+                mUidToMsgNumMap.clear();
+            }
+        }
+
+        /**
+         * Checks whether the index of the last session still holds, so that an unchanged
+         * maildrop needn't be listed again.  New messages are only ever added after the existing
+         * ones, so if the highest message number we know of still has the same unique id, none
+         * of the messages up to it has been removed, and none of their numbers has changed.
+         */
+        private boolean isIndexUnchanged() throws IOException {
+            if (mMsgNumToMsgMap.isEmpty()) {
+                return false;
+            }
+            int msgNum = Collections.max(mMsgNumToMsgMap.keySet());
+            if (msgNum > mMessageCount) {
+                return false;
+            }
+            try {
+                String response =
+                        executeSimpleCommand(String.format(Locale.US, "UIDL %d", msgNum));
+                UidlParser parser = new UidlParser();
+                return parser.parseSingleLine(response) && !parser.mErr
+                        && parser.mMessageNumber == msgNum
+                        && parser.mUniqueId.equals(mMsgNumToMsgMap.get(msgNum).getUid());
+            } catch (MessagingException me) {
+                return false;
+            }
         }
 
         @Override
@@ -348,6 +410,8 @@ public class Pop3Store extends Store {
         public void close(boolean expunge) {
             try {
                 executeSimpleCommand("QUIT");
+                // Deletions are committed by QUIT; without them, the messages keep their numbers
+                mIndexKept = !mMessagesDeleted;
             }
             catch (Exception e) {
                 // ignore any problems here - just continue closing
@@ -664,6 +728,47 @@ public class Pop3Store extends Store {
                 }
                 throw new MessagingException("fetch", ioe);
             }
+            boolean body = fp.contains(FetchProfile.Item.BODY);
+            boolean bodySane = !body && fp.contains(FetchProfile.Item.BODY_SANE);
+            int lines = -1;
+            if (bodySane) {
+                /*
+                 * To convert the suggested download size we take the size
+                 * divided by the maximum line size (76).
+                 */
+                if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
+                    if (syncSize != Utility.ENTIRE_MAIL) {
+                        // syncSize == Utility.ENTIRE_MAIL couldn't be here
+                        lines = syncSize / 76;
+                    } else {
+                        Log.w(Logging.LOG_TAG, "Pop3 fetch message with fetch field :"
+                                + "BODY_SANE, but this account need sync entire mail.");
+                    }
+                } else {
+                    lines = FETCH_BODY_SANE_SUGGESTED_SIZE / 76;
+                }
+            }
+            if ((body || bodySane) && messages.length > 1) {
+                open(OpenMode.READ_WRITE);
+                if (mCapabilities.pipelining) {
+                    for (Message message : messages) {
+                        if (!(message instanceof Pop3Message)) {
+                            throw new MessagingException(
+                                    "Pop3Store.fetch called with non-Pop3 Message");
+                        }
+                    }
+                    try {
+                        fetchBodiesPipelined(messages, lines, listener);
+                    } catch (IOException ioe) {
+                        mTransport.close();
+                        if (Email.DEBUG) {
+                            Log.d(Logging.LOG_TAG, ioe.toString());
+                        }
+                        throw new MessagingException("Unable to fetch message", ioe);
+                    }
+                    return;
+                }
+            }
             for (int i = 0, count = messages.length; i < count; i++) {
                 Message message = messages[i];
                 if (!(message instanceof Pop3Message)) {
@@ -671,26 +776,7 @@ public class Pop3Store extends Store {
                 }
                 Pop3Message pop3Message = (Pop3Message)message;
                 try {
-                    if (fp.contains(FetchProfile.Item.BODY)) {
-                        fetchBody(pop3Message, -1);
-                    }
-                    else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        /*
-                         * To convert the suggested download size we take the size
-                         * divided by the maximum line size (76).
-                         */
-                        int lines = -1;
-                        if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
-                            if (syncSize != Utility.ENTIRE_MAIL) {
-                                // syncSize == Utility.ENTIRE_MAIL couldn't be here
-                                lines = syncSize / 76;
-                            } else {
-                                Log.w(Logging.LOG_TAG, "Pop3 fetch message with fetch field :"
-                                        + "BODY_SANE, but this account need sync entire mail.");
-                            }
-                        } else {
-                            lines = FETCH_BODY_SANE_SUGGESTED_SIZE / 76;
-                        }
+                    if (body || bodySane) {
                         fetchBody(pop3Message, lines);
                     }
                     else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
@@ -816,24 +902,104 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
-                        in = new LoggingInputStream(in);
+                parseBody(message, lines);
+            }
+        }
+
+        /**
+         * Parses the message that follows a successful RETR or TOP response.
+         */
+        private void parseBody(Pop3Message message, int lines)
+                throws IOException, MessagingException {
+            try {
+                InputStream in = mTransport.getInputStream();
+                if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
+                    in = new LoggingInputStream(in);
+                }
+                message.parse(new Pop3ResponseInputStream(in));
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
+                }
+            }
+        }
+
+        /**
+         * Fetches the bodies of the given messages, as {@link #fetchBody} does, but keeps several
+         * RETR (or TOP) commands in flight (RFC 2449 PIPELINING), so that a run of messages isn't
+         * paced by the round trip time.  The messages for which TOP is rejected are fetched with
+         * RETR once the pipeline has been drained.
+         *
+         * @param messages the messages to fetch; they must all be Pop3Messages
+         * @param lines the number of lines to fetch, or -1 for the entire messages
+         */
+        private void fetchBodiesPipelined(Message[] messages, int lines,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            ArrayList<Pop3Message> topRejected = new ArrayList<Pop3Message>();
+            MessagingException failure = null;
+            int sent = 0;
+            for (int i = 0, count = messages.length; i < count; i++) {
+                // Top up the pipeline once it's half empty, so that the commands go out in batches
+                if (sent < count && sent - i <= PIPELINE_DEPTH / 2) {
+                    int end = Math.min(count, i + PIPELINE_DEPTH);
+                    for (; sent < end; sent++) {
+                        int msgNum = mUidToMsgNumMap.get(messages[sent].getUid());
+                        String command = (lines == -1)
+                                ? String.format(Locale.US, "RETR %d", msgNum)
+                                : String.format(Locale.US, "TOP %d %d", msgNum, lines);
+                        // Only the last command of the batch sends them all
+                        mTransport.writeLine(command, null, sent == end - 1);
                     }
-                    message.parse(new Pop3ResponseInputStream(in));
                 }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
-                    if (lines == -1) {
-                        throw me;
+
+                Pop3Message message = (Pop3Message) messages[i];
+                String response = mTransport.readLine();
+                if (response.length() > 1 && response.charAt(0) == '-') {
+                    if (lines != -1) {
+                        topRejected.add(message);
+                    } else if (failure == null) {
+                        failure = new MessagingException(response);
                     }
+                    continue;
+                }
+                try {
+                    parseBody(message, lines);
+                } catch (MessagingException me) {
+                    // We can't tell how much of the message was read; the rest of the responses
+                    // can't be told apart from it
+                    mTransport.close();
+                    throw me;
+                }
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+
+            // Some servers support TOP without advertising it; those that don't get RETR instead
+            for (Pop3Message message : topRejected) {
+                int msgNum = mUidToMsgNumMap.get(message.getUid());
+                String response = null;
+                try {
+                    response = executeSimpleCommand(String.format(Locale.US, "RETR %d", msgNum));
+                } catch (MessagingException e) {
+                    Log.w(Logging.LOG_TAG, "Can't read message " + msgNum);
                 }
+                if (response != null) {
+                    parseBody(message, lines);
+                }
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+            if (failure != null) {
+                throw failure;
             }
         }
 
@@ -869,6 +1035,7 @@ public class Pop3Store extends Store {
                     try {
                         final String uid = message.getUid();
                         final int msgNum = mUidToMsgNumMap.get(uid);
+                        mMessagesDeleted = true;
                         executeSimpleCommand(String.format(Locale.US, "DELE %s", msgNum));
                         // Remove from the maps
                         mMsgNumToMsgMap.remove(msgNum);
@@ -1031,7 +1198,7 @@ public class Pop3Store extends Store {
         public boolean user;
         /** the optional UIDL command is supported (unused) */
         public boolean uidl;
-        /** the server is capable of accepting multiple commands at a time (unused) */
+        /** the server is capable of accepting multiple commands at a time */
         public boolean pipelining;
 
         @Override
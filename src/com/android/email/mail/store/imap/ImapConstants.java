@@ -37,12 +37,16 @@ public final class ImapConstants {
     public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
     public static final String BYE = "BYE";
     public static final String CAPABILITY = "CAPABILITY";
+    public static final String CHANGEDSINCE = "CHANGEDSINCE";
     public static final String CHECK = "CHECK";
     public static final String CLOSE = "CLOSE";
+    public static final String CONDSTORE = "CONDSTORE";
     public static final String COPY = "COPY";
     public static final String COPYUID = "COPYUID";
     public static final String CREATE = "CREATE";
     public static final String DELETE = "DELETE";
+    public static final String ENABLE = "ENABLE";
+    public static final String ENABLED = "ENABLED";
     public static final String EXAMINE = "EXAMINE";
     public static final String EXISTS = "EXISTS";
     public static final String EXPUNGE = "EXPUNGE";
@@ -54,6 +58,7 @@ public final class ImapConstants {
     public static final String FLAG_SEEN = "\\SEEN";
     public static final String FLAGS = "FLAGS";
     public static final String FLAGS_SILENT = "FLAGS.SILENT";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
     public static final String ID = "ID";
     public static final String INBOX = "INBOX";
     public static final String INTERNALDATE = "INTERNALDATE";
@@ -63,11 +68,13 @@ public final class ImapConstants {
     public static final String LSUB = "LSUB";
     public static final String NAMESPACE = "NAMESPACE";
     public static final String NO = "NO";
+    public static final String NOMODSEQ = "NOMODSEQ";
     public static final String NOOP = "NOOP";
     public static final String OK = "OK";
     public static final String PARSE = "PARSE";
     public static final String PERMANENTFLAGS = "PERMANENTFLAGS";
     public static final String PREAUTH = "PREAUTH";
+    public static final String QRESYNC = "QRESYNC";
     public static final String READ_ONLY = "READ-ONLY";
     public static final String READ_WRITE = "READ-WRITE";
     public static final String RENAME = "RENAME";
@@ -82,6 +89,7 @@ public final class ImapConstants {
     public static final String TRYCREATE = "TRYCREATE";
     public static final String UID = "UID";
     public static final String UID_COPY = "UID COPY";
+    public static final String UID_EXPUNGE = "UID EXPUNGE";
     public static final String UID_FETCH = "UID FETCH";
     public static final String UID_SEARCH = "UID SEARCH";
     public static final String UID_STORE = "UID STORE";
@@ -90,6 +98,7 @@ public final class ImapConstants {
     public static final String UIDVALIDITY = "UIDVALIDITY";
     public static final String UNSEEN = "UNSEEN";
     public static final String UNSUBSCRIBE = "UNSUBSCRIBE";
+    public static final String VANISHED = "VANISHED";
     public static final String APPENDUID = "APPENDUID";
     public static final String NIL = "NIL";
 }
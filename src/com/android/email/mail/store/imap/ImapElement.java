@@ -89,6 +89,14 @@ public abstract class ImapElement {
         mDestroyed = true;
     }
 
+    /**
+     * Bring a destroyed instance back to its initial state, so that {@link ImapElementPool} can
+     * hand it out again.
+     */
+    /* package */ void reset() {
+        mDestroyed = false;
+    }
+
     /**
      * Throws {@link RuntimeException} if it's already destroyed.
      */
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of {@link ImapList}s and {@link ImapSimpleString}s used by {@link ImapResponseParser}.
+ *
+ * <p>The parser takes elements from the pool while it builds responses, and gives them back in
+ * {@link ImapResponseParser#destroyResponses}.  This way a large FETCH doesn't create tens of
+ * thousands of short-lived objects.  Elements must not be used after their response has been
+ * destroyed, which was already the rule before the pool existed.
+ *
+ * <p>Not thread safe.  Each parser owns its own pool.
+ */
+/* package */ class ImapElementPool {
+    /**
+     * Max number of instances kept for each type, so that one huge response doesn't keep all of
+     * its memory forever.
+     */
+    /* package */ static final int MAX_POOL_SIZE = 4096;
+
+    private final ArrayList<ImapList> mLists = new ArrayList<ImapList>();
+    private final ArrayList<ImapSimpleString> mStrings = new ArrayList<ImapSimpleString>();
+
+    /** Number of instances created because the pool was empty. */
+    private int mCreatedCount;
+
+    /**
+     * @return an empty {@link ImapList}.
+     */
+    public ImapList obtainList() {
+        final int size = mLists.size();
+        if (size == 0) {
+            mCreatedCount++;
+            return new ImapList();
+        }
+        final ImapList list = mLists.remove(size - 1);
+        list.reset();
+        return list;
+    }
+
+    /**
+     * @return an {@link ImapSimpleString} holding the first {@code length} bytes of
+     * {@code bytes}.
+     */
+    public ImapSimpleString obtainString(byte[] bytes, int length) {
+        final int size = mStrings.size();
+        if (size == 0) {
+            mCreatedCount++;
+            return new ImapSimpleString(bytes, length);
+        }
+        final ImapSimpleString string = mStrings.remove(size - 1);
+        string.reset();
+        string.setBytes(bytes, length);
+        return string;
+    }
+
+    /**
+     * Destroy {@code e}, and keep it (and its children, if it's a list) for reuse.
+     *
+     * <p>Only the exact classes the parser creates are kept.  Others, such as literals and
+     * shared instances like {@link ImapString#EMPTY}, are just destroyed.
+     */
+    public void recycle(ImapElement e) {
+        final Class<?> clazz = e.getClass();
+        if (clazz == ImapSimpleString.class) {
+            e.destroy();
+            if (mStrings.size() < MAX_POOL_SIZE) {
+                mStrings.add((ImapSimpleString) e);
+            }
+        } else if (clazz == ImapList.class) {
+            final ImapList list = (ImapList) e;
+            list.recycleElements(this);
+            if (mLists.size() < MAX_POOL_SIZE) {
+                mLists.add(list);
+            }
+        } else if (clazz == ImapResponse.class) {
+            // A response can't be reused because its tag is final, but its children can.
+            ((ImapResponse) e).recycleElements(this);
+        } else {
+            e.destroy();
+        }
+    }
+
+    /**
+     * @return the number of instances created so far because the pool was empty.
+     */
+    /* package */ int getCreatedCount() {
+        return mCreatedCount;
+    }
+}
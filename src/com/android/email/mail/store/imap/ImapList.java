@@ -56,6 +56,7 @@ public class ImapList extends ImapElement {
     }
 
     public final int size() {
+        checkNotDestroyed();
         return mList.size();
     }
 
@@ -87,7 +88,7 @@ public class ImapList extends ImapElement {
      * If {@code index} is out of range, returns {@link ImapElement#NONE}.
      */
     public final ImapElement getElementOrNone(int index) {
-        return (index >= mList.size()) ? ImapElement.NONE : mList.get(index);
+        return (index >= size()) ? ImapElement.NONE : mList.get(index);
     }
 
     /**
@@ -155,6 +156,13 @@ public class ImapList extends ImapElement {
         return (e != null) ? ((ImapString) e) : ImapString.EMPTY;
     }
 
+    /**
+     * Return true if it has an element keyed by {@code key}.
+     */
+    public final boolean containsKey(String key, boolean prefixMatch) {
+        return getKeyedElementOrNull(key, prefixMatch) != null;
+    }
+
     /**
      * Return true if it contains {@code s}.
      */
@@ -178,6 +186,20 @@ public class ImapList extends ImapElement {
         super.destroy();
     }
 
+    /**
+     * Give all the elements back to {@code pool} and mark this list as destroyed.  Unlike
+     * {@link #destroy}, the backing array is kept so that the list itself can be reused.
+     */
+    /* package */ void recycleElements(ImapElementPool pool) {
+        if (mList != null) {
+            for (ImapElement e : mList) {
+                pool.recycle(e);
+            }
+            mList.clear();
+        }
+        super.destroy();
+    }
+
     @Override
     public String toString() {
         return mList.toString();
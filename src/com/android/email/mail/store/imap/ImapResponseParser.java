@@ -57,8 +57,15 @@ public class ImapResponseParser {
     /** StringBuilder used by readUntil() */
     private final StringBuilder mBufferReadUntil = new StringBuilder();
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /**
+     * Buffer used by parseBareString() and parseQuotedString().  Atoms are collected here as raw
+     * bytes, so no {@link String} is created unless someone asks for one.
+     */
+    private byte[] mParseBuffer = new byte[64];
+    private int mParseBufferLength;
+
+    /** Pool of the elements making up responses.  See {@link #destroyResponses()}. */
+    private final ImapElementPool mPool = new ImapElementPool();
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -136,12 +143,13 @@ public class ImapResponseParser {
 
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
+     * The lists and strings in them are kept in a pool and reused by the following responses.
      *
      * @see #readResponse()
      */
     public void destroyResponses() {
         for (ImapResponse r : mResponsesToDestroy) {
-            r.destroy();
+            mPool.recycle(r);
         }
         mResponsesToDestroy.clear();
     }
@@ -242,6 +250,10 @@ public class ImapResponseParser {
         return ret;
     }
 
+    /* package for test */ ImapElementPool getPool() {
+        return mPool;
+    }
+
     /**
      * Parse and return the response line.
      */
@@ -335,8 +347,7 @@ public class ImapResponseParser {
             case '[':
                 return parseList('[', ']');
             case '"':
-                readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                return parseQuotedString();
             case '{':
                 return parseLiteral();
             case '\r':  // CR
@@ -361,7 +372,7 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mParseBufferLength = 0;
         for (;;) {
             final int ch = peek();
 
@@ -378,25 +389,51 @@ public class ImapResponseParser {
                     // it as a flag instead
                     // ch == '"' || ch == '\' ||
                     ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
+                if (mParseBufferLength == 0) {
                     throw new MessagingException("Expected string, none found.");
                 }
-                String s = mParseBareString.toString();
 
                 // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                if (ImapSimpleString.matches(mParseBuffer, mParseBufferLength, ImapConstants.NIL,
+                        false)) {
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return mPool.obtainString(mParseBuffer, mParseBufferLength);
             } else if (ch == '[') {
-                // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                // Eat all until next ']', including it.
+                int b;
+                do {
+                    b = readByte();
+                    appendToParseBuffer(b);
+                } while (b != ']');
             } else {
-                mParseBareString.append((char) readByte());
+                appendToParseBuffer(readByte());
+            }
+        }
+    }
+
+    /**
+     * Parses a quoted string.  The closing quote is consumed, but not included in the result.
+     */
+    private ImapString parseQuotedString() throws IOException {
+        expect('"');
+        mParseBufferLength = 0;
+        for (;;) {
+            final int ch = readByte();
+            if (ch == '"') {
+                return mPool.obtainString(mParseBuffer, mParseBufferLength);
             }
+            appendToParseBuffer(ch);
+        }
+    }
+
+    private void appendToParseBuffer(int b) {
+        if (mParseBufferLength == mParseBuffer.length) {
+            final byte[] newBuffer = new byte[mParseBuffer.length * 2];
+            System.arraycopy(mParseBuffer, 0, newBuffer, 0, mParseBufferLength);
+            mParseBuffer = newBuffer;
         }
+        mParseBuffer[mParseBufferLength++] = (byte) b;
     }
 
     private void parseElements(ImapList list, char end)
@@ -424,7 +461,7 @@ public class ImapResponseParser {
     private ImapList parseList(char opening, char closing)
             throws IOException, MessagingException {
         expect(opening);
-        final ImapList list = new ImapList();
+        final ImapList list = mPool.obtainList();
         parseElements(list, closing);
         expect(closing);
         return list;
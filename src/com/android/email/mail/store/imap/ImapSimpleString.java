@@ -20,36 +20,108 @@ import com.android.emailcommon.utility.Utility;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 
 /**
  * Subclass of {@link ImapString} used for non literals.
+ *
+ * <p>Instances created by {@link ImapResponseParser} keep the raw bytes received from the server,
+ * and only convert them into a {@link String} when {@link #getString} is called.  Atoms that are
+ * only compared with {@link ImapConstants}, such as FETCH or flag names, are compared directly
+ * against the bytes.
+ *
+ * <p>Instances are reused by {@link ImapElementPool} once their response is destroyed, so a
+ * destroyed instance throws instead of returning what may already be another response's value.
  */
 public class ImapSimpleString extends ImapString {
+    /** Maps each byte to the char of the same value, the way the parser always treated atoms. */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
     private String mString;
 
+    /** Raw bytes, or null if the instance was created from a {@link String}. */
+    private byte[] mBytes;
+    private int mLength;
+
     /* package */  ImapSimpleString(String string) {
         mString = (string != null) ? string : "";
     }
 
+    /* package */ ImapSimpleString(byte[] bytes, int length) {
+        setBytes(bytes, length);
+    }
+
+    /**
+     * Set the value from the first {@code length} bytes of {@code bytes}.  The bytes are copied,
+     * and the internal buffer is reused if it's large enough.
+     */
+    /* package */ void setBytes(byte[] bytes, int length) {
+        if (mBytes == null || mBytes.length < length) {
+            mBytes = new byte[length];
+        }
+        System.arraycopy(bytes, 0, mBytes, 0, length);
+        mLength = length;
+        mString = null;
+    }
+
     @Override
     public void destroy() {
         mString = null;
+        mLength = 0;
         super.destroy();
     }
 
     @Override
     public String getString() {
+        checkNotDestroyed();
+        if (mString == null && mBytes != null) {
+            mString = new String(mBytes, 0, mLength, ISO_8859_1);
+        }
         return mString;
     }
 
+    @Override
+    protected boolean matches(String s, boolean prefixMatch) {
+        checkNotDestroyed();
+        if (mString != null || mBytes == null) {
+            return super.matches(s, prefixMatch);
+        }
+        return matches(mBytes, mLength, s, prefixMatch);
+    }
+
+    /**
+     * Case-insensitively compare the first {@code length} bytes of {@code bytes} with {@code s},
+     * without creating a {@link String}.
+     */
+    /* package */ static boolean matches(byte[] bytes, int length, String s, boolean prefixMatch) {
+        final int len = s.length();
+        if (prefixMatch ? (length < len) : (length != len)) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            final char a = (char) (bytes[i] & 0xff);
+            final char b = s.charAt(i);
+            if (a == b) {
+                continue;
+            }
+            // Same rule as String.equalsIgnoreCase().
+            final char ua = Character.toUpperCase(a);
+            final char ub = Character.toUpperCase(b);
+            if (ua != ub && Character.toLowerCase(ua) != Character.toLowerCase(ub)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public InputStream getAsStream() {
-        return new ByteArrayInputStream(Utility.toAscii(mString));
+        return new ByteArrayInputStream(Utility.toAscii(getString()));
     }
 
     @Override
     public String toString() {
         // Purposefully not return just mString, in order to prevent using it instead of getString.
-        return "\"" + mString + "\"";
+        return "\"" + getString() + "\"";
     }
 }
@@ -66,6 +66,14 @@ public abstract class ImapString extends ImapElement {
     private int mParsedInteger;
     private Date mParsedDate;
 
+    @Override
+    /* package */ void reset() {
+        mIsInteger = false;
+        mParsedInteger = 0;
+        mParsedDate = null;
+        super.reset();
+    }
+
     @Override
     public final boolean isList() {
         return false;
@@ -154,7 +162,7 @@ public abstract class ImapString extends ImapElement {
         if (s == null) {
             return false;
         }
-        return getString().equalsIgnoreCase(s);
+        return matches(s, false);
     }
 
 
@@ -165,11 +173,22 @@ public abstract class ImapString extends ImapElement {
         if (prefix == null) {
             return false;
         }
-        final String me = this.getString();
-        if (me.length() < prefix.length()) {
-            return false;
+        return matches(prefix, true);
+    }
+
+    /**
+     * Case-insensitive comparison used by {@link #is} and {@link #startsWith}.  Subclasses that
+     * don't keep the value as a {@link String} override it to avoid creating one.
+     *
+     * @param s non-null string to compare to.
+     * @param prefixMatch if true, only the first {@code s.length()} characters are compared.
+     */
+    protected boolean matches(String s, boolean prefixMatch) {
+        final String me = getString();
+        if (prefixMatch) {
+            return me.regionMatches(true, 0, s, 0, s.length());
         }
-        return me.substring(0, prefix.length()).equalsIgnoreCase(prefix);
+        return me.equalsIgnoreCase(s);
     }
 
     // To force subclasses to implement it.
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.email.Email;
+import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64DataException;
+import android.util.Base64OutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link Body} holding the content of a fetched part, still in its content transfer encoding.
+ * It's decoded as it's read, so the part goes from the literal straight to wherever the caller
+ * saves it.
+ *
+ * Large literals are spooled to a temp file by the parser.  Instead of decoding that file into a
+ * second temp file, the body shares it with the {@link ImapTempFileLiteral}: the file is deleted
+ * once both the response has been destroyed and the body has been read.
+ *
+ * As with {@link com.android.emailcommon.internet.BinaryTempFileBody}, the body can be read
+ * only once, either via {@link #getInputStream} or {@link #writeTo}.
+ */
+public class ImapStringBody implements Body {
+    // Either the shared temp file literal or, for smaller strings, their bytes
+    private final ImapTempFileLiteral mLiteral;
+    private final byte[] mData;
+    private final String mContentTransferEncoding;
+    private final int mSize;
+    private final MessageRetrievalListener mListener;
+
+    /**
+     * @param string the part's content, as fetched
+     * @param contentTransferEncoding the part's content transfer encoding
+     * @param size the part's expected size, for progress reports
+     * @param listener if not null, is told of the progress while the body is read
+     */
+    public ImapStringBody(ImapString string, String contentTransferEncoding, int size,
+            MessageRetrievalListener listener) throws IOException {
+        if (string instanceof ImapTempFileLiteral) {
+            mLiteral = (ImapTempFileLiteral) string;
+            mLiteral.acquireFile();
+            mData = null;
+        } else {
+            // Other strings are in memory, and may be reused once their response is destroyed
+            mLiteral = null;
+            mData = IOUtils.toByteArray(string.getAsStream());
+        }
+        mContentTransferEncoding = contentTransferEncoding;
+        mSize = size;
+        mListener = listener;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        InputStream in;
+        if (mLiteral != null) {
+            try {
+                in = new FileInputStream(mLiteral.mFile);
+            } catch (IOException ioe) {
+                mLiteral.releaseFile();
+                throw new MessagingException("Unable to open body", ioe);
+            }
+        } else {
+            in = new ByteArrayInputStream(mData);
+        }
+        return new DecodingInputStream(
+                MimeUtility.getInputStreamForContentTransferEncoding(in, mContentTransferEncoding));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        try {
+            Base64OutputStream base64Out = new Base64OutputStream(
+                out, Base64.CRLF | Base64.NO_CLOSE);
+            IOUtils.copy(in, base64Out);
+            base64Out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reports progress, replaces the rest of a corrupt base64 body with a warning, and gives
+     * the temp file back when closed.
+     */
+    private class DecodingInputStream extends FilterInputStream {
+        private int mCount;
+        private boolean mClosed;
+
+        DecodingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (Base64DataException bde) {
+                // Same as we did when we decoded into a temp file: keep what we've got so far
+                in.close();
+                String warning = "\n\n" + Email.getMessageDecodeErrorString();
+                in = new ByteArrayInputStream(warning.getBytes());
+                n = super.read(b, off, len);
+            }
+            if (n > 0) {
+                mCount += n;
+                if (mListener != null && mSize > 0) {
+                    mListener.loadAttachmentProgress((int) ((long) mCount * 100 / mSize));
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Go through read(), so that the progress is right
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!mClosed && mLiteral != null) {
+                    mLiteral.releaseFile();
+                }
+                mClosed = true;
+            }
+        }
+    }
+}
@@ -36,6 +36,9 @@ import java.io.OutputStream;
 
 /**
  * Subclass of {@link ImapString} used for literals backed by a temp file.
+ *
+ * The file can be shared with an {@link ImapStringBody}; it's reference counted, and deleted
+ * when both the literal has been destroyed and the body is done with it.
  */
 public class ImapTempFileLiteral extends ImapString {
     /* package for test */ final File mFile;
@@ -43,6 +46,9 @@ public class ImapTempFileLiteral extends ImapString {
     /** Size is purely for toString() */
     private final int mSize;
 
+    /** One reference for the literal itself, plus one for each body sharing the file */
+    private int mFileRefCount = 1;
+
     /* package */  ImapTempFileLiteral(FixedLengthInputStream stream) throws IOException {
         mSize = stream.getLength();
         mFile = File.createTempFile("imap", ".tmp", TempDirectory.getTempDirectory());
@@ -60,16 +66,46 @@ public class ImapTempFileLiteral extends ImapString {
      * Make sure we delete the temp file.
      *
      * We should always be calling {@link ImapResponse#destroy()}, but it's here as a last resort.
+     * Bodies sharing the file hold a reference to this literal, so none of them can be using it.
      */
     @Override
     protected void finalize() throws Throwable {
         try {
-            destroy();
+            deleteFile();
         } finally {
             super.finalize();
         }
     }
 
+    /**
+     * Take a reference to the temp file, so that it outlives this literal; it must be given back
+     * with {@link #releaseFile}.
+     */
+    /* package */ synchronized void acquireFile() {
+        checkNotDestroyed();
+        mFileRefCount++;
+    }
+
+    /**
+     * Give back a reference to the temp file; the last one deletes it.
+     */
+    /* package */ synchronized void releaseFile() {
+        if (mFileRefCount > 0 && --mFileRefCount == 0) {
+            deleteFile();
+        }
+    }
+
+    private void deleteFile() {
+        try {
+            if (mFile.exists()) {
+                mFile.delete();
+            }
+        } catch (RuntimeException re) {
+            // Just log and ignore.
+            Log.w(Logging.LOG_TAG, "Failed to remove temp file: " + re.getMessage());
+        }
+    }
+
     @Override
     public InputStream getAsStream() {
         checkNotDestroyed();
@@ -97,13 +133,8 @@ public class ImapTempFileLiteral extends ImapString {
 
     @Override
     public void destroy() {
-        try {
-            if (!isDestroyed() && mFile.exists()) {
-                mFile.delete();
-            }
-        } catch (RuntimeException re) {
-            // Just log and ignore.
-            Log.w(Logging.LOG_TAG, "Failed to remove temp file: " + re.getMessage());
+        if (!isDestroyed()) {
+            releaseFile();
         }
         super.destroy();
     }
@@ -21,6 +21,8 @@ import com.android.emailcommon.Logging;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Utility methods for use with IMAP.
@@ -124,4 +126,53 @@ public class ImapUtility {
         String[] stringList = new String[list.size()];
         return list.toArray(stringList);
     }
+
+    /**
+     * Builds sequence sets per RFC 3501 from the given UIDs, the reverse of
+     * {@link #getImapSequenceValues(String)}.  Runs of consecutive numbers are collapsed into
+     * ranges (e.g. "1:4,7,9:10") and the result is split into several sets so that none of them
+     * is longer than {@code maxLength} characters (unless a single UID is longer than that).
+     * Duplicates are dropped, and values that aren't numbers are passed through as they are.
+     */
+    public static List<String> getImapSequenceSets(String[] uids, int maxLength) {
+        final ArrayList<String> sets = new ArrayList<String>();
+        final long[] numbers = new long[uids.length];
+        int count = 0;
+        final StringBuilder sb = new StringBuilder();
+        for (String uid : uids) {
+            try {
+                numbers[count] = Long.parseLong(uid);
+                count++;
+            } catch (NumberFormatException e) {
+                appendSequenceItem(sets, sb, uid, maxLength);
+            }
+        }
+        Arrays.sort(numbers, 0, count);
+        int i = 0;
+        while (i < count) {
+            final long first = numbers[i];
+            long last = first;
+            while (++i < count && numbers[i] <= last + 1) {
+                last = numbers[i];
+            }
+            appendSequenceItem(sets, sb,
+                    (first == last) ? Long.toString(first) : first + ":" + last, maxLength);
+        }
+        if (sb.length() > 0) {
+            sets.add(sb.toString());
+        }
+        return sets;
+    }
+
+    private static void appendSequenceItem(List<String> sets, StringBuilder sb, String item,
+            int maxLength) {
+        if (sb.length() > 0 && sb.length() + 1 + item.length() > maxLength) {
+            sets.add(sb.toString());
+            sb.setLength(0);
+        }
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        sb.append(item);
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes message data for the SMTP DATA command: line endings are converted to CRLF (as with
+ * {@link EOLConvertingOutputStream}), and a '.' at the start of a line is doubled, so that
+ * it can't be taken for the end of the data (RFC 5321 section 4.5.2).
+ *
+ * Runs of bytes that need neither are passed on in a single write.
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+    // The last byte written; the data starts at the start of a line
+    private int mLastChar = '\n';
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        oneByte &= 0xff;
+        if (mLastChar == '\r' && oneByte != '\n') {
+            // A bare CR ends a line too
+            out.write('\n');
+            mLastChar = '\n';
+        }
+        if (oneByte == '\n' && mLastChar != '\r') {
+            out.write('\r');
+        } else if (oneByte == '.' && mLastChar == '\n') {
+            out.write('.');
+        }
+        out.write(oneByte);
+        mLastChar = oneByte;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        int start = offset;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int b = buffer[i] & 0xff;
+            if ((mLastChar == '\r' && b != '\n') || (b == '\n' && mLastChar != '\r')
+                    || (b == '.' && mLastChar == '\n')) {
+                out.write(buffer, start, i - start);
+                write(b);
+                start = i + 1;
+            } else {
+                mLastChar = b;
+            }
+        }
+        out.write(buffer, start, end - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mLastChar == '\r') {
+            out.write('\n');
+            mLastChar = '\n';
+        }
+        out.flush();
+    }
+}
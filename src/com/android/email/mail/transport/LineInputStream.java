@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stream that can also read lines, for the line based protocols (POP3, SMTP).
+ *
+ * {@link #readLine} scans the buffer for the end of the line and copies the line out of it in
+ * one pass, rather than calling {@link #read()} for each byte.  The stream can still be read
+ * as bytes (e.g. for a message body, or by the IMAP parser), and both ways can be mixed.
+ */
+class LineInputStream extends BufferedInputStream {
+    private static final int INITIAL_LINE_LENGTH = 128;
+
+    /** Reused for each line */
+    private char[] mLine = new char[INITIAL_LINE_LENGTH];
+    private boolean mEndOfStream = false;
+
+    public LineInputStream(InputStream in, int size) {
+        super(in, size);
+    }
+
+    /**
+     * Reads a line, using either \r\n or \n as the delimiter.  The delimiter char(s) are not
+     * included in the result, nor is any other \r.  Each byte is taken as one char, as in
+     * ISO-8859-1.
+     *
+     * @return the line, or what's left of the stream if it ends before a delimiter (possibly
+     *     an empty string)
+     */
+    public synchronized String readLine() throws IOException {
+        char[] line = mLine;
+        int length = 0;
+        while (true) {
+            if (pos >= count) {
+                // Refill the buffer, and take its first byte
+                final int d = read();
+                if (d == -1) {
+                    mEndOfStream = true;
+                    break;
+                } else if (d == '\n') {
+                    break;
+                } else if (d != '\r') {
+                    if (length == line.length) {
+                        line = growLine(length + 1);
+                    }
+                    line[length++] = (char) d;
+                }
+                continue;
+            }
+            final byte[] buffer = buf;
+            if (buffer == null) {
+                throw new IOException("Stream is closed");
+            }
+            final int end = count;
+            if (line.length < length + end - pos) {
+                line = growLine(length + end - pos);
+            }
+            int i = pos;
+            while (i < end) {
+                final byte b = buffer[i++];
+                if (b == '\n') {
+                    pos = i;
+                    return new String(line, 0, length);
+                } else if (b != '\r') {
+                    line[length++] = (char) (b & 0xFF);
+                }
+            }
+            pos = i;
+        }
+        return new String(line, 0, length);
+    }
+
+    /**
+     * @return true if {@link #readLine} has reached the end of the stream
+     */
+    boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    private char[] growLine(int minLength) {
+        final char[] newLine = new char[Math.max(minLength, mLine.length * 2)];
+        System.arraycopy(mLine, 0, newLine, 0, mLine.length);
+        mLine = newLine;
+        return newLine;
+    }
+}
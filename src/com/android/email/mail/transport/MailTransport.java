@@ -25,7 +25,6 @@ import com.android.emailcommon.utility.SSLUtils;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -53,6 +52,13 @@ public class MailTransport implements Transport {
     /*protected*/ public static final int SOCKET_CONNECT_TIMEOUT = 10000;
     /*protected*/ public static final int SOCKET_READ_TIMEOUT = 60000;
 
+    /**
+     * Buffer sizes for the socket streams.  The output buffer holds a few pipelined commands, so
+     * that they go out in one write.
+     */
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 4 * 1024;
+
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
@@ -74,9 +80,12 @@ public class MailTransport implements Transport {
     private boolean mTrustCertificates;
 
     private Socket mSocket;
-    private InputStream mIn;
+    private LineInputStream mIn;
     private OutputStream mOut;
 
+    /** Reused to encode each line written; see {@link #encodeAsciiLine} */
+    private byte[] mLineBytes = new byte[128];
+
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to
      * complete the configuration.
@@ -177,8 +186,8 @@ public class MailTransport implements Transport {
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new LineInputStream(mSocket.getInputStream(), INPUT_BUFFER_SIZE);
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -208,8 +217,8 @@ public class MailTransport implements Transport {
                     SSLUtils.getSSLSocketFactory(canTrustAllCertificates(), SOCKET_CONNECT_TIMEOUT)
                             .createSocket(mSocket, getHost(), getPort(), true);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new LineInputStream(mSocket.getInputStream(), INPUT_BUFFER_SIZE);
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -332,6 +341,16 @@ public class MailTransport implements Transport {
      */
     @Override
     public void writeLine(String s, String sensitiveReplacement) throws IOException {
+        writeLine(s, sensitiveReplacement, true);
+    }
+
+    /**
+     * Writes a single line to the server using \r\n termination, and sends it now only if
+     * {@code flush} is true.
+     */
+    @Override
+    public void writeLine(String s, String sensitiveReplacement, boolean flush)
+            throws IOException {
         if (Email.DEBUG) {
             if (sensitiveReplacement != null && !Logging.DEBUG_SENSITIVE) {
                 Log.d(Logging.LOG_TAG, ">>> " + sensitiveReplacement);
@@ -341,10 +360,41 @@ public class MailTransport implements Transport {
         }
 
         OutputStream out = getOutputStream();
-        out.write(s.getBytes());
-        out.write('\r');
-        out.write('\n');
-        out.flush();
+        int length = encodeAsciiLine(s);
+        if (length >= 0) {
+            out.write(mLineBytes, 0, length);
+        } else {
+            out.write(s.getBytes());
+            out.write('\r');
+            out.write('\n');
+        }
+        if (flush) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Encodes {@code s} and \r\n into {@link #mLineBytes}, if {@code s} is all ASCII (as
+     * commands nearly always are), without going through a charset encoder.
+     *
+     * @return the number of bytes encoded, or -1 if {@code s} isn't ASCII
+     */
+    private int encodeAsciiLine(String s) {
+        final int length = s.length();
+        if (mLineBytes.length < length + 2) {
+            mLineBytes = new byte[Math.max(length + 2, mLineBytes.length * 2)];
+        }
+        final byte[] bytes = mLineBytes;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            bytes[i] = (byte) c;
+        }
+        bytes[length] = '\r';
+        bytes[length + 1] = '\n';
+        return length + 2;
     }
 
     /**
@@ -353,22 +403,10 @@ public class MailTransport implements Transport {
      */
     @Override
     public String readLine() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
-            }
-        }
-        if (d == -1 && Email.DEBUG) {
+        String ret = mIn.readLine();
+        if (mIn.isEndOfStream() && Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "End of stream reached while trying to read line.");
         }
-        String ret = sb.toString();
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "<<< " + ret);
         }
@@ -35,8 +35,11 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.SSLException;
 
@@ -46,10 +49,23 @@ import javax.net.ssl.SSLException;
  */
 public class SmtpSender extends Sender {
 
+    /** Size of the BDAT chunks a message is sent in, when the server supports CHUNKING */
+    /* package */ static final int BDAT_CHUNK_SIZE = 64 * 1024;
+
     private final Context mContext;
     private Transport mTransport;
     private String mUsername;
     private String mPassword;
+    /** Whether the transport holds an authenticated session that can send another message */
+    private boolean mSessionOpen;
+    /** Whether the server advertised PIPELINING (RFC 2920) in its EHLO response */
+    private boolean mPipelining;
+    /** Whether the server accepts 8bit data (RFC 6152) */
+    private boolean m8BitMime;
+    /** Whether the server accepts the message in BDAT chunks (RFC 3030) */
+    private boolean mChunking;
+    /** Whether the server accepts binary data in BDAT chunks (RFC 3030) */
+    private boolean mBinaryMime;
 
     /**
      * Static named constructor.
@@ -106,6 +122,7 @@ public class SmtpSender extends Sender {
 
     @Override
     public void open() throws MessagingException {
+        mSessionOpen = false;
         try {
             mTransport.open();
 
@@ -174,6 +191,11 @@ public class SmtpSender extends Sender {
                     throw new MessagingException(MessagingException.AUTH_REQUIRED);
                 }
             }
+            mPipelining = result.contains("PIPELINING");
+            m8BitMime = result.contains("8BITMIME");
+            mChunking = result.contains("CHUNKING");
+            mBinaryMime = mChunking && result.contains("BINARYMIME");
+            mSessionOpen = true;
         } catch (SSLException e) {
             if (Email.DEBUG) {
                 Log.d(Logging.LOG_TAG, e.toString());
@@ -187,10 +209,29 @@ public class SmtpSender extends Sender {
         }
     }
 
-    @Override
-    public void sendMessage(long messageId) throws MessagingException {
+    /**
+     * Get a session ready for a new message.  If the session used for the previous message is
+     * still open, it's reset and reused, so that a run of messages (e.g. draining the outbox)
+     * goes through the connection, TLS and authentication handshakes only once.
+     */
+    private void openSession() throws MessagingException {
+        if (mSessionOpen && mTransport.isOpen()) {
+            try {
+                executeSimpleCommand("RSET");
+                return;
+            } catch (IOException ioe) {
+                // The server has probably timed out the idle session; start a new one
+            } catch (MessagingException me) {
+                // Likewise
+            }
+        }
         close();
         open();
+    }
+
+    @Override
+    public void sendMessage(long messageId) throws MessagingException {
+        openSession();
 
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
@@ -202,26 +243,147 @@ public class SmtpSender extends Sender {
         Address[] cc = Address.unpack(message.mCc);
         Address[] bcc = Address.unpack(message.mBcc);
 
+        // Let the server know if the message isn't plain 7bit text, and tell Rfc822Output
+        // that it needn't base64 encode what the server can take as is
+        String mailFrom = "MAIL FROM:" + "<" + from.getAddress() + ">";
+        int encodingFlags = 0;
+        if (mBinaryMime) {
+            mailFrom += " BODY=BINARYMIME";
+            encodingFlags = Rfc822Output.ALLOW_BINARY;
+        } else if (m8BitMime) {
+            mailFrom += " BODY=8BITMIME";
+            encodingFlags = Rfc822Output.ALLOW_8BIT;
+        }
+
+        ArrayList<String> envelope = new ArrayList<String>(to.length + cc.length + bcc.length + 2);
+        envelope.add(mailFrom);
+        for (Address address : to) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
+        for (Address address : cc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
+        for (Address address : bcc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
+        if (!mChunking) {
+            envelope.add("DATA");
+        }
+
+        boolean sent = false;
+        ChunkingOutputStream chunks = null;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
-            for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
-            }
-            for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+            if (mPipelining) {
+                executePipelinedCommands(envelope);
+            } else {
+                for (String command : envelope) {
+                    executeSimpleCommand(command);
+                }
             }
-            for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+            if (mChunking) {
+                chunks = new ChunkingOutputStream();
+                Rfc822Output.writeTo(mContext, messageId, chunks,
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */,
+                        encodingFlags);
+                chunks.finish();
+            } else {
+                Rfc822Output.writeTo(mContext, messageId,
+                        new DotStuffingOutputStream(mTransport.getOutputStream()),
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */,
+                        encodingFlags);
+                executeSimpleCommand("\r\n.");
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, messageId,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
-                    false /* do not use smart reply */,
-                    false /* do not send BCC */);
-            executeSimpleCommand("\r\n.");
+            sent = true;
         } catch (IOException ioe) {
+            if (chunks != null && chunks.mFailure != null) {
+                throw chunks.mFailure;
+            }
             throw new MessagingException("Unable to send message", ioe);
+        } catch (MessagingException me) {
+            // Rfc822Output wraps the stream's exceptions; report the server's response instead
+            if (chunks != null && chunks.mFailure != null) {
+                throw chunks.mFailure;
+            }
+            throw me;
+        } finally {
+            if (!sent) {
+                // We can't tell what state the session was left in (e.g. the server may be
+                // waiting for message data), so don't reuse it for the next message
+                close();
+            }
+        }
+    }
+
+    /**
+     * Sends the message data in BDAT chunks (RFC 3030).  As each chunk is preceded by its exact
+     * length, the data is sent as it is: there's no end marker to escape, so it needn't be
+     * scanned for one.  With PIPELINING, the chunks are sent without waiting for their responses,
+     * which are read by {@link #finish}.
+     */
+    private class ChunkingOutputStream extends OutputStream {
+        private final byte[] mChunk = new byte[BDAT_CHUNK_SIZE];
+        private int mLength;
+        private int mPendingResponses;
+        /** The first failure response to a chunk */
+        MessagingException mFailure;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mLength == mChunk.length) {
+                sendChunk(false);
+            }
+            mChunk[mLength++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (mLength == mChunk.length) {
+                    sendChunk(false);
+                }
+                int n = Math.min(count, mChunk.length - mLength);
+                System.arraycopy(buffer, offset, mChunk, mLength, n);
+                mLength += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        /**
+         * Send the last chunk, and read the responses that are still pending.  Throws
+         * MessagingException if the server rejected any of the chunks.
+         */
+        void finish() throws IOException, MessagingException {
+            sendChunk(true);
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            mTransport.writeLine("BDAT " + mLength + (last ? " LAST" : ""), null, false);
+            OutputStream out = mTransport.getOutputStream();
+            out.write(mChunk, 0, mLength);
+            out.flush();
+            mLength = 0;
+            mPendingResponses++;
+
+            if (last || !mPipelining) {
+                for (; mPendingResponses > 0; mPendingResponses--) {
+                    try {
+                        readResponse();
+                    } catch (MessagingException me) {
+                        if (mFailure == null) {
+                            mFailure = me;
+                        }
+                    }
+                }
+                if (mFailure != null && !last) {
+                    throw new IOException("Message data rejected");
+                }
+            }
         }
     }
 
@@ -232,6 +394,7 @@ public class SmtpSender extends Sender {
      */
     @Override
     public void close() {
+        mSessionOpen = false;
         mTransport.close();
     }
 
@@ -261,7 +424,45 @@ public class SmtpSender extends Sender {
         if (command != null) {
             mTransport.writeLine(command, sensitiveReplacement);
         }
+        return readResponse();
+    }
+
+    /**
+     * Send several commands in a single write, and then read the response to each of them
+     * (RFC 2920).  All the responses are read, even after an error, so that none is left for
+     * the next command.  Throws MessagingException for the first 4xx or 5xx response.
+     *
+     * @param commands The commands to send to the server; they mustn't hold sensitive data.
+     */
+    private void executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        final int count = commands.size();
+        for (int i = 0; i < count; i++) {
+            mTransport.writeLine(commands.get(i), null, i == count - 1);
+        }
 
+        MessagingException failure = null;
+        for (int i = 0; i < count; i++) {
+            try {
+                readResponse();
+            } catch (MessagingException me) {
+                if (failure == null) {
+                    failure = me;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Read a single response.  Handles responses that continue onto multiple lines.  Throws
+     * MessagingException if response code is 4xx or 5xx.
+     *
+     * @return Returns the response string from the server.
+     */
+    private String readResponse() throws IOException, MessagingException {
         String line = mTransport.readLine();
 
         String result = line;
@@ -29,9 +29,11 @@ import android.util.LruCache;
 import com.android.email.Email;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -45,6 +47,8 @@ import java.util.Set;
  *
  * To create a cache:
  *    ContentCache cache = new ContentCache(name, projection, max);
+ * or, to bound the cache by the estimated memory held by its cursors rather than their number:
+ *    ContentCache cache = ContentCache.withMemoryBudget(name, projection, maxBytes);
  *
  * To (try to) get a cursor from a cache:
  *    Cursor cursor = cache.getCursor(id, projection);
@@ -79,6 +83,12 @@ public final class ContentCache {
     private static final boolean DEBUG_NOT_CACHEABLE = false;  // DO NOT CHECK IN TRUE
     private static final boolean DEBUG_STATISTICS = false; // DO NOT CHECK THIS IN TRUE
 
+    // Rough per-object costs used by estimateSize(); these only need to be good enough to compare
+    // a wide Account cursor with a narrow HostAuth one
+    private static final int CURSOR_OVERHEAD_BYTES = 256;
+    private static final int FIELD_OVERHEAD_BYTES = 16;
+    private static final int FIXED_FIELD_BYTES = 8;
+
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
@@ -88,6 +98,13 @@ public final class ContentCache {
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
     private final LruCache<String, Cursor> mLruCache;
+    // Whether the LruCache is bounded by estimated bytes (true) or by the number of cursors
+    private final boolean mSizeInBytes;
+    // Estimated size of each cached cursor, computed once when the cursor is added so that the
+    // LruCache sees the same size on removal even if the cursor has been moved in the meantime
+    private final Map<Cursor, Integer> mCursorSizes = new IdentityHashMap<Cursor, Integer>();
+    // True while invalidate() is emptying the cache, so those removals aren't counted as evictions
+    private boolean mInvalidating;
 
     // All defined caches
     private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
@@ -408,11 +425,49 @@ public final class ContentCache {
      * @param maxSize the maximum number of content cursors to cache
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
+        this(name, baseProjection, maxSize, false);
+    }
+
+    /**
+     * Create a cache bounded by the estimated memory held by its cursors (see
+     * {@link #estimateSize}) rather than by their number, so that a few wide cursors don't crowd
+     * out many narrow ones.
+     * @param name the name of the cache (used for logging)
+     * @param baseProjection the projection used for cached cursors
+     * @param maxBytes the memory budget for cached cursors, in bytes
+     */
+    public static ContentCache withMemoryBudget(String name, String[] baseProjection,
+            int maxBytes) {
+        return new ContentCache(name, baseProjection, maxBytes, true);
+    }
+
+    private ContentCache(String name, String[] baseProjection, int maxSize,
+            boolean sizeInBytes) {
         mName = name;
+        mSizeInBytes = sizeInBytes;
         mLruCache = new LruCache<String, Cursor>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Cursor value) {
+                if (!mSizeInBytes) {
+                    return 1;
+                }
+                Integer size = mCursorSizes.get(value);
+                if (size == null) {
+                    size = estimateSize(value);
+                    mCursorSizes.put(value, size);
+                }
+                return size;
+            }
+
             @Override
             protected void entryRemoved(
                     boolean evicted, String key, Cursor oldValue, Cursor newValue) {
+                if (oldValue != newValue) {
+                    mCursorSizes.remove(oldValue);
+                }
+                if (evicted && !mInvalidating) {
+                    mStats.mEvictionCount++;
+                }
                 // Close this cursor if it's no longer being used
                 if (evicted && !sActiveCursors.contains(oldValue)) {
                     oldValue.close();
@@ -450,10 +505,58 @@ public final class ContentCache {
         return token;
     }
 
+    /**
+     * @return the number of cached cursors
+     */
     public int size() {
+        return mLruCache.snapshot().size();
+    }
+
+    /**
+     * @return the estimated number of bytes held by cached cursors, or the number of cursors if
+     * this cache isn't bounded by memory
+     */
+    public int sizeInBytes() {
         return mLruCache.size();
     }
 
+    /**
+     * Estimate the memory held by a cursor, extrapolating from its current row (cached cursors
+     * are single rows, positioned at the first row).
+     */
+    @VisibleForTesting
+    static int estimateSize(Cursor c) {
+        if (c.isClosed()) {
+            return CURSOR_OVERHEAD_BYTES;
+        }
+        final int rows = c.getCount();
+        final int columns = c.getColumnCount();
+        final int position = c.getPosition();
+        if (position < 0 || position >= rows) {
+            return CURSOR_OVERHEAD_BYTES
+                    + rows * columns * (FIELD_OVERHEAD_BYTES + FIXED_FIELD_BYTES);
+        }
+        int rowSize = 0;
+        for (int i = 0; i < columns; i++) {
+            rowSize += FIELD_OVERHEAD_BYTES;
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_STRING:
+                    // Java strings hold two bytes per char
+                    rowSize += 2 * c.getString(i).length();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    rowSize += c.getBlob(i).length;
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    break;
+                default:
+                    rowSize += FIXED_FIELD_BYTES;
+                    break;
+            }
+        }
+        return CURSOR_OVERHEAD_BYTES + rows * rowSize;
+    }
+
     @VisibleForTesting
     Cursor get(String id) {
         return mLruCache.get(id);
@@ -680,7 +783,12 @@ public final class ContentCache {
         }
         mStats.mInvalidateCount++;
         // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
+        mInvalidating = true;
+        try {
+            mLruCache.evictAll();
+        } finally {
+            mInvalidating = false;
+        }
         // Invalidate all current tokens
         mTokenList.invalidate();
     }
@@ -774,6 +882,8 @@ public final class ContentCache {
         private int mProjectionMissCount = 0;
         // Incremented whenever the entire cache is invalidated
         private int mInvalidateCount = 0;
+        // Incremented whenever a cursor is dropped to stay within the cache's size limit
+        private int mEvictionCount = 0;
         // Count of operations put/get
         private int mOpCount = 0;
         // The following are for timing statistics
@@ -785,6 +895,7 @@ public final class ContentCache {
         // Used in toString() and addCacheStatistics()
         private int mCursorCount = 0;
         private int mTokenCount = 0;
+        private int mByteCount = 0;
 
         Statistics(ContentCache cache) {
             mCache = cache;
@@ -802,6 +913,11 @@ public final class ContentCache {
                 mMissCount += cache.mStats.mMissCount;
                 mProjectionMissCount += cache.mStats.mProjectionMissCount;
                 mStaleCount += cache.mStats.mStaleCount;
+                mInvalidateCount += cache.mStats.mInvalidateCount;
+                mEvictionCount += cache.mStats.mEvictionCount;
+                if (cache.mSizeInBytes) {
+                    mByteCount += cache.sizeInBytes();
+                }
                 hitTimes += cache.mStats.hitTimes;
                 missTimes += cache.mStats.missTimes;
                 hits += cache.mStats.hits;
@@ -825,13 +941,23 @@ public final class ContentCache {
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
             append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
+            if (mCache == null) {
+                append(sb, "Bytes", mByteCount);
+            } else if (mCache.mSizeInBytes) {
+                append(sb, "Bytes", mCache.sizeInBytes());
+            }
             append(sb, "Hits", mHitCount);
             append(sb, "Misses", mMissCount + mProjectionMissCount);
+            append(sb, "Stale", mStaleCount);
             append(sb, "Inval", mInvalidateCount);
+            append(sb, "Evict", mEvictionCount);
             append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
             append(sb, "Hit%", mHitCount * 100 / totalTries);
-            append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
-            append(sb, "Miss time", missTimes / 1000000.0 / miss);
+            // Query times are only recorded in debug builds (see EmailProvider.query)
+            if (hits + miss > 0) {
+                append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
+                append(sb, "Miss time", missTimes / 1000000.0 / miss);
+            }
             return sb.toString();
         }
     }
@@ -847,4 +973,19 @@ public final class ContentCache {
         }
         Log.d(totals.mName, totals.toString());
     }
+
+    /**
+     * Write the statistics of every cache to {@code writer}; used by EmailProvider's dump().
+     */
+    public static void dumpStats(PrintWriter writer) {
+        Statistics totals = new Statistics("Totals");
+
+        for (ContentCache cache: sContentCaches) {
+            if (cache != null) {
+                writer.println("  " + cache.mName + ": " + cache.mStats.toString());
+                totals.addCacheStatistics(cache);
+            }
+        }
+        writer.println("  " + totals.toString());
+    }
 }
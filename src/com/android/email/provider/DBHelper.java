@@ -25,6 +25,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.ContactsContract;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.email.Email;
@@ -122,10 +123,14 @@ public final class DBHelper {
     // Version 37: Add flag for settings support in folders
     // Version 38&39: Add threadTopic to message (for future support)
     // Version 40: add sync size field
+    // Version 41: Replace the mailboxKey index on Message with composite indexes
+    // Version 42: Add the MessageSearch full text index
+    // Version 43: Add the MailboxTypeCount table of message counts per mailbox type
+    // Version 44: Add flagLoaded to the (mailboxKey, timestamp) index on Message
 
     // Versions 100+ are in Email2
 
-    public static final int DATABASE_VERSION = 40;
+    public static final int DATABASE_VERSION = 44;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -151,6 +156,48 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /*
+     * Internal helper method for creating an index over several columns.  The index name is
+     * built the same way as in {@link #createIndex}, with the column names joined by '_'.
+     * Example:
+     * "create index if not exists message_mailboxKey_timestamp on Message (mailboxKey,timestamp);"
+     */
+    /* package */
+    static String createCompositeIndex(String tableName, String... columnNames) {
+        final StringBuilder name = new StringBuilder(tableName.toLowerCase());
+        for (String columnName : columnNames) {
+            name.append('_').append(columnName);
+        }
+        return "create index if not exists " + name + " on " + tableName + " ("
+                + TextUtils.join(",", columnNames) + ");";
+    }
+
+    /**
+     * Composite indexes on the Message table, for the most common queries:
+     * <ul>
+     * <li>Message lists: one mailbox (or a set of them), sorted by timestamp.  flagLoaded is
+     * there too, so that the queries for where a list ends, which only need the timestamp and
+     * ID, are answered from the index without reading the messages.
+     * <li>Sync: all the messages of one account and mailbox.
+     * <li>Sync: one message by its server ID in a mailbox.
+     * <li>Starred lists: favorites, sorted by timestamp.
+     * </ul>
+     * Each of them starting with mailboxKey also serves lookups by mailboxKey alone, so there's
+     * no single column index on mailboxKey any more.
+     */
+    private static final String[][] MESSAGE_COMPOSITE_INDEXES = {
+        { MessageColumns.MAILBOX_KEY, MessageColumns.TIMESTAMP, MessageColumns.FLAG_LOADED },
+        { MessageColumns.ACCOUNT_KEY, MessageColumns.MAILBOX_KEY, MessageColumns.TIMESTAMP },
+        { MessageColumns.MAILBOX_KEY, SyncColumns.SERVER_ID },
+        { MessageColumns.FLAG_FAVORITE, MessageColumns.TIMESTAMP },
+    };
+
+    static void createMessageCompositeIndexes(SQLiteDatabase db) {
+        for (String[] columnNames : MESSAGE_COMPOSITE_INDEXES) {
+            db.execSQL(createCompositeIndex(Message.TABLE_NAME, columnNames));
+        }
+    }
+
     static void createMessageTable(SQLiteDatabase db) {
         String messageColumns = MessageColumns.DISPLAY_NAME + " text, "
             + MessageColumns.TIMESTAMP + " integer, "
@@ -199,13 +246,13 @@ public final class DBHelper {
             MessageColumns.TIMESTAMP,
             MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageCompositeIndexes(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -574,6 +621,8 @@ public final class DBHelper {
             createAccountTable(db);
             createPolicyTable(db);
             createQuickResponseTable(db);
+            MessageSearchIndex.createTable(db);
+            MailboxTypeCounts.createTable(db);
         }
 
         @Override
@@ -953,6 +1002,49 @@ public final class DBHelper {
                 }
                 oldVersion = 40;
             }
+            if (oldVersion == 40) {
+                try {
+                    createMessageCompositeIndexes(db);
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_'
+                            + MessageColumns.MAILBOX_KEY);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 40 to 41 " + e);
+                }
+                oldVersion = 41;
+            }
+            if (oldVersion == 41) {
+                try {
+                    MessageSearchIndex.createTable(db);
+                    // Bodies are indexed once the body database is attached
+                    MessageSearchIndex.indexAllMessages(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 41 to 42 " + e);
+                }
+                oldVersion = 42;
+            }
+            if (oldVersion == 42) {
+                try {
+                    MailboxTypeCounts.createTable(db);
+                    MailboxTypeCounts.recountAll(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 42 to 43 " + e);
+                }
+                oldVersion = 43;
+            }
+            if (oldVersion == 43) {
+                try {
+                    createMessageCompositeIndexes(db);
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_'
+                            + MessageColumns.MAILBOX_KEY + '_' + MessageColumns.TIMESTAMP);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 43 to 44 " + e);
+                }
+                oldVersion = 44;
+            }
         }
 
         @Override
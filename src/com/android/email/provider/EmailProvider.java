@@ -55,13 +55,17 @@ import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
+import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -126,18 +130,31 @@ public class EmailProvider extends ContentProvider {
     // Inbox, Drafts, Sent, Outbox, Trash, and Search (these boxes are cached when possible)
     private static final int NUM_ALWAYS_CACHED_MAILBOXES = 6;
 
-    // We'll cache the following four tables; sizes are best estimates of effective values
+    // Estimated memory held by a single cached row of each table (see ContentCache.estimateSize)
+    private static final int ACCOUNT_CURSOR_BYTES = 2 * 1024;
+    private static final int HOSTAUTH_CURSOR_BYTES = 1024;
+    private static final int MAILBOX_CURSOR_BYTES = 1024;
+    private static final int MESSAGE_CURSOR_BYTES = 3 * 1024;
+    private static final int POLICY_CURSOR_BYTES = 1024;
+
+    // We'll cache the following tables; budgets are best estimates of effective values.  The
+    // caches are bounded by memory rather than by row count, so that a few wide rows can't push
+    // out many narrow ones
     private final ContentCache mCacheAccount =
-        new ContentCache("Account", Account.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS);
+        ContentCache.withMemoryBudget("Account", Account.CONTENT_PROJECTION,
+                MAX_CACHED_ACCOUNTS * ACCOUNT_CURSOR_BYTES);
     private final ContentCache mCacheHostAuth =
-        new ContentCache("HostAuth", HostAuth.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS * 2);
+        ContentCache.withMemoryBudget("HostAuth", HostAuth.CONTENT_PROJECTION,
+                MAX_CACHED_ACCOUNTS * 2 * HOSTAUTH_CURSOR_BYTES);
     /*package*/ final ContentCache mCacheMailbox =
-        new ContentCache("Mailbox", Mailbox.CONTENT_PROJECTION,
-                MAX_CACHED_ACCOUNTS * (NUM_ALWAYS_CACHED_MAILBOXES + 2));
+        ContentCache.withMemoryBudget("Mailbox", Mailbox.CONTENT_PROJECTION,
+                MAX_CACHED_ACCOUNTS * (NUM_ALWAYS_CACHED_MAILBOXES + 2) * MAILBOX_CURSOR_BYTES);
     private final ContentCache mCacheMessage =
-        new ContentCache("Message", Message.CONTENT_PROJECTION, 8);
+        ContentCache.withMemoryBudget("Message", Message.CONTENT_PROJECTION,
+                8 * MESSAGE_CURSOR_BYTES);
     private final ContentCache mCachePolicy =
-        new ContentCache("Policy", Policy.CONTENT_PROJECTION, MAX_CACHED_ACCOUNTS);
+        ContentCache.withMemoryBudget("Policy", Policy.CONTENT_PROJECTION,
+                MAX_CACHED_ACCOUNTS * POLICY_CURSOR_BYTES);
 
     private static final int ACCOUNT_BASE = 0;
     private static final int ACCOUNT = ACCOUNT_BASE;
@@ -154,11 +171,14 @@ public class EmailProvider extends ContentProvider {
     private static final int MAILBOX_ID_ADD_TO_FIELD = MAILBOX_BASE + 3;
     private static final int MAILBOX_NOTIFICATION = MAILBOX_BASE + 4;
     private static final int MAILBOX_MOST_RECENT_MESSAGE = MAILBOX_BASE + 5;
+    private static final int MAILBOX_UNSEEN_MESSAGES = MAILBOX_BASE + 6;
+    private static final int MAILBOX_TYPE_COUNT = MAILBOX_BASE + 7;
 
     private static final int MESSAGE_BASE = 0x2000;
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -234,6 +254,13 @@ public class EmailProvider extends ContentProvider {
         Body.TABLE_NAME,
     };
 
+    /**
+     * Notifications held back by {@link #applyBatch}.  Per thread, because other threads may use
+     * the provider while a batch runs.
+     */
+    private final ThreadLocal<BatchNotifications> mBatchNotifications =
+            new ThreadLocal<BatchNotifications>();
+
     // CONTENT_CACHES MUST remain in the order of the BASE constants above
     private final ContentCache[] mContentCaches = {
         mCacheAccount,
@@ -328,12 +355,18 @@ public class EmailProvider extends ContentProvider {
         matcher.addURI(EmailContent.AUTHORITY, "mailboxNotification/#", MAILBOX_NOTIFICATION);
         matcher.addURI(EmailContent.AUTHORITY, "mailboxMostRecentMessage/#",
                 MAILBOX_MOST_RECENT_MESSAGE);
+        matcher.addURI(EmailContent.AUTHORITY, "mailboxUnseenMessages/#",
+                MAILBOX_UNSEEN_MESSAGES);
+        // The message counts of each mailbox type (query only)
+        matcher.addURI(EmailContent.AUTHORITY, "mailboxTypeCount", MAILBOX_TYPE_COUNT);
 
         // All messages
         matcher.addURI(EmailContent.AUTHORITY, "message", MESSAGE);
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+        // Full text search over messages (query only)
+        matcher.addURI(EmailContent.AUTHORITY, "messageSearch", MESSAGE_SEARCH);
 
         // A specific attachment
         matcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -481,6 +514,20 @@ public class EmailProvider extends ContentProvider {
         if (mBodyDatabase != null) {
             String bodyFileName = mBodyDatabase.getPath();
             mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
+            if (MessageSearchIndex.needsBodies(mDatabase)) {
+                // Index the bodies of existing messages in the background; this takes a while,
+                // and resumes from where it stopped if the process dies first
+                final SQLiteDatabase db = mDatabase;
+                final ContentResolver resolver = context.getContentResolver();
+                Utility.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        MessageSearchIndex.indexAllBodies(db);
+                        // Searches can now find the bodies
+                        resolver.notifyChange(Message.NOTIFIER_URI, null);
+                    }
+                });
+            }
         }
 
         // Restore accounts if the database is corrupted...
@@ -639,6 +686,51 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * @return whether an update to the Body table changes text that's in the search index
+     */
+    private static boolean isBodyContentUpdate(ContentValues values) {
+        return values.containsKey(BodyColumns.TEXT_CONTENT)
+                || values.containsKey(BodyColumns.HTML_CONTENT)
+                || values.containsKey(BodyColumns.MESSAGE_KEY);
+    }
+
+    /**
+     * Locks the rendered bodies of the messages whose Body rows match {@code selection}, as
+     * those rows are about to be written.  The returned ids must be passed to
+     * {@link #unlockRenderedBodies} once the rows have been written.
+     */
+    private static long[] lockRenderedBodies(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Cursor c = db.query(Body.TABLE_NAME, new String[] { BodyColumns.MESSAGE_KEY },
+                selection, selectionArgs, null, null, null);
+        try {
+            final long[] messageIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                messageIds[i] = c.getLong(0);
+                RenderedBodyCache.lock(messageIds[i]);
+            }
+            return messageIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void unlockRenderedBodies(long[] messageIds) {
+        if (messageIds != null) {
+            for (long messageId : messageIds) {
+                RenderedBodyCache.unlock(messageId);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Content caches:");
+        ContentCache.dumpStats(writer);
+    }
+
     /*package*/ static void deleteMessageOrphans(SQLiteDatabase database, String tableName) {
         if (database != null) {
             // We'll look at all of the items in the table; there won't be many typically
@@ -699,11 +791,12 @@ public class EmailProvider extends ContentProvider {
         int table = match >> BASE_SHIFT;
         String id = "0";
         boolean messageDeletion = false;
-        ContentResolver resolver = context.getContentResolver();
 
         ContentCache cache = mContentCaches[table];
         String tableName = TABLE_NAMES[table];
         int result = -1;
+        // Messages whose rendered bodies are locked while their Body rows are deleted
+        long[] lockedBodies = null;
 
         try {
             switch (match) {
@@ -748,6 +841,10 @@ public class EmailProvider extends ContentProvider {
                         db.execSQL(DELETED_MESSAGE_INSERT + id);
                         db.execSQL(UPDATED_MESSAGE_DELETE + id);
                     }
+                    if (match == BODY_ID) {
+                        lockedBodies = lockRenderedBodies(db, whereWithId(id, selection),
+                                selectionArgs);
+                    }
                     if (cache != null) {
                         cache.lock(id);
                     }
@@ -782,6 +879,7 @@ public class EmailProvider extends ContentProvider {
                         if (cache != null) {
                             cache.unlock(id);
                         }
+                        unlockRenderedBodies(lockedBodies);
                     }
                     break;
                 case ATTACHMENTS_MESSAGE_ID:
@@ -815,8 +913,15 @@ public class EmailProvider extends ContentProvider {
                         case POLICY:
                             cache.invalidate("Delete", uri, selection);
                             break;
+                        case BODY:
+                            lockedBodies = lockRenderedBodies(db, selection, selectionArgs);
+                            break;
+                    }
+                    try {
+                        result = db.delete(tableName, selection, selectionArgs);
+                    } finally {
+                        unlockRenderedBodies(lockedBodies);
                     }
-                    result = db.delete(tableName, selection, selectionArgs);
                     switch(match) {
                         case ACCOUNT:
                         case MAILBOX:
@@ -854,7 +959,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return result;
     }
 
@@ -882,6 +987,7 @@ public class EmailProvider extends ContentProvider {
                 return mimeType;
             case UPDATED_MESSAGE:
             case MESSAGE:
+            case MESSAGE_SEARCH:
                 return "vnd.android.cursor.dir/email-message";
             case MAILBOX:
                 return "vnd.android.cursor.dir/email-mailbox";
@@ -909,7 +1015,6 @@ public class EmailProvider extends ContentProvider {
     public Uri insert(Uri uri, ContentValues values) {
         int match = findMatch(uri, "insert");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
 
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
@@ -982,6 +1087,13 @@ public class EmailProvider extends ContentProvider {
                         }
                         // Report all new attachments to the download service
                         mAttachmentService.attachmentChanged(getContext(), longId, flags);
+                    } else if (match == BODY) {
+                        Long messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+                        if (messageKey != null) {
+                            RenderedBodyCache.invalidate(messageKey);
+                        }
+                        MessageSearchIndex.indexBodies(db, WHERE_ID,
+                                new String[] { Long.toString(longId) });
                     }
                     break;
                 case MAILBOX_ID:
@@ -1018,7 +1130,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return resultUri;
     }
 
@@ -1115,6 +1227,18 @@ public class EmailProvider extends ContentProvider {
                 case MAILBOX_MOST_RECENT_MESSAGE:
                     c = mostRecentMessageQuery(uri);
                     return c;
+                case MAILBOX_UNSEEN_MESSAGES:
+                    c = unseenMessagesQuery(uri);
+                    return c;
+                case MAILBOX_TYPE_COUNT:
+                    c = db.query(MailboxTypeCounts.TABLE_NAME, projection, selection,
+                            selectionArgs, null, null, sortOrder, limit);
+                    break;
+                case MESSAGE_SEARCH:
+                    c = MessageSearchIndex.search(db,
+                            uri.getQueryParameter(Message.SEARCH_QUERY_PARAMETER), projection,
+                            selection, selectionArgs, limit);
+                    break;
                 case ACCOUNT_DEFAULT_ID:
                     // Start with a snapshot of the cache
                     Map<String, Cursor> accountCache = mCacheAccount.getSnapshot();
@@ -1241,7 +1365,9 @@ public class EmailProvider extends ContentProvider {
         }
 
         if ((c != null) && !isTemporary()) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+            // Search results can change with any message, not just those under the search URI
+            c.setNotificationUri(getContext().getContentResolver(),
+                    (match == MESSAGE_SEARCH) ? Message.NOTIFIER_URI : uri);
         }
         return c;
     }
@@ -1453,7 +1579,6 @@ public class EmailProvider extends ContentProvider {
 
         int match = findMatch(uri, "update");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
         int table = match >> BASE_SHIFT;
@@ -1469,6 +1594,8 @@ public class EmailProvider extends ContentProvider {
         ContentCache cache = mContentCaches[table];
         String tableName = TABLE_NAMES[table];
         String id = "0";
+        // Messages whose rendered bodies are locked while their Body rows are updated
+        long[] lockedBodies = null;
 
         try {
 outer:
@@ -1537,6 +1664,9 @@ outer:
                             db.execSQL(UPDATED_MESSAGE_INSERT + id);
                         } else if (match == MESSAGE_ID) {
                             db.execSQL(UPDATED_MESSAGE_DELETE + id);
+                        } else if (match == BODY_ID) {
+                            lockedBodies = lockRenderedBodies(db, whereWithId(id, selection),
+                                    selectionArgs);
                         }
                         result = db.update(tableName, values, whereWithId(id, selection),
                                 selectionArgs);
@@ -1548,6 +1678,7 @@ outer:
                         if (cache != null) {
                             cache.unlock(id, values);
                         }
+                        unlockRenderedBodies(lockedBodies);
                     }
                     if (match == ATTACHMENT_ID) {
                         long attId = Integer.parseInt(id);
@@ -1555,6 +1686,9 @@ outer:
                             int flags = values.getAsInteger(Attachment.FLAGS);
                             mAttachmentService.attachmentChanged(context, attId, flags);
                         }
+                    } else if (match == BODY_ID && isBodyContentUpdate(values)) {
+                        MessageSearchIndex.indexBodies(db, whereWithId(id, selection),
+                                selectionArgs);
                     }
                     break;
                 case BODY:
@@ -1596,7 +1730,17 @@ outer:
                             cache.invalidate("Update", uri, selection);
                             //$FALL-THROUGH$
                         default:
-                            result = db.update(tableName, values, selection, selectionArgs);
+                            if (match == BODY) {
+                                lockedBodies = lockRenderedBodies(db, selection, selectionArgs);
+                            }
+                            try {
+                                result = db.update(tableName, values, selection, selectionArgs);
+                            } finally {
+                                unlockRenderedBodies(lockedBodies);
+                            }
+                            if (match == BODY && isBodyContentUpdate(values)) {
+                                MessageSearchIndex.indexBodies(db, selection, selectionArgs);
+                            }
                             break outer;
                     }
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -1640,7 +1784,7 @@ outer:
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
 
-        resolver.notifyChange(notificationUri, null);
+        notifyChange(notificationUri);
         return result;
     }
 
@@ -1689,6 +1833,17 @@ outer:
             uri = baseUri.buildUpon().appendEncodedPath(op).build();
         }
 
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            // Observers of <<baseURI>>/<<op>> get notified about every <<id>> under it, so in a
+            // batch we drop the ID and send each <<baseURI>>/<<op>> once at the end.
+            batch.mUris.add(uri);
+            if (baseUri.equals(Message.NOTIFIER_URI)) {
+                batch.mMessageListChanged = true;
+            }
+            return;
+        }
+
         long longId = 0L;
         try {
             longId = Long.valueOf(id);
@@ -1707,6 +1862,27 @@ outer:
         }
     }
 
+    /**
+     * Notify observers of {@code uri}, or if {@link #applyBatch} is running on this thread,
+     * remember it and notify when the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.mUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Change notifications postponed while {@link #applyBatch} runs.
+     */
+    private static class BatchNotifications {
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+        boolean mMessageListChanged;
+    }
+
     private void sendMessageListDataChangedNotification() {
         final Context context = getContext();
         final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
@@ -1716,11 +1892,20 @@ outer:
         context.sendBroadcast(intent);
     }
 
+    /**
+     * Apply all the operations in one transaction.  Change notifications are held back until
+     * the end, and each distinct one is sent once, so observers reload once per batch rather
+     * than once per operation.
+     */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        final boolean outermost = (mBatchNotifications.get() == null);
+        if (outermost) {
+            mBatchNotifications.set(new BatchNotifications());
+        }
         db.beginTransaction();
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
@@ -1728,6 +1913,17 @@ outer:
             return results;
         } finally {
             db.endTransaction();
+            if (outermost) {
+                final BatchNotifications batch = mBatchNotifications.get();
+                mBatchNotifications.remove();
+                final ContentResolver resolver = context.getContentResolver();
+                for (Uri uri : batch.mUris) {
+                    resolver.notifyChange(uri, null);
+                }
+                if (batch.mMessageListChanged) {
+                    sendMessageListDataChangedNotification();
+                }
+            }
         }
     }
 
@@ -1779,7 +1975,8 @@ outer:
     //   OR (Boxes._id=Message.mailboxKey AND Message._id>Boxes.lastNotifiedMessageKey)
     //   AND flagRead = 0 AND timeStamp != 0
     // TODO: This query can be simplified a bit
-    private static final String NOTIFICATION_QUERY =
+    @VisibleForTesting
+    static final String NOTIFICATION_QUERY =
         "SELECT DISTINCT Boxes." + MailboxColumns.ID + ", Boxes." + MailboxColumns.UNREAD_COUNT +
             ", count(" + Message.TABLE_NAME + "." + MessageColumns.ID + ")" +
         " FROM " +
@@ -1796,16 +1993,52 @@ outer:
                 MessageColumns.ID + ">Boxes." + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY +
                 " AND " + MessageColumns.FLAG_READ + "=0 AND " + MessageColumns.TIMESTAMP + "!=0";
 
+    @VisibleForTesting
+    static final String MOST_RECENT_MESSAGE_QUERY =
+        "select max(_id) from Message where mailboxKey=?";
+
+    // SELECT count(Message._id), max(Message._id), Mailbox.unreadCount,
+    //   Mailbox.lastSeenMessageKey, Account.notifiedMessageId, Account.notifiedMessageCount
+    // FROM Mailbox JOIN Account ON Account._id=Mailbox.accountKey
+    //   LEFT JOIN Message ON Message.mailboxKey=Mailbox._id
+    //     AND Message._id>ifnull(Mailbox.lastSeenMessageKey, 0)
+    //     AND flagRead=0 AND flagLoaded IN (2,1)
+    // WHERE Mailbox._id=? GROUP BY Mailbox._id
+    @VisibleForTesting
+    static final String UNSEEN_MESSAGES_QUERY =
+        "SELECT count(" + Message.TABLE_NAME + "." + MessageColumns.ID + "), max(" +
+            Message.TABLE_NAME + "." + MessageColumns.ID + "), " +
+            Mailbox.TABLE_NAME + "." + MailboxColumns.UNREAD_COUNT + ", ifnull(" +
+            Mailbox.TABLE_NAME + "." + MailboxColumns.LAST_SEEN_MESSAGE_KEY + ", 0), " +
+            Account.TABLE_NAME + "." + AccountColumns.NOTIFIED_MESSAGE_ID + ", " +
+            Account.TABLE_NAME + "." + AccountColumns.NOTIFIED_MESSAGE_COUNT +
+        " FROM " + Mailbox.TABLE_NAME + " JOIN " + Account.TABLE_NAME + " ON " +
+            Account.TABLE_NAME + "." + AccountColumns.ID + "=" +
+            Mailbox.TABLE_NAME + "." + MailboxColumns.ACCOUNT_KEY +
+        " LEFT JOIN " + Message.TABLE_NAME + " ON " +
+            Message.TABLE_NAME + "." + MessageColumns.MAILBOX_KEY + "=" +
+            Mailbox.TABLE_NAME + "." + MailboxColumns.ID + " AND " +
+            Message.TABLE_NAME + "." + MessageColumns.ID + ">ifnull(" +
+            Mailbox.TABLE_NAME + "." + MailboxColumns.LAST_SEEN_MESSAGE_KEY + ", 0) AND " +
+            MessageColumns.FLAG_READ + "=0 AND " + Message.FLAG_LOADED_SELECTION +
+        " WHERE " + Mailbox.TABLE_NAME + "." + MailboxColumns.ID + "=?" +
+        " GROUP BY " + Mailbox.TABLE_NAME + "." + MailboxColumns.ID;
+
     public Cursor notificationQuery(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
         String accountId = uri.getLastPathSegment();
         return db.rawQuery(NOTIFICATION_QUERY, new String[] {accountId});
    }
 
+    public Cursor unseenMessagesQuery(Uri uri) {
+        SQLiteDatabase db = getDatabase(getContext());
+        String mailboxId = uri.getLastPathSegment();
+        return db.rawQuery(UNSEEN_MESSAGES_QUERY, new String[] {mailboxId});
+    }
+
     public Cursor mostRecentMessageQuery(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
         String mailboxId = uri.getLastPathSegment();
-        return db.rawQuery("select max(_id) from Message where mailboxKey=?",
-                new String[] {mailboxId});
+        return db.rawQuery(MOST_RECENT_MESSAGE_QUERY, new String[] {mailboxId});
    }
 }
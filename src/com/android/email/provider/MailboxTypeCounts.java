@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+/**
+ * The message counts of all the mailboxes of each type, which the combined views (all inboxes,
+ * starred, etc.) show.  Adding up the counts of every account's mailboxes, or counting the starred
+ * messages, each time one of these views is refreshed gets slow with many accounts, so the sums
+ * are kept in a table of their own, one row per type, by triggers on the Message and Mailbox
+ * tables.  See {@link Mailbox#TYPE_COUNT_URI}.
+ */
+final class MailboxTypeCounts {
+    static final String TABLE_NAME = "MailboxTypeCount";
+
+    private static final String TYPE = MailboxColumns.TYPE;
+    private static final String MESSAGE_COUNT = MailboxColumns.MESSAGE_COUNT;
+    private static final String UNREAD_COUNT = MailboxColumns.UNREAD_COUNT;
+    private static final String FAVORITE_COUNT = Mailbox.TYPE_COUNT_FAVORITE_COUNT;
+
+    private MailboxTypeCounts() {
+    }
+
+    /**
+     * @return the SQL for 1 if {@code condition} holds, and 0 otherwise (including when it's
+     * null)
+     */
+    private static String countIf(String condition) {
+        return "(case when " + condition + " then 1 else 0 end)";
+    }
+
+    /**
+     * @return the SQL for whether a message is unread
+     * @param prefix the prefix for the Message columns (e.g. "NEW." in a trigger)
+     */
+    private static String isUnread(String prefix) {
+        return prefix + MessageColumns.FLAG_READ + "=0";
+    }
+
+    /**
+     * @return the SQL for whether a message is a favorite that the favorite view shows, i.e. a
+     * loaded one; see {@link Message#ALL_FAVORITE_SELECTION}
+     * @param prefix the prefix for the Message columns (e.g. "NEW." in a trigger)
+     */
+    private static String isFavorite(String prefix) {
+        return prefix + MessageColumns.FLAG_FAVORITE + "=1 AND " + prefix
+                + MessageColumns.FLAG_LOADED + " IN (" + Message.FLAG_LOADED_PARTIAL + ","
+                + Message.FLAG_LOADED_COMPLETE + "," + Message.FLAG_LOADED_SYNC_SIZE_COMPLETE
+                + ")";
+    }
+
+    /**
+     * @return the SQL for the type of a mailbox, null if there's no such mailbox
+     */
+    private static String typeOfMailbox(String mailboxKey) {
+        return "(select " + MailboxColumns.TYPE + " from " + Mailbox.TABLE_NAME + " where "
+                + EmailContent.RECORD_ID + "=" + mailboxKey + ")";
+    }
+
+    /**
+     * @return the SQL statements that add ({@code sign} "+") or remove ({@code sign} "-") a
+     * message in a trigger to or from the counts of its mailbox's type
+     * @param prefix "NEW." or "OLD."
+     */
+    private static String countMessage(String prefix, String sign) {
+        final String type = typeOfMailbox(prefix + MessageColumns.MAILBOX_KEY);
+        String sql = "";
+        if (sign.equals("+")) {
+            // No row for a mailbox that doesn't exist
+            sql = "insert or ignore into " + TABLE_NAME + " (" + TYPE + ") select " + type
+                    + " where " + type + " is not null; ";
+        }
+        return sql + "update " + TABLE_NAME + " set "
+                + MESSAGE_COUNT + "=" + MESSAGE_COUNT + sign + "1, "
+                + UNREAD_COUNT + "=" + UNREAD_COUNT + sign + countIf(isUnread(prefix)) + ", "
+                + FAVORITE_COUNT + "=" + FAVORITE_COUNT + sign + countIf(isFavorite(prefix))
+                + " where " + TYPE + "=" + type + "; ";
+    }
+
+    /**
+     * @return the SQL statements that add ({@code sign} "+") or remove ({@code sign} "-") all
+     * the messages of a mailbox in a trigger to or from the counts of a type
+     */
+    private static String countMailbox(String mailboxId, String type, String sign) {
+        final String messages = "(select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=" + mailboxId;
+        String sql = "";
+        if (sign.equals("+")) {
+            sql = "insert or ignore into " + TABLE_NAME + " (" + TYPE + ") select " + type
+                    + " where " + type + " is not null; ";
+        }
+        return sql + "update " + TABLE_NAME + " set "
+                + MESSAGE_COUNT + "=" + MESSAGE_COUNT + sign + messages + "), "
+                + UNREAD_COUNT + "=" + UNREAD_COUNT + sign + messages + " and "
+                + isUnread("") + "), "
+                + FAVORITE_COUNT + "=" + FAVORITE_COUNT + sign + messages + " and "
+                + isFavorite("") + ")"
+                + " where " + TYPE + "=" + type + "; ";
+    }
+
+    /**
+     * Create the table and the triggers that keep it up to date.  The Message and Mailbox tables
+     * must exist.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("create table " + TABLE_NAME + " (" + TYPE + " integer primary key, "
+                + MESSAGE_COUNT + " integer not null default 0, "
+                + UNREAD_COUNT + " integer not null default 0, "
+                + FAVORITE_COUNT + " integer not null default 0)");
+
+        db.execSQL("create trigger type_count_message_insert after insert on "
+                + Message.TABLE_NAME + " begin " + countMessage("NEW.", "+") + "end");
+        db.execSQL("create trigger type_count_message_delete after delete on "
+                + Message.TABLE_NAME + " begin " + countMessage("OLD.", "-") + "end");
+        // A message is moved, read, starred or loaded
+        db.execSQL("create trigger type_count_message_update after update of "
+                + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.FLAG_READ + ", "
+                + MessageColumns.FLAG_FAVORITE + ", " + MessageColumns.FLAG_LOADED + " on "
+                + Message.TABLE_NAME
+                + " when OLD." + MessageColumns.MAILBOX_KEY + " is not NEW."
+                + MessageColumns.MAILBOX_KEY
+                + " or OLD." + MessageColumns.FLAG_READ + " is not NEW." + MessageColumns.FLAG_READ
+                + " or OLD." + MessageColumns.FLAG_FAVORITE + " is not NEW."
+                + MessageColumns.FLAG_FAVORITE
+                + " or OLD." + MessageColumns.FLAG_LOADED + " is not NEW."
+                + MessageColumns.FLAG_LOADED
+                + " begin " + countMessage("OLD.", "-") + countMessage("NEW.", "+") + "end");
+        // A mailbox changes type, taking its messages along.  (Deleting a mailbox deletes its
+        // messages first.)
+        db.execSQL("create trigger type_count_mailbox_type after update of "
+                + MailboxColumns.TYPE + " on " + Mailbox.TABLE_NAME
+                + " when OLD." + MailboxColumns.TYPE + " is not NEW." + MailboxColumns.TYPE
+                + " begin "
+                + countMailbox("OLD." + EmailContent.RECORD_ID, "OLD." + MailboxColumns.TYPE, "-")
+                + countMailbox("NEW." + EmailContent.RECORD_ID, "NEW." + MailboxColumns.TYPE, "+")
+                + "end");
+    }
+
+    /**
+     * Count the existing messages afresh.
+     */
+    static void recountAll(SQLiteDatabase db) {
+        db.execSQL("delete from " + TABLE_NAME);
+        db.execSQL("insert into " + TABLE_NAME + " (" + TYPE + ", " + MESSAGE_COUNT + ", "
+                + UNREAD_COUNT + ", " + FAVORITE_COUNT + ")"
+                + " select " + Mailbox.TABLE_NAME + "." + MailboxColumns.TYPE + ", count(*), "
+                + "sum(" + countIf(isUnread("")) + "), sum(" + countIf(isFavorite("")) + ")"
+                + " from " + Message.TABLE_NAME + " join " + Mailbox.TABLE_NAME + " on "
+                + Mailbox.TABLE_NAME + "." + EmailContent.RECORD_ID + "="
+                + MessageColumns.MAILBOX_KEY
+                + " where " + Mailbox.TABLE_NAME + "." + MailboxColumns.TYPE + " is not null"
+                + " group by " + Mailbox.TABLE_NAME + "." + MailboxColumns.TYPE);
+    }
+}
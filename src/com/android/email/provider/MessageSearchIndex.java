@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.utility.TextUtilities;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The local full text index over message subjects, senders and bodies: an FTS4 table in
+ * EmailProvider.db whose docid is the message id.
+ *
+ * Subjects and senders are kept up to date by triggers on the Message table.  Bodies live in the
+ * body database, which triggers can't reach, so EmailProvider calls {@link #indexBodies} whenever
+ * it writes Body rows.
+ */
+final class MessageSearchIndex {
+    static final String TABLE_NAME = "MessageSearch";
+    // While existing bodies are being indexed by indexAllBodies(), this table has one row, with
+    // the id of the last Body indexed; it's kept in the database so that indexing resumes from
+    // there the next time the database is opened, if the process dies first
+    static final String BACKFILL_TABLE_NAME = "MessageSearchBackfill";
+    private static final String LAST_BODY_ID = "lastBodyId";
+
+    static final String SUBJECT = "subject";
+    static final String SENDER = "sender";
+    static final String BODY = "body";
+
+    // We only index the start of long bodies; that's where what people search for usually is,
+    // and it keeps the index (and the cursor windows used to fill it) bounded
+    @VisibleForTesting
+    static final int MAX_INDEXED_BODY_LENGTH = 32 * 1024;
+    // HTML is longer than the text it holds; read this much of it before stripping the tags
+    private static final int MAX_INDEXED_HTML_LENGTH = 4 * MAX_INDEXED_BODY_LENGTH;
+
+    // Number of bodies indexed per transaction by indexAllBodies()
+    private static final int BODY_BATCH_SIZE = 100;
+
+    // Relative weight of a hit in each column (in the order of the table's columns) when ranking
+    private static final double[] COLUMN_WEIGHTS = { 4.0, 2.0, 1.0 };
+
+    // Arguments to snippet(): start match, end match, ellipsis, column (any), tokens
+    private static final String SNIPPET =
+        "snippet(" + TABLE_NAME + ", '<b>', '</b>', '...', -1, 12)";
+
+    /**
+     * @return the SQL for the indexed sender of a message: its display name and from list
+     * @param prefix the prefix for the Message columns (e.g. "NEW." in a trigger)
+     */
+    private static String senderExpression(String prefix) {
+        return "ifnull(" + prefix + MessageColumns.DISPLAY_NAME + ", '') || ' ' || ifnull("
+                + prefix + MessageColumns.FROM_LIST + ", '')";
+    }
+
+    private static final String BODY_PROJECTION_SQL = "select "
+        + EmailContent.RECORD_ID + ", " + BodyColumns.MESSAGE_KEY
+        + ", substr(" + BodyColumns.TEXT_CONTENT + ", 1, " + MAX_INDEXED_BODY_LENGTH + ")"
+        + ", substr(" + BodyColumns.HTML_CONTENT + ", 1, " + MAX_INDEXED_HTML_LENGTH + ")"
+        + " from " + Body.TABLE_NAME;
+    private static final int BODY_ID_COLUMN = 0;
+    private static final int BODY_MESSAGE_KEY_COLUMN = 1;
+    private static final int BODY_TEXT_COLUMN = 2;
+    private static final int BODY_HTML_COLUMN = 3;
+
+    private static final String WHERE_DOCID = "docid=?";
+
+    private MessageSearchIndex() {
+    }
+
+    /**
+     * Create the index and the triggers that keep it in step with the Message table.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + TABLE_NAME + " using fts4 ("
+                + SUBJECT + ", " + SENDER + ", " + BODY + ")");
+        db.execSQL("create trigger message_search_insert after insert on " + Message.TABLE_NAME
+                + " begin insert into " + TABLE_NAME + " (docid, " + SUBJECT + ", " + SENDER
+                + ") values (NEW." + EmailContent.RECORD_ID + ", NEW." + MessageColumns.SUBJECT
+                + ", " + senderExpression("NEW.") + "); end");
+        db.execSQL("create trigger message_search_update after update of "
+                + MessageColumns.SUBJECT + ", " + MessageColumns.DISPLAY_NAME + ", "
+                + MessageColumns.FROM_LIST + " on " + Message.TABLE_NAME
+                + " begin update " + TABLE_NAME + " set " + SUBJECT + "=NEW."
+                + MessageColumns.SUBJECT + ", " + SENDER + "=" + senderExpression("NEW.")
+                + " where docid=OLD." + EmailContent.RECORD_ID + "; end");
+        db.execSQL("create trigger message_search_delete after delete on " + Message.TABLE_NAME
+                + " begin delete from " + TABLE_NAME + " where docid=OLD."
+                + EmailContent.RECORD_ID + "; end");
+        db.execSQL("create table " + BACKFILL_TABLE_NAME + " (" + LAST_BODY_ID + " integer)");
+    }
+
+    /**
+     * Fill the index with the subjects and senders of all existing messages.  Bodies are in the
+     * other database, so they're added later by {@link #indexAllBodies}; until then,
+     * {@link #needsBodies} is true.
+     */
+    static void indexAllMessages(SQLiteDatabase db) {
+        db.execSQL("delete from " + TABLE_NAME);
+        db.execSQL("insert into " + TABLE_NAME + " (docid, " + SUBJECT + ", " + SENDER + ")"
+                + " select " + EmailContent.RECORD_ID + ", " + MessageColumns.SUBJECT
+                + ", " + senderExpression("")
+                + " from " + Message.TABLE_NAME);
+        db.execSQL("delete from " + BACKFILL_TABLE_NAME);
+        db.execSQL("insert into " + BACKFILL_TABLE_NAME + " values (0)");
+    }
+
+    /**
+     * @return true if {@link #indexAllBodies} has yet to finish indexing the existing bodies
+     */
+    static boolean needsBodies(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, BACKFILL_TABLE_NAME) > 0;
+    }
+
+    /**
+     * Index the bodies of all existing messages, from where it last stopped, in small
+     * transactions so that the provider stays usable meanwhile.  Must be called with the body
+     * database attached.
+     */
+    static void indexAllBodies(SQLiteDatabase db) {
+        while (indexBodyBatch(db, BODY_BATCH_SIZE)) {
+            // Each batch is committed before the next one starts
+        }
+    }
+
+    /**
+     * Index the next {@code batchSize} bodies for {@link #indexAllBodies}, and record how far
+     * it got, in one transaction.
+     *
+     * @return true if there are more bodies to index
+     */
+    @VisibleForTesting
+    static boolean indexBodyBatch(SQLiteDatabase db, int batchSize) {
+        db.beginTransaction();
+        try {
+            final String lastBodyId = DatabaseUtils.stringForQuery(db, "select ifnull(max("
+                    + LAST_BODY_ID + "), -1) from " + BACKFILL_TABLE_NAME, null);
+            if (lastBodyId.equals("-1")) {
+                // Nothing to do, or done
+                return false;
+            }
+            final String[] args = new String[] { lastBodyId };
+            int count = 0;
+            Cursor c = db.rawQuery(BODY_PROJECTION_SQL + " where " + EmailContent.RECORD_ID
+                    + ">? order by " + EmailContent.RECORD_ID + " limit " + batchSize, args);
+            try {
+                while (c.moveToNext()) {
+                    indexBody(db, c);
+                    args[0] = c.getString(BODY_ID_COLUMN);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+            if (count < batchSize) {
+                db.execSQL("delete from " + BACKFILL_TABLE_NAME);
+            } else {
+                db.execSQL("update " + BACKFILL_TABLE_NAME + " set " + LAST_BODY_ID + "=?", args);
+            }
+            db.setTransactionSuccessful();
+            return count == batchSize;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Re-index the bodies of the Body rows matching the selection, after they've been written.
+     */
+    static void indexBodies(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String sql = BODY_PROJECTION_SQL;
+        if (!TextUtils.isEmpty(selection)) {
+            sql += " where " + selection;
+        }
+        Cursor c = db.rawQuery(sql, selectionArgs);
+        try {
+            while (c.moveToNext()) {
+                indexBody(db, c);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void indexBody(SQLiteDatabase db, Cursor c) {
+        ContentValues cv = new ContentValues(1);
+        cv.put(BODY, getIndexableText(c.getString(BODY_TEXT_COLUMN),
+                c.getString(BODY_HTML_COLUMN)));
+        db.update(TABLE_NAME, cv, WHERE_DOCID,
+                new String[] { c.getString(BODY_MESSAGE_KEY_COLUMN) });
+    }
+
+    /**
+     * @return the text to index for a body: the plain text if there is any, otherwise the HTML
+     * with its tags stripped
+     */
+    @VisibleForTesting
+    static String getIndexableText(String text, String html) {
+        if (!TextUtils.isEmpty(text)) {
+            return TextUtilities.makeSnippetFromText(text, false, MAX_INDEXED_BODY_LENGTH);
+        }
+        return TextUtilities.makeSnippetFromText(html, true, MAX_INDEXED_BODY_LENGTH);
+    }
+
+    /** A matching message and its rank */
+    private static class Hit {
+        final long mId;
+        final long mTimestamp;
+        final double mScore;
+
+        Hit(long id, long timestamp, double score) {
+            mId = id;
+            mTimestamp = timestamp;
+            mScore = score;
+        }
+    }
+
+    /** Best score first; among equal scores, the most recent message first */
+    private static final Comparator<Hit> RANK_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore > rhs.mScore ? -1 : 1;
+            }
+            if (lhs.mTimestamp != rhs.mTimestamp) {
+                return lhs.mTimestamp > rhs.mTimestamp ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Compute a rank from the result of matchinfo(MessageSearch, 'pcx'): for each phrase and
+     * column, the column's weight times the share of all hits on the phrase found in this row.
+     */
+    @VisibleForTesting
+    static double score(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < columns; col++) {
+                // Three values per phrase and column: hits in this row, hits in all rows, and
+                // number of rows with hits
+                int offset = 4 * (2 + 3 * (p * columns + col));
+                int hitsThisRow = buffer.getInt(offset);
+                int hitsAllRows = buffer.getInt(offset + 4);
+                if (hitsThisRow > 0) {
+                    double weight = (col < COLUMN_WEIGHTS.length) ? COLUMN_WEIGHTS[col] : 1.0;
+                    score += weight * hitsThisRow / hitsAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Search the index.  Matching messages are ranked in memory (only their ids, timestamps and
+     * match info are read), and then the requested columns and snippets are read for the best
+     * {@code limit} of them.
+     *
+     * @param query the FTS query
+     * @param projection the Message columns to return; the snippet is added as the last column
+     * @param selection an optional selection on the Message table
+     * @param limit the maximum number of results, or null for all of them
+     */
+    static Cursor search(SQLiteDatabase db, String query, String[] projection, String selection,
+            String[] selectionArgs, String limit) {
+        if (projection == null) {
+            projection = Message.CONTENT_PROJECTION;
+        }
+        String[] columns = Arrays.copyOf(projection, projection.length + 1);
+        columns[projection.length] = Message.SEARCH_SNIPPET;
+        MatrixCursor result = new MatrixCursor(columns);
+        if (TextUtils.isEmpty(query)) {
+            return result;
+        }
+
+        String[] args = new String[(selectionArgs == null ? 0 : selectionArgs.length) + 1];
+        args[0] = query;
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+        String from = " from " + TABLE_NAME + " join " + Message.TABLE_NAME + " on "
+                + Message.TABLE_NAME + "." + EmailContent.RECORD_ID + "=" + TABLE_NAME + ".docid"
+                + " where " + TABLE_NAME + " match ?";
+        if (!TextUtils.isEmpty(selection)) {
+            from += " and (" + selection + ")";
+        }
+
+        // First pass: rank all the matches
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        Cursor c = db.rawQuery("select docid, " + MessageColumns.TIMESTAMP
+                + ", matchinfo(" + TABLE_NAME + ", 'pcx')" + from, args);
+        try {
+            while (c.moveToNext()) {
+                hits.add(new Hit(c.getLong(0), c.getLong(1), score(c.getBlob(2))));
+            }
+        } finally {
+            c.close();
+        }
+        if (hits.isEmpty()) {
+            return result;
+        }
+        Collections.sort(hits, RANK_ORDER);
+        int count = hits.size();
+        if (limit != null) {
+            try {
+                count = Math.min(count, Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                Log.w(Logging.LOG_TAG, "Ignoring bad search limit: " + limit);
+            }
+        }
+
+        // Second pass: read the rows we're returning
+        HashMap<Long, Integer> positions = new HashMap<Long, Integer>(count);
+        for (int i = 0; i < count; i++) {
+            positions.put(hits.get(i).mId, i);
+        }
+        StringBuilder sb = new StringBuilder("select ");
+        for (String column : projection) {
+            sb.append(Message.TABLE_NAME).append('.').append(column).append(", ");
+        }
+        sb.append(SNIPPET).append(", docid").append(from).append(" and docid in (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(hits.get(i).mId);
+        }
+        sb.append(')');
+        Object[][] rows = new Object[count][];
+        c = db.rawQuery(sb.toString(), args);
+        try {
+            int idColumn = columns.length;
+            while (c.moveToNext()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = getValue(c, i);
+                }
+                Integer position = positions.get(c.getLong(idColumn));
+                if (position != null) {
+                    rows[position] = row;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (Object[] row : rows) {
+            // A message might have been deleted between the two passes
+            if (row != null) {
+                result.addRow(row);
+            }
+        }
+        return result;
+    }
+
+    private static Object getValue(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return c.getString(column);
+        }
+    }
+}
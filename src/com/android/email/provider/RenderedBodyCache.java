@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+
+/**
+ * An LRU cache of message bodies as they're displayed, i.e. after the plain text has been
+ * escaped and linkified, keyed by message id.  The message view fills it, and
+ * {@link EmailProvider} drops a message's entry whenever its Body row is written, so an entry is
+ * always as new as the body in the database.
+ *
+ * As with {@link ContentCache}, EmailProvider writes a Body row in three steps:
+ * 1. Lock the message: RenderedBodyCache.lock(messageId);
+ * 2. Write the row: db.update(...);
+ * 3. Unlock the message: RenderedBodyCache.unlock(messageId);
+ * Nothing is cached for a message while it's locked, and unlocking invalidates the tokens handed
+ * out while it was, as they may have been used to read the old row.
+ *
+ * As with {@link ContentCache}, a body is cached in three steps, so that a body that changes
+ * while it's being rendered isn't cached:
+ * 1. Get a token: int token = RenderedBodyCache.getToken();
+ * 2. Read the body from the database, and render it
+ * 3. Put it in the cache: RenderedBodyCache.put(messageId, token, body);
+ */
+public class RenderedBodyCache {
+    /** The bodies' size limit, in chars */
+    @VisibleForTesting
+    static final int MAX_CACHED_CHARS = 1024 * 1024;
+
+    /**
+     * A rendered body.
+     */
+    public static class RenderedBody {
+        /** The HTML to display */
+        public final String mHtml;
+        /** The HTML, if the body is HTML, to have its inline images resolved; null otherwise */
+        public final String mHtmlRaw;
+        /** Whether the body refers to images */
+        public final boolean mHasImages;
+
+        public RenderedBody(String html, String htmlRaw, boolean hasImages) {
+            mHtml = html;
+            mHtmlRaw = htmlRaw;
+            mHasImages = hasImages;
+        }
+
+        /*package*/ int getSize() {
+            // The raw HTML is usually the same string as the HTML
+            int size = (mHtml == null) ? 0 : mHtml.length();
+            if (mHtmlRaw != null && mHtmlRaw != mHtml) {
+                size += mHtmlRaw.length();
+            }
+            return Math.max(size, 1);
+        }
+    }
+
+    private static final LruCache<Long, RenderedBody> sCache =
+            new LruCache<Long, RenderedBody>(MAX_CACHED_CHARS) {
+        @Override
+        protected int sizeOf(Long messageId, RenderedBody body) {
+            return body.getSize();
+        }
+    };
+
+    // Changed by every invalidation; a token is valid while it's unchanged
+    private static int sGeneration;
+    // The number of writes in progress, for each message that has any
+    private static final HashMap<Long, Integer> sLockCounts = new HashMap<Long, Integer>();
+
+    private RenderedBodyCache() {
+    }
+
+    /**
+     * @return the rendered body of a message, or null if it isn't cached
+     */
+    public static RenderedBody get(long messageId) {
+        return sCache.get(messageId);
+    }
+
+    /**
+     * @return a token to pass to {@link #put}; get it before reading the body
+     */
+    public static synchronized int getToken() {
+        return sGeneration;
+    }
+
+    /**
+     * Caches the rendered body of a message, unless a body has been written since
+     * {@code token} was handed out, or the message's body is being written.
+     */
+    public static synchronized void put(long messageId, int token, RenderedBody body) {
+        if (token == sGeneration && !sLockCounts.containsKey(messageId)) {
+            sCache.put(messageId, body);
+        }
+    }
+
+    /**
+     * Drops the rendered body of a message, whose Body row is about to be written, and keeps it
+     * from being cached until {@link #unlock} is called.
+     */
+    /*package*/ static synchronized void lock(long messageId) {
+        final Integer count = sLockCounts.get(messageId);
+        sLockCounts.put(messageId, (count == null) ? 1 : count + 1);
+        invalidate(messageId);
+    }
+
+    /**
+     * Drops the rendered body of a message, whose Body row has been written, along with any
+     * tokens handed out since {@link #lock} was called.
+     */
+    /*package*/ static synchronized void unlock(long messageId) {
+        final Integer count = sLockCounts.get(messageId);
+        if (count == null || count <= 1) {
+            sLockCounts.remove(messageId);
+        } else {
+            sLockCounts.put(messageId, count - 1);
+        }
+        invalidate(messageId);
+    }
+
+    /**
+     * Drops the rendered body of a message, whose Body row has been written.
+     */
+    /*package*/ static synchronized void invalidate(long messageId) {
+        sGeneration++;
+        sCache.remove(messageId);
+    }
+
+    /**
+     * Drops all the rendered bodies.
+     */
+    @VisibleForTesting
+    /*package*/ static synchronized void invalidateAll() {
+        sGeneration++;
+        sCache.evictAll();
+    }
+}
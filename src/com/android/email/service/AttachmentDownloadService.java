@@ -29,6 +29,7 @@ import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
@@ -41,6 +42,7 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
@@ -81,13 +83,21 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
+    // The number of simultaneous downloads we start with; from there, it adapts to how the
+    // downloads fare (see DownloadSet.updateDownloadLimit), up to the limit for the network
     private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
+    // Limit on the number of simultaneous downloads on a WiFi network
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS_WIFI = 4;
+    // Limit on the number of simultaneous downloads per server; accounts on the same server
+    // share it
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_HOST = 2;
     // Limit on the number of simultaneous downloads per account
     // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
     private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
     // Limit on the number of attachments we'll check for background download
     private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
+    // Downloads smaller than this are mostly round trips, and tell us little about throughput
+    private static final long MIN_THROUGHPUT_SAMPLE_SIZE = 32 * 1024;
 
     private static final String EXTRA_ATTACHMENT =
         "com.android.email.AttachmentDownloadService.attachment";
@@ -102,6 +112,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
+    // A map of account ids to the server their attachments are downloaded from
+    private final HashMap<Long, String> mAccountHostMap = new HashMap<Long, String>();
     // A map of attachment storage used per account
     // NOTE: This map is not kept current in terms of deletions (i.e. it stores the last calculated
     // amount plus the size of any new attachments laoded).  If and when we reach the per-account
@@ -169,14 +181,18 @@ public class AttachmentDownloadService extends Service implements Runnable {
         final long attachmentId;
         final long messageId;
         final long accountId;
+        final long size;
         boolean inProgress = false;
+        // Whether this background download has given up its slot to a user request
+        boolean preempted = false;
         int lastStatusCode;
         int lastProgress;
         long lastCallbackTime;
         long startTime;
 
-        private DownloadRequest(Context context, Attachment attachment) {
+        /*package*/ DownloadRequest(Context context, Attachment attachment) {
             attachmentId = attachment.mId;
+            size = attachment.mSize;
             Message msg = Message.restoreMessageWithId(context, attachment.mMessageKey);
             if (msg != null) {
                 accountId = msg.mAccountKey;
@@ -206,7 +222,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
     /**
      * Comparator class for the download set; we first compare by priority.  Requests with equal
-     * priority are compared by the time the request was created (older requests come first)
+     * priority are compared by the time the request was created (older requests come first), and
+     * then by attachment id, so that requests created at the same time are both kept
      */
     /*protected*/ static class DownloadComparator implements Comparator<DownloadRequest> {
         @Override
@@ -214,12 +231,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
             int res;
             if (req1.priority != req2.priority) {
                 res = (req1.priority < req2.priority) ? -1 : 1;
+            } else if (req1.time != req2.time) {
+                res = (req1.time > req2.time) ? -1 : 1;
+            } else if (req1.attachmentId != req2.attachmentId) {
+                res = (req1.attachmentId > req2.attachmentId) ? -1 : 1;
             } else {
-                if (req1.time == req2.time) {
-                    res = 0;
-                } else {
-                    res = (req1.time > req2.time) ? -1 : 1;
-                }
+                res = 0;
             }
             return res;
         }
@@ -231,11 +248,27 @@ public class AttachmentDownloadService extends Service implements Runnable {
      * are always processed first; among equals, the oldest request is processed first.  The
      * priority key represents this ordering.  Note: All methods that change the attachment map are
      * synchronized on the map itself
+     *
+     * The number of simultaneous downloads adapts to the link (see updateDownloadLimit), and is
+     * also limited per server and per account.  A user request that finds all the slots taken
+     * by background downloads takes one of theirs.
      */
     /*package*/ class DownloadSet extends TreeSet<DownloadRequest> {
         private static final long serialVersionUID = 1L;
         private PendingIntent mWatchdogPendingIntent;
 
+        // The current limit on simultaneous downloads (before the limit for the network)
+        private int mDownloadLimit = MAX_SIMULTANEOUS_DOWNLOADS;
+        // Moving average of the rate of recent downloads, in bytes per second
+        private long mBytesPerSecond;
+        // Statistics, for dump()
+        private long mBytesDownloaded;
+        private int mDownloadsSucceeded;
+        private int mDownloadsFailed;
+        private int mDownloadsPreempted;
+        // Whether there may be new attachments to prefetch since the database was last checked
+        private boolean mPrefetchCheckNeeded = true;
+
         /*package*/ DownloadSet(Comparator<? super DownloadRequest> comparator) {
             super(comparator);
         }
@@ -246,6 +279,30 @@ public class AttachmentDownloadService extends Service implements Runnable {
         /*package*/ final ConcurrentHashMap<Long, DownloadRequest> mDownloadsInProgress =
             new ConcurrentHashMap<Long, DownloadRequest>();
 
+        /**
+         * Maps attachment id to queued DownloadRequest
+         */
+        private final HashMap<Long, DownloadRequest> mQueuedRequests =
+            new HashMap<Long, DownloadRequest>();
+
+        @Override
+        public synchronized boolean add(DownloadRequest req) {
+            if (!super.add(req)) {
+                return false;
+            }
+            mQueuedRequests.put(req.attachmentId, req);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean remove(Object object) {
+            if (!super.remove(object)) {
+                return false;
+            }
+            mQueuedRequests.remove(((DownloadRequest) object).attachmentId);
+            return true;
+        }
+
         /**
          * onChange is called by the AttachmentReceiver upon receipt of a valid notification from
          * EmailProvider that an attachment has been inserted or modified.  It's not strictly
@@ -255,6 +312,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         public synchronized void onChange(Context context, Attachment att) {
             DownloadRequest req = findDownloadRequest(att.mId);
             long priority = getPriority(att);
+            // A new attachment might be worth prefetching
+            mPrefetchCheckNeeded = true;
             if (priority == PRIORITY_NONE) {
                 if (Email.DEBUG) {
                     Log.d(TAG, "== Attachment changed: " + att.mId);
@@ -275,6 +334,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 if (req == null) {
                     req = new DownloadRequest(context, att);
                     add(req);
+                    if (req.priority == PRIORITY_FOREGROUND) {
+                        preemptBackgroundDownload();
+                    }
                 }
                 // If the request already existed, we'll update the priority (so that the time is
                 // up-to-date); otherwise, we create a new request
@@ -293,14 +355,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
          * @return the DownloadRequest for that attachment (or null, if none)
          */
         /*package*/ synchronized DownloadRequest findDownloadRequest(long id) {
-            Iterator<DownloadRequest> iterator = iterator();
-            while(iterator.hasNext()) {
-                DownloadRequest req = iterator.next();
-                if (req.attachmentId == id) {
-                    return req;
-                }
-            }
-            return null;
+            return mQueuedRequests.get(id);
         }
 
         @Override
@@ -317,21 +372,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 Log.d(TAG, "== Checking attachment queue, " + mDownloadSet.size() + " entries");
             }
 
+            int downloadLimit = getDownloadLimit();
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
-            while (iterator.hasNext() &&
-                    (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
+            while (iterator.hasNext() && (activeDownloads() < downloadLimit)) {
                 DownloadRequest req = iterator.next();
-                 // Enforce per-account limit here
-                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
-                    if (Email.DEBUG) {
-                        Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
-                                req.accountId);
-                    }
-                    continue;
-                }
-
-                if (!req.inProgress) {
+                if (!req.inProgress && canStartDownload(req.attachmentId, req.accountId)) {
                     mDownloadSet.tryStartDownload(req);
                 }
             }
@@ -344,10 +390,10 @@ public class AttachmentDownloadService extends Service implements Runnable {
             if (ecm.getActiveNetworkType() != ConnectivityManager.TYPE_WIFI) {
                 return;
             }
-            // Then, try opportunistic download of appropriate attachments
-            int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
+            // Then, try opportunistic download of appropriate attachments, unless we already
+            // know that there are none
             // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
+            if (mPrefetchCheckNeeded && (downloadLimit - activeDownloads() > 1)) {
                 // We'll load up the newest 25 attachments that aren't loaded or queued
                 Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
                         MAX_ATTACHMENTS_TO_CHECK);
@@ -355,8 +401,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
                         EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
                         null, Attachment.RECORD_ID + " DESC");
                 File cacheDir = mContext.getCacheDir();
+                boolean started = false;
                 try {
-                    while (c.moveToNext()) {
+                    while (c.moveToNext() && (downloadLimit - activeDownloads() > 1)) {
                         long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
                         long id = c.getLong(AttachmentInfo.COLUMN_ID);
                         Account account = Account.restoreAccountWithId(mContext, accountKey);
@@ -376,10 +423,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
                                         // move onto the next attachment
                                         continue;
                                     }
-                                    // Start this download and we're done
+                                    if (!canStartDownload(att.mId, accountKey)) {
+                                        continue;
+                                    }
+                                    // Start this download, and see if there's room for another
                                     DownloadRequest req = new DownloadRequest(mContext, att);
-                                    mDownloadSet.tryStartDownload(req);
-                                    break;
+                                    started |= mDownloadSet.tryStartDownload(req);
                                 }
                             }
                         }
@@ -387,6 +436,114 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 } finally {
                     c.close();
                 }
+                // Unless we started a download, and there may be more, there's no point in
+                // checking again until an attachment changes or a download ends
+                mPrefetchCheckNeeded = started;
+            }
+        }
+
+        /**
+         * Check the per-account and per-server limits for a download
+         * @return whether the download can be started now
+         */
+        private boolean canStartDownload(long attachmentId, long accountId) {
+            // Enforce per-account limit here
+            if (downloadsForAccount(accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
+                if (Email.DEBUG) {
+                    Log.d(TAG, "== Skip #" + attachmentId + "; maxed for acct #" + accountId);
+                }
+                return false;
+            }
+            String host = getHostForAccount(accountId);
+            if (downloadsForHost(host) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_HOST) {
+                if (Email.DEBUG) {
+                    Log.d(TAG, "== Skip #" + attachmentId + "; maxed for host " + host);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Return the current limit on simultaneous downloads; that's the limit we've adapted to,
+         * within the limit for the active network
+         */
+        /*package*/ synchronized int getDownloadLimit() {
+            int networkLimit = MAX_SIMULTANEOUS_DOWNLOADS;
+            EmailConnectivityManager ecm = mConnectivityManager;
+            if (ecm != null && ecm.getActiveNetworkType() == ConnectivityManager.TYPE_WIFI) {
+                networkLimit = MAX_SIMULTANEOUS_DOWNLOADS_WIFI;
+            }
+            return Math.min(mDownloadLimit, networkLimit);
+        }
+
+        /**
+         * Adapt the limit on simultaneous downloads to how the link copes with them.  A dropped
+         * connection halves it.  A download that went at least as fast as the recent ones lets us
+         * try one more at a time, while one that went much slower means that we're only splitting
+         * the link further, so we back off by one.
+         * @param req the DownloadRequest that ended
+         * @param statusCode the EmailServiceStatus code returned by the Service
+         */
+        /*package*/ synchronized void updateDownloadLimit(DownloadRequest req, int statusCode) {
+            if (statusCode == EmailServiceStatus.SUCCESS) {
+                mDownloadsSucceeded++;
+                mBytesDownloaded += req.size;
+            } else {
+                mDownloadsFailed++;
+            }
+            if (statusCode == EmailServiceStatus.CONNECTION_ERROR) {
+                mDownloadLimit = Math.max(1, mDownloadLimit / 2);
+            } else if (statusCode == EmailServiceStatus.SUCCESS
+                    && req.size >= MIN_THROUGHPUT_SAMPLE_SIZE) {
+                long elapsed = Math.max(1, System.currentTimeMillis() - req.startTime);
+                long bytesPerSecond = req.size * DateUtils.SECOND_IN_MILLIS / elapsed;
+                if (mBytesPerSecond > 0) {
+                    if (bytesPerSecond >= mBytesPerSecond) {
+                        mDownloadLimit = Math.min(mDownloadLimit + 1,
+                                MAX_SIMULTANEOUS_DOWNLOADS_WIFI);
+                    } else if (bytesPerSecond < mBytesPerSecond / 2) {
+                        mDownloadLimit = Math.max(1, mDownloadLimit - 1);
+                    }
+                    bytesPerSecond = (mBytesPerSecond * 3 + bytesPerSecond) / 4;
+                }
+                mBytesPerSecond = bytesPerSecond;
+            }
+        }
+
+        /**
+         * Count the number of downloads in progress that hold a slot, i.e. haven't been
+         * preempted
+         * @return the count of active downloads
+         */
+        /*package*/ synchronized int activeDownloads() {
+            int count = 0;
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (!req.preempted) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * If all slots are taken, have a background download give up its own to a user request.
+         * The service can't stop the download, so it carries on (and still counts against the
+         * limits of its account and server), but no longer holds back the user's download.
+         */
+        private void preemptBackgroundDownload() {
+            if (activeDownloads() < getDownloadLimit()) {
+                return;
+            }
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (!req.preempted && req.priority < PRIORITY_SEND_MAIL) {
+                    if (Email.DEBUG) {
+                        Log.d(TAG, "== Preempting background download #" + req.attachmentId);
+                    }
+                    req.preempted = true;
+                    mDownloadsPreempted++;
+                    return;
+                }
             }
         }
 
@@ -405,6 +562,21 @@ public class AttachmentDownloadService extends Service implements Runnable {
             return count;
         }
 
+        /**
+         * Count the number of running downloads in progress from this server
+         * @param host the server, as returned by getHostForAccount
+         * @return the count of running downloads
+         */
+        /*package*/ synchronized int downloadsForHost(String host) {
+            int count = 0;
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (host.equals(getHostForAccount(req.accountId))) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         /**
          * Watchdog for downloads; we use this in case we are hanging on a download, which might
          * have failed silently (the connection dropped, for example)
@@ -513,7 +685,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest inProgressReq = mDownloadsInProgress.remove(attachmentId);
+            if (inProgressReq != null) {
+                updateDownloadLimit(inProgressReq, statusCode);
+            }
+            // The slot may go to a prefetch
+            mPrefetchCheckNeeded = true;
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -722,6 +899,29 @@ public class AttachmentDownloadService extends Service implements Runnable {
         return serviceIntent;
     }
 
+    /**
+     * Return the server that attachments of the given account are downloaded from, so that
+     * accounts on the same server share its limit.  We cache the results to avoid repeated
+     * database access
+     * @param accountId the id of the account
+     * @return the server's address or, if it's unknown, a key unique to the account
+     */
+    private synchronized String getHostForAccount(long accountId) {
+        String host = mAccountHostMap.get(accountId);
+        if (host == null) {
+            Account account = Account.restoreAccountWithId(mContext, accountId);
+            HostAuth hostAuth = (account == null) ? null
+                    : HostAuth.restoreHostAuthWithId(mContext, account.mHostAuthKeyRecv);
+            if (hostAuth != null && !TextUtils.isEmpty(hostAuth.mAddress)) {
+                host = hostAuth.mAddress.toLowerCase();
+            } else {
+                host = "account #" + accountId;
+            }
+            mAccountHostMap.put(accountId, host);
+        }
+        return host;
+    }
+
     /*package*/ void addServiceIntentForTest(long accountId, Intent intent) {
         mAccountServiceMap.put(accountId, intent);
     }
@@ -965,7 +1165,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
         pw.println("AttachmentDownloadService");
         long time = System.currentTimeMillis();
         synchronized(mDownloadSet) {
-            pw.println("  Queue, " + mDownloadSet.size() + " entries");
+            pw.println("  Queue, " + mDownloadSet.size() + " entries; in progress, "
+                    + mDownloadSet.mDownloadsInProgress.size() + " ("
+                    + mDownloadSet.activeDownloads() + " active); limit "
+                    + mDownloadSet.getDownloadLimit());
+            pw.println("  Rate: " + mDownloadSet.mBytesPerSecond + " bytes/s, Downloaded: "
+                    + mDownloadSet.mBytesDownloaded + " bytes, Succeeded: "
+                    + mDownloadSet.mDownloadsSucceeded + ", Failed: "
+                    + mDownloadSet.mDownloadsFailed + ", Preempted: "
+                    + mDownloadSet.mDownloadsPreempted);
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
             while (iterator.hasNext()) {
@@ -1002,6 +1210,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                     pw.println("      Started: " + req.startTime + ", Callback: " +
                             req.lastCallbackTime);
                     pw.println("      Elapsed: " + ((time - req.startTime) / 1000L) + "s");
+                    if (req.size > 0 && time > req.startTime) {
+                        pw.println("      Rate: " + (req.size * req.lastProgress / 100
+                                * DateUtils.SECOND_IN_MILLIS / (time - req.startTime))
+                                + " bytes/s");
+                    }
                     if (req.lastCallbackTime > 0) {
                         pw.println("      CB: " + ((time - req.lastCallbackTime) / 1000L) + "s");
                     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stream whose buffer readers in this package can look into, and leave unread.
+ *
+ * All the {@link MimeBoundaryInputStream}s of a multipart read from one of these: each scans
+ * the window of buffered bytes for its boundary a block at a time, and whatever follows the
+ * boundary stays in the window for the next part.  Other readers just see a buffered stream.
+ */
+class LookAheadInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private boolean inEOF = false;
+
+    /** The window: buf[pos] to buf[limit - 1] have been read ahead, and not consumed yet */
+    byte[] buf;
+    int pos = 0;
+    int limit = 0;
+
+    public LookAheadInputStream(InputStream in) {
+        this.in = in;
+        buf = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * Reads ahead until the window holds at least <code>min</code> bytes, or the underlying
+     * stream ends.  Reads as much as the buffer can take at a time.
+     *
+     * @return the number of bytes in the window, fewer than <code>min</code> only at the end of
+     *         the underlying stream.
+     * @throws IOException on I/O errors.
+     */
+    int fill(int min) throws IOException {
+        while (limit - pos < min && !inEOF) {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            if (min > buf.length) {
+                byte[] newBuf = new byte[Math.max(min, buf.length * 2)];
+                System.arraycopy(buf, 0, newBuf, 0, limit);
+                buf = newBuf;
+            }
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n == -1) {
+                inEOF = true;
+            } else {
+                limit += n;
+            }
+        }
+        return limit - pos;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (pos == limit && fill(1) == 0) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit) {
+            if (len >= buf.length) {
+                // Nothing to look ahead at; don't copy it twice
+                return in.read(b, off, len);
+            }
+            if (fill(1) == 0) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * Stream that constrains itself to a single MIME body part.
@@ -29,44 +28,68 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- * 
- * 
- * 
+ *
+ * The parent's bytes are scanned for the boundary a block at a time with
+ * Boyer-Moore-Horspool, in the window of a {@link LookAheadInputStream}:
+ * the bytes before a possible boundary are known to be part of the body,
+ * and are returned without looking at them again.  The parts of a multipart
+ * must share one LookAheadInputStream, which keeps what follows a boundary
+ * for the next part.
+ *
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
-    
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
+
+    private final LookAheadInputStream s;
+    /** "--" and the boundary; the first part may start with it */
+    private final byte[] boundary;
+    /** CRLF, "--" and the boundary, which ends a part */
+    private final byte[] delimiter;
+    /** How far the scan moves on, by the last byte of the window it looked at */
+    private final int[] shifts = new int[256];
     private boolean first = true;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
+    /** Bytes at the start of the window known to be part of this body */
+    private int safe = 0;
 
     /**
      * Creates a new MimeBoundaryInputStream.
-     * @param s The underlying stream.
+     * @param s The underlying stream.  The parts of a multipart must be read
+     *          from the same {@link LookAheadInputStream}; any other stream
+     *          is wrapped in one, which may read past the end of the part.
      * @param boundary Boundary string (not including leading hyphens).
      */
-    public MimeBoundaryInputStream(InputStream s, String boundary) 
+    public MimeBoundaryInputStream(InputStream s, String boundary)
             throws IOException {
-        
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
+
+        this.s = (s instanceof LookAheadInputStream)
+                ? (LookAheadInputStream) s : new LookAheadInputStream(s);
 
         boundary = "--" + boundary;
         this.boundary = new byte[boundary.length()];
+        this.delimiter = new byte[boundary.length() + 2];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
         for (int i = 0; i < this.boundary.length; i++) {
             this.boundary[i] = (byte) boundary.charAt(i);
+            delimiter[i + 2] = this.boundary[i];
         }
-        
+
+        final int last = delimiter.length - 1;
+        for (int i = 0; i < shifts.length; i++) {
+            shifts[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shifts[delimiter[i] & 0xff] = last - i;
+        }
+
         /*
-         * By reading one byte we will update moreParts to be as expected
-         * before any bytes have been read.
+         * By looking for the first byte we will update moreParts to be as
+         * expected before any bytes have been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
-        }
+        findData();
     }
 
     /**
@@ -106,7 +129,9 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        while (findData()) {
+            s.pos += safe;
+            safe = 0;
         }
     }
     
@@ -114,51 +139,143 @@ public class MimeBoundaryInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        if (eof) {
+        if (!findData()) {
             return -1;
         }
-        
+        safe--;
+        return s.buf[s.pos++] & 0xff;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!findData()) {
+            return -1;
+        }
+        int n = Math.min(len, safe);
+        System.arraycopy(s.buf, s.pos, b, off, n);
+        s.pos += n;
+        safe -= n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && findData()) {
+            int count = (int) Math.min(n - skipped, safe);
+            s.pos += count;
+            safe -= count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return safe;
+    }
+
+    /**
+     * Makes sure the window starts with at least one byte of this body,
+     * unless the body has ended.
+     *
+     * @return <code>false</code> if the body has ended.
+     */
+    private boolean findData() throws IOException {
+        if (safe > 0) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+
+        /*
+         * Enough to tell whether the delimiter starts at the first byte.
+         */
+        final int available = s.fill(delimiter.length);
+        final byte[] buf = s.buf;
+        final int from = s.pos;
+        final int to = s.limit;
+
         if (first) {
             first = false;
-            if (matchBoundary()) {
-                return -1;
+            if (startsWith(buf, from, to, boundary)) {
+                s.pos += boundary.length;
+                endBoundary();
+                return false;
             }
         }
-        
-        int b1 = s.read();
-        int b2 = s.read();
-        
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
-                return -1;
+
+        /*
+         * Boyer-Moore-Horspool: compare the delimiter with the window from
+         * its last byte backwards; on a mismatch, shift it by how far the
+         * byte under its end is from the end of the delimiter.  The bytes
+         * it shifts past can't start a delimiter.
+         */
+        final int last = delimiter.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (j >= 0 && buf[i + j] == delimiter[j]) {
+                j--;
             }
-        }
-        
-        if (b2 != -1) {
-            s.unread(b2);
+            if (j < 0) {
+                if (i == from) {
+                    s.pos += delimiter.length;
+                    endBoundary();
+                    return false;
+                }
+                safe = i - from;
+                return true;
+            }
+            i += shifts[buf[i + last] & 0xff];
         }
 
-        parenteof = b1 == -1;
-        eof = parenteof;
-        
-        return b1;
+        if (available < delimiter.length) {
+            /*
+             * The parent has ended, without a delimiter: the rest is ours.
+             */
+            if (available == 0) {
+                parenteof = true;
+                eof = true;
+                return false;
+            }
+            safe = available;
+        } else {
+            /*
+             * A delimiter may start in the last bytes; they'll be scanned
+             * again with what follows them.
+             */
+            safe = Math.min(i, to) - from;
+        }
+        return true;
     }
-    
-    private boolean matchBoundary() throws IOException {
-        
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
-                }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
-                }
+
+    private static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[from + i] != prefix[i]) {
                 return false;
             }
         }
-        
+        return true;
+    }
+
+    /**
+     * Skips the rest of the boundary line, which has just been matched.
+     */
+    private void endBoundary() throws IOException {
         /*
          * We have a match. Is it an end boundary?
          */
@@ -178,7 +295,5 @@ public class MimeBoundaryInputStream extends InputStream {
         }
         
         eof = true;
-        
-        return true;
     }
 }
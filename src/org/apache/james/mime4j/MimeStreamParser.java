@@ -147,6 +147,11 @@ public class MimeStreamParser {
 
             handler.startMultipart(bd);
 
+            /*
+             * The preamble, the parts and the epilogue are all read through
+             * one look-ahead buffer, which the parts scan for the boundary.
+             */
+            is = new LookAheadInputStream(is);
             MimeBoundaryInputStream tempIs =
                 new MimeBoundaryInputStream(is, bd.getBoundary());
             handler.preamble(new CloseShieldInputStream(tempIs));
@@ -29,15 +29,25 @@ import java.io.InputStream;
 /**
  * Performs Base-64 decoding on an underlying stream.
  * 
+ * The underlying stream is read a buffer at a time, and {@link #read(byte[], int, int)}
+ * decodes straight into the caller's array, so bulk readers don't pay a call per byte.
  * 
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
     private final InputStream s;
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inCount = 0;
+    /** The bits of the characters of the current quantum seen so far */
+    private int quantum = 0;
+    private int quantumCount = 0;
+    /** A decoded quantum not returned yet, when the caller had no room for all of it */
+    private final byte[] outputBuffer = new byte[3];
     private int outCount = 0;
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -57,75 +67,106 @@ public class Base64InputStream extends InputStream {
     @Override
     public int read() throws IOException {
         if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
+            outIndex = 0;
+            outCount = decode(outputBuffer, 0, outputBuffer.length);
+            if (outCount == -1) {
+                outCount = 0;
                 return -1;
             }
         }
 
-        return outputBuffer[outIndex++];
+        return outputBuffer[outIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int count = Math.min(len, outCount - outIndex);
+        if (count > 0) {
+            System.arraycopy(outputBuffer, outIndex, b, off, count);
+            outIndex += count;
+            return count;
+        }
+        if (len < 3) {
+            // No room for a whole quantum; decode it aside
+            int c = read();
+            if (c == -1) {
+                return -1;
+            }
+            b[off] = (byte) c;
+            return 1 + read(b, off + 1, Math.min(len - 1, outCount - outIndex));
+        }
+        return decode(b, off, len);
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes whole quanta into <code>b</code> until it's full, the buffered input runs out,
+     * or the data ends.  Reads from the underlying stream only while nothing has been decoded.
+     *
+     * @param len at least 3
+     * @return the number of bytes decoded, or -1 at the end of the data
+     * @throws IOException on I/O errors.
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
-
-        int i;
+    private int decode(byte[] b, int off, int len) throws IOException {
+        final byte[] in = inputBuffer;
+        final byte[] translation = TRANSLATION;
+        final int lastQuantum = off + len - 3;
+        int o = off;
+        int i = inIndex;
+        int n = inCount;
+        int accum = quantum;
+        int count = quantumCount;
         // "done" is needed for the two successive '=' at the end
         while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // once we meet the first '=', avoid reading the second '='
+            if (i == n) {
+                if (o > off) {
+                    break;
+                }
+                n = s.read(in, 0, in.length);
+                i = 0;
+                if (n == -1) {
+                    // No more input; a partial quantum is dropped
+                    n = 0;
                     done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
                     break;
+                }
+                continue;
+            }
+            int c = in[i++] & 0xFF;
+            int sX = translation[c];
+            if (sX >= 0) {
+                accum = (accum << 6) | sX;
+                if (++count == 4) {
+                    b[o++] = (byte) (accum >> 16);
+                    b[o++] = (byte) (accum >> 8);
+                    b[o++] = (byte) accum;
+                    accum = 0;
+                    count = 0;
+                    if (o > lastQuantum) {
+                        break;
+                    }
+                }
+            } else if (c == '=') {
+                // once we meet the first '=', avoid reading the second '='
+                done = true;
+                if (count == 3) {
+                    b[o++] = (byte) (accum >> 10);
+                    b[o++] = (byte) (accum >> 2);
+                } else if (count == 2) {
+                    b[o++] = (byte) (accum >> 4);
+                }
             }
         }
-    }
-
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
-        }
+        inIndex = i;
+        inCount = n;
+        quantum = accum;
+        quantumCount = count;
+        return (o == off && done) ? -1 : o - off;
     }
 
     private static byte[] TRANSLATION = {
@@ -30,17 +30,49 @@ import org.apache.james.mime4j.LogFactory;
 /**
  * Performs Quoted-Printable decoding on an underlying stream.
  * 
- * 
+ * The underlying stream is read a buffer at a time, and {@link #read(byte[], int, int)}
+ * decodes straight into the caller's array: runs of literal bytes are copied in a tight loop,
+ * and escapes are decoded with a lookup table.
  * 
  * @version $Id: QuotedPrintableInputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
     
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
+    /** The value of each hexadecimal digit, and -1 for all other bytes */
+    private static final byte[] HEX_VALUE = new byte[256];
+    static {
+        for (int i = 0; i < HEX_VALUE.length; i++) {
+            HEX_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['A' + i] = (byte) (0xA + i);
+            HEX_VALUE['a' + i] = (byte) (0xA + i);
+        }
+    }
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+    private boolean streamEOF = false;
+    /** The input read ahead: inputBuffer[inIndex] to inputBuffer[inCount - 1] */
+    private byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inCount = 0;
+    /**
+     * The input before this index is known not to be "transport padding" whitespace, i.e.
+     * whitespace that appears immediately before a CRLF.
+     */
+    private int paddingChecked = 0;
+    /** Decoded bytes not returned yet, when the caller had no room for all of them */
+    private final byte[] outputBuffer = new byte[3];
+    private int outIndex = 0;
+    private int outCount = 0;
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,93 +88,146 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
-            return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
+        if (outIndex == outCount) {
+            outIndex = 0;
+            outCount = decode(outputBuffer, 0, outputBuffer.length);
+            if (outCount == -1) {
+                outCount = 0;
+                return -1;
+            }
+        }
+        return outputBuffer[outIndex++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int count = Math.min(len, outCount - outIndex);
+        if (count > 0) {
+            System.arraycopy(outputBuffer, outIndex, b, off, count);
+            outIndex += count;
+            return count;
+        }
+        if (len < 3) {
+            // A malformed escape can decode to 3 bytes; decode aside
+            int c = read();
+            if (c == -1) {
+                return -1;
+            }
+            b[off] = (byte) c;
+            return 1 + read(b, off + 1, Math.min(len - 1, outCount - outIndex));
         }
+        return decode(b, off, len);
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
+     * Reads more of the underlying stream into the input buffer, keeping the unconsumed input.
      *
+     * @return false at the end of the underlying stream.
      * @throws IOException Underlying stream threw IOException.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
-
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
-            }
+    private boolean fillInputBuffer() throws IOException {
+        if (streamEOF) {
+            return false;
+        }
+        if (inIndex > 0) {
+            System.arraycopy(inputBuffer, inIndex, inputBuffer, 0, inCount - inIndex);
+            inCount -= inIndex;
+            paddingChecked = Math.max(0, paddingChecked - inIndex);
+            inIndex = 0;
         }
+        if (inCount == inputBuffer.length) {
+            // A very long run of whitespace
+            byte[] newBuffer = new byte[inputBuffer.length * 2];
+            System.arraycopy(inputBuffer, 0, newBuffer, 0, inCount);
+            inputBuffer = newBuffer;
+        }
+        int n = stream.read(inputBuffer, inCount, inputBuffer.length - inCount);
+        if (n == -1) {
+            streamEOF = true;
+            return false;
+        }
+        inCount += n;
+        return true;
     }
 
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
+     * Decodes the buffered input into <code>b</code> until it's full, the input runs out, or
+     * the data ends, first dropping any transport padding.  Reads from the underlying stream
+     * only while nothing has been decoded.
      *
+     * @param len at least 3
+     * @return the number of bytes decoded, or -1 at the end of the data
      * @throws IOException Underlying stream threw IOException.
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
+    private int decode(byte[] b, int off, int len) throws IOException {
+        final int lastEscape = off + len - 3;
+        int o = off;
+        while (o <= lastEscape) {
+            if (inIndex == inCount) {
+                if (o > off || !fillInputBuffer()) {
+                    // at the end, a pending escape is dropped
+                    break;
+                }
             }
+            final byte[] in = inputBuffer;
+            byte c = in[inIndex];
 
-            byte b = (byte)pushbackq.dequeue();
+            if ((c == ' ' || c == '\t') && inIndex >= paddingChecked) {
+                int end = inIndex + 1;
+                while (end < inCount && (in[end] == ' ' || in[end] == '\t')) {
+                    end++;
+                }
+                if (end == inCount && !streamEOF) {
+                    if (o > off) {
+                        break;
+                    }
+                    fillInputBuffer();
+                    continue;
+                }
+                if (end == inCount || in[end] == '\r' || in[end] == '\n') {
+                    // discard any whitespace preceding EOL or EOF
+                    inIndex = end;
+                    continue;
+                }
+                paddingChecked = end;
+            }
 
+            inIndex++;
             switch (state) {
                 case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
+                    if (c != '=') {
+                        b[o++] = c;
+                        // Copy the literal bytes that follow in one go
+                        int limit = Math.min(inCount, inIndex + off + len - o);
+                        int i = inIndex;
+                        while (i < limit) {
+                            c = in[i];
+                            if (c == '=' || ((c == ' ' || c == '\t') && i >= paddingChecked)) {
+                                break;
+                            }
+                            b[o++] = c;
+                            i++;
+                        }
+                        inIndex = i;
                         break;  // state remains 0
                     } else {
                         state = 1;
                         break;
                     }
                 case 1:  // encountered "=" so far
-                    if (b == '\r') {
+                    if (c == '\r') {
                         state = 2;
                         break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    } else if (HEX_VALUE[c & 0xFF] >= 0) {
                         state = 3;
-                        msdChar = b;  // save until next digit encountered
+                        msdChar = c;  // save until next digit encountered
                         break;
-                    } else if (b == '=') {
+                    } else if (c == '=') {
                         /*
                          * Special case when == is encountered.
                          * Emit one = and stay in this state.
@@ -150,80 +235,58 @@ public class QuotedPrintableInputStream extends InputStream {
                         if (log.isWarnEnabled()) {
                             log.warn("Malformed MIME; got ==");
                         }
-                        byteq.enqueue((byte)'=');
+                        b[o++] = '=';
                         break;
                     } else {
                         if (log.isWarnEnabled()) {
                             log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
+                                    + "[0-9A-Z], got " + c);
                         }
                         state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
+                        b[o++] = '=';
+                        b[o++] = c;
                         break;
                     }
                 case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
+                    if (c == '\n') {
                         state = 0;
                         break;
                     } else {
                         if (log.isWarnEnabled()) {
                             log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
+                                    + (int)'\n' + ", got " + c);
                         }
                         state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
+                        b[o++] = '=';
+                        b[o++] = '\r';
+                        b[o++] = c;
                         break;
                     }
                 case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
+                    byte low = HEX_VALUE[c & 0xFF];
+                    if (low >= 0) {
                         state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
+                        b[o++] = (byte)((HEX_VALUE[msdChar & 0xFF] << 4) | low);
                         break;
                     } else {
                         if (log.isWarnEnabled()) {
                             log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
+                                     + "[0-9A-Z], got " + c);
                         }
                         state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
+                        b[o++] = '=';
+                        b[o++] = msdChar;
+                        b[o++] = c;
                         break;
                     }
                 default:  // should never happen
                     log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    b[o++] = c;
                     break;
             }
         }
-    }
-
-    /**
-     * Converts '0' => 0, 'A' => 10, etc.
-     * @param c ASCII character value.
-     * @return Numeric value of hexadecimal character.
-     */
-    private byte asciiCharToNumericValue(byte c) {
-        if (c >= '0' && c <= '9') {
-            return (byte)(c - '0');
-        } else if (c >= 'A' && c <= 'Z') {
-            return (byte)(0xA + (c - 'A'));
-        } else if (c >= 'a' && c <= 'z') {
-            return (byte)(0xA + (c - 'a'));
-        } else {
-            /*
-             * This should never happen since all calls to this method
-             * are preceded by a check that c is in [0-9A-Za-z]
-             */
-            throw new IllegalArgumentException((char) c 
-                    + " is not a hexadecimal digit");
-        }
+        return (o == off) ? -1 : o - off;
     }
 
 }
@@ -221,7 +221,15 @@ public final class DBTestHelper {
          * also invalidates the DB cache.
          */
         public static Context getProviderContext(Context context) throws Exception {
-            MockContentResolver resolver = new MockContentResolver();
+            return getProviderContext(context, new MockContentResolver(), new EmailProvider());
+        }
+
+        /**
+         * Same as {@link #getProviderContext(Context)}, but with the given resolver and
+         * EmailProvider, so that tests can watch or change what they do.
+         */
+        public static Context getProviderContext(Context context, MockContentResolver resolver,
+                EmailProvider ep) throws Exception {
             final String filenamePrefix = "test.";
             RenamingDelegatingContext targetContextWrapper = new RenamingDelegatingContext(
                     new MockContext2(context), // The context that most methods are delegated to
@@ -232,7 +240,6 @@ public final class DBTestHelper {
             providerContext.getContentResolver();
 
             // register EmailProvider and AttachmentProvider.
-            final EmailProvider ep = new EmailProvider();
             ep.attachInfo(providerContext, null);
             resolver.addProvider(EmailContent.AUTHORITY, ep);
 
@@ -16,13 +16,33 @@
 
 package com.android.email;
 
+import com.android.email.MessagingController.Command;
+import com.android.email.MessagingController.CommandQueue;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.MockFolder;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+
+import org.apache.commons.io.FileUtils;
 
 import android.content.ContentUris;
+import android.content.Context;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This is a series of unit tests for the MessagingController class.
@@ -72,6 +92,47 @@ public class MessagingControllerUnitTests extends AndroidTestCase {
         }
     }
 
+    /**
+     * A folder that serves ranges of a single part from memory, and records the offsets asked for
+     */
+    private static class RangeFolder extends MockFolder {
+        private final byte[] mContent;
+        private final ArrayList<Long> mOffsets = new ArrayList<Long>();
+        /** The number of ranges returned before the message is deleted from the server */
+        private int mRangesLeft = Integer.MAX_VALUE;
+
+        public RangeFolder(byte[] content) {
+            mContent = content;
+        }
+
+        @Override
+        public int fetchPartRange(Message message, String partId, long offset, int length,
+                OutputStream out) throws MessagingException {
+            mOffsets.add(offset);
+            if (mRangesLeft-- <= 0) {
+                throw new MessagingException("Part not returned");
+            }
+            final int start = (int) Math.min(offset, mContent.length);
+            final int count = Math.min(length, mContent.length - start);
+            try {
+                out.write(mContent, start, count);
+            } catch (IOException e) {
+                throw new MessagingException("Write failed", e);
+            }
+            return count;
+        }
+    }
+
+    private static final MessageRetrievalListener NULL_LISTENER = new MessageRetrievalListener() {
+        @Override
+        public void messageRetrieved(Message message) {
+        }
+
+        @Override
+        public void loadAttachmentProgress(int progress) {
+        }
+    };
+
     /**
      * Create a dummy account with minimal fields
      */
@@ -81,5 +142,192 @@ public class MessagingControllerUnitTests extends AndroidTestCase {
         
         mAccountId = mAccount.mId;
     }
+
+    private static Command newCommand(String description, long accountId, long mailboxId) {
+        return new Command(description, null, accountId, mailboxId, null);
+    }
+
+    /**
+     * Commands for different mailboxes and accounts run at the same time; commands for the same
+     * mailbox don't.
+     */
+    public void testCommandQueueMailboxes() {
+        final CommandQueue q = new CommandQueue(2);
+        final Command a1 = newCommand("a1", 1, 10);
+        final Command a2 = newCommand("a2", 1, 10);
+        final Command b = newCommand("b", 1, 11);
+        final Command c = newCommand("c", 2, 20);
+        q.add(a1);
+        q.add(a2);
+        q.add(b);
+        q.add(c);
+
+        assertSame(a1, q.poll());
+        // Account 2 has nothing running, so it goes first.
+        assertSame(c, q.poll());
+        // a2 has to wait for a1.
+        assertSame(b, q.poll());
+        assertNull(q.poll());
+        assertTrue(q.isBusy());
+        assertTrue(q.hasPendingCommands());
+
+        q.finish(a1);
+        assertSame(a2, q.poll());
+        assertFalse(q.hasPendingCommands());
+
+        q.finish(a2);
+        q.finish(b);
+        q.finish(c);
+        assertFalse(q.isBusy());
+    }
+
+    /**
+     * No more than the given number of commands run for an account.
+     */
+    public void testCommandQueueAccountLimit() {
+        final CommandQueue q = new CommandQueue(2);
+        final Command a = newCommand("a", 1, 10);
+        final Command b = newCommand("b", 1, 11);
+        final Command c = newCommand("c", 1, 12);
+        q.add(a);
+        q.add(b);
+        q.add(c);
+
+        assertSame(a, q.poll());
+        assertSame(b, q.poll());
+        assertNull(q.poll());
+        q.finish(b);
+        assertSame(c, q.poll());
+    }
+
+    /**
+     * Account-wide commands and commands for an unknown account keep their place in the queue.
+     */
+    public void testCommandQueueBarriers() {
+        final CommandQueue q = new CommandQueue(2);
+        final Command sync1 = newCommand("sync1", 1, 10);
+        final Command list1 = newCommand("list1", 1, Mailbox.NO_MAILBOX);
+        final Command sync2 = newCommand("sync2", 1, 11);
+        final Command other = newCommand("other", 2, 20);
+        final Command view = newCommand("view", Account.NO_ACCOUNT, Mailbox.NO_MAILBOX);
+        final Command other2 = newCommand("other2", 2, 21);
+        q.add(sync1);
+        q.add(list1);
+        q.add(sync2);
+        q.add(other);
+        q.add(view);
+        q.add(other2);
+
+        assertSame(sync1, q.poll());
+        // list1 waits for sync1, and sync2 waits for list1.
+        assertSame(other, q.poll());
+        // Nothing passes view.
+        assertNull(q.poll());
+
+        q.finish(sync1);
+        assertSame(list1, q.poll());
+        q.finish(list1);
+        assertSame(sync2, q.poll());
+        q.finish(sync2);
+        assertNull(q.poll());
+        q.finish(other);
+        assertSame(view, q.poll());
+        assertNull(q.poll());
+        q.finish(view);
+        assertSame(other2, q.poll());
+    }
+
+    /**
+     * Creates an attachment whose content, as stored on the server, is {@code encoded}, and of
+     * which {@code downloaded} bytes are recorded as already fetched.
+     */
+    private static Attachment setupChunkedAttachment(Context context, byte[] encoded,
+            int downloaded) {
+        final Account account = ProviderTestUtils.setupAccount("chunks", true, context);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true,
+                context);
+        final long messageId = ProviderTestUtils.setupMessage("message", account.mId, mailbox.mId,
+                false, true, context).mId;
+        final Attachment attachment = ProviderTestUtils.setupAttachment(messageId, "file",
+                encoded.length, false, context);
+        attachment.mAccountKey = account.mId;
+        attachment.mLocation = "2";
+        attachment.mUiDownloadedSize = downloaded;
+        attachment.save(context);
+        return attachment;
+    }
+
+    private static byte[] createContent(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    /**
+     * A chunked download resumes after the chunks recorded as complete, drops whatever is in the
+     * partial file past them, and saves the decoded attachment.
+     */
+    public void testLoadAttachmentInChunksResumes() throws Exception {
+        final Context context = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+        final int chunk = MessagingController.ATTACHMENT_CHUNK_SIZE;
+        final byte[] data = createContent(chunk * 2);
+        final byte[] encoded = Base64.encode(data, Base64.DEFAULT);
+        final Attachment attachment = setupChunkedAttachment(context, encoded, chunk);
+        final long accountId = attachment.mAccountKey;
+
+        // The first chunk is complete; the second one was interrupted
+        final File partial = AttachmentUtilities.getPartialAttachmentFilename(context, accountId,
+                attachment.mId);
+        partial.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(encoded, 0, chunk + 100);
+        } finally {
+            out.close();
+        }
+
+        final RangeFolder folder = new RangeFolder(encoded);
+        assertTrue(MessagingController.loadAttachmentInChunks(context, folder, null, attachment,
+                accountId, NULL_LISTENER));
+        final ArrayList<Long> offsets = new ArrayList<Long>();
+        for (long offset = chunk; offset <= encoded.length; offset += chunk) {
+            offsets.add(offset);
+        }
+        assertEquals(offsets, folder.mOffsets);
+        assertFalse(partial.exists());
+        assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(
+                AttachmentUtilities.getAttachmentFilename(context, accountId, attachment.mId))));
+    }
+
+    /**
+     * A chunk that isn't returned fails the download, rather than ending it; what was fetched
+     * is kept for the next attempt.
+     */
+    public void testLoadAttachmentInChunksMissingRange() throws Exception {
+        final Context context = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+        final int chunk = MessagingController.ATTACHMENT_CHUNK_SIZE;
+        final byte[] encoded = Base64.encode(createContent(chunk * 2), Base64.DEFAULT);
+        final Attachment attachment = setupChunkedAttachment(context, encoded, 0);
+        final long accountId = attachment.mAccountKey;
+
+        final RangeFolder folder = new RangeFolder(encoded);
+        folder.mRangesLeft = 1;
+        try {
+            MessagingController.loadAttachmentInChunks(context, folder, null, attachment,
+                    accountId, NULL_LISTENER);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        assertFalse(AttachmentUtilities.getAttachmentFilename(context, accountId,
+                attachment.mId).exists());
+        assertEquals(chunk, AttachmentUtilities.getPartialAttachmentFilename(context, accountId,
+                attachment.mId).length());
+        assertEquals(chunk, Attachment.restoreAttachmentWithId(context, attachment.mId)
+                .mUiDownloadedSize);
+    }
     
 }
@@ -18,15 +18,23 @@ package com.android.email;
 
 import android.app.Notification;
 import android.content.Context;
+import android.database.Cursor;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
 
+import com.android.email.provider.EmailProvider;
 import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 
+import java.util.ArrayList;
+
 /**
  * Test for {@link NotificationController}.
  *
@@ -213,4 +221,92 @@ public class NotificationControllerTest extends AndroidTestCase {
         // Minimum test for the result
         assertEquals(R.drawable.stat_notify_email_generic, n.icon);
     }
+
+    /**
+     * Keeps what is posted to it instead of running it, so that tests can run it when they like.
+     */
+    private static class RecordingHandler extends Handler {
+        final ArrayList<android.os.Message> mMessages = new ArrayList<android.os.Message>();
+
+        RecordingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(android.os.Message msg, long uptimeMillis) {
+            mMessages.add(msg);
+            return true;
+        }
+
+        void runPosted() {
+            final ArrayList<android.os.Message> messages =
+                    new ArrayList<android.os.Message>(mMessages);
+            mMessages.clear();
+            for (android.os.Message msg : messages) {
+                msg.getCallback().run();
+            }
+        }
+    }
+
+    /**
+     * Counts the queries of {@link EmailContent#MAILBOX_UNSEEN_MESSAGES_URI}.
+     */
+    private static class UnseenQueryCountingProvider extends EmailProvider {
+        int mUnseenQueryCount;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (uri.toString().startsWith(
+                    EmailContent.MAILBOX_UNSEEN_MESSAGES_URI.toString() + "/")) {
+                mUnseenQueryCount++;
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+    }
+
+    /**
+     * Changes that come in while an update is pending are folded into it: a burst of them
+     * queries the mailbox once.
+     */
+    public void testMessageObserverCoalescesChanges() throws Exception {
+        final UnseenQueryCountingProvider provider = new UnseenQueryCountingProvider();
+        final Context c = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                mContext, new MockContentResolver(), provider);
+        final NotificationController target = new NotificationControllerForTest(c);
+        NotificationController.injectMockControllerForTest(target);
+        try {
+            final Account a1 = ProviderTestUtils.setupAccount("a1", true, c);
+            final Mailbox b1 = ProviderTestUtils.setupMailbox("inbox", a1.mId, true, c,
+                    Mailbox.TYPE_INBOX);
+            final RecordingHandler handler = new RecordingHandler();
+            final NotificationController.MessageContentObserver observer =
+                    new NotificationController.MessageContentObserver(handler, c, b1.mId,
+                            a1.mId);
+            target.mNotificationMap.put(a1.mId, observer);
+
+            for (int i = 0; i < 10; i++) {
+                observer.onChange(false);
+            }
+            assertEquals(1, handler.mMessages.size());
+            assertEquals(0, provider.mUnseenQueryCount);
+            handler.runPosted();
+            assertEquals(1, provider.mUnseenQueryCount);
+
+            // Once the update has run, the next change schedules another one
+            observer.onChange(false);
+            observer.onChange(false);
+            assertEquals(1, handler.mMessages.size());
+            handler.runPosted();
+            assertEquals(2, provider.mUnseenQueryCount);
+
+            // An observer that was unregistered in the meantime doesn't query at all
+            target.mNotificationMap.remove(a1.mId);
+            observer.onChange(false);
+            handler.runPosted();
+            assertEquals(2, provider.mUnseenQueryCount);
+        } finally {
+            NotificationController.injectMockControllerForTest(null);
+        }
+    }
 }
@@ -30,6 +30,8 @@ import com.android.emailcommon.utility.DelayedOperations;
 
 import junit.framework.Assert;
 
+import java.util.Arrays;
+
 @SmallTest
 public class MessageOrderManagerTest extends ProviderTestCase2<EmailProvider> {
 
@@ -186,6 +188,35 @@ public class MessageOrderManagerTest extends ProviderTestCase2<EmailProvider> {
         assertEquals(4, mom.getTotalMessageCount());
     }
 
+    private static void assertIds(long[] actual, long... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    public void testGetNeighborMessageIds() {
+        MessageOrderManagerForTest mom = new MessageOrderManagerForTest(getContext(), 1, mCallback);
+        mom.assertStartQueryCalledAndReset();
+
+        // Cursor not open yet
+        mom.moveTo(22);
+        assertIds(mom.getNeighborMessageIds(2));
+
+        mom.onCursorOpenDone(new MyCursor(11, 22, 33, 44, 55)); // Newer to older
+        // Older ones first, then the newer one
+        assertIds(mom.getNeighborMessageIds(2), 33, 44, 11);
+        assertEquals(22, mom.getCurrentMessageId());
+        assertCanMove(mom, true, true);
+
+        // Fewer older messages than asked for
+        assertTrue(mom.moveToOlder());
+        assertTrue(mom.moveToOlder());
+        assertIds(mom.getNeighborMessageIds(2), 55, 33);
+
+        // No newer message
+        mom.moveTo(11);
+        assertIds(mom.getNeighborMessageIds(2), 22, 33);
+        assertEquals(0, mom.getCurrentPosition());
+    }
+
     public void testContentChanged() {
         MessageOrderManagerForTest mom = new MessageOrderManagerForTest(getContext(), 1, mCallback);
 
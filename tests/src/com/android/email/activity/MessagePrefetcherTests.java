@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.activity;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.Controller;
+import com.android.email.DBTestHelper;
+import com.android.email.EmailConnectivityManager;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.email.provider.RenderedBodyCache;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MessagePrefetcher}.
+ */
+@SmallTest
+public class MessagePrefetcherTests extends AndroidTestCase {
+    private Context mProviderContext;
+    private MockController mMockController;
+    private MessagePrefetcher mPrefetcher;
+
+    private Account mAccount;
+    private Mailbox mMailbox;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+        mMockController = new MockController(mProviderContext);
+        Controller.injectMockControllerForTest(mMockController);
+        mPrefetcher = new MessagePrefetcher(mProviderContext);
+
+        mAccount = ProviderTestUtils.setupAccount("account", true, mProviderContext);
+        mMailbox = ProviderTestUtils.setupMailbox("box", mAccount.mId, true, mProviderContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        mPrefetcher.close();
+        mMockController.cleanupForTest();
+        Controller.injectMockControllerForTest(null);
+    }
+
+    private static Intent createBatteryIntent(int level, int scale, int plugged) {
+        final Intent battery = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        battery.putExtra(BatteryManager.EXTRA_LEVEL, level);
+        battery.putExtra(BatteryManager.EXTRA_SCALE, scale);
+        battery.putExtra(BatteryManager.EXTRA_PLUGGED, plugged);
+        return battery;
+    }
+
+    private static void assertIds(long[] actual, long... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    private long createMessage(String name, int flagLoaded) {
+        final Message message = ProviderTestUtils.setupMessage(name, mAccount.mId, mMailbox.mId,
+                true, false, mProviderContext);
+        message.mFlagLoaded = flagLoaded;
+        message.save(mProviderContext);
+        return message.mId;
+    }
+
+    public void testGetFetchLimitNetwork() {
+        final Intent full = createBatteryIntent(100, 100, 0);
+        assertEquals(0, MessagePrefetcher.getFetchLimit(
+                EmailConnectivityManager.NO_ACTIVE_NETWORK, full));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI, full));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT_METERED,
+                MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_MOBILE, full));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT_METERED,
+                MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_WIMAX, full));
+
+        // Battery level unknown
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI, null));
+        assertEquals(0, MessagePrefetcher.getFetchLimit(
+                EmailConnectivityManager.NO_ACTIVE_NETWORK, null));
+    }
+
+    public void testGetFetchLimitBattery() {
+        final int low = MessagePrefetcher.MIN_BATTERY_PERCENT - 1;
+        final int enough = MessagePrefetcher.MIN_BATTERY_PERCENT;
+
+        // On battery
+        assertEquals(0, MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_WIFI,
+                createBatteryIntent(low, 100, 0)));
+        assertEquals(0, MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_MOBILE,
+                createBatteryIntent(low, 100, 0)));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI, createBatteryIntent(enough, 100, 0)));
+
+        // The level is relative to the scale
+        assertEquals(0, MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_WIFI,
+                createBatteryIntent(low * 2, 200, 0)));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI, createBatteryIntent(enough * 2, 200, 0)));
+
+        // Charging
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI,
+                createBatteryIntent(low, 100, BatteryManager.BATTERY_PLUGGED_AC)));
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT_METERED,
+                MessagePrefetcher.getFetchLimit(ConnectivityManager.TYPE_MOBILE,
+                        createBatteryIntent(0, 100, BatteryManager.BATTERY_PLUGGED_USB)));
+
+        // Level missing
+        assertEquals(MessagePrefetcher.MAX_PREFETCH_COUNT, MessagePrefetcher.getFetchLimit(
+                ConnectivityManager.TYPE_WIFI, createBatteryIntent(-1, -1, 0)));
+    }
+
+    /**
+     * The first unloaded messages are fetched, up to the limit; the loaded ones don't count.
+     */
+    public void testGetMessagesReady() {
+        final long unloaded1 = createMessage("1", Message.FLAG_LOADED_UNLOADED);
+        final long loaded = createMessage("2", Message.FLAG_LOADED_COMPLETE);
+        final long partial = createMessage("3", Message.FLAG_LOADED_PARTIAL);
+        final long unloaded2 = createMessage("4", Message.FLAG_LOADED_UNLOADED);
+        final long[] neighbors = new long[] {unloaded1, loaded, partial, unloaded2};
+
+        mPrefetcher.getMessagesReady(neighbors, 2, null);
+        assertIds(mMockController.getPrefetchedIds(), unloaded1, partial);
+        assertNotNull(RenderedBodyCache.get(loaded));
+        assertEquals(mAccount.mId, mMockController.mAccountId);
+        assertEquals(mMailbox.mId, mMockController.mMailboxId);
+        assertEquals(Message.FLAG_LOADED_COMPLETE, mMockController.mFlag);
+
+        // Messages already asked for aren't asked for again, but still count
+        mMockController.reset();
+        mPrefetcher.getMessagesReady(neighbors, 2, null);
+        assertIds(mMockController.getPrefetchedIds());
+        mPrefetcher.getMessagesReady(neighbors, 3, null);
+        assertIds(mMockController.getPrefetchedIds(), unloaded2);
+    }
+
+    public void testGetMessagesReadyNoFetch() {
+        final long unloaded = createMessage("1", Message.FLAG_LOADED_UNLOADED);
+        final long loaded = createMessage("2", Message.FLAG_LOADED_COMPLETE);
+
+        // Nothing may be fetched, but loaded messages are still rendered
+        mPrefetcher.getMessagesReady(new long[] {unloaded, loaded}, 0, null);
+        assertIds(mMockController.getPrefetchedIds());
+        assertNotNull(RenderedBodyCache.get(loaded));
+
+        // Nor is it remembered as asked for
+        mPrefetcher.getMessagesReady(new long[] {unloaded, loaded}, 1, null);
+        assertIds(mMockController.getPrefetchedIds(), unloaded);
+    }
+
+    public void testGetMessagesReadyMissingMessage() {
+        final long unloaded = createMessage("1", Message.FLAG_LOADED_UNLOADED);
+
+        // A deleted message doesn't use up the limit
+        mPrefetcher.getMessagesReady(new long[] {unloaded + 100, unloaded}, 1, null);
+        assertIds(mMockController.getPrefetchedIds(), unloaded);
+    }
+
+    private static class MockController extends Controller {
+        private final ArrayList<Long> mPrefetchedIds = new ArrayList<Long>();
+        public long mAccountId;
+        public long mMailboxId;
+        public int mFlag;
+
+        protected MockController(Context context) {
+            super(context);
+        }
+
+        public void reset() {
+            mPrefetchedIds.clear();
+        }
+
+        public long[] getPrefetchedIds() {
+            final long[] ids = new long[mPrefetchedIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mPrefetchedIds.get(i);
+            }
+            return ids;
+        }
+
+        @Override
+        public void prefetchMessageForView(long accountId, long mailboxId, long messageId,
+                int flag) {
+            mPrefetchedIds.add(messageId);
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mFlag = flag;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.android.email.DBTestHelper;
 import com.android.email.MessageListContext;
 import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 
 public class MessagesAdapterTests extends LoaderTestCase {
@@ -148,4 +149,72 @@ public class MessagesAdapterTests extends LoaderTestCase {
         assertFalse(result.mIsEasAccount);
         assertFalse(result.mIsRefreshable);
     }
+
+    /**
+     * Only the newest {@link MessagesAdapter#WINDOW_SIZE} messages are loaded at first.
+     */
+    public void testLoadWindow() {
+        final long accountId = createAccount(false);
+        final long mailboxId = createMailbox(accountId, Mailbox.TYPE_MAIL);
+        long newestId = -1;
+        for (int i = 0; i <= MessagesAdapter.WINDOW_SIZE; i++) {
+            Message message = ProviderTestUtils.setupMessage("message", accountId, mailboxId,
+                    false, false, mProviderContext);
+            message.mFlagLoaded = Message.FLAG_LOADED_COMPLETE;
+            message.save(mProviderContext);
+            newestId = message.mId;
+        }
+
+        MessagesAdapter.MessagesCursor result = getLoaderResult(accountId, mailboxId);
+        assertEquals(MessagesAdapter.WINDOW_SIZE, result.getCount());
+        assertFalse(result.mIsComplete);
+        // Same timestamps; the newest message comes first all the same
+        assertTrue(result.moveToFirst());
+        assertEquals(newestId, result.getLong(MessagesAdapter.COLUMN_ID));
+        result.close();
+
+        // With one fewer message, the window holds them all
+        mProviderContext.getContentResolver().delete(
+                Message.CONTENT_URI, Message.RECORD_ID + "=" + newestId, null);
+        result = getLoaderResult(accountId, mailboxId);
+        assertEquals(MessagesAdapter.WINDOW_SIZE, result.getCount());
+        assertTrue(result.mIsComplete);
+        result.close();
+    }
+
+    private long createMessage(long accountId, long mailboxId, long timestamp) {
+        Message message = ProviderTestUtils.setupMessage("message", accountId, mailboxId,
+                false, false, mProviderContext);
+        message.mFlagLoaded = Message.FLAG_LOADED_COMPLETE;
+        message.mTimeStamp = timestamp;
+        message.save(mProviderContext);
+        return message.mId;
+    }
+
+    /**
+     * The window of the combined inbox, whose end is searched for among the newest messages of
+     * each inbox only.
+     */
+    public void testLoadWindowCombinedInbox() {
+        final long accountId1 = createAccount(false);
+        final long inboxId1 = createMailbox(accountId1, Mailbox.TYPE_INBOX);
+        final long accountId2 = createAccount(false);
+        final long inboxId2 = createMailbox(accountId2, Mailbox.TYPE_INBOX);
+        for (int i = 1; i <= MessagesAdapter.WINDOW_SIZE + 1; i++) {
+            createMessage(accountId1, inboxId1, i);
+        }
+        final long newestId = createMessage(accountId2, inboxId2, 1000);
+        createMessage(accountId2, inboxId2, 0);
+
+        MessagesAdapter.MessagesCursor result = getLoaderResult(
+                Account.ACCOUNT_ID_COMBINED_VIEW, Mailbox.QUERY_ALL_INBOXES);
+        assertEquals(MessagesAdapter.WINDOW_SIZE, result.getCount());
+        assertFalse(result.mIsComplete);
+        assertTrue(result.moveToFirst());
+        assertEquals(newestId, result.getLong(MessagesAdapter.COLUMN_ID));
+        // The rest of the window is the newest messages of the first inbox
+        assertTrue(result.moveToLast());
+        assertEquals(3, result.getLong(MessagesAdapter.COLUMN_DATE));
+        result.close();
+    }
 }
@@ -34,6 +34,7 @@ import com.android.email.mail.Transport;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
+import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeBodyPart;
@@ -59,8 +60,10 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -608,11 +611,20 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * @param readWriteMode "READ-WRITE" or "READ-ONLY"
      */
     private void expectSelect(MockTransport mockTransport, String folder, String readWriteMode) {
+        expectSelect(mockTransport, folder, readWriteMode, 0);
+    }
+
+    /**
+     * Same as {@link #expectSelect(MockTransport, String, String)}, but the folder has
+     * <code>messageCount</code> messages.
+     */
+    private void expectSelect(MockTransport mockTransport, String folder, String readWriteMode,
+            int messageCount) {
         mockTransport.expect(
                 getNextTag(false) + " SELECT \"" + folder + "\"", new String[] {
                 "* fLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
                 "* oK [pERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
-                "* 0 eXISTS",
+                "* " + messageCount + " eXISTS",
                 "* 0 rECENT",
                 "* OK [uNSEEN 0]",
                 "* OK [uIDNEXT 1]",
@@ -1055,6 +1067,87 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    public void testFetchPartRange() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // A full chunk, still base64 encoded
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<0.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<0> {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(4, mFolder.fetchPartRange(message, "2", 0, 4, out));
+
+        // The last chunk is short
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<4.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<4> {2}",
+                "ZA)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(2, mFolder.fetchPartRange(message, "2", 4, 4, out));
+        assertEquals("YWJjZA", Utility.fromUtf8(out.toByteArray()));
+
+        // A range past the end of the part is an empty string
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<6.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<6> {0}",
+                ")",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(0, mFolder.fetchPartRange(message, "2", 6, 4, out));
+
+        // Unsolicited FETCH responses for the message don't count as the range
+        out.reset();
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<0.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 fLAGS (\\Seen))",
+                "* 9 fETCH (uID 1 bODY[2]<0> {4}",
+                "YWJj)",
+                "* 9 fETCH (uID 1 fLAGS (\\Seen \\Flagged))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(4, mFolder.fetchPartRange(message, "2", 0, 4, out));
+        assertEquals("YWJj", Utility.fromUtf8(out.toByteArray()));
+
+        // No range at all (e.g. the message has been deleted) is an error, not the end
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<4.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 fLAGS (\\Seen))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        try {
+            mFolder.fetchPartRange(message, "2", 4, 4, out);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<4.4>\\)",
+                new String[] {
+                getNextTag(true) + " oK SUCCESS"
+        });
+        try {
+            mFolder.fetchPartRange(message, "2", 4, 4, out);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+
+        // A NO response is an error
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<6.4>\\)",
+                new String[] {
+                getNextTag(true) + " nO FETCH FAILED"
+        });
+        try {
+            mFolder.fetchPartRange(message, "2", 6, 4, out);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1142,6 +1235,36 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
     }
 
 
+    /**
+     * Test that fetching many messages collapses the UIDs into ranges.
+     */
+    public void testFetchUidRanges() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("4"),
+                mFolder.createMessage("1"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("3"),
+                mFolder.createMessage("7"),
+        };
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        mock.expect(getNextTag(false) + " UID FETCH 1:4,7 \\(UID FLAGS\\)",
+                new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\Seen))",
+                "* 5 fETCH (uID 7 fLAGS (\\Seen))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(messages, fp, null);
+        assertTrue(messages[1].isSet(Flag.SEEN));
+        assertTrue(messages[4].isSet(Flag.SEEN));
+        assertFalse(messages[0].isSet(Flag.SEEN));
+    }
+
+
     private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
         message.setFrom(new Address("me@test.com"));
@@ -1844,6 +1967,154 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (src message not found)
     }
 
+    /** Test for setFlags(List), which pipelines the STORE commands */
+    public void testSetFlagsPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ArrayList<Folder.FlagChange> changes = new ArrayList<Folder.FlagChange>();
+        changes.add(new Folder.FlagChange(new Message[] {
+                mFolder.createMessage("11"), mFolder.createMessage("12")},
+                new Flag[] {Flag.SEEN}, true));
+        changes.add(new Folder.FlagChange(new Message[] {mFolder.createMessage("13")},
+                new Flag[] {Flag.FLAGGED}, false));
+
+        // Both commands are written before any response is read
+        final String firstTag = getNextTag(false);
+        final String secondTag = Integer.toString(Integer.parseInt(firstTag) + 1);
+        mock.expect(firstTag + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\SEEN\\)",
+                new String[] {
+                "* 1 fETCH (uID 11 fLAGS (\\Seen))",
+                firstTag + " oK success"
+                });
+        mock.expect(secondTag + " UID STORE 13 \\-FLAGS.SILENT \\(\\\\FLAGGED\\)",
+                new String[] {
+                secondTag + " oK success"
+                });
+        mFolder.setFlags(changes);
+        resetTag(Integer.parseInt(secondTag) + 1);
+
+        // A failure of any command is reported once all of the responses have been read
+        changes.remove(0);
+        mock.expect(getNextTag(false) + " UID STORE 13 \\-FLAGS.SILENT \\(\\\\FLAGGED\\)",
+                new String[] {
+                getNextTag(true) + " nO failed"
+                });
+        try {
+            mFolder.setFlags(changes);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    /** Test for deleteMessages(), which only expunges once the STOREs have succeeded */
+    public void testDeleteMessages() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE", 3);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(3, mFolder.getMessageCount());
+
+        mock.expectLiterally(getNextTag(false) + " UID STORE 11:12,14 +FLAGS.SILENT (\\DELETED)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        mock.expectLiterally(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                "* 1 eXPUNGE",
+                "* 2 eXISTS",
+                getNextTag(true) + " oK success"
+                });
+        mFolder.deleteMessages(new Message[] {
+                mFolder.createMessage("14"),
+                mFolder.createMessage("11"),
+                mFolder.createMessage("12"),
+                });
+        assertEquals(2, mFolder.getMessageCount());
+
+        // If the STORE fails, EXPUNGE isn't sent; it could remove other \Deleted messages
+        mock.expectLiterally(getNextTag(false) + " UID STORE 13 +FLAGS.SILENT (\\DELETED)",
+                new String[] {
+                getNextTag(true) + " nO failed"
+                });
+        try {
+            mFolder.deleteMessages(new Message[] {mFolder.createMessage("13")});
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        assertEquals(2, mFolder.getMessageCount());
+    }
+
+    /** Test for deleteMessages() with UIDPLUS, which pipelines STORE and UID EXPUNGE */
+    public void testDeleteMessagesUidPlus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, new String[] {"* iD nIL", "oK"}, true);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE", 3);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final String storeTag = getNextTag(false);
+        final String expungeTag = Integer.toString(Integer.parseInt(storeTag) + 1);
+        mock.expectLiterally(storeTag + " UID STORE 11:12 +FLAGS.SILENT (\\DELETED)",
+                new String[] {
+                storeTag + " oK success"
+                });
+        mock.expectLiterally(expungeTag + " UID EXPUNGE 11:12",
+                new String[] {
+                "* 1 eXPUNGE",
+                "* 1 eXPUNGE",
+                "* 1 eXISTS",
+                expungeTag + " oK success"
+                });
+        mFolder.deleteMessages(new Message[] {
+                mFolder.createMessage("11"),
+                mFolder.createMessage("12"),
+                });
+        assertEquals(1, mFolder.getMessageCount());
+    }
+
+    /** Test for getExistingMessages(), which splits long UID sets over several searches */
+    public void testGetExistingMessages() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        // A run of UIDs is collapsed into a range
+        mock.expectLiterally(getNextTag(false) + " UID SEARCH UID 1:3",
+                new String[] {
+                "* sEARCH 1 3",
+                getNextTag(true) + " oK success"
+                });
+        Message[] messages = mFolder.getExistingMessages(new String[] {"3", "1", "2"});
+        assertEquals(2, messages.length);
+        assertEquals("1", messages[0].getUid());
+        assertEquals("3", messages[1].getUid());
+
+        // UIDs that can't be collapsed are split so that no command line is too long
+        final String[] uids = new String[300];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Integer.toString(10000 + i * 2);
+        }
+        final List<String> uidSets =
+                ImapUtility.getImapSequenceSets(uids, ImapStore.MAX_UID_SET_LENGTH);
+        assertTrue(uidSets.size() > 1);
+        for (int i = 0; i < uidSets.size(); i++) {
+            final String uidSet = uidSets.get(i);
+            assertTrue(uidSet.length() <= ImapStore.MAX_UID_SET_LENGTH);
+            // Each search finds the first UID of its set
+            mock.expectLiterally(getNextTag(false) + " UID SEARCH UID " + uidSet,
+                    new String[] {
+                    "* sEARCH " + uidSet.substring(0, uidSet.indexOf(',')),
+                    getNextTag(true) + " oK success"
+                    });
+        }
+        messages = mFolder.getExistingMessages(uids);
+        assertEquals(uidSets.size(), messages.length);
+        for (int i = 0; i < messages.length; i++) {
+            assertTrue(uidSets.get(i).startsWith(messages[i].getUid() + ","));
+        }
+    }
+
     public void testSearchForUids() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1971,6 +2242,164 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 mFolder.getMessages(new String[] {}, null));
     }
 
+    /**
+     * Helper which stuffs the mock with a login and SELECT against a CONDSTORE server.
+     */
+    private void setupOpenCondstoreFolder(MockTransport mock, String uidValidity,
+            String highestModSeq) {
+        setupOpenCondstoreFolder(mock, "cONDSTORE", null, uidValidity, highestModSeq);
+    }
+
+    /**
+     * Same as {@link #setupOpenCondstoreFolder(MockTransport, String, String)}, but with the
+     * given capabilities, and the given untagged responses to ENABLE QRESYNC if not null.
+     */
+    private void setupOpenCondstoreFolder(MockTransport mock, String capabilities,
+            String[] enableResponses, String uidValidity, String highestModSeq) {
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 " + capabilities,
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        if (enableResponses != null) {
+            final String command = getNextTag(false) + " ENABLE QRESYNC";
+            final String[] responses = new String[enableResponses.length + 1];
+            System.arraycopy(enableResponses, 0, responses, 0, enableResponses.length);
+            responses[enableResponses.length] = getNextTag(true) + " oK done";
+            mock.expect(command, responses);
+        }
+        final String selectCommand =
+                getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\" \\(CONDSTORE\\)";
+        final ArrayList<String> selectResponses = new ArrayList<String>();
+        selectResponses.add("* 10 eXISTS");
+        selectResponses.add("* oK [uIDVALIDITY " + uidValidity + "]");
+        selectResponses.add((highestModSeq != null)
+                ? "* oK [hIGHESTMODSEQ " + highestModSeq + "]"
+                : "* oK [nOMODSEQ] no mod-sequences here");
+        selectResponses.add(getNextTag(true) + " oK [rEAD-wRITE] " + FOLDER_ENCODED
+                + " selected.");
+        mock.expect(selectCommand, selectResponses.toArray(new String[selectResponses.size()]));
+    }
+
+    /** Test for getSyncState() and getMessagesChangedSince() */
+    public void testGetMessagesChangedSince() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenCondstoreFolder(mock, "7", "200");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals("7:200", mFolder.getSyncState());
+
+        ArrayList<String> vanished = new ArrayList<String>();
+
+        // Different UIDVALIDITY; requires a full refresh
+        assertNull(mFolder.getMessagesChangedSince("6:100", vanished));
+
+        // Nothing changed; no command will be sent
+        checkMessageUids(new String[] {}, mFolder.getMessagesChangedSince("7:200", vanished));
+
+        mock.expect(
+                getNextTag(false) + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 100\\)",
+                new String[] {
+                "* 3 fETCH (uID 12 fLAGS (\\Seen) mODSEQ (150))",
+                "* 4 fETCH (uID 15 fLAGS () mODSEQ (190))",
+                getNextTag(true) + " oK success"
+                });
+        Message[] changed = mFolder.getMessagesChangedSince("7:100", vanished);
+        checkMessageUids(new String[] {"12", "15"}, changed);
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        assertFalse(changed[1].isSet(Flag.SEEN));
+        assertTrue(vanished.isEmpty());
+    }
+
+    /** A server without CONDSTORE never reports a sync state */
+    public void testGetSyncStateNoCondstore() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertNull(mFolder.getSyncState());
+        assertNull(mFolder.getMessagesChangedSince("1:1", new ArrayList<String>()));
+    }
+
+    /** With QRESYNC enabled, the UIDs of expunged messages come along with the changes */
+    public void testGetMessagesChangedSinceQresync() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenCondstoreFolder(mock, "qRESYNC", new String[] {"* eNABLED qRESYNC"}, "7",
+                "200");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals("7:200", mFolder.getSyncState());
+
+        ArrayList<String> vanished = new ArrayList<String>();
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 100 VANISHED\\)",
+                new String[] {
+                "* vANISHED (eARLIER) 300:302,405",
+                "* 3 fETCH (uID 12 fLAGS (\\Seen) mODSEQ (150))",
+                "* vANISHED (eARLIER) 411",
+                getNextTag(true) + " oK success"
+                });
+        Message[] changed = mFolder.getMessagesChangedSince("7:100", vanished);
+        checkMessageUids(new String[] {"12"}, changed);
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        MoreAsserts.assertEquals(new String[] {"300", "301", "302", "405", "411"},
+                vanished.toArray(new String[vanished.size()]));
+    }
+
+    /** If the server doesn't enable QRESYNC, the changes are asked for without VANISHED */
+    public void testGetMessagesChangedSinceQresyncNotEnabled() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenCondstoreFolder(mock, "qRESYNC", new String[] {}, "7", "200");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ArrayList<String> vanished = new ArrayList<String>();
+        mock.expect(
+                getNextTag(false) + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 100\\)",
+                new String[] {
+                "* 4 fETCH (uID 15 fLAGS () mODSEQ (190))",
+                getNextTag(true) + " oK success"
+                });
+        checkMessageUids(new String[] {"15"}, mFolder.getMessagesChangedSince("7:100", vanished));
+        assertTrue(vanished.isEmpty());
+    }
+
+    /**
+     * A sync state that no longer matches the mailbox asks for a full refresh, without sending
+     * anything (the mock would fail on an unexpected command).
+     */
+    public void testGetMessagesChangedSinceStale() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenCondstoreFolder(mock, "qRESYNC", new String[] {"* eNABLED qRESYNC"}, "7",
+                "200");
+        mFolder.open(OpenMode.READ_WRITE);
+        ArrayList<String> vanished = new ArrayList<String>();
+
+        // UIDVALIDITY changed: the UIDs we know are meaningless
+        assertNull(mFolder.getMessagesChangedSince("8:100", vanished));
+        assertNull(mFolder.getMessagesChangedSince("8:200", vanished));
+        // Mod-sequence past the server's, e.g. the server was restored from a backup
+        assertNull(mFolder.getMessagesChangedSince("7:201", vanished));
+        // Not a state we could have saved
+        assertNull(mFolder.getMessagesChangedSince("7", vanished));
+        assertNull(mFolder.getMessagesChangedSince(":200", vanished));
+        assertNull(mFolder.getMessagesChangedSince("7:abc", vanished));
+        assertNull(mFolder.getMessagesChangedSince(null, vanished));
+
+        // The server refuses the mod-sequence
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 100 VANISHED\\)",
+                getNextTag(true) + " bAD unknown mod-sequence");
+        assertNull(mFolder.getMessagesChangedSince("7:100", vanished));
+        assertTrue(vanished.isEmpty());
+    }
+
+    /** A mailbox without mod-sequences has no sync state, so the state we kept can't be used */
+    public void testGetMessagesChangedSinceNoModSeq() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenCondstoreFolder(mock, "cONDSTORE", null, "7", null);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertNull(mFolder.getSyncState());
+        assertNull(mFolder.getMessagesChangedSince("7:100", new ArrayList<String>()));
+    }
+
     private static void checkMessageUids(String[] expectedUids, Message[] actualMessages) {
         ArrayList<String> list = new ArrayList<String>();
         for (Message m : actualMessages) {
@@ -2049,6 +2478,28 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNotSame(con2, con3);
     }
 
+    /**
+     * Test for {@link ImapStore#hasIdleConnection}, which decides whether messages are prefetched
+     */
+    public void testHasIdleConnection() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        assertFalse(mStore.hasIdleConnection());
+
+        // A connection in use isn't idle
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        assertFalse(mStore.hasIdleConnection());
+
+        // Closing a folder pools its connection
+        mStore.poolConnection(con1);
+        assertTrue(mStore.hasIdleConnection());
+
+        mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + " oK success"});
+        assertSame(con1, mStore.getConnection());
+        assertFalse(mStore.hasIdleConnection());
+    }
+
     public void testCheckSettings() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
 
@@ -867,6 +867,112 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * Test that with PIPELINING, the RETR commands are all sent before their responses are read.
+     */
+    public void testFetchPipelined() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+        assertEquals(2, messages.length);
+
+        // The mock queues each response as its command is written, so it has to carry the
+        // whole message
+        setupPipelinedMessage(mockTransport, "RETR 1", true);
+        setupPipelinedMessage(mockTransport, "RETR 2", true);
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        mFolder.fetch(messages, fp, null);
+        checkFetchedMessage(messages[0], 1, false);
+        checkFetchedMessage(messages[1], 2, false);
+    }
+
+    /**
+     * Test that with PIPELINING, the messages for which TOP fails are fetched with RETR once the
+     * other responses have been read.
+     */
+    public void testFetchPipelinedTopRejected() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+        assertEquals(2, messages.length);
+
+        setupPipelinedMessage(mockTransport, "TOP 1 673", false);
+        setupPipelinedMessage(mockTransport, "TOP 2 673", true);
+        setupPipelinedMessage(mockTransport, "RETR 1", true);
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY_SANE);
+        mFolder.fetch(messages, fp, null);
+        checkFetchedMessage(messages[0], 1, false);
+        checkFetchedMessage(messages[1], 2, false);
+    }
+
+    /**
+     * Test that the uids of a session are reused by the next one, once it's checked that the
+     * maildrop hasn't changed.
+     */
+    public void testIndexKeptAcrossSessions() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        mFolder.getMessages(1, 2, null);
+        mockTransport.expect("QUIT", "+OK bye");
+        mockTransport.expectClose();
+        mFolder.close(false);
+
+        // A new message has arrived; only the last known message is checked
+        setupOpenFolder(mockTransport, 3, null);
+        mockTransport.expect("UIDL 2", "+OK 2 " + getSingleMessageUID(2));
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(3, mFolder.getMessageCount());
+
+        Message[] messages = mFolder.getMessages(1, 2, null);
+        assertEquals(getSingleMessageUID(1), messages[0].getUid());
+        assertEquals(getSingleMessageUID(2), messages[1].getUid());
+    }
+
+    /**
+     * Test that the uids of a session aren't reused if the maildrop has changed, or if messages
+     * were deleted.
+     */
+    public void testIndexDiscardedAcrossSessions() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        mFolder.getMessages(1, 2, null);
+        mockTransport.expect("QUIT", "+OK bye");
+        mockTransport.expectClose();
+        mFolder.close(false);
+
+        // Message #2 is now another message, so everything is listed again
+        setupOpenFolder(mockTransport, 2, null);
+        mockTransport.expect("UIDL 2", "+OK 2 " + getSingleMessageUID(3));
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+
+        // Deleting a message renumbers the ones after it, so there's nothing to check
+        mockTransport.expect("DELE 1", "+OK message deleted");
+        mFolder.setFlags(new Message[] { messages[0] }, new Flag[] { Flag.DELETED }, true);
+        mockTransport.expect("QUIT", "+OK bye");
+        mockTransport.expectClose();
+        mFolder.close(false);
+
+        setupOpenFolder(mockTransport, 1, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 1);
+        messages = mFolder.getMessages(1, 1, null);
+        assertEquals(getSingleMessageUID(1), messages[0].getUid());
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -1058,6 +1164,30 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         transport.expect(null, ".");
     }
 
+    /**
+     * Setup a single message to be retrieved with a pipelined command.  Unlike
+     * setupSingleMessageTop(), the whole response is sent as the command is written.
+     * @param transport the mock transport
+     * @param command the RETR or TOP command to expect
+     * @param success if false, the command fails
+     */
+    private static void setupPipelinedMessage(MockTransport transport, String command,
+            boolean success) {
+        if (!success) {
+            transport.expect(command, "-ERR unsupported command");
+            return;
+        }
+        transport.expect(command, new String[] {
+                "+OK message follows",
+                "Date: 26 Aug 76 1429 EDT",
+                "From: Jones@Registry.Org",
+                "To:   Smith@Registry.Org",
+                "CC:   Chris@Registry.Org",
+                "Reply-To: Roger@Registry.Org",
+                "",
+                "." });
+    }
+
     /**
      * Generates a simple unique code for each message.  Repeatable.
      * @param msgNum The message number
@@ -53,6 +53,39 @@ public class ImapListTest extends TestCase {
         assertEquals(3, list.size());
     }
 
+    /**
+     * Lists given back to {@link ImapElementPool} keep their array for reuse, but they, and
+     * their strings, can't be read any more.
+     */
+    public void testRecycled() {
+        final ImapElementPool pool = new ImapElementPool();
+        final ImapList list = pool.obtainList();
+        final ImapSimpleString s = pool.obtainString(new byte[] {'U', 'I', 'D'}, 3);
+        list.add(s);
+        assertTrue(list.is(0, "UID"));
+
+        pool.recycle(list);
+        try {
+            list.size();
+            fail("RuntimeException expected");
+        } catch (RuntimeException expected) {
+        }
+        try {
+            list.getElementOrNone(0);
+            fail("RuntimeException expected");
+        } catch (RuntimeException expected) {
+        }
+        try {
+            s.getString();
+            fail("RuntimeException expected");
+        } catch (RuntimeException expected) {
+        }
+
+        // Until they're handed out again
+        assertSame(list, pool.obtainList());
+        assertTrue(list.isEmpty());
+    }
+
     /**
      * Test for {@link ImapList#EMPTY}.
      */
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Micro benchmark for {@link ImapResponseParser}, using the transcript of a FLAGS fetch of
+ * {@link #MESSAGE_COUNT} messages, which is what a mailbox sync looks like.
+ *
+ * <p>Each round parses the whole transcript and counts the allocations.  In the "cold" round the
+ * element pool is empty, so it shows what the parser allocated before pooling.  In the "warm"
+ * rounds responses are destroyed as they are consumed, the way {@code ImapFolder} does, so
+ * elements come from the pool.  Results go to logcat.
+ */
+@LargeTest
+public class ImapResponseParserLargeTest extends AndroidTestCase {
+    private static final int MESSAGE_COUNT = 1000;
+    private static final int ROUNDS = 10;
+
+    private static byte[] buildFlagsFetchTranscript() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= MESSAGE_COUNT; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i);
+            sb.append(" FLAGS (").append((i % 3 == 0) ? "\\Seen \\Flagged" : "\\Seen");
+            sb.append("))\r\n");
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        return Utility.toAscii(sb.toString());
+    }
+
+    /**
+     * Parse the transcript and consume responses like ImapFolder does.
+     *
+     * @param destroyEach if true, responses are destroyed right after they're consumed.
+     *     Otherwise they're destroyed after the tagged response, so nothing can be reused
+     *     within the round.
+     * @return number of flagged messages, so that the work can't be optimized away.
+     */
+    private static int parse(ImapResponseParser p, boolean destroyEach) throws Exception {
+        int flagged = 0;
+        ImapResponse r;
+        do {
+            r = p.readResponse();
+            if (r.isDataResponse(1, ImapConstants.FETCH)) {
+                final ImapList fetchList = r.getListOrEmpty(2);
+                if (fetchList.getKeyedStringOrEmpty(ImapConstants.UID).isEmpty()) {
+                    fail("No UID");
+                }
+                if (fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS).contains(
+                        ImapConstants.FLAG_FLAGGED)) {
+                    flagged++;
+                }
+            }
+            if (destroyEach) {
+                p.destroyResponses();
+            }
+        } while (!r.isTagged());
+        p.destroyResponses();
+        return flagged;
+    }
+
+    private static void runRound(String name, byte[] transcript, boolean destroyEach)
+            throws Exception {
+        final ImapResponseParser p = new ImapResponseParser(new ByteArrayInputStream(transcript),
+                new DiscourseLogger(4));
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        final long start = SystemClock.elapsedRealtime();
+        final int flagged = parse(p, destroyEach);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        Debug.stopAllocCounting();
+        assertEquals(MESSAGE_COUNT / 3, flagged);
+        Log.i(Logging.LOG_TAG, String.format(
+                "ImapResponseParser %s: %d responses, %d ms, %d allocations, %d bytes, %d created",
+                name, MESSAGE_COUNT + 1, elapsed, Debug.getThreadAllocCount(),
+                Debug.getThreadAllocSize(), p.getPool().getCreatedCount()));
+    }
+
+    public void testFlagsFetch() throws Exception {
+        final byte[] transcript = buildFlagsFetchTranscript();
+        runRound("cold", transcript, false);
+        for (int i = 0; i < ROUNDS; i++) {
+            runRound("warm", transcript, true);
+        }
+    }
+}
@@ -383,6 +383,55 @@ public class ImapResponseParserTest extends AndroidTestCase {
         assertEquals("a b c", p.readResponse().getStringOrEmpty(1).getString());
     }
 
+    /**
+     * Lists and strings of destroyed responses are reused by the following responses.
+     */
+    public void testElementPool() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 10 FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 11 FLAGS (\\Flagged \"q\"))\r\n" +
+                "* 3 FETCH (UID 12 FLAGS ())\r\n");
+        final ImapElementPool pool = p.getPool();
+
+        ImapResponse r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("10"),
+                        new ImapSimpleString("FLAGS"),
+                        buildList(new ImapSimpleString("\\Seen"))
+                        )
+                ), r);
+        final int created = pool.getCreatedCount();
+        assertEquals(8, created);
+        p.destroyResponses();
+
+        r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("2"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("11"),
+                        new ImapSimpleString("FLAGS"),
+                        buildList(
+                                new ImapSimpleString("\\Flagged"),
+                                new ImapSimpleString("q"))
+                        )
+                ), r);
+        assertTrue(r.getListOrEmpty(2).getListOrEmpty(3).contains("\\FLAGGED"));
+        // Only one more string was needed.
+        assertEquals(created + 1, pool.getCreatedCount());
+        p.destroyResponses();
+
+        r = p.readResponse();
+        assertEquals(12, r.getListOrEmpty(2).getKeyedStringOrEmpty("UID").getNumberOrZero());
+        assertTrue(r.getListOrEmpty(2).getKeyedListOrEmpty("FLAGS").isEmpty());
+        assertEquals(created + 1, pool.getCreatedCount());
+    }
+
     public void testByeReceived() throws Exception {
         final ImapResponseParser p = generateParser(100000,
                 "* BYE Autologout timer; idle for too long\r\n");
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import static com.android.email.mail.store.imap.ImapTestUtils.createFixedLengthInputStream;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.utility.Utility;
+
+import org.apache.commons.io.IOUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.InputStream;
+
+/**
+ * Test for {@link ImapStringBody}.
+ */
+@SmallTest
+public class ImapStringBodyTest extends AndroidTestCase {
+    // "Hello, world!" in base64
+    private static final String BASE64_CONTENT = "SGVsbG8sIHdvcmxkIQ==";
+    private static final String DECODED_CONTENT = "Hello, world!";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static String read(ImapStringBody body) throws Exception {
+        InputStream in = body.getInputStream();
+        try {
+            return Utility.fromAscii(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testMemoryString() throws Exception {
+        ImapString s = new ImapMemoryLiteral(createFixedLengthInputStream(BASE64_CONTENT));
+        ImapStringBody body = new ImapStringBody(s, "base64", DECODED_CONTENT.length(), null);
+        // The body keeps its own copy; the literal can be destroyed
+        s.destroy();
+        assertEquals(DECODED_CONTENT, read(body));
+    }
+
+    public void testNoEncoding() throws Exception {
+        ImapString s = new ImapSimpleString(DECODED_CONTENT);
+        ImapStringBody body = new ImapStringBody(s, null, DECODED_CONTENT.length(), null);
+        assertEquals(DECODED_CONTENT, read(body));
+    }
+
+    public void testSharedTempFile() throws Exception {
+        ImapTempFileLiteral l =
+                new ImapTempFileLiteral(createFixedLengthInputStream(BASE64_CONTENT));
+        ImapStringBody body = new ImapStringBody(l, "base64", DECODED_CONTENT.length(), null);
+
+        // Destroying the response must not remove the file while the body still needs it
+        l.destroy();
+        assertTrue(l.tempFileExistsForTest());
+
+        // Reading the body decodes the spooled literal, and then removes the file
+        assertEquals(DECODED_CONTENT, read(body));
+        assertFalse(l.tempFileExistsForTest());
+    }
+
+    public void testTempFileReleasedBeforeDestroy() throws Exception {
+        ImapTempFileLiteral l =
+                new ImapTempFileLiteral(createFixedLengthInputStream(BASE64_CONTENT));
+        ImapStringBody body = new ImapStringBody(l, "base64", DECODED_CONTENT.length(), null);
+        assertEquals(DECODED_CONTENT, read(body));
+        // The literal still holds its reference
+        assertTrue(l.tempFileExistsForTest());
+        l.destroy();
+        assertFalse(l.tempFileExistsForTest());
+    }
+
+    public void testProgress() throws Exception {
+        final int[] lastProgress = new int[] { -1 };
+        MessageRetrievalListener listener = new MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+            }
+
+            @Override
+            public void loadAttachmentProgress(int progress) {
+                assertTrue(progress >= lastProgress[0]);
+                lastProgress[0] = progress;
+            }
+        };
+        ImapString s = new ImapSimpleString(BASE64_CONTENT);
+        ImapStringBody body = new ImapStringBody(s, "base64", DECODED_CONTENT.length(), listener);
+        assertEquals(DECODED_CONTENT, read(body));
+        assertEquals(100, lastProgress[0]);
+    }
+}
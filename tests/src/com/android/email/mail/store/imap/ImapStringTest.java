@@ -80,6 +80,52 @@ public class ImapStringTest extends AndroidTestCase {
         assertFalse(s.startsWith("abcde"));
     }
 
+    /** Strings backed by raw bytes, which the parser creates. */
+    public void testByteString() throws Exception {
+        final byte[] bytes = Utility.toAscii("AbcDxxx");
+        final ImapSimpleString s = new ImapSimpleString(bytes, 4);
+
+        // Comparisons don't need the String.
+        assertTrue(s.is("abcd"));
+        assertFalse(s.is("abc"));
+        assertFalse(s.is("abcde"));
+        assertTrue(s.startsWith(""));
+        assertTrue(s.startsWith("ABC"));
+        assertFalse(s.startsWith("abcde"));
+        assertFalse(s.startsWith("Z"));
+
+        assertEquals("AbcD", s.getString());
+        assertEquals("AbcD", Utility.fromAscii(IOUtils.toByteArray(s.getAsStream())));
+
+        // The source buffer is copied.
+        bytes[0] = 'X';
+        assertEquals("AbcD", s.getString());
+
+        // Bytes that aren't ASCII become the chars of the same value
+        assertEquals("\u00e9\u00ff", new ImapSimpleString(new byte[] {(byte) 0xe9, (byte) 0xff},
+                2).getString());
+
+        // A destroyed instance may be handed out again; it must not be read any more.
+        s.destroy();
+        try {
+            s.getString();
+            fail("RuntimeException expected");
+        } catch (RuntimeException expected) {
+        }
+        try {
+            s.is("abcd");
+            fail("RuntimeException expected");
+        } catch (RuntimeException expected) {
+        }
+
+        // Reuse the instance, as ImapElementPool does.
+        s.reset();
+        s.setBytes(Utility.toAscii("1234"), 4);
+        assertTrue(s.is("1234"));
+        assertEquals(1234, s.getNumberOrZero());
+        assertEquals("1234", s.getString());
+    }
+
     public void testGetNumberOrZero() {
         assertEquals(1234, new ImapSimpleString("1234").getNumberOrZero());
         assertEquals(-1, new ImapSimpleString("-1").getNumberOrZero());
@@ -137,4 +137,38 @@ public class ImapUtilityTests extends AndroidTestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual);
     }
+
+    /**
+     * Test building IMAP sequence sets from UIDs.
+     */
+    public void testGetImapSequenceSets() {
+        MoreAsserts.assertEquals(new String[] {},
+                ImapUtility.getImapSequenceSets(new String[] {}, 100).toArray());
+
+        // Runs are collapsed, input order and duplicates don't matter
+        MoreAsserts.assertEquals(new String[] {"1:4,7,9:10"},
+                ImapUtility.getImapSequenceSets(
+                        new String[] {"10", "3", "1", "2", "4", "9", "7", "3"}, 100).toArray());
+
+        // Non-numeric values are kept as they are
+        MoreAsserts.assertEquals(new String[] {"a,XX,5"},
+                ImapUtility.getImapSequenceSets(new String[] {"a", "5", "XX"}, 100).toArray());
+
+        // Long sets are split
+        MoreAsserts.assertEquals(new String[] {"1,3,5", "7,9:11", "13"},
+                ImapUtility.getImapSequenceSets(
+                        new String[] {"1", "3", "5", "7", "9", "10", "11", "13"}, 6).toArray());
+
+        // Every value of the original set is covered
+        String[] uids = new String[1000];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Integer.toString(i * 2 + 1);
+        }
+        int total = 0;
+        for (String set : ImapUtility.getImapSequenceSets(uids, 50)) {
+            assertTrue(set.length() <= 50);
+            total += ImapUtility.getImapSequenceValues(set).length;
+        }
+        assertEquals(uids.length, total);
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Micro benchmark for {@link LineInputStream#readLine}, on the response to a POP3 UIDL of a
+ * large maildrop, compared with reading each line a byte at a time (as MailTransport did).
+ * Results go to logcat.
+ */
+@LargeTest
+public class LineInputStreamLargeTest extends TestCase {
+    private static final int MESSAGE_COUNT = 50000;
+    private static final int ROUNDS = 5;
+
+    private static byte[] buildUidlResponse() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("+OK ").append(MESSAGE_COUNT).append(" messages\r\n");
+        for (int i = 1; i <= MESSAGE_COUNT; i++) {
+            sb.append(i).append(" UID").append(1000000 + i * 7).append("-1330000000\r\n");
+        }
+        sb.append(".\r\n");
+        return Utility.toAscii(sb.toString());
+    }
+
+    /** The line reader MailTransport used to have */
+    private static String readLineByteAtATime(InputStream in) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int d;
+        while ((d = in.read()) != -1) {
+            if (((char)d) == '\r') {
+                continue;
+            } else if (((char)d) == '\n') {
+                break;
+            } else {
+                sb.append((char)d);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void log(String name, int length, long elapsed) {
+        Log.i(Logging.LOG_TAG, String.format(
+                "%s: %d lines, %d bytes, %d ms, %.0f lines/s, %d allocations, %d bytes",
+                name, MESSAGE_COUNT + 2, length, elapsed,
+                (MESSAGE_COUNT + 2) * 1000.0 / Math.max(1, elapsed),
+                Debug.getThreadAllocCount(), Debug.getThreadAllocSize()));
+    }
+
+    public void testReadUidlResponse() throws IOException {
+        final byte[] response = buildUidlResponse();
+        for (int i = 0; i < ROUNDS; i++) {
+            InputStream in = new BufferedInputStream(new ByteArrayInputStream(response), 1024);
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            long start = SystemClock.elapsedRealtime();
+            int lines = 0;
+            while (!readLineByteAtATime(in).equals(".")) {
+                lines++;
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Debug.stopAllocCounting();
+            assertEquals(MESSAGE_COUNT + 1, lines);
+            log("Byte at a time", response.length, elapsed);
+
+            final LineInputStream lineIn =
+                    new LineInputStream(new ByteArrayInputStream(response), 8 * 1024);
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            start = SystemClock.elapsedRealtime();
+            lines = 0;
+            while (!lineIn.readLine().equals(".")) {
+                lines++;
+            }
+            elapsed = SystemClock.elapsedRealtime() - start;
+            Debug.stopAllocCounting();
+            assertEquals(MESSAGE_COUNT + 1, lines);
+            log("LineInputStream.readLine", response.length, elapsed);
+        }
+    }
+}
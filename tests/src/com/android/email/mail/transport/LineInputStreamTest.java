@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link LineInputStream}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.transport.LineInputStreamTest email
+ */
+@SmallTest
+public class LineInputStreamTest extends TestCase {
+
+    private static LineInputStream stream(String s, int bufferSize) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return new LineInputStream(new ByteArrayInputStream(bytes), bufferSize);
+    }
+
+    public void testReadLine() throws IOException {
+        // Lines that fit in the buffer, and lines that span several refills of it
+        for (int bufferSize : new int[] {1, 3, 1024}) {
+            final LineInputStream in = stream("+OK\r\n1 abc\r\nbare lf\n\r\ncr\rinside\r\n"
+                    + "\u00e9\u00ff\r\nno end", bufferSize);
+            assertEquals("+OK", in.readLine());
+            assertEquals("1 abc", in.readLine());
+            assertEquals("bare lf", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("crinside", in.readLine());
+            assertEquals("\u00e9\u00ff", in.readLine());
+            assertFalse(in.isEndOfStream());
+            assertEquals("no end", in.readLine());
+            assertTrue(in.isEndOfStream());
+            assertEquals("", in.readLine());
+        }
+    }
+
+    public void testLongLine() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i);
+        }
+        final String line = sb.toString();
+        final LineInputStream in = stream(line + "\r\n" + line + "\r\n", 100);
+        assertEquals(line, in.readLine());
+        assertEquals(line, in.readLine());
+    }
+
+    public void testMixedReads() throws IOException {
+        final LineInputStream in = stream("+OK 5 octets\r\nabcde\r\n.\r\n", 8);
+        assertEquals("+OK 5 octets", in.readLine());
+        final byte[] bytes = new byte[5];
+        assertEquals('a', in.read());
+        assertEquals(4, in.read(bytes, 1, 4));
+        assertEquals("", in.readLine());
+        assertEquals(".", in.readLine());
+        assertEquals(-1, in.read());
+    }
+}
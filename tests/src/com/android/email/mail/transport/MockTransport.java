@@ -356,6 +356,12 @@ public class MockTransport implements Transport {
         }
     }
 
+    @Override
+    public void writeLine(String s, String sensitiveReplacement, boolean flush)
+            throws IOException {
+        writeLine(s, sensitiveReplacement);
+    }
+
     /**
      * This is an InputStream that satisfies the needs of getInputStream()
      */
@@ -117,11 +117,12 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
 
         // prepare for the message traffic we'll see
         // TODO The test is a bit fragile, as we are order-dependent (and headers are not)
+        // The server accepts 8bit data, so the text is sent as it is
         expectSimpleMessage(mockTransport);
         mockTransport.expect("Content-Type: text/plain; charset=utf-8");
-        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
         mockTransport.expect("");
-        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect(TEST_STRING);
         mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
@@ -158,6 +159,205 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Test:  Lines starting with a '.' are sent with an extra one, so that they can't end the data
+     */
+    public void testSendMessageDotStuffed() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        long messageId = saveSimpleMessageWithBody(".\n" + TEST_STRING + "\n.." + TEST_STRING);
+
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
+        mockTransport.expect("");
+        mockTransport.expect("\\.\\.");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("\\.\\.\\." + TEST_STRING);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(messageId);
+    }
+
+    /**
+     * Test:  With CHUNKING, the message is sent in a BDAT chunk, as it is
+     */
+    public void testSendMessageChunked() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,8BITMIME,CHUNKING");
+
+        long messageId = saveSimpleMessageWithBody(".\n" + TEST_STRING);
+
+        // MockTransport queues the response to BDAT as it's written, so it's read after the data
+        expectSimpleMessage(mockTransport, "8BITMIME", true);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
+        mockTransport.expect("");
+        mockTransport.expect("\\.");
+        mockTransport.expect(TEST_STRING);
+
+        mSender.sendMessage(messageId);
+    }
+
+    /**
+     * Test:  With BINARYMIME, attachments are sent as they are, rather than base64 encoded
+     */
+    public void testSendMessageBinaryMime() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,8BITMIME,CHUNKING,BINARYMIME");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Attachment attachment = setupSimpleAttachment(mProviderContext, message.mId);
+        attachment.mContentBytes = TEST_STRING.getBytes();
+        attachment.mSize = attachment.mContentBytes.length;
+        attachment.save(mProviderContext);
+
+        expectSimpleMessage(mockTransport, "BINARYMIME", true);
+        mockTransport.expect("Content-Type: multipart/mixed; boundary=\".*");
+        mockTransport.expect("");
+        mockTransport.expect("----.*");
+        mockTransport.expect("Content-Type: " + attachment.mMimeType + ";");
+        mockTransport.expect(" name=\"" + attachment.mFileName + "\"");
+        mockTransport.expect("Content-Transfer-Encoding: binary");
+        mockTransport.expect("Content-Disposition: attachment;");
+        mockTransport.expect(" filename=\"" + attachment.mFileName + "\";");
+        mockTransport.expect(" size=" + Long.toString(attachment.mSize));
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("");
+        mockTransport.expect("----.*--");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Save a simple message with a text body, and return its id
+     */
+    private long saveSimpleMessageWithBody() {
+        return saveSimpleMessageWithBody(TEST_STRING);
+    }
+
+    /**
+     * Save a simple message with the given text body, and return its id
+     */
+    private long saveSimpleMessageWithBody(String text) {
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = text;
+        body.save(mProviderContext);
+        return message.mId;
+    }
+
+    /**
+     * Prepare to receive the body of a message saved by saveSimpleMessageWithBody, sent to a
+     * server that accepts 8bit data
+     */
+    private void expectSimpleBody(MockTransport mockTransport) {
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+    }
+
+    /**
+     * Test:  Send two messages; the second one reuses the session of the first one
+     */
+    public void testSendTwoMessagesInOneSession() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        long messageId1 = saveSimpleMessageWithBody();
+        long messageId2 = saveSimpleMessageWithBody();
+
+        expectSimpleMessage(mockTransport);
+        expectSimpleBody(mockTransport);
+        // No new connection or login for the second message; just a reset
+        mockTransport.expect("RSET", "250 2.0.0 OK");
+        expectSimpleMessage(mockTransport);
+        expectSimpleBody(mockTransport);
+
+        mSender.sendMessage(messageId1);
+        mSender.sendMessage(messageId2);
+    }
+
+    /**
+     * Test:  If the session can't be reset, a new one is opened
+     */
+    public void testSendMessageAfterSessionTimeout() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        long messageId1 = saveSimpleMessageWithBody();
+        long messageId2 = saveSimpleMessageWithBody();
+
+        expectSimpleMessage(mockTransport);
+        expectSimpleBody(mockTransport);
+        mockTransport.expect("RSET", "421 4.4.2 Timeout waiting for data from client");
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+        expectSimpleMessage(mockTransport);
+        expectSimpleBody(mockTransport);
+
+        mSender.sendMessage(messageId1);
+        mSender.sendMessage(messageId2);
+    }
+
+    /**
+     * Test:  With PIPELINING, the envelope is sent before any of its responses are read
+     */
+    public void testSendMessagePipelined() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,8BITMIME,PIPELINING");
+
+        long messageId = saveSimpleMessageWithBody();
+
+        // MockTransport queues the responses as the commands are written, so these are only
+        // read after DATA has been written
+        expectSimpleMessage(mockTransport);
+        expectSimpleBody(mockTransport);
+
+        mSender.sendMessage(messageId);
+    }
+
+    /**
+     * Test:  With PIPELINING, a rejected recipient fails the message, and the session (which may
+     * be waiting for data) isn't reused
+     */
+    public void testSendMessagePipelinedRecipientRejected() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,8BITMIME,PIPELINING");
+
+        long messageId = saveSimpleMessageWithBody();
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> BODY=8BITMIME",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "550 5.1.1 <Smith@Registry.Org> no such user");
+        mockTransport.expect("DATA", "554 5.5.1 no valid recipients");
+        mockTransport.expectClose();
+
+        try {
+            mSender.sendMessage(messageId);
+            fail("Should not be able to send to a rejected recipient");
+        } catch (MessagingException me) {
+            assertTrue(me.getMessage().startsWith("550"));
+        }
+        assertFalse(mockTransport.isOpen());
+    }
+
     /**
      * Prepare to send a simple message (see setReceiveSimpleMessage)
      */
@@ -171,14 +371,30 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     }
 
     /**
-     * Prepare to receive a simple message (see setupSimpleMessage)
+     * Prepare to receive a simple message (see setupSimpleMessage), sent with DATA to a server
+     * that accepts 8bit data
      */
     private void expectSimpleMessage(MockTransport mockTransport) {
-        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+        expectSimpleMessage(mockTransport, "8BITMIME", false);
+    }
+
+    /**
+     * Prepare to receive a simple message (see setupSimpleMessage)
+     *
+     * @param bodyType the BODY parameter expected with MAIL FROM
+     * @param chunking true if the message is expected in a single BDAT chunk, false for DATA
+     */
+    private void expectSimpleMessage(MockTransport mockTransport, String bodyType,
+            boolean chunking) {
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> BODY=" + bodyType,
                 "250 2.1.0 <Jones@Registry.Org> sender ok");
         mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
                 "250 2.1.5 <Smith@Registry.Org> recipient ok");
-        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        if (chunking) {
+            mockTransport.expect("BDAT \\d+ LAST", "250 2.0.0 message accepted for delivery");
+        } else {
+            mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        }
         mockTransport.expect("Date: .*");
         mockTransport.expect("Message-ID: .*");
         mockTransport.expect("From: Jones@Registry.Org");
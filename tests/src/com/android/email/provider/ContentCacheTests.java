@@ -258,6 +258,51 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertFalse(cursor3.isClosed());
     }
 
+    private static final String[] WIDE_PROJECTION = new String[] {"Foo", "Bar", "Baz", "Qux"};
+    private Cursor getWideCursor() {
+        MatrixCursor cursor = new MatrixCursor(WIDE_PROJECTION, 1);
+        cursor.addRow(new Object[] {"A fairly long string value", "Another long string value",
+                "Yet another long string value", "And one more long string value"});
+        cursor.moveToFirst();
+        return cursor;
+    }
+
+    public void testEstimateSize() {
+        Cursor narrow = getOneRowCursor();
+        narrow.moveToFirst();
+        Cursor wide = getWideCursor();
+        assertTrue(ContentCache.estimateSize(wide) > ContentCache.estimateSize(narrow));
+        // Moving off the row must not make the estimate fail
+        wide.moveToNext();
+        assertTrue(ContentCache.estimateSize(wide) > 0);
+    }
+
+    public void testContentCacheMemoryBudget() {
+        Cursor narrow = getOneRowCursor();
+        narrow.moveToFirst();
+        int narrowSize = ContentCache.estimateSize(narrow);
+        // Room for three narrow cursors
+        ContentCache cache =
+                ContentCache.withMemoryBudget("Name", SIMPLE_PROJECTION, narrowSize * 3);
+        for (int i = 0; i < 3; i++) {
+            String id = Integer.toString(i);
+            cache.putCursor(getOneRowCursor(), id, SIMPLE_PROJECTION, cache.getCacheToken(id));
+        }
+        assertEquals(3, cache.size());
+        assertEquals(narrowSize * 3, cache.sizeInBytes());
+
+        // A fourth cursor pushes out the eldest
+        cache.putCursor(getOneRowCursor(), "3", SIMPLE_PROJECTION, cache.getCacheToken("3"));
+        assertEquals(3, cache.size());
+        assertNull(cache.get("0"));
+        assertNotNull(cache.get("3"));
+
+        // Invalidating empties the cache and gets the byte count back to zero
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
     public void testCloseCachedCursor() {
         // Create a cache of size 2
         ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 2);
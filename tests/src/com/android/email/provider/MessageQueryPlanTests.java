@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Runs EXPLAIN QUERY PLAN over the hot queries on the Message table, and makes sure none of
+ * them scans the whole table.  If one of these fails after a schema or query change, an index is
+ * missing.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageQueryPlanTests email
+ */
+@SmallTest
+public class MessageQueryPlanTests extends AndroidTestCase {
+    private static final String ORDER_BY_TIMESTAMP = MessageColumns.TIMESTAMP + " DESC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // In-memory database with the same schema as DBHelper.DatabaseHelper.onCreate() builds.
+        mDb = SQLiteDatabase.create(null);
+        DBHelper.createMessageTable(mDb);
+        DBHelper.createAttachmentTable(mDb);
+        DBHelper.createMailboxTable(mDb);
+        DBHelper.createHostAuthTable(mDb);
+        DBHelper.createAccountTable(mDb);
+        DBHelper.createPolicyTable(mDb);
+        DBHelper.createQuickResponseTable(mDb);
+        MessageSearchIndex.createTable(mDb);
+        MailboxTypeCounts.createTable(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return the query plan of {@code sql}, one step per line.
+     */
+    private String explain(String sql, String... args) {
+        final Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            final int detailColumn = c.getColumnIndexOrThrow("detail");
+            final StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                sb.append(c.getString(detailColumn)).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Fail if the plan of {@code sql} reads the Message table without an index.
+     */
+    private String checkNoFullScan(String sql, String... args) {
+        final String plan = explain(sql, args);
+        for (String step : plan.split("\n")) {
+            // e.g. "SCAN TABLE Message (~100000 rows)" ("SCAN Message" in newer SQLite)
+            final boolean scansMessage = step.startsWith("SCAN TABLE " + Message.TABLE_NAME + " ")
+                    || step.equals("SCAN TABLE " + Message.TABLE_NAME)
+                    || step.startsWith("SCAN " + Message.TABLE_NAME + " ")
+                    || step.equals("SCAN " + Message.TABLE_NAME);
+            if (scansMessage && !step.contains(" USING ")) {
+                fail("Full scan of " + Message.TABLE_NAME + ":\n" + sql + "\n" + plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Fail unless the plan of {@code sql} reads Message from an index alone.
+     */
+    private void checkCoveringIndex(String sql, String... args) {
+        final String plan = checkNoFullScan(sql, args);
+        assertTrue(sql + "\n" + plan, plan.contains(" USING COVERING INDEX "));
+    }
+
+    private static String select(String selection, String orderBy) {
+        return select("*", selection, orderBy);
+    }
+
+    private static String select(String columns, String selection, String orderBy) {
+        String sql = "SELECT " + columns + " FROM " + Message.TABLE_NAME + " WHERE " + selection;
+        if (orderBy != null) {
+            sql += " ORDER BY " + orderBy;
+        }
+        return sql;
+    }
+
+    // As in MessagesAdapter.MessagesCursorLoader
+    private static final String WINDOW_END_COLUMNS =
+            MessageColumns.TIMESTAMP + ", " + EmailContent.RECORD_ID;
+    private static final String WINDOW_SELECTION = " AND " + MessageColumns.TIMESTAMP
+            + ">=? AND (" + MessageColumns.TIMESTAMP + ">? OR (" + MessageColumns.TIMESTAMP
+            + "=? AND " + EmailContent.RECORD_ID + ">=?))";
+    private static final String PAST_WINDOW_SELECTION = " AND " + MessageColumns.TIMESTAMP
+            + "<=? AND (" + MessageColumns.TIMESTAMP + "<? OR (" + MessageColumns.TIMESTAMP
+            + "=? AND " + EmailContent.RECORD_ID + "<?))";
+
+    /** MessageListFragment on a regular mailbox. */
+    public void testMailboxMessageList() {
+        final String plan = checkNoFullScan(select(MessageColumns.MAILBOX_KEY + "=1 AND "
+                + Message.FLAG_LOADED_SELECTION, ORDER_BY_TIMESTAMP));
+        // (mailboxKey, timestamp, flagLoaded) returns them sorted.
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The window, up to (timestamp, id) of its last message
+        final String orderBy = ORDER_BY_TIMESTAMP + ", " + EmailContent.RECORD_ID + " DESC";
+        checkNoFullScan(select(MessageColumns.MAILBOX_KEY + "=1 AND "
+                + Message.FLAG_LOADED_SELECTION + WINDOW_SELECTION, orderBy),
+                "100", "100", "100", "5");
+        // The search for its end skips the messages in the index, without reading them
+        checkCoveringIndex(select(WINDOW_END_COLUMNS, MessageColumns.MAILBOX_KEY + "=1 AND "
+                + Message.FLAG_LOADED_SELECTION, orderBy) + " LIMIT 99,2");
+        checkCoveringIndex(select(WINDOW_END_COLUMNS, MessageColumns.MAILBOX_KEY + "=1 AND "
+                + Message.FLAG_LOADED_SELECTION + PAST_WINDOW_SELECTION, orderBy) + " LIMIT 99,2",
+                "100", "100", "100", "5");
+    }
+
+    /** MessageListFragment on the combined views. */
+    public void testCombinedMessageLists() {
+        checkNoFullScan(select(Message.ALL_INBOX_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(Message.ALL_DRAFT_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(Message.ALL_OUTBOX_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(Message.ALL_UNREAD_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(Message.ALL_FAVORITE_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(MessageColumns.ACCOUNT_KEY + "=1 AND "
+                + Message.ALL_FAVORITE_SELECTION, ORDER_BY_TIMESTAMP));
+        checkNoFullScan(select(Message.PER_ACCOUNT_INBOX_SELECTION, ORDER_BY_TIMESTAMP), "1");
+        checkNoFullScan(select(Message.PER_ACCOUNT_UNREAD_SELECTION, ORDER_BY_TIMESTAMP), "1");
+
+        // The window of the combined inbox, and the search for its end within the bound
+        final String orderBy = ORDER_BY_TIMESTAMP + ", " + EmailContent.RECORD_ID + " DESC";
+        String plan = checkNoFullScan(select(Message.ALL_INBOX_SELECTION + WINDOW_SELECTION,
+                orderBy), "100", "100", "100", "5");
+        assertTrue(plan, plan.contains(MessageColumns.TIMESTAMP + ">"));
+        plan = checkNoFullScan(select(Message.ALL_INBOX_SELECTION + " AND "
+                + MessageColumns.TIMESTAMP + ">=50", orderBy) + " LIMIT 99,2");
+        assertTrue(plan, plan.contains(MessageColumns.TIMESTAMP + ">"));
+        // The bound, from each inbox's part of the (mailboxKey, timestamp, flagLoaded) index
+        checkCoveringIndex("SELECT max((SELECT " + MessageColumns.TIMESTAMP + " FROM "
+                + Message.TABLE_NAME + " WHERE " + MessageColumns.MAILBOX_KEY + "="
+                + Mailbox.TABLE_NAME + "." + EmailContent.RECORD_ID + " AND "
+                + Message.FLAG_LOADED_SELECTION + " ORDER BY " + ORDER_BY_TIMESTAMP
+                + " LIMIT 1 OFFSET 100)) FROM " + Mailbox.TABLE_NAME + " WHERE "
+                + MailboxColumns.TYPE + "=0");
+    }
+
+    /** MessagingController.synchronizeMailboxGeneric() and copyOneMessageToProvider(). */
+    public void testSyncQueries() {
+        checkNoFullScan(select(MessageColumns.ACCOUNT_KEY + "=? AND "
+                + MessageColumns.MAILBOX_KEY + "=?", null), "1", "2");
+        checkNoFullScan(select(MessageColumns.ACCOUNT_KEY + "=? AND "
+                + MessageColumns.MAILBOX_KEY + "=? AND " + SyncColumns.SERVER_ID + "=?", null),
+                "1", "2", "100");
+        checkNoFullScan(select(MessageColumns.MAILBOX_KEY + "=?", null), "2");
+    }
+
+    /** Queries issued by EmailProvider itself. */
+    public void testProviderQueries() {
+        checkNoFullScan(EmailProvider.NOTIFICATION_QUERY, "1");
+        checkNoFullScan(EmailProvider.MOST_RECENT_MESSAGE_QUERY, "2");
+        checkNoFullScan(EmailProvider.UNSEEN_MESSAGES_QUERY, "2");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of the full text search index, on an in-memory database holding both the Message and
+ * Body tables.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageSearchIndexTests email
+ */
+@SmallTest
+public class MessageSearchIndexTests extends AndroidTestCase {
+    private static final String[] ID_PROJECTION = new String[] { EmailContent.RECORD_ID };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        DBHelper.createMessageTable(mDb);
+        DBHelper.createBodyTable(mDb);
+        MessageSearchIndex.createTable(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insertMessage(String subject, String displayName, long timestamp) {
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, subject);
+        cv.put(MessageColumns.DISPLAY_NAME, displayName);
+        cv.put(MessageColumns.TIMESTAMP, timestamp);
+        cv.put(MessageColumns.MAILBOX_KEY, 1);
+        cv.put(MessageColumns.ACCOUNT_KEY, 1);
+        return mDb.insert(Message.TABLE_NAME, null, cv);
+    }
+
+    private void insertBody(long messageId, String text, String html) {
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.MESSAGE_KEY, messageId);
+        cv.put(BodyColumns.TEXT_CONTENT, text);
+        cv.put(BodyColumns.HTML_CONTENT, html);
+        long bodyId = mDb.insert(Body.TABLE_NAME, null, cv);
+        MessageSearchIndex.indexBodies(mDb, EmailContent.RECORD_ID + "=?",
+                new String[] { Long.toString(bodyId) });
+    }
+
+    private long[] search(String query) {
+        Cursor c = MessageSearchIndex.search(mDb, query, ID_PROJECTION, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            int i = 0;
+            while (c.moveToNext()) {
+                ids[i++] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void assertIds(long[] actual, long... expected) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Result " + i, expected[i], actual[i]);
+        }
+    }
+
+    public void testIndexFollowsMessages() {
+        long id = insertMessage("Lunch on Friday", "Alice", 1000);
+        assertIds(search("lunch"), id);
+        assertIds(search("alice"), id);
+
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "Dinner on Friday");
+        mDb.update(Message.TABLE_NAME, cv, EmailContent.RECORD_ID + "=" + id, null);
+        assertIds(search("lunch"));
+        assertIds(search("dinner"), id);
+
+        mDb.delete(Message.TABLE_NAME, EmailContent.RECORD_ID + "=" + id, null);
+        assertIds(search("dinner"));
+    }
+
+    public void testIndexBodies() {
+        long textId = insertMessage("One", "Alice", 1000);
+        insertBody(textId, "The quarterly report is attached", null);
+        long htmlId = insertMessage("Two", "Bob", 2000);
+        insertBody(htmlId, null, "<html><body><b>Budget</b> for the report</body></html>");
+
+        assertIds(search("quarterly"), textId);
+        assertIds(search("budget"), htmlId);
+        // Tags aren't indexed
+        assertIds(search("html"));
+        // Both match; equal rank, so the most recent message comes first
+        assertIds(search("report"), htmlId, textId);
+    }
+
+    public void testRanking() {
+        long bodyMatch = insertMessage("Hello", "Alice", 3000);
+        insertBody(bodyMatch, "Something about the invoice", null);
+        long subjectMatch = insertMessage("Invoice 42", "Bob", 1000);
+        // A subject hit outranks a body hit, even on an older message
+        assertIds(search("invoice"), subjectMatch, bodyMatch);
+    }
+
+    public void testSnippetAndLimit() {
+        for (int i = 0; i < 5; i++) {
+            insertMessage("Weekly status " + i, "Carol", i);
+        }
+        Cursor c = MessageSearchIndex.search(mDb, "status", ID_PROJECTION, null, null, "2");
+        try {
+            assertEquals(2, c.getCount());
+            assertTrue(c.moveToFirst());
+            int snippetColumn = c.getColumnIndex(Message.SEARCH_SNIPPET);
+            assertEquals(1, snippetColumn);
+            assertTrue(c.getString(snippetColumn).contains("<b>status</b>"));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testIndexAllMessagesAndBodies() {
+        long id = insertMessage("Travel plans", "Dave", 1000);
+        insertBody(id, "Flights to Lisbon", null);
+        mDb.execSQL("delete from " + MessageSearchIndex.TABLE_NAME);
+        assertIds(search("lisbon"));
+
+        MessageSearchIndex.indexAllMessages(mDb);
+        assertIds(search("travel"), id);
+        assertTrue(MessageSearchIndex.needsBodies(mDb));
+        MessageSearchIndex.indexAllBodies(mDb);
+        assertIds(search("lisbon"), id);
+        assertFalse(MessageSearchIndex.needsBodies(mDb));
+    }
+
+    /**
+     * Indexing the existing bodies is recorded in the database as it goes, so that it can resume
+     * where it stopped, e.g. when the process was killed.
+     */
+    public void testIndexAllBodiesResumes() {
+        final long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = insertMessage("Message " + i, "Erin", i);
+            insertBody(ids[i], "Agenda item" + i, null);
+        }
+        mDb.execSQL("delete from " + MessageSearchIndex.TABLE_NAME);
+        MessageSearchIndex.indexAllMessages(mDb);
+        assertIds(search("agenda"));
+
+        // Index a batch, and stop
+        assertTrue(MessageSearchIndex.indexBodyBatch(mDb, 2));
+        assertTrue(MessageSearchIndex.needsBodies(mDb));
+        assertIds(search("item0"), ids[0]);
+        assertIds(search("item1"), ids[1]);
+        assertIds(search("item2"));
+
+        // Resume with the rest
+        MessageSearchIndex.indexAllBodies(mDb);
+        assertFalse(MessageSearchIndex.needsBodies(mDb));
+        for (int i = 0; i < ids.length; i++) {
+            assertIds(search("item" + i), ids[i]);
+        }
+        assertFalse(MessageSearchIndex.indexBodyBatch(mDb, 2));
+    }
+
+    public void testNoBodiesToIndexOnCreate() {
+        assertFalse(MessageSearchIndex.needsBodies(mDb));
+    }
+
+    public void testGetIndexableText() {
+        assertEquals("plain text", MessageSearchIndex.getIndexableText("plain text", "<p>x</p>"));
+        assertEquals("html text", MessageSearchIndex.getIndexableText(null, "<p>html text</p>"));
+        assertEquals("", MessageSearchIndex.getIndexableText(null, null));
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.email.DBTestHelper;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.IsolatedContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the change notifications {@link EmailProvider} sends, in and out of
+ * {@link EmailProvider#applyBatch}, and of the values its notification queries return.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ProviderTests email
+ */
+@SmallTest
+public class ProviderTests extends AndroidTestCase {
+    private static final Uri MESSAGE_UPDATE_NOTIFIER_URI = Message.NOTIFIER_URI.buildUpon()
+            .appendEncodedPath(EmailProvider.NOTIFICATION_OP_UPDATE).build();
+
+    private NotificationRecorder mResolver;
+    private NestingProvider mProvider;
+    private IsolatedContext mProviderContext;
+
+    private Mailbox mMailbox;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new NotificationRecorder();
+        mProvider = new NestingProvider();
+        mProviderContext = (IsolatedContext) DBTestHelper.ProviderContextSetupHelper
+                .getProviderContext(getContext(), mResolver, mProvider);
+        final Account account = ProviderTestUtils.setupAccount("account", true, mProviderContext);
+        mMailbox = ProviderTestUtils.setupMailbox("box", account.mId, true, mProviderContext);
+    }
+
+    /**
+     * Records change notifications instead of sending them.
+     */
+    private static class NotificationRecorder extends MockContentResolver {
+        final ArrayList<Uri> mUris = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            mUris.add(uri);
+        }
+
+        int count(Uri uri) {
+            int count = 0;
+            for (Uri notified : mUris) {
+                if (notified.equals(uri)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Runs a batch from within the next update, the way a nested {@link EmailProvider#applyBatch}
+     * would happen.
+     */
+    private static class NestingProvider extends EmailProvider {
+        ArrayList<ContentProviderOperation> mNestedOperations;
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            if (mNestedOperations != null) {
+                final ArrayList<ContentProviderOperation> operations = mNestedOperations;
+                mNestedOperations = null;
+                try {
+                    applyBatch(operations);
+                } catch (OperationApplicationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return super.update(uri, values, selection, selectionArgs);
+        }
+    }
+
+    private long[] createMessages(int count) {
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = ProviderTestUtils.setupMessage("message" + i, mMailbox.mAccountKey,
+                    mMailbox.mId, false, true, mProviderContext, false, false).mId;
+        }
+        return ids;
+    }
+
+    private static ArrayList<ContentProviderOperation> buildMarkRead(long[] ids) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (long id : ids) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Message.CONTENT_URI, id))
+                    .withValue(MessageColumns.FLAG_READ, 1)
+                    .build());
+        }
+        return operations;
+    }
+
+    /** Clears what was recorded so far, e.g. while the test data was set up */
+    private void resetNotifications() {
+        mResolver.mUris.clear();
+        mProviderContext.getAndClearBroadcastIntents();
+    }
+
+    private int getMessageListChangedCount() {
+        int count = 0;
+        final List<Intent> intents = mProviderContext.getAndClearBroadcastIntents();
+        for (Intent intent : intents) {
+            if (EmailProvider.ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED.equals(
+                    intent.getAction())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertBatchNotifications() {
+        assertEquals(1, mResolver.count(MESSAGE_UPDATE_NOTIFIER_URI));
+        assertEquals(1, mResolver.count(EmailContent.CONTENT_URI));
+        assertEquals(2, mResolver.mUris.size());
+        assertEquals(1, getMessageListChangedCount());
+    }
+
+    /**
+     * Outside a batch, each update is notified on its own.
+     */
+    public void testUpdateNotifications() throws Exception {
+        final long[] ids = createMessages(3);
+        resetNotifications();
+
+        mProvider.applyBatch(new ArrayList<ContentProviderOperation>());
+        assertEquals(0, mResolver.mUris.size());
+        assertEquals(0, getMessageListChangedCount());
+
+        for (long id : ids) {
+            mProvider.update(ContentUris.withAppendedId(Message.CONTENT_URI, id),
+                    buildReadValues(true), null, null);
+        }
+        // Per-message URIs aren't collapsed outside a batch
+        assertEquals(0, mResolver.count(MESSAGE_UPDATE_NOTIFIER_URI));
+        assertEquals(1, mResolver.count(
+                ContentUris.withAppendedId(MESSAGE_UPDATE_NOTIFIER_URI, ids[0])));
+        assertEquals(ids.length, mResolver.count(EmailContent.CONTENT_URI));
+        assertEquals(ids.length, getMessageListChangedCount());
+    }
+
+    /**
+     * A batch of updates sends one notification per URI, and one message list change.
+     */
+    public void testApplyBatchCoalescesNotifications() throws Exception {
+        final long[] ids = createMessages(5);
+        resetNotifications();
+
+        mProvider.applyBatch(buildMarkRead(ids));
+        assertBatchNotifications();
+        for (long id : ids) {
+            assertTrue(Message.restoreMessageWithId(mProviderContext, id).mFlagRead);
+        }
+
+        // Notifications aren't held back once the batch is done
+        mProvider.update(ContentUris.withAppendedId(Message.CONTENT_URI, ids[0]),
+                buildReadValues(false), null, null);
+        assertEquals(2, mResolver.count(EmailContent.CONTENT_URI));
+        assertEquals(1, getMessageListChangedCount());
+    }
+
+    /**
+     * A batch applied within another one is notified with the outer one, once.
+     */
+    public void testApplyBatchNested() throws Exception {
+        final long[] ids = createMessages(4);
+        resetNotifications();
+
+        mProvider.mNestedOperations = buildMarkRead(new long[] {ids[2], ids[3]});
+        mProvider.applyBatch(buildMarkRead(new long[] {ids[0], ids[1]}));
+        assertNull(mProvider.mNestedOperations);
+        assertBatchNotifications();
+        for (long id : ids) {
+            assertTrue(Message.restoreMessageWithId(mProviderContext, id).mFlagRead);
+        }
+    }
+
+    /**
+     * If a batch fails, what was held back is still sent, and later changes aren't held back.
+     */
+    public void testApplyBatchThrows() throws Exception {
+        final long[] ids = createMessages(2);
+        resetNotifications();
+
+        final ArrayList<ContentProviderOperation> operations = buildMarkRead(ids);
+        // This one fails: the message exists only once
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Message.CONTENT_URI, ids[0]))
+                .withValue(MessageColumns.FLAG_READ, 1)
+                .withExpectedCount(2)
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+            fail("OperationApplicationException expected");
+        } catch (OperationApplicationException expected) {
+        }
+        assertBatchNotifications();
+
+        mProvider.update(ContentUris.withAppendedId(Message.CONTENT_URI, ids[0]),
+                buildReadValues(true), null, null);
+        assertEquals(2, mResolver.count(EmailContent.CONTENT_URI));
+        assertEquals(1, getMessageListChangedCount());
+    }
+
+    private long createMessage(String name, long mailboxId, boolean read, int flagLoaded) {
+        final Message message = ProviderTestUtils.setupMessage(name, mMailbox.mAccountKey,
+                mailboxId, false, false, mProviderContext, false, read);
+        message.mFlagLoaded = flagLoaded;
+        message.save(mProviderContext);
+        return message.mId;
+    }
+
+    private void update(Uri uri, long id, String column, long value) {
+        final ContentValues values = new ContentValues();
+        values.put(column, value);
+        mProviderContext.getContentResolver().update(ContentUris.withAppendedId(uri, id),
+                values, null, null);
+    }
+
+    /**
+     * Checks the single row of the mailboxUnseenMessages query:
+     * count, newest id, unread count, last seen id, notified id, notified count.
+     */
+    private void checkUnseenMessages(long mailboxId, long... expected) {
+        final Cursor c = mProviderContext.getContentResolver().query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_UNSEEN_MESSAGES_URI, mailboxId), null, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(expected[0], c.getInt(EmailContent.UNSEEN_MESSAGES_COUNT_COLUMN));
+            assertEquals(expected[1], c.getLong(EmailContent.UNSEEN_MESSAGES_NEWEST_ID_COLUMN));
+            assertEquals(expected[2], c.getInt(EmailContent.UNSEEN_MESSAGES_UNREAD_COUNT_COLUMN));
+            assertEquals(expected[3], c.getLong(EmailContent.UNSEEN_MESSAGES_LAST_SEEN_ID_COLUMN));
+            assertEquals(expected[4], c.getLong(EmailContent.UNSEEN_MESSAGES_NOTIFIED_ID_COLUMN));
+            assertEquals(expected[5], c.getInt(EmailContent.UNSEEN_MESSAGES_NOTIFIED_COUNT_COLUMN));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Unseen messages are the unread, loaded ones of the mailbox past the last one seen.
+     */
+    public void testUnseenMessagesQuery() {
+        final Mailbox other = ProviderTestUtils.setupMailbox("other", mMailbox.mAccountKey, true,
+                mProviderContext);
+
+        // An empty mailbox still has its row
+        checkUnseenMessages(mMailbox.mId, 0, 0, 0, 0, 0, 0);
+
+        createMessage("read", mMailbox.mId, true, Message.FLAG_LOADED_COMPLETE);
+        final long unread1 = createMessage("unread1", mMailbox.mId, false,
+                Message.FLAG_LOADED_COMPLETE);
+        final long unloaded = createMessage("unloaded", mMailbox.mId, false,
+                Message.FLAG_LOADED_UNLOADED);
+        final long unread2 = createMessage("unread2", mMailbox.mId, false,
+                Message.FLAG_LOADED_PARTIAL);
+        final long otherUnread = createMessage("other", other.mId, false,
+                Message.FLAG_LOADED_COMPLETE);
+
+        // The unloaded message is unread but not unseen yet; the other mailbox's doesn't count
+        checkUnseenMessages(mMailbox.mId, 2, unread2, 3, 0, 0, 0);
+        checkUnseenMessages(other.mId, 1, otherUnread, 1, 0, 0, 0);
+
+        // Only messages newer than the last one seen
+        update(Mailbox.CONTENT_URI, mMailbox.mId, MailboxColumns.LAST_SEEN_MESSAGE_KEY, unread1);
+        checkUnseenMessages(mMailbox.mId, 1, unread2, 3, unread1, 0, 0);
+
+        // Reading a message makes it seen
+        update(Message.CONTENT_URI, unread2, MessageColumns.FLAG_READ, 1);
+        checkUnseenMessages(mMailbox.mId, 0, 0, 2, unread1, 0, 0);
+
+        // Loading one makes it unseen
+        update(Message.CONTENT_URI, unloaded, MessageColumns.FLAG_LOADED,
+                Message.FLAG_LOADED_COMPLETE);
+        checkUnseenMessages(mMailbox.mId, 1, unloaded, 2, unread1, 0, 0);
+
+        // What was last notified comes from the account
+        update(Account.CONTENT_URI, mMailbox.mAccountKey, AccountColumns.NOTIFIED_MESSAGE_ID,
+                unloaded);
+        update(Account.CONTENT_URI, mMailbox.mAccountKey, AccountColumns.NOTIFIED_MESSAGE_COUNT,
+                1);
+        checkUnseenMessages(mMailbox.mId, 1, unloaded, 2, unread1, unloaded, 1);
+        checkUnseenMessages(other.mId, 1, otherUnread, 1, 0, unloaded, 1);
+    }
+
+    public void testUnseenMessagesQueryNoMailbox() {
+        final Cursor c = mProviderContext.getContentResolver().query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_UNSEEN_MESSAGES_URI, mMailbox.mId + 100), null, null, null,
+                null);
+        try {
+            assertFalse(c.moveToFirst());
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ContentValues buildReadValues(boolean read) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, read ? 1 : 0);
+        return values;
+    }
+}
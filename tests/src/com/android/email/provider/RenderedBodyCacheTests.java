@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.email.DBTestHelper;
+import com.android.email.provider.RenderedBodyCache.RenderedBody;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of the rendered body cache, and of its invalidation by EmailProvider.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.RenderedBodyCacheTests email
+ */
+@SmallTest
+public class RenderedBodyCacheTests extends AndroidTestCase {
+    private Context mProviderContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(getContext());
+        RenderedBodyCache.invalidateAll();
+    }
+
+    public void testToken() {
+        RenderedBody body = new RenderedBody("<html></html>", null, false);
+        int token = RenderedBodyCache.getToken();
+        RenderedBodyCache.put(1, token, body);
+        assertSame(body, RenderedBodyCache.get(1));
+
+        // A body written after the token was handed out isn't cached
+        token = RenderedBodyCache.getToken();
+        RenderedBodyCache.invalidate(2);
+        RenderedBodyCache.put(2, token, body);
+        assertNull(RenderedBodyCache.get(2));
+        assertSame(body, RenderedBodyCache.get(1));
+
+        RenderedBodyCache.invalidate(1);
+        assertNull(RenderedBodyCache.get(1));
+    }
+
+    /**
+     * A load that gets its token after the provider has locked the message, and reads the old
+     * row before the write, mustn't cache what it rendered; neither while the message is locked,
+     * nor after it's unlocked.
+     */
+    public void testLoadDuringWrite() {
+        RenderedBody oldBody = new RenderedBody("<html>old</html>", null, false);
+        RenderedBody newBody = new RenderedBody("<html>new</html>", null, false);
+
+        // The provider locks the message, as it's about to write its Body row
+        RenderedBodyCache.lock(1);
+        // The load gets its token, and reads and renders the old row
+        final int token = RenderedBodyCache.getToken();
+        RenderedBodyCache.put(1, token, oldBody);
+        assertNull(RenderedBodyCache.get(1));
+        // Other messages can still be cached
+        RenderedBodyCache.put(2, token, oldBody);
+        assertSame(oldBody, RenderedBodyCache.get(2));
+
+        // The provider writes the row, and unlocks the message
+        RenderedBodyCache.unlock(1);
+        // The load finishes after the write
+        RenderedBodyCache.put(1, token, oldBody);
+        assertNull(RenderedBodyCache.get(1));
+
+        // A load that starts after the write caches the new body
+        RenderedBodyCache.put(1, RenderedBodyCache.getToken(), newBody);
+        assertSame(newBody, RenderedBodyCache.get(1));
+
+        // Writes of the same message can overlap; it stays locked until both are done
+        RenderedBodyCache.lock(1);
+        RenderedBodyCache.lock(1);
+        RenderedBodyCache.unlock(1);
+        RenderedBodyCache.put(1, RenderedBodyCache.getToken(), oldBody);
+        assertNull(RenderedBodyCache.get(1));
+        RenderedBodyCache.unlock(1);
+        RenderedBodyCache.put(1, RenderedBodyCache.getToken(), newBody);
+        assertSame(newBody, RenderedBodyCache.get(1));
+    }
+
+    public void testBodyWriteInvalidates() {
+        Message message = ProviderTestUtils.setupMessage("message", 1, 2, true, true,
+                mProviderContext);
+        RenderedBody body = new RenderedBody("<html></html>", null, false);
+        RenderedBodyCache.put(message.mId, RenderedBodyCache.getToken(), body);
+        Message other = ProviderTestUtils.setupMessage("other", 1, 2, true, true,
+                mProviderContext);
+        RenderedBodyCache.put(other.mId, RenderedBodyCache.getToken(), body);
+
+        // Update by id
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.TEXT_CONTENT, "new text");
+        Body.updateBodyWithMessageId(mProviderContext, message.mId, cv);
+        assertNull(RenderedBodyCache.get(message.mId));
+        assertSame(body, RenderedBodyCache.get(other.mId));
+
+        // Update by selection
+        cv = new ContentValues();
+        cv.put(BodyColumns.INTRO_TEXT, "new intro");
+        mProviderContext.getContentResolver().update(Body.CONTENT_URI, cv,
+                BodyColumns.MESSAGE_KEY + "=?", new String[] { Long.toString(other.mId) });
+        assertNull(RenderedBodyCache.get(other.mId));
+    }
+}
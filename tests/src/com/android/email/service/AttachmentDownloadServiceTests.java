@@ -18,6 +18,7 @@ package com.android.email.service;
 
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 
 import com.android.email.AccountTestCase;
 import com.android.email.EmailConnectivityManager;
@@ -234,6 +235,102 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         }
     }
 
+    /**
+     * A MockConnectivityManager that is on the network the test says it is on
+     */
+    private static class NetworkTypeConnectivityManager extends MockConnectivityManager {
+        private int mActiveNetworkType;
+
+        public NetworkTypeConnectivityManager(Context context, int networkType) {
+            super(context, "mock");
+            mActiveNetworkType = networkType;
+        }
+
+        @Override
+        public int getActiveNetworkType() {
+            return mActiveNetworkType;
+        }
+    }
+
+    /**
+     * Test that the limit on simultaneous downloads follows the throughput of the downloads, and
+     * the network
+     */
+    public void testDownloadLimit() {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 64 * 1024,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        DownloadRequest req = new DownloadRequest(mMockContext, att);
+        NetworkTypeConnectivityManager connectivityManager =
+                new NetworkTypeConnectivityManager(mContext, ConnectivityManager.TYPE_WIFI);
+        mService.mConnectivityManager = connectivityManager;
+        assertEquals(2, mDownloadSet.getDownloadLimit());
+
+        // The first download only tells us what to expect (64KB/s)
+        req.startTime = System.currentTimeMillis() - 1000;
+        mDownloadSet.updateDownloadLimit(req, EmailServiceStatus.SUCCESS);
+        assertEquals(2, mDownloadSet.getDownloadLimit());
+        // A faster one raises the limit, but not past the limit for the network
+        req.startTime = System.currentTimeMillis() - 500;
+        mDownloadSet.updateDownloadLimit(req, EmailServiceStatus.SUCCESS);
+        assertEquals(3, mDownloadSet.getDownloadLimit());
+        connectivityManager.mActiveNetworkType = ConnectivityManager.TYPE_MOBILE;
+        assertEquals(2, mDownloadSet.getDownloadLimit());
+        connectivityManager.mActiveNetworkType = ConnectivityManager.TYPE_WIFI;
+        // A much slower one lowers it
+        req.startTime = System.currentTimeMillis() - 10000;
+        mDownloadSet.updateDownloadLimit(req, EmailServiceStatus.SUCCESS);
+        assertEquals(2, mDownloadSet.getDownloadLimit());
+        // And a dropped connection halves it
+        mDownloadSet.updateDownloadLimit(req, EmailServiceStatus.CONNECTION_ERROR);
+        assertEquals(1, mDownloadSet.getDownloadLimit());
+    }
+
+    /**
+     * Test that a user request gets a slot taken by a background download
+     */
+    public void testPreemptBackgroundDownload() {
+        // On a mobile network, so that two downloads take every slot
+        mService.mConnectivityManager =
+                new NetworkTypeConnectivityManager(mContext, ConnectivityManager.TYPE_MOBILE);
+        // Use three accounts, so that the per-account limit doesn't get in the way
+        long[] accountIds = new long[3];
+        Attachment[] atts = new Attachment[3];
+        for (int i = 0; i < atts.length; i++) {
+            Account account = (i == 0) ? mAccount
+                    : ProviderTestUtils.setupAccount("account" + i, true, mMockContext);
+            accountIds[i] = account.mId;
+            mService.addServiceIntentForTest(account.mId, new Intent(mContext,
+                    NullEmailService.class));
+            Mailbox mailbox = ProviderTestUtils.setupMailbox("mailbox", account.mId, true,
+                    mMockContext);
+            Message message = ProviderTestUtils.setupMessage("message", account.mId, mailbox.mId,
+                    false, true, mMockContext);
+            atts[i] = ProviderTestUtils.setupAttachment(message.mId, "filename", 1000,
+                    (i == 2) ? Attachment.FLAG_DOWNLOAD_USER_REQUEST : 0, true, mMockContext);
+        }
+
+        // Two background downloads take both slots
+        assertTrue(mDownloadSet.tryStartDownload(new DownloadRequest(mMockContext, atts[0])));
+        assertTrue(mDownloadSet.tryStartDownload(new DownloadRequest(mMockContext, atts[1])));
+        assertEquals(2, mDownloadSet.activeDownloads());
+
+        // The user's download takes one of theirs; the background download carries on
+        mDownloadSet.onChange(mMockContext, atts[2]);
+        assertEquals(1, mDownloadSet.activeDownloads());
+        mDownloadSet.processQueue();
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(atts[2].mId));
+        assertEquals(3, mDownloadSet.mDownloadsInProgress.size());
+        assertEquals(2, mDownloadSet.activeDownloads());
+
+        // The preempted download still ends normally
+        for (Attachment att : atts) {
+            mDownloadSet.endDownload(att.mId, EmailServiceStatus.SUCCESS);
+        }
+        assertEquals(0, mDownloadSet.mDownloadsInProgress.size());
+    }
+
     public void testCanPrefetchForAccount() {
         // First, test our "global" limits (based on free storage)
         // Mock storage @ 100 total and 26 available
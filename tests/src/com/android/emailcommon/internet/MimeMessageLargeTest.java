@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Multipart;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Micro benchmark for {@link MimeMessage#parse}, on a multipart message of a few MB: a text
+ * part, a nested multipart/alternative, and {@link #ATTACHMENT_COUNT} base64 attachments.  Most
+ * of the time goes to finding the boundaries in the attachments.  Results go to logcat.
+ */
+@LargeTest
+public class MimeMessageLargeTest extends AndroidTestCase {
+    private static final int ATTACHMENT_COUNT = 3;
+    private static final int ATTACHMENT_SIZE = 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] buildMessage() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("From: sender@example.com\r\n");
+        sb.append("To: recipient@example.com\r\n");
+        sb.append("Subject: Large message\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        sb.append("Content-Type: multipart/mixed; boundary=\"outer-boundary\"\r\n");
+        sb.append("\r\n");
+        sb.append("This is a multi-part message in MIME format.\r\n");
+
+        sb.append("--outer-boundary\r\n");
+        sb.append("Content-Type: multipart/alternative; boundary=\"inner-boundary\"\r\n");
+        sb.append("\r\n");
+        sb.append("--inner-boundary\r\n");
+        sb.append("Content-Type: text/plain; charset=us-ascii\r\n");
+        sb.append("\r\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("Line ").append(i).append(" of the text, -- not a boundary\r\n");
+        }
+        sb.append("--inner-boundary\r\n");
+        sb.append("Content-Type: text/html; charset=us-ascii\r\n");
+        sb.append("\r\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<p>Line ").append(i).append(" of the text</p>\r\n");
+        }
+        sb.append("--inner-boundary--\r\n");
+
+        final byte[] data = new byte[ATTACHMENT_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        final String encoded = Base64.encodeToString(data, Base64.CRLF);
+        for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+            sb.append("--outer-boundary\r\n");
+            sb.append("Content-Type: application/octet-stream; name=\"file").append(i)
+                    .append(".bin\"\r\n");
+            sb.append("Content-Transfer-Encoding: base64\r\n");
+            sb.append("\r\n");
+            sb.append(encoded);
+        }
+        sb.append("--outer-boundary--\r\n");
+        return Utility.toAscii(sb.toString());
+    }
+
+    public void testParseMultipart() throws Exception {
+        final byte[] message = buildMessage();
+        for (int i = 0; i < ROUNDS; i++) {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            final long start = SystemClock.elapsedRealtime();
+            final MimeMessage parsed = new MimeMessage(new ByteArrayInputStream(message));
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            Debug.stopAllocCounting();
+
+            final Multipart multipart = (Multipart) parsed.getBody();
+            assertEquals(1 + ATTACHMENT_COUNT, multipart.getCount());
+            assertEquals(2, ((Multipart) multipart.getBodyPart(0).getBody()).getCount());
+            Log.i(Logging.LOG_TAG, String.format(
+                    "MimeMessage.parse: %d bytes, %d ms, %d allocations, %d bytes",
+                    message.length, elapsed, Debug.getThreadAllocCount(),
+                    Debug.getThreadAllocSize()));
+        }
+    }
+}
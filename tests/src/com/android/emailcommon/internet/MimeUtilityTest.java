@@ -24,6 +24,7 @@ import com.android.emailcommon.mail.BodyPart;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessageTestUtils;
 import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Multipart;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.mail.MessageTestUtils.MessageBuilder;
 import com.android.emailcommon.mail.MessageTestUtils.MultipartBuilder;
@@ -400,6 +401,44 @@ public class MimeUtilityTest extends TestCase {
         assertEquals(0, attach5.size());
     }
     
+    /** Tests for collectParts(Part part, ArrayList<Part> viewables, ArrayList<Part> attachments) */
+    public void testCollectPartsMultipart() throws MessagingException {
+        final Part html = MessageTestUtils.bodyPart("text/html", null);
+        final Part plainOnly = MessageTestUtils.bodyPart("TEXT/PLAIN; charset=utf-8", null);
+        final Part image = MessageTestUtils.bodyPart("image/gif; name=\"im1.gif\"", null);
+        final Part embedded = MessageTestUtils.bodyPart("text/plain", null);
+        final Message msg = new MessageBuilder()
+            .setBody(new MultipartBuilder("multipart/mixed")
+                .addBodyPart(new MultipartBuilder("multipart/alternative")
+                    .addBodyPart(MessageTestUtils.bodyPart("text/plain", null))
+                    .addBodyPart((BodyPart)html)
+                    .buildBodyPart())
+                .addBodyPart(new MultipartBuilder("multipart/alternative")
+                    .addBodyPart((BodyPart)plainOnly)
+                    .buildBodyPart())
+                .addBodyPart((BodyPart)image)
+                .addBodyPart(MessageTestUtils.bodyPart("image/png", null))  // not a viewable
+                .build())
+            .build();
+        final MimeBodyPart rfc822 = new MimeBodyPart(new MessageBuilder()
+                .setBody(new MultipartBuilder("multipart/mixed")
+                    .addBodyPart((BodyPart)embedded)
+                    .build())
+                .build(), "message/rfc822");
+        ((Multipart)msg.getBody()).addBodyPart(rfc822);
+
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        final ArrayList<Part> attachments = new ArrayList<Part>();
+        MimeUtility.collectParts(msg, viewables, attachments);
+        // The text/plain alternative to the html is skipped
+        assertEquals(3, viewables.size());
+        assertEquals(html, viewables.get(0));
+        assertEquals(plainOnly, viewables.get(1));
+        assertEquals(embedded, viewables.get(2));
+        assertEquals(1, attachments.size());
+        assertEquals(image, attachments.get(0));
+    }
+
     /** Tests for getTextFromPart(Part part) */
     public void testGetTextFromPartContentTypeCase() throws MessagingException {
         final String theText = "This is the text of the part";
@@ -425,6 +464,21 @@ public class MimeUtilityTest extends TestCase {
         assertEquals(theText, gotText);
     }
 
+    /** Tests for appendTextFromPart(Part part, StringBuilder sb) */
+    public void testAppendTextFromPart() throws MessagingException {
+        MimeBodyPart p = new MimeBodyPart(new TextBody("0123456789"), "text/plain");
+        StringBuilder sb = new StringBuilder("abc");
+        assertTrue(MimeUtility.appendTextFromPart(p, sb));
+        assertEquals("abc0123456789", sb.toString());
+
+        // Parts that aren't text leave the builder alone
+        p = new MimeBodyPart(new TextBody("0123456789"), "image/png");
+        assertFalse(MimeUtility.appendTextFromPart(p, sb));
+        p = new MimeBodyPart(null, "text/plain");
+        assertFalse(MimeUtility.appendTextFromPart(p, sb));
+        assertEquals("abc0123456789", sb.toString());
+    }
+
     /** Test for usage of Content-Type in getTextFromPart(Part part).
      * 
      * For example 'Content-Type: text/html; charset=utf-8'
@@ -533,6 +587,19 @@ public class MimeUtilityTest extends TestCase {
         // 5. No Match (wildcards)
         assertFalse(MimeUtility.mimeTypeMatches("foo/bar", "*/plain"));
         assertFalse(MimeUtility.mimeTypeMatches("foo/bar", "text/*"));
+        assertFalse(MimeUtility.mimeTypeMatches("textual/plain", "text/*"));
+        assertFalse(MimeUtility.mimeTypeMatches("text", "*/*"));
+
+        // 6. Match (mixed case wildcards), and again with the cached pattern
+        assertTrue(MimeUtility.mimeTypeMatches("IMAGE/GIF", "image/*"));
+        assertTrue(MimeUtility.mimeTypeMatches("application/vnd.ms-excel", "application/vnd.*"));
+        assertTrue(MimeUtility.mimeTypeMatches("Application/VND.ms-word", "application/vnd.*"));
+        assertFalse(MimeUtility.mimeTypeMatches("application/pdf", "application/vnd.*"));
+
+        // 7. Exact types are compared literally, not as patterns
+        assertTrue(MimeUtility.mimeTypeMatches("text/x-c++", "text/x-c++"));
+        assertFalse(MimeUtility.mimeTypeMatches("application/vndXms-excel",
+                "application/vnd.ms-excel"));
     }
     
     /** Tests for various aspects of mimeTypeMatches(String mimeType, String[] matchAgainst) */
@@ -560,6 +627,5 @@ public class MimeUtilityTest extends TestCase {
     }
 
     // TODO:  tests for decodeBody(InputStream in, String contentTransferEncoding)    
-    // TODO:  tests for collectParts(Part part, ArrayList<Part> viewables, ArrayList<Part> attachments)
 
 }
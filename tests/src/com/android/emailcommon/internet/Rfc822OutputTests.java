@@ -386,6 +386,30 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         assertNull(html);
     }
 
+    /**
+     * Test which text can be sent as is over an 8bit transport, and how its lines are ended.
+     */
+    public void testGet8bitLines() throws IOException {
+        assertEquals("a\r\nb\r\n\r\n", new String(Rfc822Output.get8bitLines(
+                "a\nb\r\n".getBytes("UTF-8")), "UTF-8"));
+        assertEquals("caf\u00e9\r\n", new String(Rfc822Output.get8bitLines(
+                "caf\u00e9".getBytes("UTF-8")), "UTF-8"));
+
+        // Bare CRs and NULs have to be encoded
+        assertNull(Rfc822Output.get8bitLines("a\rb".getBytes("UTF-8")));
+        assertNull(Rfc822Output.get8bitLines("a\r".getBytes("UTF-8")));
+        assertNull(Rfc822Output.get8bitLines("a\0b".getBytes("UTF-8")));
+
+        // So do lines longer than 998 bytes
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 998; i++) {
+            line.append('x');
+        }
+        assertNotNull(Rfc822Output.get8bitLines((line + "\n" + line).getBytes("UTF-8")));
+        line.append('x');
+        assertNull(Rfc822Output.get8bitLines(("a\n" + line).getBytes("UTF-8")));
+    }
+
     /**
      * Test the boundary digit. We modify it indirectly.
      */
@@ -475,6 +475,68 @@ public class MailboxTests extends ProviderTestCase2<EmailProvider> {
                 99999, Mailbox.TYPE_INBOX));
     }
 
+    private void updateMessage(Message message, String column, int value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        mProvider.update(Message.CONTENT_URI, values, EmailContent.ID_SELECTION,
+                new String[] {"" + message.mId});
+    }
+
+    /**
+     * Test for the triggers that keep the counts per mailbox type, which
+     * {@link Mailbox#getMessageCountByMailboxType}, {@link Mailbox#getUnreadCountByMailboxType}
+     * and {@link Message#getFavoriteMessageCount(Context)} read, when messages are changed and
+     * when mailboxes change type.
+     */
+    public void testMessageCountByMailboxType() {
+        final Context c = mMockContext;
+
+        Account a1 = ProviderTestUtils.setupAccount("typecount-1", true, c);
+        Account a2 = ProviderTestUtils.setupAccount("typecount-2", true, c);
+        Mailbox b1 = ProviderTestUtils.setupMailbox("box1", a1.mId, true, c, Mailbox.TYPE_INBOX);
+        Mailbox b2 = ProviderTestUtils.setupMailbox("box2", a2.mId, true, c, Mailbox.TYPE_INBOX);
+        Mailbox bt = ProviderTestUtils.setupMailbox("boxT", a2.mId, true, c, Mailbox.TYPE_TRASH);
+
+        // b1: a starred unread message, and a starred one that isn't loaded yet.  b2: a read one.
+        Message m11 = createMessage(c, b1, true, false, Message.FLAG_LOADED_COMPLETE);
+        Message m12 = createMessage(c, b1, true, false, Message.FLAG_LOADED_UNLOADED);
+        Message m21 = createMessage(c, b2, false, true, Message.FLAG_LOADED_COMPLETE);
+
+        assertEquals(3, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(2, Mailbox.getUnreadCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(1, Message.getFavoriteMessageCount(c)); // excludes unloaded
+
+        // Load, read, star and unstar
+        updateMessage(m12, MessageColumns.FLAG_LOADED, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(2, Message.getFavoriteMessageCount(c));
+        updateMessage(m11, MessageColumns.FLAG_READ, 1);
+        assertEquals(1, Mailbox.getUnreadCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        updateMessage(m21, MessageColumns.FLAG_FAVORITE, 1);
+        assertEquals(3, Message.getFavoriteMessageCount(c));
+        updateMessage(m11, MessageColumns.FLAG_FAVORITE, 0);
+        assertEquals(2, Message.getFavoriteMessageCount(c));
+
+        // Move a message to the trash
+        updateMessage(m12, MessageColumns.MAILBOX_KEY, (int) bt.mId);
+        assertEquals(2, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(0, Mailbox.getUnreadCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(1, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_TRASH));
+        assertEquals(1, Message.getFavoriteMessageCount(c)); // excludes starred in trash
+
+        // A mailbox changes type, with its messages
+        ContentValues values = new ContentValues();
+        values.put(MailboxColumns.TYPE, Mailbox.TYPE_MAIL);
+        mProvider.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, b2.mId), values,
+                null, null);
+        assertEquals(1, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(1, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_MAIL));
+        assertEquals(1, Message.getFavoriteMessageCount(c));
+
+        // Deleting a mailbox deletes its messages
+        mProvider.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, bt.mId), null, null);
+        assertEquals(0, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_TRASH));
+    }
+
     /**
      * Check if update on MAILBOX_ID_ADD_TO_FIELD updates the cache properly.
      */
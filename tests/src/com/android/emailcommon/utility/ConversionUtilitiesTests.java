@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
+import com.android.emailcommon.internet.TextBody;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
+import com.android.emailcommon.provider.EmailContent;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link ConversionUtilities#updateBodyFields}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.utility.ConversionUtilitiesTests email
+ */
+@SmallTest
+public class ConversionUtilitiesTests extends TestCase {
+
+    private static Part textPart(String text, String mimeType) throws MessagingException {
+        return new MimeBodyPart(new TextBody(text), mimeType);
+    }
+
+    public void testUpdateBodyFields() throws MessagingException {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(textPart("First part", "text/plain"));
+        viewables.add(textPart("<b>Html</b>", "text/html"));
+        viewables.add(new MimeBodyPart(null, "text/plain"));
+        viewables.add(textPart("Second part", "text/plain"));
+        final Part reply = textPart("Quoted reply", "text/plain");
+        reply.addHeader(MimeHeader.HEADER_ANDROID_BODY_QUOTED_PART,
+                ConversionUtilities.BODY_QUOTED_PART_REPLY);
+        viewables.add(reply);
+
+        final EmailContent.Body body = new EmailContent.Body();
+        final EmailContent.Message message = new EmailContent.Message();
+        assertTrue(ConversionUtilities.updateBodyFields(body, message, viewables));
+        // The part without a body adds nothing, not even a line break
+        assertEquals("First part\nSecond part", body.mTextContent);
+        assertEquals("<b>Html</b>", body.mHtmlContent);
+        assertEquals("Quoted reply", body.mTextReply);
+        assertNull(body.mHtmlReply);
+        assertNull(body.mIntroText);
+        assertEquals("First part Second part", message.mSnippet);
+        assertEquals(EmailContent.Message.FLAG_TYPE_REPLY,
+                message.mFlags & EmailContent.Message.FLAG_TYPE_MASK);
+    }
+
+    public void testUpdateBodyFieldsHugeHtml() throws MessagingException {
+        // Larger than any body buffer, and with chars outside the BMP, so that a body cut
+        // anywhere would show
+        final StringBuilder sb = new StringBuilder("<p>");
+        while (sb.length() < 1024 * 1024) {
+            sb.append("A long newsletter \uD83D\uDCF0. ");
+        }
+        sb.append("</p>");
+        final String html = sb.toString();
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(textPart(html, "text/html"));
+
+        final EmailContent.Body body = new EmailContent.Body();
+        final EmailContent.Message message = new EmailContent.Message();
+        assertTrue(ConversionUtilities.updateBodyFields(body, message, viewables));
+        // The whole body is kept
+        assertEquals(html, body.mHtmlContent);
+        assertTrue(message.mSnippet.startsWith("A long newsletter"));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link MimeBoundaryInputStream}, which scans a {@link LookAheadInputStream} for its
+ * boundary a block at a time.
+ *
+ * You can run this entire test case with:
+ *   runtest -c org.apache.james.mime4j.MimeBoundaryInputStreamTest email
+ */
+@SmallTest
+public class MimeBoundaryInputStreamTest extends TestCase {
+    private static final String BOUNDARY = "boundary42";
+
+    /** Returns at most one byte per read, so boundaries are split across reads */
+    private static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static LookAheadInputStream stream(String s, boolean trickle) {
+        InputStream in = new ByteArrayInputStream(s.getBytes());
+        return new LookAheadInputStream(trickle ? new TrickleInputStream(in) : in);
+    }
+
+    private static String readAll(InputStream in, boolean bulk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (bulk) {
+            byte[] buffer = new byte[7];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } else {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads a multipart the way MimeStreamParser does.
+     *
+     * @return the preamble, the parts and the epilogue, each followed by "|"
+     */
+    private static String readMultipart(String s, boolean trickle, boolean bulk)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        LookAheadInputStream in = stream(s, trickle);
+        MimeBoundaryInputStream part = new MimeBoundaryInputStream(in, BOUNDARY);
+        sb.append(readAll(part, bulk)).append('|');
+        while (part.hasMoreParts()) {
+            part = new MimeBoundaryInputStream(in, BOUNDARY);
+            sb.append(readAll(part, bulk)).append('|');
+            if (part.parentEOF()) {
+                break;
+            }
+        }
+        sb.append(readAll(in, bulk)).append('|');
+        return sb.toString();
+    }
+
+    private static void checkMultipart(String expected, String s) throws IOException {
+        assertEquals(expected, readMultipart(s, false, false));
+        assertEquals(expected, readMultipart(s, false, true));
+        assertEquals(expected, readMultipart(s, true, false));
+        assertEquals(expected, readMultipart(s, true, true));
+    }
+
+    public void testParts() throws IOException {
+        checkMultipart("preamble|part 1|part 2\r\nline 2|epilogue\r\n|",
+                "preamble\r\n--boundary42\r\npart 1\r\n--boundary42\r\npart 2\r\nline 2"
+                + "\r\n--boundary42--\r\nepilogue\r\n");
+        // No preamble
+        checkMultipart("|part 1|part 2||",
+                "--boundary42\r\npart 1\r\n--boundary42\r\npart 2\r\n--boundary42--\r\n");
+        // Empty part
+        checkMultipart("||part 2||",
+                "--boundary42\r\n\r\n--boundary42\r\npart 2\r\n--boundary42--\r\n");
+    }
+
+    public void testNotABoundary() throws IOException {
+        // Only a boundary at the start of a line counts, and only a whole one
+        checkMultipart("|a --boundary42\r\n--boundary4\r\n\r\n-boundary42\r\n--x||",
+                "--boundary42\r\na --boundary42\r\n--boundary4\r\n\r\n-boundary42\r\n--x"
+                + "\r\n--boundary42--\r\n");
+        // CRs before the boundary line belong to the part
+        checkMultipart("|part\r\r||", "--boundary42\r\npart\r\r\r\n--boundary42--\r\n");
+    }
+
+    public void testUnexpectedEnd() throws IOException {
+        LookAheadInputStream in = stream("--boundary42\r\npart 1 without an end", false);
+        MimeBoundaryInputStream part = new MimeBoundaryInputStream(in, BOUNDARY);
+        assertEquals("", readAll(part, true));
+        assertTrue(part.hasMoreParts());
+        part = new MimeBoundaryInputStream(in, BOUNDARY);
+        assertEquals("part 1 without an end", readAll(part, true));
+        assertTrue(part.parentEOF());
+    }
+
+    public void testLargePart() throws IOException {
+        // Several times the window, with partial boundaries all over
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append(" --boundary4\r\n--boundar");
+        }
+        checkMultipart("|" + body + "||",
+                "--boundary42\r\n" + body + "\r\n--boundary42--\r\n");
+    }
+
+    public void testConsumeAndSkip() throws IOException {
+        LookAheadInputStream in = stream(
+                "--boundary42\r\n0123456789\r\n--boundary42\r\npart 2\r\n--boundary42--\r\n",
+                true);
+        MimeBoundaryInputStream part = new MimeBoundaryInputStream(in, BOUNDARY);
+        part = new MimeBoundaryInputStream(in, BOUNDARY);
+        assertEquals(4, part.skip(4));
+        assertEquals('4', part.read());
+        part.consume();
+        assertEquals(-1, part.read());
+        part = new MimeBoundaryInputStream(in, BOUNDARY);
+        assertEquals("part 2", readAll(part, true));
+        assertFalse(part.hasMoreParts());
+    }
+}
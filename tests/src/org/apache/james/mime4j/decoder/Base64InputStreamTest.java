@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Base64InputStream}.  Each input is decoded with read(), with bulk reads of
+ * several sizes, and from an underlying stream that returns one byte per read.
+ *
+ * You can run this entire test case with:
+ *   runtest -c org.apache.james.mime4j.decoder.Base64InputStreamTest email
+ */
+@SmallTest
+public class Base64InputStreamTest extends TestCase {
+    /** 0 means read() */
+    private static final int[] READ_SIZES = {0, 1, 2, 3, 4, 5, 1024};
+
+    /**
+     * Returns at most one byte per read, like a slow network.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        public TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static String toString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length);
+        for (byte b : bytes) {
+            sb.append((char) (b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static String decode(InputStream in, int readSize) throws IOException {
+        final Base64InputStream stream = new Base64InputStream(in);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (readSize == 0) {
+            int c;
+            while ((c = stream.read()) != -1) {
+                out.write(c);
+            }
+        } else {
+            // Read at an offset, to check that it's honored
+            final byte[] buffer = new byte[readSize + 1];
+            int n;
+            while ((n = stream.read(buffer, 1, readSize)) != -1) {
+                assertTrue(n > 0 && n <= readSize);
+                out.write(buffer, 1, n);
+            }
+        }
+        // The end is sticky
+        assertEquals(-1, stream.read());
+        stream.close();
+        return toString(out.toByteArray());
+    }
+
+    private static void checkDecode(String expected, String encoded) throws IOException {
+        for (int readSize : READ_SIZES) {
+            assertEquals("read size " + readSize, expected,
+                    decode(new ByteArrayInputStream(toBytes(encoded)), readSize));
+            assertEquals("trickled, read size " + readSize, expected,
+                    decode(new TrickleInputStream(toBytes(encoded)), readSize));
+        }
+    }
+
+    public void testDecode() throws IOException {
+        checkDecode("", "");
+        checkDecode("abc", "YWJj");
+        checkDecode("Hello, world!", "SGVsbG8sIHdvcmxkIQ==");
+        checkDecode("\u0000\u00ff\u00fb\u00f0", "AP/78A==");
+    }
+
+    public void testLineBreaksIgnored() throws IOException {
+        checkDecode("abcdef", "YWJj\r\nZGVm\r\n");
+        checkDecode("abcdef", "YW\r\nJjZG\r\nVm");
+        checkDecode("abcdef", " YWJj\tZGVm ");
+    }
+
+    /** One or two '=' pad the last quantum; the data ends at the first one. */
+    public void testPadding() throws IOException {
+        checkDecode("a", "YQ==");
+        checkDecode("ab", "YWI=");
+        checkDecode("abca", "YWJjYQ==");
+        checkDecode("abcab", "YWJjYWI=");
+        // Nothing after the padding is decoded
+        checkDecode("a", "YQ==YWJj");
+        checkDecode("ab", "YWI=YWJj");
+        checkDecode("ab", "YWI=\r\n=");
+    }
+
+    /** '=' too early in a quantum ends the data, without a byte from the partial quantum. */
+    public void testEqualsMidQuantum() throws IOException {
+        checkDecode("abc", "YWJj=");
+        checkDecode("abc", "YWJj==");
+        checkDecode("abc", "YWJjY=");
+        checkDecode("abc", "YWJjY==");
+        checkDecode("abc", "YWJjY=WJj");
+        checkDecode("", "=YWJj");
+    }
+
+    /** Without padding, a partial quantum at the end is dropped. */
+    public void testPartialQuantumAtEnd() throws IOException {
+        checkDecode("abc", "YWJjY");
+        checkDecode("abc", "YWJjYQ");
+        checkDecode("abc", "YWJjYWI");
+    }
+
+    /** Reads with room for less than a quantum keep the rest for the next read. */
+    public void testShortReads() throws IOException {
+        final Base64InputStream stream =
+                new Base64InputStream(new ByteArrayInputStream(toBytes("YWJjZGVmZw==")));
+        final byte[] b = new byte[4];
+        assertEquals(1, stream.read(b, 0, 1));
+        assertEquals('a', b[0]);
+        assertEquals(2, stream.read(b, 1, 3));
+        assertEquals('b', b[1]);
+        assertEquals('c', b[2]);
+        assertEquals(0, stream.read(b, 0, 0));
+        assertEquals(2, stream.read(b, 0, 2));
+        assertEquals('d', b[0]);
+        assertEquals('e', b[1]);
+        assertEquals('f', stream.read());
+        assertEquals(1, stream.read(b, 3, 1));
+        assertEquals('g', b[3]);
+        assertEquals(-1, stream.read(b, 0, 2));
+        assertEquals(-1, stream.read(b, 0, 4));
+    }
+
+    public void testLongInput() throws IOException {
+        // Longer than the input buffer, with line breaks as in a real body
+        final StringBuilder encoded = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            encoded.append("YWJj");
+            expected.append("abc");
+            if (i % 19 == 18) {
+                encoded.append("\r\n");
+            }
+        }
+        encoded.append("YQ==");
+        expected.append("a");
+        checkDecode(expected.toString(), encoded.toString());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Micro benchmark for {@link Base64InputStream} and {@link QuotedPrintableInputStream}, on
+ * attachment-sized bodies.  Each is read a byte at a time, the way they were read before they
+ * decoded in bulk, and a buffer at a time.  Results go to logcat, in MB/s of encoded input.
+ *
+ * You can run this entire test case with:
+ *   runtest -c org.apache.james.mime4j.decoder.DecoderInputStreamLargeTest email
+ */
+@LargeTest
+public class DecoderInputStreamLargeTest extends TestCase {
+    private static final int[] SIZES = {16 * 1024, 256 * 1024, 4 * 1024 * 1024};
+    private static final int ROUNDS = 3;
+
+    private interface StreamFactory {
+        InputStream create(byte[] encoded);
+    }
+
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    /**
+     * @return mostly ASCII text with some escapes, like a text attachment in a Western language
+     */
+    private static byte[] createText(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            final int column = i % 64;
+            data[i] = (byte) ((column == 62) ? '\r' : (column == 63) ? '\n'
+                    : (column % 20 == 0) ? 0xE9 : 'a' + (i % 26));
+        }
+        return data;
+    }
+
+    /**
+     * Quoted-printable encodes <code>data</code>, whose line breaks are "\r\n", adding soft line
+     * breaks.
+     */
+    private static byte[] encodeQuotedPrintable(byte[] data) {
+        final StringBuilder sb = new StringBuilder();
+        int lineLength = 0;
+        for (byte b : data) {
+            final int c = b & 0xFF;
+            if (c == '\r' || c == '\n') {
+                sb.append((char) c);
+                lineLength = 0;
+                continue;
+            }
+            if (lineLength >= 72) {
+                sb.append("=\r\n");
+                lineLength = 0;
+            }
+            if (c >= 0x80 || c == '=') {
+                sb.append(String.format("=%02X", c));
+                lineLength += 3;
+            } else {
+                sb.append((char) c);
+                lineLength++;
+            }
+        }
+        return Utility.toAscii(sb.toString());
+    }
+
+    private static byte[] readByteAtATime(InputStream in, int size) throws IOException {
+        final byte[] out = new byte[size];
+        int count = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            out[count++] = (byte) c;
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private static byte[] readBuffered(InputStream in, int size) throws IOException {
+        final byte[] out = new byte[size];
+        int count = 0;
+        int n;
+        while (count < size && (n = in.read(out, count, Math.min(8192, size - count))) != -1) {
+            count += n;
+        }
+        assertEquals(-1, in.read());
+        return Arrays.copyOf(out, count);
+    }
+
+    private static void benchmark(String name, StreamFactory factory, byte[] data,
+            byte[] encoded) throws IOException {
+        long byteAtATime = 0;
+        long buffered = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            assertTrue(Arrays.equals(data, readByteAtATime(factory.create(encoded), data.length)));
+            byteAtATime += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            assertTrue(Arrays.equals(data, readBuffered(factory.create(encoded), data.length)));
+            buffered += SystemClock.elapsedRealtime() - start;
+        }
+        Log.i(Logging.LOG_TAG, String.format(
+                "%s: %d bytes, byte at a time %.1f MB/s, buffered %.1f MB/s", name,
+                encoded.length, megabytesPerSecond(encoded.length, byteAtATime),
+                megabytesPerSecond(encoded.length, buffered)));
+    }
+
+    private static double megabytesPerSecond(int length, long totalMillis) {
+        return (length * (double) ROUNDS / (1024 * 1024)) / (Math.max(1, totalMillis) / 1000.0);
+    }
+
+    public void testBase64() throws IOException {
+        final StreamFactory base64 = new StreamFactory() {
+            @Override
+            public InputStream create(byte[] encoded) {
+                return new Base64InputStream(new ByteArrayInputStream(encoded));
+            }
+        };
+        // For comparison, the framework's decoder that MimeUtility uses
+        final StreamFactory framework = new StreamFactory() {
+            @Override
+            public InputStream create(byte[] encoded) {
+                return new android.util.Base64InputStream(new ByteArrayInputStream(encoded),
+                        Base64.DEFAULT);
+            }
+        };
+        for (int size : SIZES) {
+            final byte[] data = createData(size);
+            final byte[] encoded = Base64.encode(data, Base64.CRLF);
+            benchmark("Base64InputStream", base64, data, encoded);
+            benchmark("android.util.Base64InputStream", framework, data, encoded);
+        }
+    }
+
+    public void testQuotedPrintable() throws IOException {
+        final StreamFactory quotedPrintable = new StreamFactory() {
+            @Override
+            public InputStream create(byte[] encoded) {
+                return new QuotedPrintableInputStream(new ByteArrayInputStream(encoded));
+            }
+        };
+        for (int size : SIZES) {
+            final byte[] data = createText(size);
+            benchmark("QuotedPrintableInputStream", quotedPrintable, data,
+                    encodeQuotedPrintable(data));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link QuotedPrintableInputStream}.  Each input is decoded with read(), with bulk
+ * reads of several sizes, and from an underlying stream that returns one byte per read.
+ *
+ * You can run this entire test case with:
+ *   runtest -c org.apache.james.mime4j.decoder.QuotedPrintableInputStreamTest email
+ */
+@SmallTest
+public class QuotedPrintableInputStreamTest extends TestCase {
+    /** 0 means read() */
+    private static final int[] READ_SIZES = {0, 1, 2, 3, 4, 5, 1024};
+
+    /** The size of the stream's input buffer */
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Returns at most one byte per read, like a slow network.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        public TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static String toString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length);
+        for (byte b : bytes) {
+            sb.append((char) (b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static String repeat(char c, int count) {
+        final StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String decode(InputStream in, int readSize) throws IOException {
+        final QuotedPrintableInputStream stream = new QuotedPrintableInputStream(in);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (readSize == 0) {
+            int c;
+            while ((c = stream.read()) != -1) {
+                out.write(c);
+            }
+        } else {
+            // Read at an offset, to check that it's honored
+            final byte[] buffer = new byte[readSize + 1];
+            int n;
+            while ((n = stream.read(buffer, 1, readSize)) != -1) {
+                assertTrue(n > 0 && n <= readSize);
+                out.write(buffer, 1, n);
+            }
+        }
+        // The end is sticky
+        assertEquals(-1, stream.read());
+        stream.close();
+        return toString(out.toByteArray());
+    }
+
+    private static void checkDecode(String expected, String encoded) throws IOException {
+        for (int readSize : READ_SIZES) {
+            assertEquals("read size " + readSize, expected,
+                    decode(new ByteArrayInputStream(toBytes(encoded)), readSize));
+            assertEquals("trickled, read size " + readSize, expected,
+                    decode(new TrickleInputStream(toBytes(encoded)), readSize));
+        }
+    }
+
+    public void testDecode() throws IOException {
+        checkDecode("", "");
+        checkDecode("abc", "abc");
+        checkDecode("a=b", "a=3Db");
+        checkDecode("a=b", "a=3db");
+        checkDecode("\u00e9t\u00e9\r\n", "=E9t=E9\r\n");
+        checkDecode("a b\tc", "a b\tc");
+    }
+
+    public void testSoftLineBreak() throws IOException {
+        checkDecode("abcdef", "abc=\r\ndef");
+        checkDecode("abc", "abc=\r\n");
+        // Whitespace after the '=' is transport padding
+        checkDecode("abcdef", "abc= \r\ndef");
+        checkDecode("abcdef", "abc= \t \r\ndef");
+    }
+
+    /** "=\r" must be followed by "\n"; otherwise it's taken literally. */
+    public void testEqualsCrWithoutLf() throws IOException {
+        checkDecode("a=\rb", "a=\rb");
+        // The character after "=\r" is taken as is, even an '='
+        checkDecode("a=\r=3Db", "a=\r=3Db");
+        // At the end, the incomplete escape is dropped
+        checkDecode("a", "a=\r");
+        checkDecode("a", "a=");
+        checkDecode("a", "a=4");
+    }
+
+    public void testMalformedEscapes() throws IOException {
+        checkDecode("a=xb", "a=xb");
+        checkDecode("a=4xb", "a=4xb");
+        // "==" gives one '=', and the second one still starts an escape
+        checkDecode("a==b", "a==3Db");
+        checkDecode("a==", "a===");
+    }
+
+    /** Whitespace before a line break or the end is dropped; elsewhere it's kept. */
+    public void testTrailingWhitespace() throws IOException {
+        checkDecode("abc\r\ndef", "abc  \r\ndef");
+        checkDecode("abc\ndef", "abc \t\ndef");
+        checkDecode("abc", "abc \t ");
+        checkDecode("a  b\r\n", "a  b \r\n");
+        checkDecode("a\r\n b", "a\r\n b");
+    }
+
+    /** A run of whitespace that reaches the end of the input buffer is decided on its end. */
+    public void testWhitespaceAcrossBuffer() throws IOException {
+        for (int start = INPUT_BUFFER_SIZE - 4; start < INPUT_BUFFER_SIZE + 1; start++) {
+            final String text = repeat('x', start);
+            checkDecode(text + "\r\nz", text + "     \r\nz");
+            checkDecode(text + "     z", text + "     z");
+            checkDecode(text, text + "     ");
+        }
+        // Runs longer than the buffer
+        final String spaces = repeat(' ', INPUT_BUFFER_SIZE + 10);
+        checkDecode("a" + spaces + "z", "a" + spaces + "z");
+        checkDecode("a\r\nz", "a" + spaces + "\r\nz");
+        checkDecode("a", "a" + spaces);
+    }
+
+    /** An escape split across the input buffer */
+    public void testEscapeAcrossBuffer() throws IOException {
+        for (int start = INPUT_BUFFER_SIZE - 3; start < INPUT_BUFFER_SIZE + 1; start++) {
+            final String text = repeat('x', start);
+            checkDecode(text + "=y", text + "=3Dy");
+            checkDecode(text + "y", text + "=\r\ny");
+        }
+    }
+
+    /** Reads with room for less than what a malformed escape decodes to */
+    public void testShortReads() throws IOException {
+        final QuotedPrintableInputStream stream =
+                new QuotedPrintableInputStream(new ByteArrayInputStream(toBytes("=\rxa=4y")));
+        final byte[] b = new byte[4];
+        assertEquals(1, stream.read(b, 0, 1));
+        assertEquals('=', b[0]);
+        assertEquals(2, stream.read(b, 1, 3));
+        assertEquals('\r', b[1]);
+        assertEquals('x', b[2]);
+        assertEquals(0, stream.read(b, 0, 0));
+        // A short read may return less than asked for; only the bytes add up
+        final StringBuilder sb = new StringBuilder();
+        int n;
+        while ((n = stream.read(b, 1, 2)) != -1) {
+            assertTrue(n > 0 && n <= 2);
+            sb.append(toString(b).substring(1, 1 + n));
+        }
+        assertEquals("a=4y", sb.toString());
+        assertEquals(-1, stream.read(b, 0, 4));
+    }
+}